@@ -33,6 +33,10 @@ import com.android.net.module.util.bpf.TetherStatsValue;
 import com.android.networkstack.tethering.BpfCoordinator.Dependencies;
 import com.android.networkstack.tethering.BpfCoordinator.Ipv6DownstreamRule;
 import com.android.networkstack.tethering.BpfCoordinator.Ipv6UpstreamRule;
+import com.android.networkstack.tethering.TetherClientStatsKey;
+
+import java.util.List;
+import java.util.Map;
 
 /**
  * Bpf coordinator class for API shims.
@@ -145,6 +149,27 @@ public class BpfCoordinatorShimImpl
         }
     }
 
+    @Override
+    public boolean tetherOffloadClientStatsAdd(@NonNull TetherClientStatsKey key) {
+        /* no op */
+        return false;
+    }
+
+    @Override
+    @Nullable
+    public Map<TetherClientStatsKey, TetherStatsValue> tetherOffloadGetClientStats() {
+        /* no op */
+        return null;
+    }
+
+    @Override
+    @Nullable
+    public TetherStatsValue tetherOffloadGetAndRemoveClientStats(
+            @NonNull TetherClientStatsKey key) {
+        /* no op */
+        return null;
+    }
+
     @Override
     public boolean tetherOffloadRuleAdd(boolean downstream, @NonNull Tether4Key key,
             @NonNull Tether4Value value) {
@@ -158,6 +183,12 @@ public class BpfCoordinatorShimImpl
         return true;
     }
 
+    @Override
+    public int tetherOffloadRulesRemove(boolean downstream, @NonNull List<Tether4Key> keys) {
+        /* no op */
+        return keys.size();
+    }
+
     @Override
     public void tetherOffloadRuleForEach(boolean downstream,
             @NonNull ThrowingBiConsumer<Tether4Key, Tether4Value> action) {
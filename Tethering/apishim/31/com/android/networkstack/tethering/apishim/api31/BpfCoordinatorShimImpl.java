@@ -41,6 +41,7 @@ import com.android.networkstack.tethering.BpfCoordinator.Ipv6DownstreamRule;
 import com.android.networkstack.tethering.BpfCoordinator.Ipv6UpstreamRule;
 import com.android.networkstack.tethering.BpfUtils;
 import com.android.networkstack.tethering.Tether6Value;
+import com.android.networkstack.tethering.TetherClientStatsKey;
 import com.android.networkstack.tethering.TetherDevKey;
 import com.android.networkstack.tethering.TetherDevValue;
 import com.android.networkstack.tethering.TetherDownstream6Key;
@@ -50,6 +51,10 @@ import com.android.networkstack.tethering.TetherUpstream6Key;
 
 import java.io.FileDescriptor;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Bpf coordinator class for API shims.
@@ -94,6 +99,11 @@ public class BpfCoordinatorShimImpl
     @Nullable
     private final IBpfMap<TetherDevKey, TetherDevValue> mBpfDevMap;
 
+    // BPF map of tethering statistics of the downstream clients since they were added. Not
+    // required for offload, so not part of #isInitialized.
+    @Nullable
+    private final IBpfMap<TetherClientStatsKey, TetherStatsValue> mBpfClientStatsMap;
+
     // Tracking IPv4 rule count while any rule is using the given upstream interfaces. Used for
     // reducing the BPF map iteration query. The count is increased or decreased when the rule is
     // added or removed successfully on mBpfDownstream4Map. Counting the rules on downstream4 map
@@ -118,6 +128,7 @@ public class BpfCoordinatorShimImpl
         mBpfStatsMap = deps.getBpfStatsMap();
         mBpfLimitMap = deps.getBpfLimitMap();
         mBpfDevMap = deps.getBpfDevMap();
+        mBpfClientStatsMap = deps.getBpfClientStatsMap();
 
         // Clear the stubs of the maps for handling the system service crash if any.
         // Doesn't throw the exception and clear the stubs as many as possible.
@@ -156,6 +167,11 @@ public class BpfCoordinatorShimImpl
         } catch (ErrnoException e) {
             mLog.e("Could not clear mBpfDevMap: " + e);
         }
+        try {
+            if (mBpfClientStatsMap != null) mBpfClientStatsMap.clear();
+        } catch (ErrnoException e) {
+            mLog.e("Could not clear mBpfClientStatsMap: " + e);
+        }
     }
 
     @Override
@@ -232,7 +248,8 @@ public class BpfCoordinatorShimImpl
         try {
             // The reported tether stats are total data usage for all currently-active upstream
             // interfaces since tethering start.
-            mBpfStatsMap.forEach((key, value) -> tetherStatsList.put((int) key.ifindex, value));
+            mBpfStatsMap.forEachBatch(
+                    (key, value) -> tetherStatsList.put((int) key.ifindex, value));
         } catch (ErrnoException e) {
             mLog.e("Fail to fetch tethering stats from BPF map: ", e);
             return null;
@@ -339,6 +356,58 @@ public class BpfCoordinatorShimImpl
         return statsValue;
     }
 
+    @Override
+    public boolean tetherOffloadClientStatsAdd(@NonNull TetherClientStatsKey key) {
+        if (mBpfClientStatsMap == null) return false;
+
+        try {
+            mBpfClientStatsMap.insertEntry(key, new TetherStatsValue(
+                    0 /* rxPackets */, 0 /* rxBytes */, 0 /* rxErrors */, 0 /* txPackets */,
+                    0 /* txBytes */, 0 /* txErrors */));
+        } catch (ErrnoException e) {
+            mLog.e("Could not create client stats entry (" + key + "): " + e);
+            return false;
+        } catch (IllegalStateException e) {
+            // Silent if the client is already counted, so that its stats are not reset. Note
+            // that the errno EEXIST was rethrown as IllegalStateException. See
+            // BpfMap#insertEntry.
+        }
+        return true;
+    }
+
+    @Override
+    @Nullable
+    public Map<TetherClientStatsKey, TetherStatsValue> tetherOffloadGetClientStats() {
+        if (mBpfClientStatsMap == null) return null;
+
+        final Map<TetherClientStatsKey, TetherStatsValue> clientStats = new HashMap<>();
+        try {
+            mBpfClientStatsMap.forEachBatch((key, value) -> clientStats.put(key, value));
+        } catch (ErrnoException e) {
+            mLog.e("Fail to fetch client stats from BPF map: ", e);
+            return null;
+        }
+        return clientStats;
+    }
+
+    @Override
+    @Nullable
+    public TetherStatsValue tetherOffloadGetAndRemoveClientStats(
+            @NonNull TetherClientStatsKey key) {
+        if (mBpfClientStatsMap == null) return null;
+
+        final TetherStatsValue statsValue;
+        try {
+            statsValue = mBpfClientStatsMap.getValue(key);
+            if (statsValue == null) return null;
+            mBpfClientStatsMap.deleteEntry(key);
+        } catch (ErrnoException e) {
+            mLog.e("Could not get and remove client stats entry (" + key + "): ", e);
+            return null;
+        }
+        return statsValue;
+    }
+
     @Override
     public boolean tetherOffloadRuleAdd(boolean downstream, @NonNull Tether4Key key,
             @NonNull Tether4Value value) {
@@ -394,6 +463,67 @@ public class BpfCoordinatorShimImpl
         return true;
     }
 
+    @Override
+    public int tetherOffloadRulesRemove(boolean downstream, @NonNull List<Tether4Key> keys) {
+        if (!downstream) return removeRules4(mBpfUpstream4Map, false /* downstream */, keys);
+
+        // Group the keys by upstream interface to maintain the rule count of each upstream.
+        final SparseArray<List<Tether4Key>> keysByUpstream = new SparseArray<>();
+        for (Tether4Key key : keys) {
+            final int upstreamIfindex = (int) key.iif;
+            List<Tether4Key> upstreamKeys = keysByUpstream.get(upstreamIfindex);
+            if (upstreamKeys == null) {
+                upstreamKeys = new ArrayList<>();
+                keysByUpstream.put(upstreamIfindex, upstreamKeys);
+            }
+            upstreamKeys.add(key);
+        }
+
+        int removed = 0;
+        for (int i = 0; i < keysByUpstream.size(); i++) {
+            final int upstreamIfindex = keysByUpstream.keyAt(i);
+            final int deleted = removeRules4(mBpfDownstream4Map, true /* downstream */,
+                    keysByUpstream.valueAt(i));
+            if (deleted == 0) continue;
+            removed += deleted;
+
+            final Integer count = mRule4CountOnUpstream.get(upstreamIfindex);
+            if (count == null || count < deleted) {
+                Log.wtf(TAG, "Could not delete count for interface " + upstreamIfindex);
+                mRule4CountOnUpstream.remove(upstreamIfindex);
+            } else if (count == deleted) {
+                // Remove the entry if the count decreases to zero.
+                mRule4CountOnUpstream.remove(upstreamIfindex);
+            } else {
+                mRule4CountOnUpstream.put(upstreamIfindex, count - deleted);
+            }
+        }
+        return removed;
+    }
+
+    // Delete the given keys in batches. If a batch fails, fall back to deleting the remaining
+    // keys one by one. The keys deleted before the failure are not found anymore, and counted
+    // with the count reported by the batch deletion.
+    private int removeRules4(@NonNull IBpfMap<Tether4Key, Tether4Value> map, boolean downstream,
+            @NonNull List<Tether4Key> keys) {
+        final int[] deletedCount = new int[1];
+        try {
+            return map.deleteAll(keys, deletedCount);
+        } catch (ErrnoException e) {
+            mLog.e("Could not delete " + (downstream ? "downstream" : "upstream") + " entries in "
+                    + "batch after deleting " + deletedCount[0] + ", deleting one by one: " + e);
+        }
+        int deleted = deletedCount[0];
+        for (Tether4Key key : keys) {
+            try {
+                if (map.deleteEntry(key)) deleted++;
+            } catch (ErrnoException e) {
+                mLog.e("Could not delete entry (key: " + key + ")", e);
+            }
+        }
+        return deleted;
+    }
+
     @Override
     public void tetherOffloadRuleForEach(boolean downstream,
             @NonNull ThrowingBiConsumer<Tether4Key, Tether4Value> action) {
@@ -471,7 +601,8 @@ public class BpfCoordinatorShimImpl
                 mapStatus(mBpfUpstream4Map, "mBpfUpstream4Map"),
                 mapStatus(mBpfStatsMap, "mBpfStatsMap"),
                 mapStatus(mBpfLimitMap, "mBpfLimitMap"),
-                mapStatus(mBpfDevMap, "mBpfDevMap")
+                mapStatus(mBpfDevMap, "mBpfDevMap"),
+                mapStatus(mBpfClientStatsMap, "mBpfClientStatsMap")
         });
     }
 
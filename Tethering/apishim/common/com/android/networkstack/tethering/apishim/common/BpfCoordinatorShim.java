@@ -28,6 +28,10 @@ import com.android.net.module.util.bpf.TetherStatsValue;
 import com.android.networkstack.tethering.BpfCoordinator.Dependencies;
 import com.android.networkstack.tethering.BpfCoordinator.Ipv6DownstreamRule;
 import com.android.networkstack.tethering.BpfCoordinator.Ipv6UpstreamRule;
+import com.android.networkstack.tethering.TetherClientStatsKey;
+
+import java.util.List;
+import java.util.Map;
 
 /**
  * Bpf coordinator class for API shims.
@@ -138,6 +142,34 @@ public abstract class BpfCoordinatorShim {
     @Nullable
     public abstract TetherStatsValue tetherOffloadGetAndClearStats(int ifIndex);
 
+    /**
+     * Start counting the offloaded IPv4 traffic of a downstream client.
+     *
+     * @param key the downstream interface index and IPv4 address of the client.
+     * @return true if the client is counted, including if it already was, false otherwise.
+     */
+    public abstract boolean tetherOffloadClientStatsAdd(@NonNull TetherClientStatsKey key);
+
+    /**
+     * Return BPF tethering offload statistics of all counted downstream clients.
+     *
+     * @return the statistics of each client since it was added by #tetherOffloadClientStatsAdd,
+     *         or null if there was an error.
+     */
+    @Nullable
+    public abstract Map<TetherClientStatsKey, TetherStatsValue> tetherOffloadGetClientStats();
+
+    /**
+     * Stop counting the traffic of a downstream client, and return its last statistics.
+     *
+     * @param key the downstream interface index and IPv4 address of the client.
+     * @return the statistics of the client since it was added by #tetherOffloadClientStatsAdd,
+     *         or null if the client was not counted or there was an error.
+     */
+    @Nullable
+    public abstract TetherStatsValue tetherOffloadGetAndRemoveClientStats(
+            @NonNull TetherClientStatsKey key);
+
     /**
      * Adds a tethering IPv4 offload rule to appropriate BPF map.
      */
@@ -153,6 +185,17 @@ public abstract class BpfCoordinatorShim {
      */
     public abstract boolean tetherOffloadRuleRemove(boolean downstream, @NonNull Tether4Key key);
 
+    /**
+     * Deletes tethering IPv4 offload rules from the appropriate BPF map, in batches where
+     * supported.
+     *
+     * @param downstream true if downstream, false if upstream.
+     * @param keys the keys to delete.
+     * @return the number of rules deleted. Keys which did not exist are not counted.
+     */
+    public abstract int tetherOffloadRulesRemove(boolean downstream,
+            @NonNull List<Tether4Key> keys);
+
     /**
      * Iterate through the map and handle each key -> value retrieved base on the given BiConsumer.
      *
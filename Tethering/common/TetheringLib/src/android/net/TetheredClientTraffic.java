@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.net;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Objects;
+
+/**
+ * Traffic of a tethered downstream client through an upstream interface, over a period of time.
+ *
+ * <p>Only traffic forwarded by tethering offload is counted.
+ * @hide
+ */
+public final class TetheredClientTraffic implements Parcelable {
+    @NonNull
+    private final MacAddress mMacAddress;
+    @NonNull
+    private final InetAddress mAddress;
+    @NonNull
+    private final String mUpstreamInterface;
+    private final long mRxBytes;
+    private final long mRxPackets;
+    private final long mTxBytes;
+    private final long mTxPackets;
+
+    public TetheredClientTraffic(@NonNull MacAddress macAddress, @NonNull InetAddress address,
+            @NonNull String upstreamInterface, long rxBytes, long rxPackets, long txBytes,
+            long txPackets) {
+        mMacAddress = Objects.requireNonNull(macAddress);
+        mAddress = Objects.requireNonNull(address);
+        mUpstreamInterface = Objects.requireNonNull(upstreamInterface);
+        mRxBytes = rxBytes;
+        mRxPackets = rxPackets;
+        mTxBytes = txBytes;
+        mTxPackets = txPackets;
+    }
+
+    private TetheredClientTraffic(@NonNull Parcel in) {
+        this(in.readParcelable(null), readAddress(in), in.readString(), in.readLong(),
+                in.readLong(), in.readLong(), in.readLong());
+    }
+
+    private static InetAddress readAddress(@NonNull Parcel in) {
+        try {
+            return InetAddress.getByAddress(in.createByteArray());
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException("Invalid client address", e);
+        }
+    }
+
+    @Override
+    public void writeToParcel(@NonNull Parcel dest, int flags) {
+        dest.writeParcelable(mMacAddress, flags);
+        dest.writeByteArray(mAddress.getAddress());
+        dest.writeString(mUpstreamInterface);
+        dest.writeLong(mRxBytes);
+        dest.writeLong(mRxPackets);
+        dest.writeLong(mTxBytes);
+        dest.writeLong(mTxPackets);
+    }
+
+    /**
+     * Get the MAC address of the client.
+     */
+    @NonNull
+    public MacAddress getMacAddress() {
+        return mMacAddress;
+    }
+
+    /**
+     * Get the address of the client on the downstream.
+     */
+    @NonNull
+    public InetAddress getAddress() {
+        return mAddress;
+    }
+
+    /**
+     * Get the name of the upstream interface the traffic was forwarded through.
+     */
+    @NonNull
+    public String getUpstreamInterface() {
+        return mUpstreamInterface;
+    }
+
+    /**
+     * Get the number of bytes received from the upstream for the client.
+     */
+    public long getRxBytes() {
+        return mRxBytes;
+    }
+
+    /**
+     * Get the number of packets received from the upstream for the client.
+     */
+    public long getRxPackets() {
+        return mRxPackets;
+    }
+
+    /**
+     * Get the number of bytes sent by the client to the upstream.
+     */
+    public long getTxBytes() {
+        return mTxBytes;
+    }
+
+    /**
+     * Get the number of packets sent by the client to the upstream.
+     */
+    public long getTxPackets() {
+        return mTxPackets;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(mMacAddress, mAddress, mUpstreamInterface, mRxBytes, mRxPackets,
+                mTxBytes, mTxPackets);
+    }
+
+    @Override
+    public boolean equals(@Nullable Object obj) {
+        if (!(obj instanceof TetheredClientTraffic)) return false;
+        final TetheredClientTraffic other = (TetheredClientTraffic) obj;
+        return mMacAddress.equals(other.mMacAddress)
+                && mAddress.equals(other.mAddress)
+                && mUpstreamInterface.equals(other.mUpstreamInterface)
+                && mRxBytes == other.mRxBytes
+                && mRxPackets == other.mRxPackets
+                && mTxBytes == other.mTxBytes
+                && mTxPackets == other.mTxPackets;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @NonNull
+    public static final Creator<TetheredClientTraffic> CREATOR =
+            new Creator<TetheredClientTraffic>() {
+        @NonNull
+        @Override
+        public TetheredClientTraffic createFromParcel(@NonNull Parcel in) {
+            return new TetheredClientTraffic(in);
+        }
+
+        @NonNull
+        @Override
+        public TetheredClientTraffic[] newArray(int size) {
+            return new TetheredClientTraffic[size];
+        }
+    };
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "TetheredClientTraffic{mac: " + mMacAddress + ", address: "
+                + mAddress.getHostAddress() + ", upstream: " + mUpstreamInterface + ", rx: "
+                + mRxBytes + " bytes/" + mRxPackets + " packets, tx: " + mTxBytes + " bytes/"
+                + mTxPackets + " packets}";
+    }
+}
@@ -1728,4 +1728,61 @@ public class TetheringManager {
             }
         });
     }
+
+    /**
+     * Callback for use with {@link #pollTetheredClientTraffic}.
+     * @hide
+     */
+    public interface TetheredClientTrafficCallback {
+        /**
+         * Called with the traffic of the tethered clients since the previous poll, for each
+         * client and upstream interface. Clients without traffic are not included.
+         */
+        void onTetheredClientTraffic(@NonNull List<TetheredClientTraffic> traffic);
+
+        /**
+         * Called if the traffic could not be polled.
+         *
+         * @param error one of the {@code TETHER_ERROR_*} constants.
+         */
+        default void onError(final int error) {}
+    }
+
+    /**
+     * Poll the traffic forwarded by tethering offload for each tethered client since the previous
+     * poll.
+     *
+     * <p>The traffic is accumulated by the tethering service between polls, and returned to one
+     * caller only: callers sharing this feed must not expect to see the same traffic. If there
+     * is no poll for a long time, the traffic of the least recently active clients may be
+     * dropped to bound memory usage.
+     *
+     * @param executor the executor on which callback will be invoked.
+     * @param callback the callback to be called with the traffic, or an error.
+     * @hide
+     */
+    @RequiresPermission(anyOf = {
+            android.Manifest.permission.NETWORK_SETTINGS,
+            android.Manifest.permission.NETWORK_STACK
+    })
+    public void pollTetheredClientTraffic(@NonNull final Executor executor,
+            @NonNull final TetheredClientTrafficCallback callback) {
+        Objects.requireNonNull(executor);
+        Objects.requireNonNull(callback);
+        final String callerPkg = mContext.getOpPackageName();
+
+        final ITetheredClientTrafficListener listener = new ITetheredClientTrafficListener.Stub() {
+            @Override
+            public void onResult(final int resultCode, final List<TetheredClientTraffic> traffic) {
+                executor.execute(() -> {
+                    if (resultCode == TETHER_ERROR_NO_ERROR) {
+                        callback.onTetheredClientTraffic(traffic);
+                    } else {
+                        callback.onError(resultCode);
+                    }
+                });
+            }
+        };
+        getConnector(c -> c.pollTetheredClientTraffic(callerPkg, listener));
+    }
 }
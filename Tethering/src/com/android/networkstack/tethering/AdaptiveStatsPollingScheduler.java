@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.networkstack.tethering;
+
+import static android.net.netstats.provider.NetworkStatsProvider.QUOTA_UNLIMITED;
+
+import android.annotation.NonNull;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.IndentingPrintWriter;
+
+/**
+ * Computes the interval of the next tethering offload stats poll from the recent forwarded byte
+ * rate and the remaining alert quota.
+ *
+ * Stats are polled more often than the regular interval when the alert quota is predicted to be
+ * reached before the next regular poll, so that the alert is not notified late. They are polled
+ * less often after polls without any forwarded traffic, so that an idle hotspot does not wake up
+ * the device for nothing. While an alert quota is set, the idle back-off is bounded so that the
+ * quota cannot be reached between two polls, even if traffic resumes at the highest rate seen.
+ *
+ * The scheduler only makes decisions; the callers poll the stats, report the forwarded bytes with
+ * {@link #onBytesForwarded} and schedule the next poll with {@link #getNextPollingIntervalMs}.
+ * This class is not thread-safe and must be used on the handler thread of its owner.
+ */
+public class AdaptiveStatsPollingScheduler {
+    // Shortest polling interval, used when the alert quota is about to be reached.
+    @VisibleForTesting
+    static final long MIN_POLLING_INTERVAL_MS = 1000;
+    // The regular interval is doubled after each poll without traffic, up to 2^MAX_BACKOFF_SHIFT
+    // times the regular interval.
+    @VisibleForTesting
+    static final int MAX_BACKOFF_SHIFT = 3;
+    // Samples shorter than this are merged with the next one, e.g. when the stats of several
+    // upstreams are polled one after the other.
+    @VisibleForTesting
+    static final long MIN_SAMPLE_DURATION_MS = 100;
+    // Weight of the last sample in the smoothed forwarded byte rate.
+    private static final double RATE_SMOOTHING_FACTOR = 0.5;
+
+    private static final String DECISION_NONE = "none";
+    private static final String DECISION_REGULAR = "regular";
+    private static final String DECISION_QUOTA = "alert quota";
+    private static final String DECISION_IDLE = "idle back-off";
+
+    private long mLastSampleMs;
+    private long mPendingBytes;
+    private int mSampleCount;
+    // Smoothed and highest forwarded byte rate, in bytes per second.
+    private double mBytesPerSecond;
+    private double mPeakBytesPerSecond;
+    // Number of consecutive samples without any forwarded traffic.
+    private int mIdleSampleCount;
+    private long mRemainingAlertQuota = QUOTA_UNLIMITED;
+
+    private long mLastIntervalMs;
+    private String mLastDecision = DECISION_NONE;
+    private long mQuotaDecisionCount;
+    private long mIdleDecisionCount;
+
+    public AdaptiveStatsPollingScheduler(long nowMs) {
+        reset(nowMs);
+    }
+
+    /**
+     * Forget the forwarded byte rate, e.g. when polling starts.
+     *
+     * @param nowMs the current time, as measured by {@link android.os.SystemClock#elapsedRealtime}.
+     */
+    public void reset(long nowMs) {
+        mLastSampleMs = nowMs;
+        mPendingBytes = 0;
+        mSampleCount = 0;
+        mBytesPerSecond = 0;
+        mPeakBytesPerSecond = 0;
+        mIdleSampleCount = 0;
+    }
+
+    /**
+     * Report the bytes forwarded since the previous report.
+     *
+     * @param bytes the number of bytes forwarded in both directions, on all upstreams.
+     * @param nowMs the current time, as measured by {@link android.os.SystemClock#elapsedRealtime}.
+     */
+    public void onBytesForwarded(long bytes, long nowMs) {
+        mPendingBytes += bytes;
+        final long durationMs = nowMs - mLastSampleMs;
+        if (durationMs < MIN_SAMPLE_DURATION_MS) return;
+
+        final double rate = mPendingBytes * 1000.0 / durationMs;
+        mBytesPerSecond = (mSampleCount == 0) ? rate
+                : RATE_SMOOTHING_FACTOR * rate + (1 - RATE_SMOOTHING_FACTOR) * mBytesPerSecond;
+        mPeakBytesPerSecond = Math.max(mPeakBytesPerSecond, rate);
+        mIdleSampleCount = (mPendingBytes == 0) ? mIdleSampleCount + 1 : 0;
+        mSampleCount++;
+        mPendingBytes = 0;
+        mLastSampleMs = nowMs;
+    }
+
+    /**
+     * Update the remaining alert quota.
+     *
+     * @param quotaBytes non-negative value to indicate the remaining quota, or
+     *                   {@link android.net.netstats.provider.NetworkStatsProvider#QUOTA_UNLIMITED}
+     *                   to indicate there is no quota.
+     */
+    public void setRemainingAlertQuota(long quotaBytes) {
+        mRemainingAlertQuota = quotaBytes;
+    }
+
+    /**
+     * Go back to the regular interval until traffic is seen again, e.g. when a new quota is set
+     * by the stats service.
+     */
+    public void clearBackoff() {
+        mIdleSampleCount = 0;
+    }
+
+    /** Returns true if the last computed interval is longer than the regular interval. */
+    public boolean isBackedOff() {
+        return DECISION_IDLE.equals(mLastDecision);
+    }
+
+    // Time until the remaining alert quota is reached at the given rate, or Long.MAX_VALUE if it
+    // cannot be reached.
+    private long getMillisToQuota(double bytesPerSecond) {
+        if (mRemainingAlertQuota <= 0 || bytesPerSecond <= 0) return Long.MAX_VALUE;
+        return (long) Math.min(mRemainingAlertQuota * 1000.0 / bytesPerSecond, Long.MAX_VALUE);
+    }
+
+    /**
+     * Compute the interval until the next poll, and record the decision for dump.
+     *
+     * @param regularIntervalMs the interval that is used when there is traffic but no alert quota
+     *                          close to being reached.
+     */
+    public long getNextPollingIntervalMs(long regularIntervalMs) {
+        long intervalMs = regularIntervalMs;
+        String decision = DECISION_REGULAR;
+        if (mIdleSampleCount > 0) {
+            final int shift = Math.min(mIdleSampleCount, MAX_BACKOFF_SHIFT);
+            // Poll twice before the quota could be reached if traffic resumed at the peak rate.
+            // Without any traffic seen yet, there is no rate to bound the back-off with.
+            final boolean hasQuotaWithoutRate = mRemainingAlertQuota > 0
+                    && mPeakBytesPerSecond == 0;
+            final long boundMs = hasQuotaWithoutRate ? regularIntervalMs
+                    : Math.max(regularIntervalMs, getMillisToQuota(mPeakBytesPerSecond) / 2);
+            final long backoffMs = Math.min(regularIntervalMs << shift, boundMs);
+            if (backoffMs > regularIntervalMs) {
+                intervalMs = backoffMs;
+                decision = DECISION_IDLE;
+                mIdleDecisionCount++;
+            }
+        } else {
+            // Poll twice before the quota is predicted to be reached at the current rate.
+            final long halfMillisToQuota = getMillisToQuota(mBytesPerSecond) / 2;
+            if (halfMillisToQuota < regularIntervalMs) {
+                intervalMs = Math.max(MIN_POLLING_INTERVAL_MS, halfMillisToQuota);
+                decision = DECISION_QUOTA;
+                mQuotaDecisionCount++;
+            }
+        }
+        mLastIntervalMs = intervalMs;
+        mLastDecision = decision;
+        return intervalMs;
+    }
+
+    /**
+     * Dump the state of the scheduler.
+     */
+    public void dump(@NonNull IndentingPrintWriter pw) {
+        pw.println("Adaptive stats polling:");
+        pw.increaseIndent();
+        pw.println("Last interval: " + mLastIntervalMs + " ms (" + mLastDecision + ")");
+        pw.println("Forwarded rate: " + (long) mBytesPerSecond + " B/s, peak: "
+                + (long) mPeakBytesPerSecond + " B/s, idle samples: " + mIdleSampleCount);
+        pw.println("Remaining alert quota: " + mRemainingAlertQuota);
+        pw.println("Alert quota decisions: " + mQuotaDecisionCount + ", idle back-off decisions: "
+                + mIdleDecisionCount);
+        pw.decreaseIndent();
+    }
+}
@@ -44,6 +44,7 @@ import android.net.MacAddress;
 import android.net.NetworkStats;
 import android.net.NetworkStats.Entry;
 import android.net.TetherOffloadRuleParcel;
+import android.net.TetheredClientTraffic;
 import android.net.ip.IpServer;
 import android.net.netstats.provider.NetworkStatsProvider;
 import android.os.Handler;
@@ -80,6 +81,8 @@ import com.android.net.module.util.ip.ConntrackMonitor.ConntrackEventConsumer;
 import com.android.net.module.util.netlink.ConntrackMessage;
 import com.android.net.module.util.netlink.NetlinkConstants;
 import com.android.net.module.util.netlink.NetlinkUtils;
+import com.android.networkstack.tethering.ConntrackEventPipeline.ConntrackEventBatchConsumer;
+import com.android.networkstack.tethering.ConntrackEventPipeline.ReceivedEvent;
 import com.android.networkstack.tethering.apishim.common.BpfCoordinatorShim;
 import com.android.networkstack.tethering.util.TetheringUtils.ForwardedStats;
 
@@ -97,6 +100,7 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
@@ -130,6 +134,7 @@ public class BpfCoordinator {
     private static final String TETHER_LIMIT_MAP_PATH = makeMapPath("limit");
     private static final String TETHER_ERROR_MAP_PATH = makeMapPath("error");
     private static final String TETHER_DEV_MAP_PATH = makeMapPath("dev");
+    private static final String TETHER_CLIENT_STATS_MAP_PATH = makeMapPath("client_stats");
     private static final String DUMPSYS_RAWMAP_ARG_STATS = "--stats";
     private static final String DUMPSYS_RAWMAP_ARG_UPSTREAM4 = "--upstream4";
 
@@ -176,6 +181,10 @@ public class BpfCoordinator {
     private final Dependencies mDeps;
     @NonNull
     private final ConntrackMonitor mConntrackMonitor;
+    @NonNull
+    private final ConntrackTimeoutUpdater mConntrackTimeoutUpdater;
+    @NonNull
+    private final ConntrackEventPipeline mConntrackEventPipeline;
     @Nullable
     private final BpfTetherStatsProvider mStatsProvider;
     @NonNull
@@ -190,6 +199,24 @@ public class BpfCoordinator {
     // to make it simpler. See also TetheringConfiguration.
     private final boolean mIsBpfEnabled;
 
+    // True if conntrack events are received by mConntrackEventPipeline instead of
+    // mConntrackMonitor. Only initialized in the constructor, like mIsBpfEnabled, so that the
+    // monitor which was started is also the one which is stopped.
+    private final boolean mUseConntrackEventPipeline;
+
+    // True if the offloaded traffic of each client is counted in the client stats BPF map, and
+    // accumulated in mClientTrafficAggregator. Only initialized in the constructor, like
+    // mIsBpfEnabled, so that all the clients are counted since they were added.
+    private final boolean mUseClientTrafficAccounting;
+
+    // True if the stats polling interval is computed by mPollingScheduler instead of being the
+    // fixed #getPollingInterval. Only initialized in the constructor.
+    private final boolean mUseAdaptiveStatsPolling;
+    @NonNull
+    private final AdaptiveStatsPollingScheduler mPollingScheduler;
+    // Time of the next scheduled stats poll, as measured by elapsedRealtimeMs().
+    private long mNextPollingStatsMs;
+
     // Tracks whether BPF tethering is started or not. This is set by tethering before it
     // starts the first IpServer and is cleared by tethering shortly before the last IpServer
     // is stopped. Note that rule updates (especially deletions, but sometimes additions as
@@ -198,6 +225,10 @@ public class BpfCoordinator {
     // also be communicated to netd.
     private boolean mPollingStarted = false;
 
+    // Whether conntrack timeouts are refreshed in batches with mConntrackTimeoutUpdater. Only
+    // valid while polling is started.
+    private boolean mUseBatchedConntrackTimeoutUpdate = false;
+
     // Tracking remaining alert quota. Unlike limit quota is subject to interface, the alert
     // quota is interface independent and global for tether offload.
     private long mRemainingAlertQuota = QUOTA_UNLIMITED;
@@ -207,6 +238,13 @@ public class BpfCoordinator {
     // from the BPF maps for each interface.
     private final SparseArray<ForwardedStats> mStats = new SparseArray<>();
 
+    // Maps counted clients to their offloaded traffic statistics. Like mStats, always contains
+    // the latest total bytes/packets, since each client was added, received from the BPF map.
+    private final HashMap<TetherClientStatsKey, ForwardedStats> mClientStats = new HashMap<>();
+
+    // Offloaded traffic of each client and upstream since the last #pollClientTraffic.
+    private final ClientTrafficAggregator mClientTrafficAggregator = new ClientTrafficAggregator();
+
     // Maps upstream interface names to interface quotas.
     // Always contains the latest value received from the framework for each interface, regardless
     // of whether offload is currently running (or is even supported) on that interface. Only
@@ -339,6 +377,17 @@ public class BpfCoordinator {
             return new ConntrackMonitor(getHandler(), getSharedLog(), consumer);
         }
 
+        /** Get conntrack event pipeline. */
+        @NonNull public ConntrackEventPipeline getConntrackEventPipeline(
+                ConntrackEventBatchConsumer consumer) {
+            return new ConntrackEventPipeline(getHandler(), getSharedLog(), consumer);
+        }
+
+        /** Get conntrack timeout updater. */
+        @NonNull public ConntrackTimeoutUpdater getConntrackTimeoutUpdater() {
+            return new ConntrackTimeoutUpdater(getHandler(), getSharedLog());
+        }
+
         /** Get interface information for a given interface. */
         @NonNull public InterfaceParams getInterfaceParams(String ifName) {
             return InterfaceParams.getByName(ifName);
@@ -458,6 +507,18 @@ public class BpfCoordinator {
             }
         }
 
+        /** Get client stats BPF map. */
+        @Nullable public IBpfMap<TetherClientStatsKey, TetherStatsValue> getBpfClientStatsMap() {
+            if (!isAtLeastS()) return null;
+            try {
+                return new BpfMap<>(TETHER_CLIENT_STATS_MAP_PATH,
+                    TetherClientStatsKey.class, TetherStatsValue.class);
+            } catch (ErrnoException e) {
+                Log.e(TAG, "Cannot create client stats map: " + e);
+                return null;
+            }
+        }
+
         /** Get error BPF map. */
         @Nullable public IBpfMap<S32, S32> getBpfErrorMap() {
             if (!isAtLeastS()) return null;
@@ -485,6 +546,13 @@ public class BpfCoordinator {
         // mocked for testing.
         mBpfConntrackEventConsumer = new BpfConntrackEventConsumer();
         mConntrackMonitor = mDeps.getConntrackMonitor(mBpfConntrackEventConsumer);
+        mConntrackTimeoutUpdater = mDeps.getConntrackTimeoutUpdater();
+        mConntrackEventPipeline = mDeps.getConntrackEventPipeline(mBpfConntrackEventConsumer);
+        final TetheringConfiguration config = mDeps.getTetherConfig();
+        mUseConntrackEventPipeline = config != null && config.isConntrackEventPipelineEnabled();
+        mUseClientTrafficAccounting = config != null && config.isClientTrafficAccountingEnabled();
+        mUseAdaptiveStatsPolling = config != null && config.isAdaptiveStatsPollingEnabled();
+        mPollingScheduler = new AdaptiveStatsPollingScheduler(elapsedRealtimeMs());
 
         BpfTetherStatsProvider provider = new BpfTetherStatsProvider();
         try {
@@ -519,6 +587,12 @@ public class BpfCoordinator {
         }
 
         mPollingStarted = true;
+        final TetheringConfiguration config = mDeps.getTetherConfig();
+        if (config != null && config.isBatchConntrackTimeoutUpdateEnabled()) {
+            // Fall back to one-shot netlink sockets if the persistent socket can't be created.
+            mUseBatchedConntrackTimeoutUpdate = mConntrackTimeoutUpdater.start();
+        }
+        mPollingScheduler.reset(elapsedRealtimeMs());
         maybeSchedulePollingStats();
         maybeScheduleConntrackTimeoutUpdate();
 
@@ -540,6 +614,10 @@ public class BpfCoordinator {
         if (mHandler.hasCallbacks(mScheduledConntrackTimeoutUpdate)) {
             mHandler.removeCallbacks(mScheduledConntrackTimeoutUpdate);
         }
+        if (mUseBatchedConntrackTimeoutUpdate) {
+            mConntrackTimeoutUpdater.stop();
+            mUseBatchedConntrackTimeoutUpdate = false;
+        }
         // Stop scheduled polling stats and poll the latest stats from BPF maps.
         if (mHandler.hasCallbacks(mScheduledPollingStats)) {
             mHandler.removeCallbacks(mScheduledPollingStats);
@@ -599,7 +677,11 @@ public class BpfCoordinator {
         }
 
         if (mMonitoringIpServers.isEmpty()) {
-            mConntrackMonitor.start();
+            if (mUseConntrackEventPipeline) {
+                mConntrackEventPipeline.start();
+            } else {
+                mConntrackMonitor.start();
+            }
             mLog.i("Monitoring started");
         }
 
@@ -625,7 +707,11 @@ public class BpfCoordinator {
 
         if (!mMonitoringIpServers.isEmpty()) return;
 
-        mConntrackMonitor.stop();
+        if (mUseConntrackEventPipeline) {
+            mConntrackEventPipeline.stop();
+        } else {
+            mConntrackMonitor.stop();
+        }
         mLog.i("Monitoring stopped");
     }
 
@@ -843,6 +929,14 @@ public class BpfCoordinator {
 
         HashMap<Inet4Address, ClientInfo> clients = mTetherClients.get(ipServer);
         clients.put(client.clientAddress, client);
+
+        if (mUseClientTrafficAccounting) {
+            final TetherClientStatsKey key = makeClientStatsKey(client);
+            if (!mClientStats.containsKey(key)
+                    && mBpfCoordinatorShim.tetherOffloadClientStatsAdd(key)) {
+                mClientStats.put(key, new ForwardedStats());
+            }
+        }
     }
 
     /**
@@ -864,6 +958,9 @@ public class BpfCoordinator {
         // anymore.
         tetherOffloadRuleClear(client);
 
+        // Account for the last traffic of the client, now that it can't be offloaded anymore.
+        maybeRemoveClientStats(client);
+
         // Remove the downstream entry if it has no more client.
         if (clients.isEmpty()) {
             mTetherClients.remove(ipServer);
@@ -1024,6 +1121,9 @@ public class BpfCoordinator {
         // IPv6TetheringCoordinator#updateUpstreamNetworkState because the IpServer may not
         // handle the upstream changing notification before changing upstream index mapping.
         if (mLastIPv4UpstreamIfindex != 0) {
+            // Account for the client traffic on the previous upstream before it changes.
+            updateClientStats();
+
             // Clear all forwarding IPv4 rules for all downstreams.
             for (final IpServer ipserver : mTetherClients.keySet()) {
                 tetherOffloadRule4Clear(ipserver);
@@ -1142,6 +1242,7 @@ public class BpfCoordinator {
                 ? "registered" : "not registered"));
         pw.println("Upstream quota: " + mInterfaceQuotas.toString());
         pw.println("Polling interval: " + getPollingInterval() + " ms");
+        if (mUseAdaptiveStatsPolling) mPollingScheduler.dump(pw);
         pw.println("Bpf shim: " + mBpfCoordinatorShim.toString());
 
         pw.println("Forwarding stats:");
@@ -1198,6 +1299,30 @@ public class BpfCoordinator {
         pw.increaseIndent();
         dumpCounters(pw);
         pw.decreaseIndent();
+
+        if (mUseConntrackEventPipeline) {
+            pw.println();
+            mConntrackEventPipeline.dump(pw);
+        }
+
+        if (mUseClientTrafficAccounting) {
+            pw.println();
+            pw.println("Client stats:");
+            pw.increaseIndent();
+            if (mClientStats.isEmpty()) {
+                pw.println("<empty>");
+            } else {
+                for (Map.Entry<TetherClientStatsKey, ForwardedStats> entry
+                        : mClientStats.entrySet()) {
+                    final TetherClientStatsKey key = entry.getKey();
+                    pw.println(String.format("%d(%s) %s - %s", key.ifindex,
+                            getIfName(key.ifindex), key.clientAddress.getHostAddress(),
+                            entry.getValue().toString()));
+                }
+            }
+            pw.decreaseIndent();
+            mClientTrafficAggregator.dump(pw);
+        }
     }
 
     private void dumpStats(@NonNull IndentingPrintWriter pw) {
@@ -1822,12 +1947,19 @@ public class BpfCoordinator {
 
         @Override
         public void onRequestStatsUpdate(int token) {
-            mHandler.post(() -> pushTetherStats());
+            mHandler.post(() -> {
+                // Stats may be older than the regular polling interval while polling backs off.
+                if (mPollingStarted && mPollingScheduler.isBackedOff()) updateForwardedStats();
+                pushTetherStats();
+            });
         }
 
         @Override
         public void onSetAlert(long quotaBytes) {
-            mHandler.post(() -> updateAlertQuota(quotaBytes));
+            mHandler.post(() -> {
+                updateAlertQuota(quotaBytes);
+                maybeReschedulePollingOnQuotaChange();
+            });
         }
 
         @Override
@@ -1847,6 +1979,7 @@ public class BpfCoordinator {
                     mInterfaceQuotas.put(iface, quotaBytes);
                 }
                 maybeUpdateDataLimit(iface);
+                maybeReschedulePollingOnQuotaChange();
             });
         }
 
@@ -1901,7 +2034,8 @@ public class BpfCoordinator {
     // TODO: parse CTA_PROTOINFO of conntrack event in ConntrackMonitor. For TCP, only add rules
     // while TCP status is established.
     @VisibleForTesting
-    class BpfConntrackEventConsumer implements ConntrackEventConsumer {
+    class BpfConntrackEventConsumer implements ConntrackEventConsumer,
+            ConntrackEventBatchConsumer {
         // The upstream4 and downstream4 rules are built as the following tables. Only raw ip
         // upstream interface is supported. Note that the field "lastUsed" is only updated by
         // BPF program which records the last used time for a given rule.
@@ -2003,52 +2137,127 @@ public class BpfCoordinator {
                     NON_OFFLOADED_UPSTREAM_IPV4_TCP_PORTS, e.tupleOrig.dstPort);
         }
 
+        private boolean isDeleteEvent(@NonNull ConntrackEvent e) {
+            return e.msgType == (NetlinkConstants.NFNL_SUBSYS_CTNETLINK << 8
+                    | NetlinkConstants.IPCTNL_MSG_CT_DELETE);
+        }
+
         public void accept(ConntrackEvent e) {
-            if (!allowOffload(e)) return;
+            if (isDeleteEvent(e)) {
+                final ArrayList<Tether4Key> upstream4Keys = new ArrayList<>(1);
+                final ArrayList<Tether4Key> downstream4Keys = new ArrayList<>(1);
+                final ArraySet<Integer> upstreamIndices = new ArraySet<>(1);
+                if (!collectRulesToRemove(e, upstream4Keys, downstream4Keys, upstreamIndices)) {
+                    return;
+                }
+                removeRules(upstream4Keys, downstream4Keys, upstreamIndices);
+                return;
+            }
 
-            final ClientInfo tetherClient = getClientInfo(e.tupleOrig.srcIp);
-            if (tetherClient == null) return;
+            addRules(e);
+        }
 
-            final Integer upstreamIndex = mIpv4UpstreamIndices.get(e.tupleReply.dstIp);
-            if (upstreamIndex == null) return;
+        /**
+         * Apply a batch of events from the conntrack event pipeline. The rules of the destroyed
+         * flows are removed in batches first, then the rules of the new flows are added.
+         */
+        @Override
+        public void acceptBatch(@NonNull List<ReceivedEvent> events) {
+            final ArrayList<Tether4Key> upstream4Keys = new ArrayList<>();
+            final ArrayList<Tether4Key> downstream4Keys = new ArrayList<>();
+            final ArraySet<Integer> upstreamIndices = new ArraySet<>();
+            for (ReceivedEvent event : events) {
+                if (isDeleteEvent(event.event)) {
+                    collectRulesToRemove(event.event, upstream4Keys, downstream4Keys,
+                            upstreamIndices);
+                }
+            }
+            if (!upstream4Keys.isEmpty()) {
+                removeRules(upstream4Keys, downstream4Keys, upstreamIndices);
+            }
 
-            final Tether4Key upstream4Key = makeTetherUpstream4Key(e, tetherClient);
-            final Tether4Key downstream4Key = makeTetherDownstream4Key(e, tetherClient,
-                    upstreamIndex);
+            for (ReceivedEvent event : events) {
+                if (!isDeleteEvent(event.event) && addRules(event.event)) {
+                    mConntrackEventPipeline.onFlowOffloaded(event);
+                }
+            }
+        }
 
-            if (e.msgType == (NetlinkConstants.NFNL_SUBSYS_CTNETLINK << 8
-                    | NetlinkConstants.IPCTNL_MSG_CT_DELETE)) {
-                final boolean deletedUpstream = mBpfCoordinatorShim.tetherOffloadRuleRemove(
-                        UPSTREAM, upstream4Key);
-                final boolean deletedDownstream = mBpfCoordinatorShim.tetherOffloadRuleRemove(
-                        DOWNSTREAM, downstream4Key);
+        // Collect the keys of the rules of a destroyed flow. Returns false if the flow was not
+        // offloadable.
+        private boolean collectRulesToRemove(@NonNull ConntrackEvent e,
+                @NonNull List<Tether4Key> upstream4Keys, @NonNull List<Tether4Key> downstream4Keys,
+                @NonNull Set<Integer> upstreamIndices) {
+            if (!allowOffload(e)) return false;
 
-                if (!deletedUpstream && !deletedDownstream) {
-                    // The rules may have been already removed by losing client or losing upstream.
-                    return;
-                }
+            final ClientInfo tetherClient = getClientInfo(e.tupleOrig.srcIp);
+            if (tetherClient == null) return false;
 
-                if (deletedUpstream != deletedDownstream) {
-                    Log.wtf(TAG, "The bidirectional rules should be removed concurrently ("
-                            + "upstream: " + deletedUpstream
-                            + ", downstream: " + deletedDownstream + ")");
-                    return;
-                }
+            final Integer upstreamIndex = mIpv4UpstreamIndices.get(e.tupleReply.dstIp);
+            if (upstreamIndex == null) return false;
+
+            upstream4Keys.add(makeTetherUpstream4Key(e, tetherClient));
+            downstream4Keys.add(makeTetherDownstream4Key(e, tetherClient, upstreamIndex));
+            upstreamIndices.add(upstreamIndex);
+            return true;
+        }
+
+        private void removeRules(@NonNull List<Tether4Key> upstream4Keys,
+                @NonNull List<Tether4Key> downstream4Keys, @NonNull Set<Integer> upstreamIndices) {
+            final int deletedUpstream = upstream4Keys.size() == 1
+                    ? (mBpfCoordinatorShim.tetherOffloadRuleRemove(UPSTREAM, upstream4Keys.get(0))
+                            ? 1 : 0)
+                    : mBpfCoordinatorShim.tetherOffloadRulesRemove(UPSTREAM, upstream4Keys);
+            final int deletedDownstream = downstream4Keys.size() == 1
+                    ? (mBpfCoordinatorShim.tetherOffloadRuleRemove(DOWNSTREAM,
+                            downstream4Keys.get(0)) ? 1 : 0)
+                    : mBpfCoordinatorShim.tetherOffloadRulesRemove(DOWNSTREAM, downstream4Keys);
+
+            if (deletedUpstream == 0 && deletedDownstream == 0) {
+                // The rules may have been already removed by losing client or losing upstream.
+                return;
+            }
 
-                maybeClearLimit(upstreamIndex);
+            if (deletedUpstream != deletedDownstream) {
+                Log.wtf(TAG, "The bidirectional rules should be removed concurrently ("
+                        + "upstream: " + deletedUpstream
+                        + ", downstream: " + deletedDownstream + ")");
                 return;
             }
 
-            if (mIpv4UpstreamInfo == null || mIpv4UpstreamInfo.ifIndex != upstreamIndex) return;
+            for (Integer upstreamIndex : upstreamIndices) {
+                maybeClearLimit(upstreamIndex);
+            }
+        }
+
+        // Add the rules of a new flow. Returns true if the rules were added.
+        private boolean addRules(@NonNull ConntrackEvent e) {
+            if (!allowOffload(e)) return false;
+
+            final ClientInfo tetherClient = getClientInfo(e.tupleOrig.srcIp);
+            if (tetherClient == null) return false;
+
+            final Integer upstreamIndex = mIpv4UpstreamIndices.get(e.tupleReply.dstIp);
+            if (upstreamIndex == null) return false;
+
+            if (mIpv4UpstreamInfo == null || mIpv4UpstreamInfo.ifIndex != upstreamIndex) {
+                return false;
+            }
 
+            final Tether4Key upstream4Key = makeTetherUpstream4Key(e, tetherClient);
+            final Tether4Key downstream4Key = makeTetherDownstream4Key(e, tetherClient,
+                    upstreamIndex);
             final Tether4Value upstream4Value = makeTetherUpstream4Value(e, mIpv4UpstreamInfo);
             final Tether4Value downstream4Value = makeTetherDownstream4Value(e, tetherClient,
                     mIpv4UpstreamInfo);
 
             maybeAddDevMap(upstreamIndex, tetherClient.downstreamIfindex);
             maybeSetLimit(upstreamIndex);
-            mBpfCoordinatorShim.tetherOffloadRuleAdd(UPSTREAM, upstream4Key, upstream4Value);
-            mBpfCoordinatorShim.tetherOffloadRuleAdd(DOWNSTREAM, downstream4Key, downstream4Value);
+            final boolean addedUpstream = mBpfCoordinatorShim.tetherOffloadRuleAdd(
+                    UPSTREAM, upstream4Key, upstream4Value);
+            final boolean addedDownstream = mBpfCoordinatorShim.tetherOffloadRuleAdd(
+                    DOWNSTREAM, downstream4Key, downstream4Value);
+            return addedUpstream && addedDownstream;
         }
     }
 
@@ -2228,6 +2437,7 @@ public class BpfCoordinator {
         if (mRemainingAlertQuota == newQuota) return;
 
         mRemainingAlertQuota = newQuota;
+        mPollingScheduler.setRemainingAlertQuota(newQuota);
         if (mRemainingAlertQuota == 0) {
             mLog.i("onAlertReached");
             if (mStatsProvider != null) mStatsProvider.notifyAlertReached();
@@ -2267,6 +2477,7 @@ public class BpfCoordinator {
             final long newQuota = Math.max(mRemainingAlertQuota - usedAlertQuota, 0);
             updateAlertQuota(newQuota);
         }
+        mPollingScheduler.onBytesForwarded(usedAlertQuota, elapsedRealtimeMs());
 
         // TODO: Count the used limit quota for notifying data limit reached.
     }
@@ -2281,6 +2492,67 @@ public class BpfCoordinator {
         }
 
         updateQuotaAndStatsFromSnapshot(tetherStatsList);
+        updateClientStats();
+    }
+
+    @NonNull
+    private static TetherClientStatsKey makeClientStatsKey(@NonNull ClientInfo client) {
+        return new TetherClientStatsKey(client.downstreamIfindex, client.clientAddress);
+    }
+
+    private void accumulateClientTraffic(@NonNull ClientInfo client,
+            @NonNull TetherStatsValue statsValue) {
+        final TetherClientStatsKey key = makeClientStatsKey(client);
+        final ForwardedStats curr = new ForwardedStats(statsValue);
+        final ForwardedStats base = mClientStats.get(key);
+        final ForwardedStats diff = (base != null) ? curr.subtract(base) : curr;
+        mClientStats.put(key, curr);
+
+        // Client traffic is IPv4 only, so it always goes through the last IPv4 upstream.
+        if (mLastIPv4UpstreamIfindex == 0) return;
+        mClientTrafficAggregator.add(client.clientMac, client.clientAddress,
+                getIfName(mLastIPv4UpstreamIfindex), diff);
+    }
+
+    private void updateClientStats() {
+        if (!mUseClientTrafficAccounting || mClientStats.isEmpty()) return;
+
+        final Map<TetherClientStatsKey, TetherStatsValue> clientStats =
+                mBpfCoordinatorShim.tetherOffloadGetClientStats();
+        if (clientStats == null) {
+            mLog.e("Problem fetching client stats");
+            return;
+        }
+
+        for (HashMap<Inet4Address, ClientInfo> clients : mTetherClients.values()) {
+            for (ClientInfo client : clients.values()) {
+                final TetherStatsValue statsValue = clientStats.get(makeClientStatsKey(client));
+                if (statsValue != null) accumulateClientTraffic(client, statsValue);
+            }
+        }
+    }
+
+    private void maybeRemoveClientStats(@NonNull ClientInfo client) {
+        final TetherClientStatsKey key = makeClientStatsKey(client);
+        if (!mClientStats.containsKey(key)) return;
+
+        final TetherStatsValue statsValue =
+                mBpfCoordinatorShim.tetherOffloadGetAndRemoveClientStats(key);
+        if (statsValue != null) accumulateClientTraffic(client, statsValue);
+        mClientStats.remove(key);
+    }
+
+    /**
+     * Returns the offloaded traffic of each client and upstream since the last call, or null if
+     * client traffic is not counted.
+     * Note that this can be only called on handler thread.
+     */
+    @Nullable
+    public List<TetheredClientTraffic> pollClientTraffic() {
+        if (!isUsingBpf() || !mUseClientTrafficAccounting) return null;
+
+        updateClientStats();
+        return mClientTrafficAggregator.poll();
     }
 
     @VisibleForTesting
@@ -2326,6 +2598,12 @@ public class BpfCoordinator {
         final int timeoutSec = (proto == OsConstants.IPPROTO_TCP)
                 ? NF_CONNTRACK_TCP_TIMEOUT_ESTABLISHED
                 : NF_CONNTRACK_UDP_TIMEOUT_STREAM;
+        if (mUseBatchedConntrackTimeoutUpdate) {
+            // Sent by #refreshAllConntrackTimeouts once all updates are queued.
+            mConntrackTimeoutUpdater.queueTimeoutUpdate(proto, src4,
+                    Short.toUnsignedInt(srcPort), dst4, Short.toUnsignedInt(dstPort), timeoutSec);
+            return;
+        }
         final byte[] msg = ConntrackMessage.newIPv4TimeoutUpdateRequest(
                 proto, src4, (int) srcPort, dst4, (int) dstPort, timeoutSec);
         try {
@@ -2356,6 +2634,13 @@ public class BpfCoordinator {
     private void refreshAllConntrackTimeouts() {
         final long now = mDeps.elapsedRealtimeNanos();
 
+        if (mUseBatchedConntrackTimeoutUpdate && !mConntrackTimeoutUpdater.isStarted()) {
+            // The socket was closed on a fatal read error. Open a new one, or fall back to
+            // one-shot netlink sockets if it can't be created.
+            mLog.e("Conntrack timeout updater stopped, restarting");
+            mUseBatchedConntrackTimeoutUpdate = mConntrackTimeoutUpdater.start();
+        }
+
         // TODO: Consider ignoring TCP traffic on upstream and monitor on downstream only
         // because TCP is a bidirectional traffic. Probably don't need to extend timeout by
         // both directions for TCP.
@@ -2377,16 +2662,50 @@ public class BpfCoordinator {
                         parseIPv4Address(v.src46), (short) v.srcPort);
             }
         });
+
+        if (mUseBatchedConntrackTimeoutUpdate) {
+            mConntrackTimeoutUpdater.flush();
+        }
     }
 
     private void maybeSchedulePollingStats() {
         if (!mPollingStarted) return;
 
+        schedulePollingStats(getNextPollingInterval());
+    }
+
+    private long getNextPollingInterval() {
+        return mUseAdaptiveStatsPolling
+                ? mPollingScheduler.getNextPollingIntervalMs(getPollingInterval())
+                : getPollingInterval();
+    }
+
+    private void schedulePollingStats(long interval) {
         if (mHandler.hasCallbacks(mScheduledPollingStats)) {
             mHandler.removeCallbacks(mScheduledPollingStats);
         }
+        mNextPollingStatsMs = elapsedRealtimeMs() + interval;
+        mHandler.postDelayed(mScheduledPollingStats, interval);
+    }
+
+    // A new quota may have to be polled for sooner than the next poll, which may have been
+    // scheduled far away if there was no traffic. The next poll is only moved earlier, so that
+    // frequent quota changes do not keep delaying it.
+    private void maybeReschedulePollingOnQuotaChange() {
+        if (!mUseAdaptiveStatsPolling) return;
+
+        mPollingScheduler.clearBackoff();
+        if (!mPollingStarted) return;
+        final long interval = getNextPollingInterval();
+        if (mHandler.hasCallbacks(mScheduledPollingStats)
+                && elapsedRealtimeMs() + interval >= mNextPollingStatsMs) {
+            return;
+        }
+        schedulePollingStats(interval);
+    }
 
-        mHandler.postDelayed(mScheduledPollingStats, getPollingInterval());
+    private long elapsedRealtimeMs() {
+        return mDeps.elapsedRealtimeNanos() / 1_000_000L;
     }
 
     private void maybeScheduleConntrackTimeoutUpdate() {
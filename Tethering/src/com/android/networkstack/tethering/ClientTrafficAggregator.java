@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.networkstack.tethering;
+
+import android.annotation.NonNull;
+import android.net.MacAddress;
+import android.net.TetheredClientTraffic;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.IndentingPrintWriter;
+import com.android.networkstack.tethering.util.TetheringUtils.ForwardedStats;
+
+import java.net.Inet4Address;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Accumulates the traffic of tethered clients between polls, per client and upstream interface.
+ *
+ * Memory is bounded: when the maximum number of entries is reached, the entry of the least
+ * recently active client is dropped, and its traffic is only accounted for in the dump.
+ *
+ * All methods must be called on the tethering handler thread.
+ */
+public class ClientTrafficAggregator {
+    @VisibleForTesting
+    static final int DEFAULT_MAX_ENTRIES = 512;
+
+    private static final class Key {
+        @NonNull
+        public final MacAddress clientMac;
+        @NonNull
+        public final Inet4Address clientAddress;
+        @NonNull
+        public final String upstreamIface;
+
+        Key(@NonNull MacAddress clientMac, @NonNull Inet4Address clientAddress,
+                @NonNull String upstreamIface) {
+            this.clientMac = clientMac;
+            this.clientAddress = clientAddress;
+            this.upstreamIface = upstreamIface;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            final Key that = (Key) o;
+            return clientMac.equals(that.clientMac)
+                    && clientAddress.equals(that.clientAddress)
+                    && upstreamIface.equals(that.upstreamIface);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(clientMac, clientAddress, upstreamIface);
+        }
+    }
+
+    private final int mMaxEntries;
+    // Traffic since the last poll. In access order, so that the eldest entry is the one of the
+    // least recently active client.
+    private final LinkedHashMap<Key, ForwardedStats> mTraffic;
+    private long mPollCount = 0;
+    private int mMaxEntryCount = 0;
+    private long mDroppedEntryCount = 0;
+    private long mDroppedBytes = 0;
+
+    public ClientTrafficAggregator() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    @VisibleForTesting
+    ClientTrafficAggregator(int maxEntries) {
+        mMaxEntries = maxEntries;
+        mTraffic = new LinkedHashMap<Key, ForwardedStats>(16, 0.75f, true /* accessOrder */) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, ForwardedStats> eldest) {
+                if (size() <= mMaxEntries) return false;
+                mDroppedEntryCount++;
+                mDroppedBytes += eldest.getValue().rxBytes + eldest.getValue().txBytes;
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Add traffic of a client through an upstream interface.
+     */
+    public void add(@NonNull MacAddress clientMac, @NonNull Inet4Address clientAddress,
+            @NonNull String upstreamIface, @NonNull ForwardedStats diff) {
+        if (diff.rxPackets == 0 && diff.txPackets == 0) return;
+
+        final Key key = new Key(clientMac, clientAddress, upstreamIface);
+        final ForwardedStats traffic = mTraffic.get(key);
+        mTraffic.put(key, traffic == null ? diff : traffic.add(diff));
+        mMaxEntryCount = Math.max(mMaxEntryCount, mTraffic.size());
+    }
+
+    /**
+     * Returns the traffic added since the last poll, and start accumulating again from zero.
+     */
+    @NonNull
+    public List<TetheredClientTraffic> poll() {
+        final List<TetheredClientTraffic> traffic = new ArrayList<>(mTraffic.size());
+        for (Map.Entry<Key, ForwardedStats> entry : mTraffic.entrySet()) {
+            final Key key = entry.getKey();
+            final ForwardedStats stats = entry.getValue();
+            traffic.add(new TetheredClientTraffic(key.clientMac, key.clientAddress,
+                    key.upstreamIface, stats.rxBytes, stats.rxPackets, stats.txBytes,
+                    stats.txPackets));
+        }
+        mTraffic.clear();
+        mPollCount++;
+        return traffic;
+    }
+
+    /**
+     * Returns the number of client and upstream interface pairs with traffic since the last poll.
+     */
+    public int size() {
+        return mTraffic.size();
+    }
+
+    @VisibleForTesting
+    long getDroppedBytes() {
+        return mDroppedBytes;
+    }
+
+    /**
+     * Dump the state of the aggregator.
+     */
+    public void dump(@NonNull IndentingPrintWriter pw) {
+        pw.println("Client traffic aggregator:");
+        pw.increaseIndent();
+        pw.println("Entries: " + mTraffic.size() + "/" + mMaxEntries + ", max: "
+                + mMaxEntryCount + ", polls: " + mPollCount);
+        pw.println("Dropped entries: " + mDroppedEntryCount + ", bytes: " + mDroppedBytes);
+        pw.decreaseIndent();
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.networkstack.tethering;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.IndentingPrintWriter;
+import com.android.net.module.util.SharedLog;
+import com.android.net.module.util.ip.ConntrackMonitor;
+import com.android.net.module.util.ip.ConntrackMonitor.ConntrackEvent;
+import com.android.net.module.util.ip.ConntrackMonitor.ConntrackEventConsumer;
+import com.android.net.module.util.netlink.ConntrackMessage;
+import com.android.net.module.util.netlink.NetlinkConstants;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Receives conntrack events on a dedicated thread, and delivers them in batches on the tethering
+ * handler thread.
+ *
+ * Conntrack events are read and decoded by a {@link ConntrackMonitor} running on the decode
+ * thread, so a burst of new connections does not delay the tethering handler. Events received
+ * while the previous batch is being handled are queued, and delivered together in the next batch.
+ * Events of a queued batch are coalesced by original tuple: only the last event of a flow is
+ * delivered, as it supersedes the previous ones (for example, a flow created then destroyed
+ * before being offloaded only needs its rules to be removed).
+ *
+ * The pipeline also tracks the time to offload flows, from the reception of their event to the
+ * installation of their rules, as reported by the consumer with {@link #onFlowOffloaded}.
+ *
+ * Except for the decode thread, all methods must be called on the tethering handler thread.
+ */
+public class ConntrackEventPipeline {
+    private static final String TAG = ConntrackEventPipeline.class.getSimpleName();
+
+    // Upper bounds of the time to offload histogram buckets, in milliseconds. The last bucket
+    // counts the flows which took longer than the last bound.
+    @VisibleForTesting
+    static final long[] TIME_TO_OFFLOAD_BUCKETS_MS = { 1, 5, 20, 100, 500 };
+
+    /**
+     * A conntrack event, with the time it was received.
+     */
+    public static final class ReceivedEvent {
+        @NonNull
+        public final ConntrackEvent event;
+        /**
+         * Time the event was received, as measured by {@link SystemClock#elapsedRealtime}. If
+         * events of the flow were coalesced, time the first event asking for the flow to be
+         * offloaded was received.
+         */
+        public final long receivedMs;
+
+        @VisibleForTesting
+        public ReceivedEvent(@NonNull ConntrackEvent event, long receivedMs) {
+            this.event = event;
+            this.receivedMs = receivedMs;
+        }
+
+        @Override
+        public String toString() {
+            return "ReceivedEvent{" + event + ", receivedMs: " + receivedMs + "}";
+        }
+    }
+
+    /**
+     * A consumer of batches of conntrack events, called on the tethering handler thread.
+     */
+    public interface ConntrackEventBatchConsumer {
+        /**
+         * Called with a batch of events, at most one per original tuple, ordered by the last
+         * event received for each flow.
+         */
+        void acceptBatch(@NonNull List<ReceivedEvent> events);
+    }
+
+    /**
+     * Dependencies of {@link ConntrackEventPipeline}, useful for testing.
+     */
+    @VisibleForTesting
+    public static class Dependencies {
+        /** Create the thread that reads and decodes conntrack events. */
+        @NonNull
+        public HandlerThread makeDecodeThread() {
+            return new HandlerThread(TAG);
+        }
+
+        /** Create the conntrack monitor running on the decode thread. */
+        @NonNull
+        public ConntrackMonitor makeConntrackMonitor(@NonNull Handler h, @NonNull SharedLog log,
+                @NonNull ConntrackEventConsumer consumer) {
+            return new ConntrackMonitor(h, log, consumer);
+        }
+
+        /** Get the time since boot, in milliseconds. */
+        public long elapsedRealtime() {
+            return SystemClock.elapsedRealtime();
+        }
+    }
+
+    @NonNull
+    private final Handler mHandler;
+    @NonNull
+    private final SharedLog mLog;
+    @NonNull
+    private final ConntrackEventBatchConsumer mConsumer;
+    @NonNull
+    private final Dependencies mDeps;
+
+    private final Object mLock = new Object();
+    // Events waiting to be delivered, by original tuple. Re-inserted when coalesced, so that
+    // batches are ordered by the last event of each flow.
+    @GuardedBy("mLock")
+    private final LinkedHashMap<ConntrackMessage.Tuple, ReceivedEvent> mPendingEvents =
+            new LinkedHashMap<>();
+    // Incremented each time the pipeline is started or stopped, so that events decoded by a
+    // stopped monitor are dropped.
+    @GuardedBy("mLock")
+    private int mGeneration = 0;
+    @GuardedBy("mLock")
+    private boolean mDeliveryScheduled = false;
+    @GuardedBy("mLock")
+    private long mReceivedEventCount = 0;
+    @GuardedBy("mLock")
+    private long mCoalescedEventCount = 0;
+
+    @Nullable
+    private HandlerThread mDecodeThread;
+    @Nullable
+    private Handler mDecodeHandler;
+    @Nullable
+    private ConntrackMonitor mMonitor;
+    private long mBatchCount = 0;
+    private int mMaxBatchSize = 0;
+    private long mOffloadedFlowCount = 0;
+    private long mTotalTimeToOffloadMs = 0;
+    private long mMaxTimeToOffloadMs = 0;
+    @NonNull
+    private final long[] mTimeToOffloadHistogram = new long[TIME_TO_OFFLOAD_BUCKETS_MS.length + 1];
+
+    public ConntrackEventPipeline(@NonNull Handler h, @NonNull SharedLog log,
+            @NonNull ConntrackEventBatchConsumer consumer) {
+        this(h, log, consumer, new Dependencies());
+    }
+
+    @VisibleForTesting
+    public ConntrackEventPipeline(@NonNull Handler h, @NonNull SharedLog log,
+            @NonNull ConntrackEventBatchConsumer consumer, @NonNull Dependencies deps) {
+        mHandler = h;
+        mLog = log.forSubComponent(TAG);
+        mConsumer = consumer;
+        mDeps = deps;
+    }
+
+    /**
+     * Start receiving conntrack events.
+     */
+    public void start() {
+        if (mDecodeThread != null) return;
+
+        final int generation;
+        synchronized (mLock) {
+            generation = ++mGeneration;
+        }
+        mDecodeThread = mDeps.makeDecodeThread();
+        mDecodeThread.start();
+        mDecodeHandler = new Handler(mDecodeThread.getLooper());
+        mMonitor = mDeps.makeConntrackMonitor(mDecodeHandler, mLog,
+                e -> onEventDecoded(generation, e));
+        // The monitor must be started and stopped on the thread it runs on.
+        final ConntrackMonitor monitor = mMonitor;
+        mDecodeHandler.post(() -> {
+            if (!monitor.start()) mLog.e("Failed to start conntrack monitor");
+        });
+    }
+
+    /**
+     * Stop receiving conntrack events. Events not delivered yet are dropped.
+     */
+    public void stop() {
+        if (mDecodeThread == null) return;
+
+        synchronized (mLock) {
+            mGeneration++;
+            mPendingEvents.clear();
+        }
+        // quitSafely runs the messages already queued, so the monitor is stopped first.
+        mDecodeHandler.post(mMonitor::stop);
+        mDecodeThread.quitSafely();
+        mMonitor = null;
+        mDecodeHandler = null;
+        mDecodeThread = null;
+    }
+
+    private static boolean isNewEvent(@NonNull ConntrackEvent e) {
+        return e.msgType == (NetlinkConstants.NFNL_SUBSYS_CTNETLINK << 8
+                | NetlinkConstants.IPCTNL_MSG_CT_NEW);
+    }
+
+    // Called on the decode thread.
+    private void onEventDecoded(int generation, @NonNull ConntrackEvent e) {
+        final long now = mDeps.elapsedRealtime();
+        synchronized (mLock) {
+            if (generation != mGeneration) return;
+            mReceivedEventCount++;
+
+            long receivedMs = now;
+            final ReceivedEvent previous = mPendingEvents.remove(e.tupleOrig);
+            if (previous != null) {
+                mCoalescedEventCount++;
+                // The flow has been waiting to be offloaded since its first NEW event.
+                if (isNewEvent(previous.event) && isNewEvent(e)) {
+                    receivedMs = previous.receivedMs;
+                }
+            }
+            mPendingEvents.put(e.tupleOrig, new ReceivedEvent(e, receivedMs));
+
+            if (!mDeliveryScheduled) {
+                mDeliveryScheduled = true;
+                mHandler.post(this::deliverPendingEvents);
+            }
+        }
+    }
+
+    private void deliverPendingEvents() {
+        final List<ReceivedEvent> batch;
+        synchronized (mLock) {
+            mDeliveryScheduled = false;
+            if (mPendingEvents.isEmpty()) return;
+            batch = new ArrayList<>(mPendingEvents.values());
+            mPendingEvents.clear();
+        }
+        mBatchCount++;
+        mMaxBatchSize = Math.max(mMaxBatchSize, batch.size());
+        mConsumer.acceptBatch(batch);
+    }
+
+    /**
+     * Report that the rules of the flow of the given event were installed.
+     */
+    public void onFlowOffloaded(@NonNull ReceivedEvent event) {
+        final long timeToOffloadMs = Math.max(0, mDeps.elapsedRealtime() - event.receivedMs);
+        mOffloadedFlowCount++;
+        mTotalTimeToOffloadMs += timeToOffloadMs;
+        mMaxTimeToOffloadMs = Math.max(mMaxTimeToOffloadMs, timeToOffloadMs);
+        int bucket = 0;
+        while (bucket < TIME_TO_OFFLOAD_BUCKETS_MS.length
+                && timeToOffloadMs > TIME_TO_OFFLOAD_BUCKETS_MS[bucket]) {
+            bucket++;
+        }
+        mTimeToOffloadHistogram[bucket]++;
+    }
+
+    /**
+     * Returns the number of flows which took at most the given bucket bound to be offloaded, or
+     * longer than the last bound for the last bucket.
+     */
+    @VisibleForTesting
+    long getTimeToOffloadCount(int bucket) {
+        return mTimeToOffloadHistogram[bucket];
+    }
+
+    @VisibleForTesting
+    long getCoalescedEventCount() {
+        synchronized (mLock) {
+            return mCoalescedEventCount;
+        }
+    }
+
+    /**
+     * Dump the state of the pipeline.
+     */
+    public void dump(@NonNull IndentingPrintWriter pw) {
+        final long received;
+        final long coalesced;
+        synchronized (mLock) {
+            received = mReceivedEventCount;
+            coalesced = mCoalescedEventCount;
+        }
+        pw.println("Conntrack event pipeline " + (mDecodeThread != null ? "started" : "stopped"));
+        pw.increaseIndent();
+        pw.println("Events received: " + received + ", coalesced: " + coalesced);
+        pw.println("Batches delivered: " + mBatchCount + ", max batch size: " + mMaxBatchSize);
+        pw.println("Flows offloaded: " + mOffloadedFlowCount + ", average time to offload: "
+                + (mOffloadedFlowCount == 0 ? 0 : mTotalTimeToOffloadMs / mOffloadedFlowCount)
+                + "ms, max: " + mMaxTimeToOffloadMs + "ms");
+        final StringBuilder sb = new StringBuilder("Time to offload histogram:");
+        for (int i = 0; i < mTimeToOffloadHistogram.length; i++) {
+            sb.append(i < TIME_TO_OFFLOAD_BUCKETS_MS.length
+                    ? " <=" + TIME_TO_OFFLOAD_BUCKETS_MS[i] + "ms: "
+                    : " >" + TIME_TO_OFFLOAD_BUCKETS_MS[i - 1] + "ms: ");
+            sb.append(mTimeToOffloadHistogram[i]);
+        }
+        pw.println(sb.toString());
+        pw.decreaseIndent();
+    }
+}
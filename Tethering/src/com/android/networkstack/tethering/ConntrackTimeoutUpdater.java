@@ -0,0 +1,368 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.networkstack.tethering;
+
+import static android.system.OsConstants.AF_NETLINK;
+import static android.system.OsConstants.ENOBUFS;
+import static android.system.OsConstants.ENOENT;
+import static android.system.OsConstants.NETLINK_NETFILTER;
+import static android.system.OsConstants.SOCK_CLOEXEC;
+import static android.system.OsConstants.SOCK_DGRAM;
+import static android.system.OsConstants.SOCK_NONBLOCK;
+import static android.system.OsConstants.SOL_SOCKET;
+import static android.system.OsConstants.SO_RCVBUF;
+
+import static com.android.net.module.util.SocketUtils.closeSocketQuietly;
+import static com.android.net.module.util.SocketUtils.makeNetlinkSocketAddress;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.os.Handler;
+import android.system.ErrnoException;
+import android.system.Os;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.net.module.util.PacketReader;
+import com.android.net.module.util.SharedLog;
+import com.android.net.module.util.netlink.ConntrackMessage;
+import com.android.net.module.util.netlink.NetlinkConstants;
+import com.android.net.module.util.netlink.NetlinkErrorMessage;
+import com.android.net.module.util.netlink.NetlinkMessage;
+import com.android.net.module.util.netlink.NetlinkUtils;
+
+import java.io.FileDescriptor;
+import java.io.InterruptedIOException;
+import java.net.Inet4Address;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * Refreshes the timeout of conntrack entries over a persistent NETLINK_NETFILTER socket.
+ *
+ * Timeout updates are queued, then packed into batches of netlink messages which are each sent
+ * with a single write, instead of opening, using and closing a netlink socket for each update.
+ * Only the last message of a batch requests an acknowledgement; the kernel processes the messages
+ * of a batch in order and only replies to the others if they fail, so the acknowledgement of the
+ * last message means that the whole batch was processed.
+ *
+ * Replies are read asynchronously on the handler thread. The number of unacknowledged batches is
+ * limited so that replies do not overflow the socket receive buffer, and the next batches are
+ * sent when previous batches are acknowledged.
+ *
+ * All methods must be called on the handler thread.
+ */
+public class ConntrackTimeoutUpdater extends PacketReader {
+    private static final String TAG = ConntrackTimeoutUpdater.class.getSimpleName();
+
+    // Maximum size of a batch of messages. A timeout update message is 80 bytes.
+    @VisibleForTesting
+    static final int MAX_BATCH_SIZE_BYTES = 8192;
+    // Maximum number of batches sent and not acknowledged yet. In the worst case where all
+    // updates fail, each update gets a reply, which must all fit in the socket receive buffer.
+    @VisibleForTesting
+    static final int MAX_BATCHES_IN_FLIGHT = 2;
+    private static final int SOCKET_RECV_BUFSIZE = 512 * 1024;
+
+    @NonNull
+    private final SharedLog mLog;
+    @NonNull
+    private final Dependencies mDeps;
+    @NonNull
+    private final ArrayDeque<TimeoutUpdate> mPendingUpdates = new ArrayDeque<>();
+    @NonNull
+    private final ArrayDeque<Batch> mInFlightBatches = new ArrayDeque<>();
+    @NonNull
+    private final ByteBuffer mBatchBuffer;
+    @Nullable
+    private FileDescriptor mFd;
+    private int mNextSeqNo = 1;
+    private long mFailedUpdateCount = 0;
+
+    private static final class TimeoutUpdate {
+        final int proto;
+        @NonNull
+        final Inet4Address src4;
+        final int srcPort;
+        @NonNull
+        final Inet4Address dst4;
+        final int dstPort;
+        final int timeoutSec;
+
+        TimeoutUpdate(int proto, @NonNull Inet4Address src4, int srcPort,
+                @NonNull Inet4Address dst4, int dstPort, int timeoutSec) {
+            this.proto = proto;
+            this.src4 = src4;
+            this.srcPort = srcPort;
+            this.dst4 = dst4;
+            this.dstPort = dstPort;
+            this.timeoutSec = timeoutSec;
+        }
+
+        @NonNull
+        byte[] makeMessage(int seqNo, boolean requestAck) {
+            return ConntrackMessage.newIPv4TimeoutUpdateRequest(proto, src4, srcPort, dst4,
+                    dstPort, timeoutSec, seqNo, requestAck);
+        }
+
+        @Override
+        public String toString() {
+            return "proto: " + proto + ", "
+                    + "src4: " + src4 + ", "
+                    + "srcPort: " + srcPort + ", "
+                    + "dst4: " + dst4 + ", "
+                    + "dstPort: " + dstPort;
+        }
+    }
+
+    private static final class Batch {
+        // Sequence number of the first message; messages of a batch have consecutive numbers
+        final int firstSeqNo;
+        @NonNull
+        final ArrayList<TimeoutUpdate> updates;
+
+        Batch(int firstSeqNo, @NonNull ArrayList<TimeoutUpdate> updates) {
+            this.firstSeqNo = firstSeqNo;
+            this.updates = updates;
+        }
+
+        int lastSeqNo() {
+            return firstSeqNo + updates.size() - 1;
+        }
+
+        @Nullable
+        TimeoutUpdate getUpdate(int seqNo) {
+            // Compare the difference so that sequence number wrapping is handled
+            final int index = seqNo - firstSeqNo;
+            if (index < 0 || index >= updates.size()) return null;
+            return updates.get(index);
+        }
+    }
+
+    /**
+     * Dependencies of {@link ConntrackTimeoutUpdater}, useful for testing.
+     */
+    @VisibleForTesting
+    public static class Dependencies {
+        /**
+         * Create a non-blocking NETLINK_NETFILTER socket connected to the kernel.
+         */
+        @NonNull
+        public FileDescriptor createNetlinkSocket() throws ErrnoException, SocketException {
+            final FileDescriptor fd = Os.socket(AF_NETLINK,
+                    SOCK_DGRAM | SOCK_NONBLOCK | SOCK_CLOEXEC, NETLINK_NETFILTER);
+            try {
+                Os.setsockoptInt(fd, SOL_SOCKET, SO_RCVBUF, SOCKET_RECV_BUFSIZE);
+                Os.bind(fd, makeNetlinkSocketAddress(0, 0));
+                NetlinkUtils.connectToKernel(fd);
+            } catch (ErrnoException | SocketException e) {
+                closeSocketQuietly(fd);
+                throw e;
+            }
+            return fd;
+        }
+    }
+
+    public ConntrackTimeoutUpdater(@NonNull Handler h, @NonNull SharedLog log) {
+        this(h, log, new Dependencies());
+    }
+
+    @VisibleForTesting
+    public ConntrackTimeoutUpdater(@NonNull Handler h, @NonNull SharedLog log,
+            @NonNull Dependencies deps) {
+        super(h, NetlinkUtils.DEFAULT_RECV_BUFSIZE);
+        mLog = log.forSubComponent(TAG);
+        mDeps = deps;
+        mBatchBuffer = ByteBuffer.allocate(MAX_BATCH_SIZE_BYTES);
+        mBatchBuffer.order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Queue an update of the timeout of the CTA_TUPLE_ORIG of a conntrack entry.
+     *
+     * The update is only sent after {@link #flush} is called.
+     */
+    public void queueTimeoutUpdate(int proto, @NonNull Inet4Address src4, int srcPort,
+            @NonNull Inet4Address dst4, int dstPort, int timeoutSec) {
+        mPendingUpdates.add(new TimeoutUpdate(proto, src4, srcPort, dst4, dstPort, timeoutSec));
+    }
+
+    /**
+     * Send the queued updates, as far as the number of unacknowledged batches allows. The
+     * remaining updates are sent when previous batches are acknowledged.
+     */
+    public void flush() {
+        if (mFd == null) {
+            mLog.e("Not sending " + mPendingUpdates.size() + " updates: socket not started");
+            mPendingUpdates.clear();
+            return;
+        }
+        while (mInFlightBatches.size() < MAX_BATCHES_IN_FLIGHT && !mPendingUpdates.isEmpty()) {
+            sendNextBatch();
+        }
+    }
+
+    /**
+     * Returns whether the socket is open. It is closed by {@link #stop} and on fatal read errors,
+     * after which the updater can be started again.
+     */
+    public boolean isStarted() {
+        return mFd != null;
+    }
+
+    /**
+     * Returns the number of updates that failed since the updater was created.
+     */
+    public long getFailedUpdateCount() {
+        return mFailedUpdateCount;
+    }
+
+    private void sendNextBatch() {
+        mBatchBuffer.clear();
+        final int firstSeqNo = mNextSeqNo;
+        final ArrayList<TimeoutUpdate> updates = new ArrayList<>();
+        int lastMessageStart = 0;
+        byte[] lastMessage = null;
+        while (!mPendingUpdates.isEmpty()) {
+            final TimeoutUpdate update = mPendingUpdates.peek();
+            final byte[] msg = update.makeMessage(mNextSeqNo, false /* requestAck */);
+            if (msg.length > mBatchBuffer.remaining()) break;
+            lastMessageStart = mBatchBuffer.position();
+            lastMessage = msg;
+            mBatchBuffer.put(msg);
+            updates.add(mPendingUpdates.poll());
+            mNextSeqNo++;
+        }
+        if (lastMessage == null) {
+            // Cannot happen as a single message is much smaller than a batch
+            mLog.wtf("Timeout update too large for a batch: " + mPendingUpdates.poll());
+            return;
+        }
+
+        // Request an acknowledgement for the last message only. It has the same size as the
+        // message built without acknowledgement.
+        final TimeoutUpdate lastUpdate = updates.get(updates.size() - 1);
+        final byte[] ackedMessage = lastUpdate.makeMessage(mNextSeqNo - 1, true /* requestAck */);
+        System.arraycopy(ackedMessage, 0, mBatchBuffer.array(), lastMessageStart,
+                ackedMessage.length);
+
+        try {
+            Os.write(mFd, mBatchBuffer.array(), 0, mBatchBuffer.position());
+        } catch (ErrnoException | InterruptedIOException e) {
+            mFailedUpdateCount += updates.size();
+            mLog.e("Failed to send " + updates.size() + " conntrack timeout updates", e);
+            return;
+        }
+        mInFlightBatches.add(new Batch(firstSeqNo, updates));
+    }
+
+    @Override
+    protected FileDescriptor createFd() {
+        try {
+            mFd = mDeps.createNetlinkSocket();
+        } catch (ErrnoException | SocketException e) {
+            logError("Failed to create netfilter netlink socket", e);
+            mFd = null;
+        }
+        return mFd;
+    }
+
+    @Override
+    protected void onStop() {
+        mFd = null;
+        mPendingUpdates.clear();
+        mInFlightBatches.clear();
+    }
+
+    @Override
+    protected void handlePacket(byte[] recvbuf, int length) {
+        final ByteBuffer byteBuffer = ByteBuffer.wrap(recvbuf, 0, length);
+        byteBuffer.order(ByteOrder.nativeOrder());
+
+        while (byteBuffer.remaining() > 0) {
+            final int position = byteBuffer.position();
+            final NetlinkMessage nlMsg = NetlinkMessage.parse(byteBuffer, NETLINK_NETFILTER);
+            if (nlMsg == null || nlMsg.getHeader() == null) {
+                byteBuffer.position(position);
+                mLog.e("unparsable netlink msg: " + NetlinkConstants.hexify(byteBuffer));
+                break;
+            }
+            if (nlMsg instanceof NetlinkErrorMessage) {
+                handleReply((NetlinkErrorMessage) nlMsg);
+                // Error replies contain the failed message, which is not consumed when parsing.
+                final int end = position + NetlinkConstants.alignedLengthOf(
+                        nlMsg.getHeader().nlmsg_len);
+                byteBuffer.position(Math.min(end, byteBuffer.limit()));
+            }
+        }
+
+        flush();
+    }
+
+    private void handleReply(@NonNull NetlinkErrorMessage reply) {
+        final int seqNo = reply.getHeader().nlmsg_seq;
+        // Note: convert kernel errnos (negative) into userspace errnos (positive).
+        final int errno = reply.getNlMsgError() == null ? 0 : -reply.getNlMsgError().error;
+        for (Batch batch : mInFlightBatches) {
+            final TimeoutUpdate update = batch.getUpdate(seqNo);
+            if (update == null) continue;
+
+            if (errno != 0) {
+                mFailedUpdateCount++;
+                // Lower the log level for the entry not existing. The conntrack entry may have
+                // been deleted and not handled by the conntrack event monitor yet.
+                final String errMsg = "Failed to update conntrack entry (" + update + "), "
+                        + "errno: " + errno;
+                if (errno == ENOENT) {
+                    mLog.w(errMsg);
+                } else {
+                    mLog.e(errMsg);
+                }
+            }
+            if (seqNo == batch.lastSeqNo()) {
+                // The batch is done. Batches are processed in order, so the replies of previous
+                // batches will not come anymore.
+                Batch done;
+                do {
+                    done = mInFlightBatches.poll();
+                } while (done != batch);
+            }
+            return;
+        }
+        mLog.e("Unexpected reply for seqNo " + seqNo + ", errno: " + errno);
+    }
+
+    @Override
+    protected boolean handleReadError(ErrnoException e) {
+        logError("readPacket error: ", e);
+        if (e.errno == ENOBUFS) {
+            // Replies were lost: the outcome of the in-flight batches is unknown, but keep sending
+            // the next ones.
+            mInFlightBatches.clear();
+            flush();
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    protected void logError(String msg, Exception e) {
+        mLog.e(msg, e);
+    }
+}
@@ -44,6 +44,7 @@ import android.net.NetworkStats.Entry;
 import android.net.RouteInfo;
 import android.net.netstats.provider.NetworkStatsProvider;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.provider.Settings;
 import android.system.ErrnoException;
 import android.system.OsConstants;
@@ -161,6 +162,11 @@ public class OffloadController {
         updateStatsForCurrentUpstream();
         maybeSchedulePollingStats();
     };
+    // Computes the stats polling interval if adaptive stats polling is enabled.
+    @NonNull
+    private final AdaptiveStatsPollingScheduler mPollingScheduler;
+    // Time of the next scheduled stats poll, as measured by Dependencies#elapsedRealtime.
+    private long mNextPollingStatsMs;
 
     private int mNatUpdateCallbacksReceived;
     private int mNatUpdateNetlinkErrors;
@@ -172,6 +178,11 @@ public class OffloadController {
     interface Dependencies {
         @NonNull
         TetheringConfiguration getTetherConfig();
+
+        /** Get the time since boot, in milliseconds. */
+        default long elapsedRealtime() {
+            return SystemClock.elapsedRealtime();
+        }
     }
 
     public OffloadController(Handler h, OffloadHardwareInterface hwi,
@@ -193,6 +204,7 @@ public class OffloadController {
         }
         mStatsProvider = provider;
         mDeps = deps;
+        mPollingScheduler = new AdaptiveStatsPollingScheduler(mDeps.elapsedRealtime());
     }
 
     /** Start hardware offload. */
@@ -302,6 +314,7 @@ public class OffloadController {
                     + OffloadHardwareInterface.halVerToString(mOffloadHalVersion));
             mNatUpdateCallbacksReceived = 0;
             mNatUpdateNetlinkErrors = 0;
+            mPollingScheduler.reset(mDeps.elapsedRealtime());
             maybeSchedulePollingStats();
         }
         return isStarted;
@@ -386,6 +399,7 @@ public class OffloadController {
                     mInterfaceQuotas.put(iface, newIfaceQuota);
                 }
                 maybeUpdateDataWarningAndLimit(iface);
+                maybeReschedulePollingOnQuotaChange();
             });
         }
 
@@ -428,7 +442,11 @@ public class OffloadController {
             // Post it to handler thread since it access remaining quota bytes.
             mHandler.post(() -> {
                 updateAlertQuota(quotaBytes);
-                maybeSchedulePollingStats();
+                if (useAdaptiveStatsPolling()) {
+                    maybeReschedulePollingOnQuotaChange();
+                } else {
+                    maybeSchedulePollingStats();
+                }
             });
         }
     }
@@ -463,6 +481,7 @@ public class OffloadController {
             final long newQuota = Math.max(mRemainingAlertQuota - usedAlertQuota, 0);
             updateAlertQuota(newQuota);
         }
+        mPollingScheduler.onBytesForwarded(usedAlertQuota, mDeps.elapsedRealtime());
 
         mForwardedStats.put(iface, diff);
         // diff is a new object, just created by getForwardedStats(). Therefore, anyone reading from
@@ -486,6 +505,7 @@ public class OffloadController {
         if (mRemainingAlertQuota == newQuota) return;
 
         mRemainingAlertQuota = newQuota;
+        mPollingScheduler.setRemainingAlertQuota(newQuota);
         if (mRemainingAlertQuota == 0) {
             mLog.i("notifyAlertReached");
             if (mStatsProvider != null) mStatsProvider.notifyAlertReached();
@@ -500,11 +520,43 @@ public class OffloadController {
     private void maybeSchedulePollingStats() {
         if (!isPollingStatsNeeded()) return;
 
+        schedulePollingStats(getNextPollingInterval());
+    }
+
+    private long getNextPollingInterval() {
+        final long regularInterval = mDeps.getTetherConfig().getOffloadPollInterval();
+        return useAdaptiveStatsPolling()
+                ? mPollingScheduler.getNextPollingIntervalMs(regularInterval)
+                : regularInterval;
+    }
+
+    private void schedulePollingStats(long interval) {
         if (mHandler.hasCallbacks(mScheduledPollingTask)) {
             mHandler.removeCallbacks(mScheduledPollingTask);
         }
-        mHandler.postDelayed(mScheduledPollingTask,
-                mDeps.getTetherConfig().getOffloadPollInterval());
+        mNextPollingStatsMs = mDeps.elapsedRealtime() + interval;
+        mHandler.postDelayed(mScheduledPollingTask, interval);
+    }
+
+    // A new quota may have to be polled for sooner than the next poll, which may have been
+    // scheduled far away if there was no traffic. The next poll is only moved earlier, so that
+    // frequent quota changes do not keep delaying it.
+    private void maybeReschedulePollingOnQuotaChange() {
+        if (!useAdaptiveStatsPolling()) return;
+
+        mPollingScheduler.clearBackoff();
+        if (!isPollingStatsNeeded()) return;
+        final long interval = getNextPollingInterval();
+        if (mHandler.hasCallbacks(mScheduledPollingTask)
+                && mDeps.elapsedRealtime() + interval >= mNextPollingStatsMs) {
+            return;
+        }
+        schedulePollingStats(interval);
+    }
+
+    private boolean useAdaptiveStatsPolling() {
+        final TetheringConfiguration config = mDeps.getTetherConfig();
+        return config != null && config.isAdaptiveStatsPollingEnabled();
     }
 
     private boolean isPollingStatsNeeded() {
@@ -762,6 +814,7 @@ public class OffloadController {
         String upstream = (lp != null) ? lp.getInterfaceName() : null;
         pw.println("Current upstream: " + upstream);
         pw.println("Exempt prefixes: " + mLastLocalPrefixStrs);
+        if (useAdaptiveStatsPolling()) mPollingScheduler.dump(pw);
         pw.println("ForwardedStats:");
         pw.increaseIndent();
         if (mForwardedStats.isEmpty()) {
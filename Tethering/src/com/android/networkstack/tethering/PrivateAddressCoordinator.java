@@ -42,6 +42,7 @@ import androidx.annotation.Nullable;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.IndentingPrintWriter;
+import com.android.networkstack.tethering.util.PrefixIntervalSet;
 
 import java.net.Inet4Address;
 import java.net.InetAddress;
@@ -71,6 +72,10 @@ public class PrivateAddressCoordinator {
     // when tethering is down. Instead tethering would remove all deprecated upstreams from
     // mUpstreamPrefixMap when tethering is starting. See #maybeRemoveDeprecatedUpstreams().
     private final ArrayMap<Network, List<IpPrefix>> mUpstreamPrefixMap;
+    // The PREFIX_LENGTH prefixes conflicting with mUpstreamPrefixMap. Rebuilt lazily when
+    // mUpstreamPrefixMap changes, which is much less frequent than downstream address requests.
+    private final PrefixIntervalSet mUpstreamBlocks = new PrefixIntervalSet(PREFIX_LENGTH);
+    private boolean mUpstreamBlocksStale = true;
     private final ArraySet<IpServer> mDownstreams;
     private static final String LEGACY_WIFI_P2P_IFACE_ADDRESS = "192.168.49.1/24";
     private static final String LEGACY_BLUETOOTH_IFACE_ADDRESS = "192.168.44.1/24";
@@ -120,6 +125,7 @@ public class PrivateAddressCoordinator {
         }
 
         mUpstreamPrefixMap.put(ns.network, ipv4Prefixes);
+        mUpstreamBlocksStale = true;
         handleMaybePrefixConflict(ipv4Prefixes);
     }
 
@@ -149,7 +155,7 @@ public class PrivateAddressCoordinator {
 
     /** Remove IpPrefix records corresponding to input network. */
     public void removeUpstreamPrefix(final Network network) {
-        mUpstreamPrefixMap.remove(network);
+        if (mUpstreamPrefixMap.remove(network) != null) mUpstreamBlocksStale = true;
     }
 
     /**
@@ -163,7 +169,7 @@ public class PrivateAddressCoordinator {
         final Set<Network> toBeRemoved = new HashSet<>(mUpstreamPrefixMap.keySet());
         toBeRemoved.removeAll(asList(mConnectivityMgr.getAllNetworks()));
 
-        mUpstreamPrefixMap.removeAll(toBeRemoved);
+        if (mUpstreamPrefixMap.removeAll(toBeRemoved)) mUpstreamBlocksStale = true;
     }
 
     /**
@@ -231,38 +237,6 @@ public class PrivateAddressCoordinator {
         return inet4AddressToIntHTH((Inet4Address) prefix.getAddress());
     }
 
-    /**
-     * Check whether input prefix conflict with upstream prefixes or in-use downstream prefixes.
-     * If yes, return one of them.
-     */
-    private IpPrefix getConflictPrefix(final IpPrefix prefix) {
-        final IpPrefix upstream = getConflictWithUpstream(prefix);
-        if (upstream != null) return upstream;
-
-        return getInUseDownstreamPrefix(prefix);
-    }
-
-    // Get the next non-conflict sub prefix. E.g: To get next sub prefix from 10.0.0.0/8, if the
-    // previously selected prefix is 10.20.42.0/24(subPrefix: 0.20.42.0) and the conflicting prefix
-    // is 10.16.0.0/20 (10.16.0.0 ~ 10.16.15.255), then the max address under subPrefix is
-    // 0.16.15.255 and the next subPrefix is 0.16.16.255/24 (0.16.15.255 + 0.0.1.0).
-    // Note: the sub address 0.0.0.255 here is fine to be any value that it will be replaced as
-    // selected random sub address later.
-    private int getNextSubPrefix(final IpPrefix conflictPrefix, final int prefixRangeMask) {
-        final int suffixMask = ~prefixLengthToV4NetmaskIntHTH(conflictPrefix.getPrefixLength());
-        // The largest offset within the prefix assignment block that still conflicts with
-        // conflictPrefix.
-        final int maxConflict =
-                (getPrefixBaseAddress(conflictPrefix) | suffixMask) & ~prefixRangeMask;
-
-        final int prefixMask = prefixLengthToV4NetmaskIntHTH(PREFIX_LENGTH);
-        // Pick a sub prefix a full prefix (1 << (32 - PREFIX_LENGTH) addresses) greater than
-        // maxConflict. This ensures that the selected prefix never overlaps with conflictPrefix.
-        // There is no need to mask the result with PREFIX_LENGTH bits because this is done by
-        // findAvailablePrefixFromRange when it constructs the prefix.
-        return maxConflict + (1 << (32 - PREFIX_LENGTH));
-    }
-
     private LinkAddress chooseDownstreamAddress(final IpPrefix prefixRange) {
         // The netmask of the prefix assignment block (e.g., 0xfff00000 for 172.16.0.0/12).
         final int prefixRangeMask = prefixLengthToV4NetmaskIntHTH(prefixRange.getPrefixLength());
@@ -280,14 +254,8 @@ public class PrivateAddressCoordinator {
         // example, for a /24 prefix within 172.26.0.0/12, this will be a multiple of 256 in
         // [0, 1048576). In other words, a random 32-bit number with mask 0x000fff00.
         //
-        // prefixRangeMask is required to ensure no wrapping. For example, consider:
-        // - prefixRange 127.0.0.0/8
-        // - randomPrefixStart 127.255.255.0
-        // - A conflicting prefix of 127.255.254.0/23
-        // In this case without prefixRangeMask, getNextSubPrefix would return 128.0.0.0, which
-        // means the "start < end" check in findAvailablePrefixFromRange would not reject the prefix
-        // because Java doesn't have unsigned integers, so 128.0.0.0 = 0x80000000 = -2147483648
-        // is less than 127.0.0.0 = 0x7f000000 = 2130706432.
+        // prefixRangeMask is required to ensure the search starts within prefixRange, since
+        // findAvailablePrefixFromRange adds the offset to the base address of prefixRange.
         //
         // Additionally, it makes debug output easier to read by making the numbers smaller.
         final int randomInt = getRandomInt();
@@ -299,14 +267,15 @@ public class PrivateAddressCoordinator {
         final int subAddress = getSanitizedSubAddr(randomInt, ~prefixMask);
 
         // Find a prefix length PREFIX_LENGTH between randomPrefixStart and the end of the block,
-        // such that the prefix does not conflict with any upstream.
+        // such that the prefix does not conflict with any upstream or in-use downstream.
+        final PrefixIntervalSet inUseDownstreams = getInUseDownstreamBlocks();
         IpPrefix downstreamPrefix = findAvailablePrefixFromRange(
-                 randomPrefixStart, (~prefixRangeMask) + 1, baseAddress, prefixRangeMask);
+                 randomPrefixStart, (~prefixRangeMask) + 1, baseAddress, inUseDownstreams);
         if (downstreamPrefix != null) return getLinkAddress(downstreamPrefix, subAddress);
 
         // If that failed, do the same, but between 0 and randomPrefixStart.
         downstreamPrefix = findAvailablePrefixFromRange(
-                0, randomPrefixStart, baseAddress, prefixRangeMask);
+                0, randomPrefixStart, baseAddress, inUseDownstreams);
 
         return getLinkAddress(downstreamPrefix, subAddress);
     }
@@ -318,18 +287,22 @@ public class PrivateAddressCoordinator {
         return new LinkAddress(address, PREFIX_LENGTH);
     }
 
+    // Find the first prefix of length PREFIX_LENGTH whose offset within the prefix assignment
+    // block is in [start, end), and which conflicts with neither upstream prefixes nor in-use
+    // downstream prefixes. Upstream conflicts are skipped with a single lookup in mUpstreamBlocks,
+    // so this only loops once per in-use downstream prefix in the range at most.
     private IpPrefix findAvailablePrefixFromRange(final int start, final int end,
-            final int baseAddress, final int prefixRangeMask) {
-        int newSubPrefix = start;
-        while (newSubPrefix < end) {
-            final InetAddress address = intToInet4AddressHTH(baseAddress | newSubPrefix);
-            final IpPrefix prefix = new IpPrefix(address, PREFIX_LENGTH);
-
-            final IpPrefix conflictPrefix = getConflictPrefix(prefix);
-
-            if (conflictPrefix == null) return prefix;
-
-            newSubPrefix = getNextSubPrefix(conflictPrefix, prefixRangeMask);
+            final int baseAddress, @NonNull final PrefixIntervalSet inUseDownstreams) {
+        final PrefixIntervalSet upstreams = getUpstreamBlocks();
+        final int shift = 32 - PREFIX_LENGTH;
+        final int endBlock = (baseAddress >>> shift) + (end >>> shift);
+        int block = (baseAddress >>> shift) + (start >>> shift);
+        while (block >= 0) {
+            final int freeBlock = upstreams.nextFreeBlock(block, endBlock);
+            if (freeBlock < 0) return null;
+
+            block = inUseDownstreams.nextFreeBlock(freeBlock, endBlock);
+            if (block == freeBlock) return upstreams.getBlockPrefix(block);
         }
 
         return null;
@@ -367,20 +340,27 @@ public class PrivateAddressCoordinator {
     /** Clear current upstream prefixes records. */
     public void clearUpstreamPrefixes() {
         mUpstreamPrefixMap.clear();
+        mUpstreamBlocksStale = true;
     }
 
-    private IpPrefix getConflictWithUpstream(final IpPrefix prefix) {
-        for (int i = 0; i < mUpstreamPrefixMap.size(); i++) {
-            final List<IpPrefix> list = mUpstreamPrefixMap.valueAt(i);
-            for (IpPrefix upstream : list) {
-                if (isConflictPrefix(prefix, upstream)) return upstream;
+    @NonNull
+    private PrefixIntervalSet getUpstreamBlocks() {
+        if (mUpstreamBlocksStale) {
+            mUpstreamBlocks.clear();
+            for (int i = 0; i < mUpstreamPrefixMap.size(); i++) {
+                for (IpPrefix upstream : mUpstreamPrefixMap.valueAt(i)) {
+                    mUpstreamBlocks.add(upstream);
+                }
             }
+            mUpstreamBlocksStale = false;
         }
-        return null;
+        return mUpstreamBlocks;
     }
 
+    // Only exact for prefixes not longer than PREFIX_LENGTH, such as downstream prefixes, since
+    // upstream prefixes are recorded with a granularity of PREFIX_LENGTH.
     private boolean isConflictWithUpstream(final IpPrefix prefix) {
-        return getConflictWithUpstream(prefix) != null;
+        return getUpstreamBlocks().overlaps(prefix);
     }
 
     private boolean isConflictPrefix(final IpPrefix prefix1, final IpPrefix prefix2) {
@@ -393,21 +373,22 @@ public class PrivateAddressCoordinator {
 
     // InUse Prefixes are prefixes of mCachedAddresses which are active downstream addresses, last
     // downstream addresses(reserved for next time) and static addresses(e.g. bluetooth, wifi p2p).
-    private IpPrefix getInUseDownstreamPrefix(final IpPrefix prefix) {
+    // There are only a few of them, and the addresses of IpServers may change, so they are
+    // collected for each request.
+    @NonNull
+    private PrefixIntervalSet getInUseDownstreamBlocks() {
+        final PrefixIntervalSet inUse = new PrefixIntervalSet(PREFIX_LENGTH);
         for (int i = 0; i < mCachedAddresses.size(); i++) {
-            final IpPrefix downstream = asIpPrefix(mCachedAddresses.valueAt(i));
-            if (isConflictPrefix(prefix, downstream)) return downstream;
+            inUse.add(asIpPrefix(mCachedAddresses.valueAt(i)));
         }
 
         // IpServer may use manually-defined address (mStaticIpv4ServerAddr) which does not include
         // in mCachedAddresses.
         for (IpServer downstream : mDownstreams) {
-            final IpPrefix target = getDownstreamPrefix(downstream);
-
-            if (isConflictPrefix(prefix, target)) return target;
+            inUse.add(getDownstreamPrefix(downstream));
         }
 
-        return null;
+        return inUse;
     }
 
     @NonNull
@@ -460,6 +441,8 @@ public class PrivateAddressCoordinator {
         }
         pw.decreaseIndent();
 
+        pw.println("mUpstreamBlocks: " + getUpstreamBlocks());
+
         pw.println("mDownstreams:");
         pw.increaseIndent();
         for (IpServer ipServer : mDownstreams) {
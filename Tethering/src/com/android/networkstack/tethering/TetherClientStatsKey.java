@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.networkstack.tethering;
+
+import androidx.annotation.NonNull;
+
+import com.android.net.module.util.Struct;
+import com.android.net.module.util.Struct.Field;
+import com.android.net.module.util.Struct.Type;
+
+import java.net.Inet4Address;
+
+/** The key of BpfMap which is used for tethering per-client stats. */
+public class TetherClientStatsKey extends Struct {
+    @Field(order = 0, type = Type.S32)
+    public final int ifindex;  // downstream interface index
+
+    @Field(order = 1, type = Type.Ipv4Address)
+    public final Inet4Address clientAddress;
+
+    public TetherClientStatsKey(final int ifindex, @NonNull final Inet4Address clientAddress) {
+        this.ifindex = ifindex;
+        this.clientAddress = clientAddress;
+    }
+}
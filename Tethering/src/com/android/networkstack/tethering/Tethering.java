@@ -48,6 +48,7 @@ import static android.net.TetheringManager.TETHER_ERROR_SERVICE_UNAVAIL;
 import static android.net.TetheringManager.TETHER_ERROR_UNAVAIL_IFACE;
 import static android.net.TetheringManager.TETHER_ERROR_UNKNOWN_IFACE;
 import static android.net.TetheringManager.TETHER_ERROR_UNKNOWN_TYPE;
+import static android.net.TetheringManager.TETHER_ERROR_UNSUPPORTED;
 import static android.net.TetheringManager.TETHER_HARDWARE_OFFLOAD_FAILED;
 import static android.net.TetheringManager.TETHER_HARDWARE_OFFLOAD_STARTED;
 import static android.net.TetheringManager.TETHER_HARDWARE_OFFLOAD_STOPPED;
@@ -85,6 +86,7 @@ import android.net.ConnectivityManager;
 import android.net.EthernetManager;
 import android.net.IIntResultListener;
 import android.net.INetd;
+import android.net.ITetheredClientTrafficListener;
 import android.net.ITetheringEventCallback;
 import android.net.IpPrefix;
 import android.net.LinkAddress;
@@ -94,6 +96,7 @@ import android.net.NetworkInfo;
 import android.net.RoutingCoordinatorManager;
 import android.net.TetherStatesParcel;
 import android.net.TetheredClient;
+import android.net.TetheredClientTraffic;
 import android.net.TetheringCallbackStartedParcel;
 import android.net.TetheringConfigurationParcel;
 import android.net.TetheringInterface;
@@ -2867,6 +2870,19 @@ public class Tethering {
         });
     }
 
+    void pollTetheredClientTraffic(@NonNull final ITetheredClientTrafficListener listener) {
+        mHandler.post(() -> {
+            final List<TetheredClientTraffic> traffic = mBpfCoordinator.pollClientTraffic();
+            try {
+                if (traffic == null) {
+                    listener.onResult(TETHER_ERROR_UNSUPPORTED, Collections.emptyList());
+                } else {
+                    listener.onResult(TETHER_ERROR_NO_ERROR, traffic);
+                }
+            } catch (RemoteException e) { }
+        });
+    }
+
     @VisibleForTesting
     public TetherMainSM getTetherMainSMForTesting() {
         return mTetherMainSM;
@@ -135,6 +135,34 @@ public class TetheringConfiguration {
 
     public static final String TETHER_ENABLE_SYNC_SM = "tether_enable_sync_sm";
 
+    /**
+     * Experiment flag to refresh the BPF offloaded conntrack entry timeouts in batches over a
+     * persistent netlink socket, instead of using a new netlink socket for each entry.
+     */
+    public static final String TETHER_BATCH_CONNTRACK_TIMEOUT_UPDATE =
+            "tether_batch_conntrack_timeout_update";
+
+    /**
+     * Experiment flag to receive conntrack events on a dedicated thread and apply them to the BPF
+     * offload rules in batches.
+     */
+    public static final String TETHER_CONNTRACK_EVENT_PIPELINE =
+            "tether_conntrack_event_pipeline";
+
+    /**
+     * Experiment flag to count the offloaded traffic of each downstream client, and make it
+     * available with TetheringManager#pollTetheredClientTraffic.
+     */
+    public static final String TETHER_CLIENT_TRAFFIC_ACCOUNTING =
+            "tether_client_traffic_accounting";
+
+    /**
+     * Experiment flag to adapt the interval of tethering offload stats polling to the forwarded
+     * byte rate and the remaining alert quota.
+     */
+    public static final String TETHER_ADAPTIVE_STATS_POLLING =
+            "tether_adaptive_stats_polling";
+
     /**
      * Default value that used to periodic polls tether offload stats from tethering offload HAL
      * to make the data warnings work.
@@ -177,6 +205,10 @@ public class TetheringConfiguration {
 
     private final boolean mEnableWearTethering;
     private final boolean mRandomPrefixBase;
+    private final boolean mBatchConntrackTimeoutUpdate;
+    private final boolean mConntrackEventPipeline;
+    private final boolean mClientTrafficAccounting;
+    private final boolean mAdaptiveStatsPolling;
 
     private final int mUsbTetheringFunction;
     protected final ContentResolver mContentResolver;
@@ -295,6 +327,11 @@ public class TetheringConfiguration {
         mEnableWearTethering = shouldEnableWearTethering(ctx);
 
         mRandomPrefixBase = mDeps.isFeatureEnabled(ctx, TETHER_FORCE_RANDOM_PREFIX_BASE_SELECTION);
+        mBatchConntrackTimeoutUpdate = mDeps.isFeatureEnabled(ctx,
+                TETHER_BATCH_CONNTRACK_TIMEOUT_UPDATE);
+        mConntrackEventPipeline = mDeps.isFeatureEnabled(ctx, TETHER_CONNTRACK_EVENT_PIPELINE);
+        mClientTrafficAccounting = mDeps.isFeatureEnabled(ctx, TETHER_CLIENT_TRAFFIC_ACCOUNTING);
+        mAdaptiveStatsPolling = mDeps.isFeatureEnabled(ctx, TETHER_ADAPTIVE_STATS_POLLING);
 
         configLog.log(toString());
     }
@@ -388,6 +425,26 @@ public class TetheringConfiguration {
         return mRandomPrefixBase;
     }
 
+    /** Returns true if conntrack timeouts are refreshed in batches. */
+    public boolean isBatchConntrackTimeoutUpdateEnabled() {
+        return mBatchConntrackTimeoutUpdate;
+    }
+
+    /** Returns true if conntrack events are received and applied by the event pipeline. */
+    public boolean isConntrackEventPipelineEnabled() {
+        return mConntrackEventPipeline;
+    }
+
+    /** Returns true if the offloaded traffic of each downstream client is counted. */
+    public boolean isClientTrafficAccountingEnabled() {
+        return mClientTrafficAccounting;
+    }
+
+    /** Returns true if the interval of offload stats polling adapts to the traffic and quota. */
+    public boolean isAdaptiveStatsPollingEnabled() {
+        return mAdaptiveStatsPolling;
+    }
+
     /**
      * Check whether sync SM is enabled then set it to USE_SYNC_SM. This should be called once
      * when tethering is created. Otherwise if the flag is pushed while tethering is enabled,
@@ -452,6 +509,18 @@ public class TetheringConfiguration {
         pw.print("mRandomPrefixBase: ");
         pw.println(mRandomPrefixBase);
 
+        pw.print("mBatchConntrackTimeoutUpdate: ");
+        pw.println(mBatchConntrackTimeoutUpdate);
+
+        pw.print("mConntrackEventPipeline: ");
+        pw.println(mConntrackEventPipeline);
+
+        pw.print("mClientTrafficAccounting: ");
+        pw.println(mClientTrafficAccounting);
+
+        pw.print("mAdaptiveStatsPolling: ");
+        pw.println(mAdaptiveStatsPolling);
+
         pw.print("USE_SYNC_SM: ");
         pw.println(USE_SYNC_SM);
     }
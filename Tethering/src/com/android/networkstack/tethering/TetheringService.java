@@ -34,6 +34,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.net.IIntResultListener;
 import android.net.INetworkStackConnector;
+import android.net.ITetheredClientTrafficListener;
 import android.net.ITetheringConnector;
 import android.net.ITetheringEventCallback;
 import android.net.NetworkStack;
@@ -58,6 +59,7 @@ import com.android.networkstack.apishim.common.SettingsShim;
 
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
+import java.util.Collections;
 
 /**
  * Android service used to manage tethering.
@@ -216,6 +218,20 @@ public class TetheringService extends Service {
             mTethering.setPreferTestNetworks(prefer, listener);
         }
 
+        @Override
+        public void pollTetheredClientTraffic(String callerPkg,
+                ITetheredClientTrafficListener listener) {
+            if (!checkCallingOrSelfPermission(NETWORK_SETTINGS) && !hasNetworkStackPermission()) {
+                try {
+                    listener.onResult(TETHER_ERROR_NO_CHANGE_TETHERING_PERMISSION,
+                            Collections.emptyList());
+                } catch (RemoteException e) { }
+                return;
+            }
+
+            mTethering.pollTetheredClientTraffic(listener);
+        }
+
         @Override
         protected void dump(@NonNull FileDescriptor fd, @NonNull PrintWriter writer,
                     @Nullable String[] args) {
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.networkstack.tethering.util;
+
+import static com.android.net.module.util.Inet4AddressUtils.inet4AddressToIntHTH;
+import static com.android.net.module.util.Inet4AddressUtils.intToInet4AddressHTH;
+
+import android.net.IpPrefix;
+
+import androidx.annotation.NonNull;
+
+import java.net.Inet4Address;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A set of IPv4 prefixes of a given length, called blocks, stored as intervals of block indexes.
+ *
+ * Adding a prefix marks all the blocks it overlaps with, e.g. with 24-bit blocks, adding
+ * 192.168.1.0/28 marks 192.168.1.0/24, and adding 10.0.0.0/16 marks 256 blocks. Overlapping
+ * and adjacent intervals are merged, so the intervals are disjoint and separated by at least
+ * one free block. This allows finding the first free block after a given block, and checking
+ * whether a prefix overlaps with the set, in O(log n) where n is the number of intervals.
+ *
+ * Prefixes cannot be removed; callers rebuild the set when prefixes go away.
+ * This class is not thread-safe.
+ * @hide
+ */
+public class PrefixIntervalSet {
+    private final int mBlockPrefixLength;
+    // Maps the first block index of each interval to its last block index, inclusive.
+    private final TreeMap<Integer, Integer> mIntervals = new TreeMap<>();
+
+    /**
+     * Create an empty set.
+     *
+     * @param blockPrefixLength the prefix length of the blocks, between 1 and 31.
+     */
+    public PrefixIntervalSet(int blockPrefixLength) {
+        if (blockPrefixLength < 1 || blockPrefixLength > 31) {
+            throw new IllegalArgumentException("Invalid block prefix length " + blockPrefixLength);
+        }
+        mBlockPrefixLength = blockPrefixLength;
+    }
+
+    // Block indexes are unsigned 32-bit addresses shifted right by at least one bit, so they are
+    // never negative and comparing them as ints follows the address order.
+    private int getFirstBlock(@NonNull IpPrefix prefix) {
+        final int address = inet4AddressToIntHTH((Inet4Address) prefix.getAddress());
+        return address >>> (32 - mBlockPrefixLength);
+    }
+
+    private int getLastBlock(@NonNull IpPrefix prefix) {
+        final int address = inet4AddressToIntHTH((Inet4Address) prefix.getAddress());
+        final int hostMask = (int) (0xffffffffL >>> prefix.getPrefixLength());
+        return (address | hostMask) >>> (32 - mBlockPrefixLength);
+    }
+
+    /** Returns the block index of the given IPv4 address. */
+    public int getBlock(@NonNull Inet4Address address) {
+        return inet4AddressToIntHTH(address) >>> (32 - mBlockPrefixLength);
+    }
+
+    /** Returns the prefix of the given block index. */
+    @NonNull
+    public IpPrefix getBlockPrefix(int block) {
+        return new IpPrefix(intToInet4AddressHTH(block << (32 - mBlockPrefixLength)),
+                mBlockPrefixLength);
+    }
+
+    /** Mark all the blocks overlapping with the given IPv4 prefix. */
+    public void add(@NonNull IpPrefix prefix) {
+        if (!(prefix.getAddress() instanceof Inet4Address)) {
+            throw new IllegalArgumentException("Not an IPv4 prefix: " + prefix);
+        }
+        int first = getFirstBlock(prefix);
+        int last = getLastBlock(prefix);
+
+        // Merge with the interval overlapping with or adjacent to the first block, if any.
+        final Map.Entry<Integer, Integer> floor = mIntervals.floorEntry(first);
+        if (floor != null && floor.getValue() >= first - 1) {
+            first = floor.getKey();
+            last = Math.max(last, floor.getValue());
+        }
+        // Merge with all the following intervals overlapping with or adjacent to the new one.
+        Map.Entry<Integer, Integer> next;
+        while ((next = mIntervals.higherEntry(first)) != null && next.getKey() <= last + 1) {
+            last = Math.max(last, next.getValue());
+            mIntervals.remove(next.getKey());
+        }
+        mIntervals.put(first, last);
+    }
+
+    /** Returns true if any block overlapping with the given IPv4 prefix is in the set. */
+    public boolean overlaps(@NonNull IpPrefix prefix) {
+        final Map.Entry<Integer, Integer> floor = mIntervals.floorEntry(getLastBlock(prefix));
+        return floor != null && floor.getValue() >= getFirstBlock(prefix);
+    }
+
+    /**
+     * Returns the first block index in [from, to) which is not in the set, or -1 if there is
+     * none.
+     */
+    public int nextFreeBlock(int from, int to) {
+        final Map.Entry<Integer, Integer> floor = mIntervals.floorEntry(from);
+        // Intervals are separated by free blocks, so the block following the interval containing
+        // from, if any, is free.
+        final long candidate = (floor != null && floor.getValue() >= from)
+                ? floor.getValue() + 1L : from;
+        return candidate < to ? (int) candidate : -1;
+    }
+
+    /** Remove all the blocks. */
+    public void clear() {
+        mIntervals.clear();
+    }
+
+    /** Returns the number of disjoint intervals of blocks in the set. */
+    public int getIntervalCount() {
+        return mIntervals.size();
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("{");
+        for (Map.Entry<Integer, Integer> interval : mIntervals.entrySet()) {
+            if (sb.length() > 1) sb.append(", ");
+            sb.append(getBlockPrefix(interval.getKey()).getAddress().getHostAddress())
+                    .append(" - ")
+                    .append(getBlockPrefix(interval.getValue()).getAddress().getHostAddress());
+        }
+        return sb.append("}").toString();
+    }
+}
@@ -45,6 +45,7 @@ import org.junit.runner.RunWith;
 
 import java.io.File;
 import java.net.InetAddress;
+import java.util.Arrays;
 import java.util.NoSuchElementException;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -356,6 +357,58 @@ public final class BpfMapTest {
         assertTrue(mTestMap.isEmpty());
     }
 
+    @Test
+    public void testForEachBatch() throws Exception {
+        final AtomicInteger count = new AtomicInteger();
+        mTestMap.forEachBatch((key, value) -> count.incrementAndGet());
+        assertEquals(0, count.get());
+
+        final ArrayMap<TetherDownstream6Key, Tether6Value> resultMap =
+                new ArrayMap<>(mTestData);
+        mTestMap.updateAll(resultMap);
+        mTestMap.forEachBatch((key, value) -> {
+            if (!value.equals(resultMap.remove(key))) {
+                fail("Unexpected result: " + key + ", value: " + value);
+            }
+        });
+        assertTrue(resultMap.isEmpty());
+    }
+
+    @Test
+    public void testUpdateAllAndDeleteAll() throws Exception {
+        mTestMap.updateAll(mTestData);
+        for (int i = 0; i < mTestData.size(); i++) {
+            assertEquals(mTestData.valueAt(i), mTestMap.getValue(mTestData.keyAt(i)));
+        }
+
+        // Updating existing entries replaces their values.
+        final ArrayMap<TetherDownstream6Key, Tether6Value> newData = new ArrayMap<>();
+        newData.put(mTestData.keyAt(0), mTestData.valueAt(1));
+        mTestMap.updateAll(newData);
+        assertEquals(mTestData.valueAt(1), mTestMap.getValue(mTestData.keyAt(0)));
+
+        // Keys that are not in the map are skipped.
+        assertTrue(mTestMap.deleteEntry(mTestData.keyAt(1)));
+        assertEquals(2, mTestMap.deleteAll(Arrays.asList(mTestData.keyAt(0),
+                mTestData.keyAt(1), mTestData.keyAt(2))));
+        assertTrue(mTestMap.isEmpty());
+        assertEquals(0, mTestMap.deleteAll(mTestData.keySet()));
+    }
+
+    @Test
+    public void testForEachAndDelete() throws Exception {
+        final ArrayMap<TetherDownstream6Key, Tether6Value> resultMap =
+                new ArrayMap<>(mTestData);
+        mTestMap.updateAll(resultMap);
+        mTestMap.forEachAndDelete((key, value) -> {
+            if (!value.equals(resultMap.remove(key))) {
+                fail("Unexpected result: " + key + ", value: " + value);
+            }
+        });
+        assertTrue(resultMap.isEmpty());
+        assertTrue(mTestMap.isEmpty());
+    }
+
     @Test
     public void testInsertOverflow() throws Exception {
         final ArrayMap<TetherDownstream6Key, Tether6Value> testData =
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.networkstack.tethering;
+
+import static android.net.netstats.provider.NetworkStatsProvider.QUOTA_UNLIMITED;
+
+import static com.android.networkstack.tethering.AdaptiveStatsPollingScheduler.MIN_POLLING_INTERVAL_MS;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class AdaptiveStatsPollingSchedulerTest {
+    private static final long REGULAR_INTERVAL_MS = 5000;
+
+    private long mElapsedRealtime = 1000L;
+    private final AdaptiveStatsPollingScheduler mScheduler =
+            new AdaptiveStatsPollingScheduler(mElapsedRealtime);
+
+    private long pollAfter(long durationMs, long bytes) {
+        mElapsedRealtime += durationMs;
+        mScheduler.onBytesForwarded(bytes, mElapsedRealtime);
+        return mScheduler.getNextPollingIntervalMs(REGULAR_INTERVAL_MS);
+    }
+
+    @Test
+    public void testRegularIntervalWithTraffic() {
+        assertEquals(REGULAR_INTERVAL_MS, mScheduler.getNextPollingIntervalMs(REGULAR_INTERVAL_MS));
+        assertEquals(REGULAR_INTERVAL_MS, pollAfter(REGULAR_INTERVAL_MS, 1_000_000));
+        assertEquals(REGULAR_INTERVAL_MS, pollAfter(REGULAR_INTERVAL_MS, 5_000_000));
+        assertFalse(mScheduler.isBackedOff());
+    }
+
+    @Test
+    public void testFasterPollingNearAlertQuota() {
+        // 100kB/s with 500kB remaining: the quota is reached in 5s, poll twice before that.
+        mScheduler.setRemainingAlertQuota(500_000);
+        assertEquals(2500, pollAfter(REGULAR_INTERVAL_MS, 500_000));
+
+        // The interval does not go below the minimum.
+        mScheduler.setRemainingAlertQuota(50_000);
+        assertEquals(MIN_POLLING_INTERVAL_MS,
+                mScheduler.getNextPollingIntervalMs(REGULAR_INTERVAL_MS));
+
+        // Back to the regular interval when the quota is far enough, or removed.
+        mScheduler.setRemainingAlertQuota(100_000_000);
+        assertEquals(REGULAR_INTERVAL_MS,
+                mScheduler.getNextPollingIntervalMs(REGULAR_INTERVAL_MS));
+        mScheduler.setRemainingAlertQuota(QUOTA_UNLIMITED);
+        assertEquals(REGULAR_INTERVAL_MS,
+                mScheduler.getNextPollingIntervalMs(REGULAR_INTERVAL_MS));
+    }
+
+    @Test
+    public void testIdleBackoff() {
+        assertEquals(REGULAR_INTERVAL_MS, pollAfter(REGULAR_INTERVAL_MS, 1000));
+        assertEquals(2 * REGULAR_INTERVAL_MS, pollAfter(REGULAR_INTERVAL_MS, 0));
+        assertTrue(mScheduler.isBackedOff());
+        assertEquals(4 * REGULAR_INTERVAL_MS, pollAfter(2 * REGULAR_INTERVAL_MS, 0));
+        assertEquals(8 * REGULAR_INTERVAL_MS, pollAfter(4 * REGULAR_INTERVAL_MS, 0));
+        assertEquals(8 * REGULAR_INTERVAL_MS, pollAfter(8 * REGULAR_INTERVAL_MS, 0));
+
+        // Traffic resets the back-off.
+        assertEquals(REGULAR_INTERVAL_MS, pollAfter(8 * REGULAR_INTERVAL_MS, 1000));
+        assertFalse(mScheduler.isBackedOff());
+
+        // So does a quota change.
+        assertEquals(2 * REGULAR_INTERVAL_MS, pollAfter(REGULAR_INTERVAL_MS, 0));
+        mScheduler.clearBackoff();
+        assertEquals(REGULAR_INTERVAL_MS, mScheduler.getNextPollingIntervalMs(REGULAR_INTERVAL_MS));
+    }
+
+    @Test
+    public void testIdleBackoffBoundedByAlertQuota() {
+        // No back-off with a quota when the rate traffic may resume at is unknown.
+        mScheduler.setRemainingAlertQuota(3_000_000);
+        assertEquals(REGULAR_INTERVAL_MS, pollAfter(REGULAR_INTERVAL_MS, 0));
+        assertEquals(REGULAR_INTERVAL_MS, pollAfter(REGULAR_INTERVAL_MS, 0));
+
+        // After a peak of 100kB/s, 2.5MB remaining would be reached in 25s.
+        assertEquals(REGULAR_INTERVAL_MS, pollAfter(REGULAR_INTERVAL_MS, 500_000));
+        mScheduler.setRemainingAlertQuota(2_500_000);
+        assertEquals(2 * REGULAR_INTERVAL_MS, pollAfter(REGULAR_INTERVAL_MS, 0));
+        assertEquals(12_500, pollAfter(2 * REGULAR_INTERVAL_MS, 0));
+        assertEquals(12_500, pollAfter(12_500, 0));
+    }
+
+    @Test
+    public void testShortSamplesMerged() {
+        assertEquals(REGULAR_INTERVAL_MS, pollAfter(REGULAR_INTERVAL_MS, 1000));
+        // Stats of another upstream polled right after are not counted as an idle sample.
+        assertEquals(REGULAR_INTERVAL_MS, pollAfter(REGULAR_INTERVAL_MS, 1000));
+        mScheduler.onBytesForwarded(0, mElapsedRealtime + 1);
+        assertEquals(REGULAR_INTERVAL_MS, mScheduler.getNextPollingIntervalMs(REGULAR_INTERVAL_MS));
+        assertFalse(mScheduler.isBackedOff());
+    }
+}
@@ -28,6 +28,7 @@ import static android.net.NetworkStats.UID_TETHERING;
 import static android.net.TetheringManager.TETHERING_WIFI;
 import static android.net.ip.IpServer.STATE_TETHERED;
 import static android.net.netstats.provider.NetworkStatsProvider.QUOTA_UNLIMITED;
+import static android.system.OsConstants.EIO;
 import static android.system.OsConstants.ETH_P_IP;
 import static android.system.OsConstants.ETH_P_IPV6;
 import static android.system.OsConstants.IPPROTO_TCP;
@@ -103,11 +104,13 @@ import android.net.NetworkStats;
 import android.net.RoutingCoordinatorManager;
 import android.net.TetherOffloadRuleParcel;
 import android.net.TetherStatsParcel;
+import android.net.TetheredClientTraffic;
 import android.net.ip.IpServer;
 import android.net.ip.RouterAdvertisementDaemon;
 import android.os.Build;
 import android.os.Handler;
 import android.os.test.TestLooper;
+import android.system.ErrnoException;
 import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.SparseArray;
@@ -143,6 +146,8 @@ import com.android.networkstack.tethering.BpfCoordinator.BpfConntrackEventConsum
 import com.android.networkstack.tethering.BpfCoordinator.ClientInfo;
 import com.android.networkstack.tethering.BpfCoordinator.Ipv6DownstreamRule;
 import com.android.networkstack.tethering.BpfCoordinator.Ipv6UpstreamRule;
+import com.android.networkstack.tethering.ConntrackEventPipeline.ConntrackEventBatchConsumer;
+import com.android.networkstack.tethering.ConntrackEventPipeline.ReceivedEvent;
 import com.android.networkstack.tethering.metrics.TetheringMetrics;
 import com.android.networkstack.tethering.util.InterfaceSet;
 import com.android.testutils.DevSdkIgnoreRule;
@@ -448,6 +453,8 @@ public class BpfCoordinatorTest {
     @Mock private IpServer mIpServer2;
     @Mock private TetheringConfiguration mTetherConfig;
     @Mock private ConntrackMonitor mConntrackMonitor;
+    @Mock private ConntrackTimeoutUpdater mConntrackTimeoutUpdater;
+    @Mock private ConntrackEventPipeline mConntrackEventPipeline;
     @Mock private IpNeighborMonitor mIpNeighborMonitor;
     @Mock private RouterAdvertisementDaemon mRaDaemon;
     @Mock private IpServer.Dependencies mIpServerDeps;
@@ -489,6 +496,8 @@ public class BpfCoordinatorTest {
             spy(new TestBpfMap<>(TetherDevKey.class, TetherDevValue.class));
     private final IBpfMap<S32, S32> mBpfErrorMap =
             spy(new TestBpfMap<>(S32.class, S32.class));
+    private final IBpfMap<TetherClientStatsKey, TetherStatsValue> mBpfClientStatsMap =
+            spy(new TestBpfMap<>(TetherClientStatsKey.class, TetherStatsValue.class));
     private BpfCoordinator.Dependencies mDeps =
             spy(new BpfCoordinator.Dependencies() {
                     @NonNull
@@ -521,6 +530,17 @@ public class BpfCoordinatorTest {
                         return mConntrackMonitor;
                     }
 
+                    @NonNull
+                    public ConntrackEventPipeline getConntrackEventPipeline(
+                            ConntrackEventBatchConsumer consumer) {
+                        return mConntrackEventPipeline;
+                    }
+
+                    @NonNull
+                    public ConntrackTimeoutUpdater getConntrackTimeoutUpdater() {
+                        return mConntrackTimeoutUpdater;
+                    }
+
                     public long elapsedRealtimeNanos() {
                         return mElapsedRealtimeNanos;
                     }
@@ -568,6 +588,12 @@ public class BpfCoordinatorTest {
                     public IBpfMap<S32, S32> getBpfErrorMap() {
                         return mBpfErrorMap;
                     }
+
+                    @Nullable
+                    public IBpfMap<TetherClientStatsKey, TetherStatsValue>
+                            getBpfClientStatsMap() {
+                        return mBpfClientStatsMap;
+                    }
             });
 
     @Before public void setUp() {
@@ -775,7 +801,7 @@ public class BpfCoordinatorTest {
 
     private void verifyTetherOffloadGetStats() throws Exception {
         if (mDeps.isAtLeastS()) {
-            verify(mBpfStatsMap).forEach(any());
+            verify(mBpfStatsMap).forEachBatch(any());
         } else {
             verify(mNetd).tetherOffloadGetStats();
         }
@@ -783,7 +809,7 @@ public class BpfCoordinatorTest {
 
     private void verifyNeverTetherOffloadGetStats() throws Exception {
         if (mDeps.isAtLeastS()) {
-            verify(mBpfStatsMap, never()).forEach(any());
+            verify(mBpfStatsMap, never()).forEachBatch(any());
         } else {
             verify(mNetd, never()).tetherOffloadGetStats();
         }
@@ -1193,6 +1219,50 @@ public class BpfCoordinatorTest {
         mTetherStatsProviderCb.assertNoCallback();
     }
 
+    // Move both the looper time and the elapsed realtime used by the polling scheduler.
+    private void moveTimeForward(long ms) {
+        setElapsedRealtimeNanos(mElapsedRealtimeNanos + ms * 1_000_000L);
+        mTestLooper.moveTimeForward(ms);
+        waitForIdle();
+    }
+
+    @Test
+    public void testAdaptivePollingQuotaChangeOnlyMovesPollEarlier() throws Exception {
+        final long interval = DEFAULT_TETHER_OFFLOAD_POLL_INTERVAL_MS;
+        final long margin = interval / 10;
+        when(mTetherConfig.isAdaptiveStatsPollingEnabled()).thenReturn(true);
+        setupFunctioningNetdInterface();
+
+        final BpfCoordinator coordinator = makeBpfCoordinator();
+        coordinator.startPolling();
+
+        final String mobileIface = "rmnet_data0";
+        final Integer mobileIfIndex = 100;
+        coordinator.maybeAddUpstreamToLookupTable(mobileIfIndex, mobileIface);
+        updateStatsEntry(buildTestTetherStatsParcel(mobileIfIndex, 0, 0, 0, 0));
+
+        // The first poll does not see any traffic, so the next one backs off to 3 * interval.
+        moveTimeForward(interval);
+        verifyTetherOffloadGetStats();
+        clearStatsInvocations();
+
+        // A new quota at 1.5 * interval moves the next poll earlier, to 2.5 * interval.
+        moveTimeForward(interval / 2);
+        mTetherStatsProvider.onSetLimit(mobileIface, 1_000_000L);
+        waitForIdle();
+
+        // Another quota at 2 * interval does not delay the next poll to 3 * interval.
+        moveTimeForward(interval / 2);
+        mTetherStatsProvider.onSetLimit(mobileIface, 2_000_000L);
+        waitForIdle();
+        verifyNeverTetherOffloadGetStats();
+
+        moveTimeForward(interval / 2 - margin);
+        verifyNeverTetherOffloadGetStats();
+        moveTimeForward(margin);
+        verifyTetherOffloadGetStats();
+    }
+
     /**
      * Custom ArgumentMatcher for TetherOffloadRuleParcel. This is needed because generated stable
      * AIDL classes don't have equals(), so we cannot just use eq(). A custom assert, such as:
@@ -2011,6 +2081,153 @@ public class BpfCoordinatorTest {
         inOrder.verifyNoMoreInteractions();
     }
 
+    @Test
+    @IgnoreUpTo(Build.VERSION_CODES.R)
+    public void testRule4ChangeInBatches() throws Exception {
+        final BpfCoordinator coordinator = makeBpfCoordinator();
+        initBpfCoordinatorForRule4(coordinator);
+
+        final Tether4Key upstream4KeyTcp = new TestUpstream4Key.Builder()
+                .setProto(IPPROTO_TCP).build();
+        final Tether4Key downstream4KeyTcp = new TestDownstream4Key.Builder()
+                .setProto(IPPROTO_TCP).build();
+        final Tether4Key upstream4KeyUdp = new TestUpstream4Key.Builder()
+                .setProto(IPPROTO_UDP).build();
+        final Tether4Key downstream4KeyUdp = new TestDownstream4Key.Builder()
+                .setProto(IPPROTO_UDP).build();
+        final ReceivedEvent newTcp = new ReceivedEvent(new TestConntrackEvent.Builder()
+                .setMsgType(IPCTNL_MSG_CT_NEW).setProto(IPPROTO_TCP).build(), 0L /* receivedMs */);
+        final ReceivedEvent newUdp = new ReceivedEvent(new TestConntrackEvent.Builder()
+                .setMsgType(IPCTNL_MSG_CT_NEW).setProto(IPPROTO_UDP).build(), 0L /* receivedMs */);
+
+        // [1] Rules of new flows are added, and reported as offloaded.
+        mConsumer.acceptBatch(List.of(newTcp, newUdp));
+        verify(mBpfUpstream4Map).insertEntry(eq(upstream4KeyTcp), any());
+        verify(mBpfDownstream4Map).insertEntry(eq(downstream4KeyTcp), any());
+        verify(mBpfUpstream4Map).insertEntry(eq(upstream4KeyUdp), any());
+        verify(mBpfDownstream4Map).insertEntry(eq(downstream4KeyUdp), any());
+        verify(mConntrackEventPipeline).onFlowOffloaded(newTcp);
+        verify(mConntrackEventPipeline).onFlowOffloaded(newUdp);
+
+        // [2] Rules of destroyed flows are removed in batches, and the limit is cleared once the
+        // last rule on the upstream is removed.
+        updateStatsEntryForTetherOffloadGetAndClearStats(
+                buildTestTetherStatsParcel(UPSTREAM_IFINDEX, 0, 0, 0, 0));
+        mConsumer.acceptBatch(List.of(
+                new ReceivedEvent(new TestConntrackEvent.Builder()
+                        .setMsgType(IPCTNL_MSG_CT_DELETE).setProto(IPPROTO_TCP).build(),
+                        0L /* receivedMs */),
+                new ReceivedEvent(new TestConntrackEvent.Builder()
+                        .setMsgType(IPCTNL_MSG_CT_DELETE).setProto(IPPROTO_UDP).build(),
+                        0L /* receivedMs */)));
+        verify(mBpfUpstream4Map).deleteAll(eq(List.of(upstream4KeyTcp, upstream4KeyUdp)), any());
+        verify(mBpfDownstream4Map).deleteAll(
+                eq(List.of(downstream4KeyTcp, downstream4KeyUdp)), any());
+        verifyTetherOffloadGetAndClearStats(inOrder(mBpfStatsMap, mBpfLimitMap, mNetd),
+                UPSTREAM_IFINDEX);
+        assertNull(mBpfUpstream4Map.getFirstKey());
+        assertNull(mBpfDownstream4Map.getFirstKey());
+        verifyNoMoreInteractions(mConntrackEventPipeline);
+    }
+
+    @Test
+    @IgnoreUpTo(Build.VERSION_CODES.R)
+    public void testRule4RemoveInBatchesPartialFailure() throws Exception {
+        final BpfCoordinator coordinator = makeBpfCoordinator();
+        initBpfCoordinatorForRule4(coordinator);
+
+        final Tether4Key downstream4KeyTcp = new TestDownstream4Key.Builder()
+                .setProto(IPPROTO_TCP).build();
+        mConsumer.acceptBatch(List.of(
+                new ReceivedEvent(new TestConntrackEvent.Builder()
+                        .setMsgType(IPCTNL_MSG_CT_NEW).setProto(IPPROTO_TCP).build(),
+                        0L /* receivedMs */),
+                new ReceivedEvent(new TestConntrackEvent.Builder()
+                        .setMsgType(IPCTNL_MSG_CT_NEW).setProto(IPPROTO_UDP).build(),
+                        0L /* receivedMs */)));
+
+        // The batch deletion fails after deleting the first downstream rule. The remaining rule
+        // is deleted one by one, and both rules are counted: the limit is cleared as no rule is
+        // left on the upstream.
+        doAnswer(invocation -> {
+            assertTrue(mBpfDownstream4Map.deleteEntry(downstream4KeyTcp));
+            invocation.<int[]>getArgument(1)[0] = 1;
+            throw new ErrnoException("deleteAll", EIO);
+        }).when(mBpfDownstream4Map).deleteAll(any(), any());
+        updateStatsEntryForTetherOffloadGetAndClearStats(
+                buildTestTetherStatsParcel(UPSTREAM_IFINDEX, 0, 0, 0, 0));
+        mConsumer.acceptBatch(List.of(
+                new ReceivedEvent(new TestConntrackEvent.Builder()
+                        .setMsgType(IPCTNL_MSG_CT_DELETE).setProto(IPPROTO_TCP).build(),
+                        0L /* receivedMs */),
+                new ReceivedEvent(new TestConntrackEvent.Builder()
+                        .setMsgType(IPCTNL_MSG_CT_DELETE).setProto(IPPROTO_UDP).build(),
+                        0L /* receivedMs */)));
+        verifyTetherOffloadGetAndClearStats(inOrder(mBpfStatsMap, mBpfLimitMap, mNetd),
+                UPSTREAM_IFINDEX);
+        assertNull(mBpfUpstream4Map.getFirstKey());
+        assertNull(mBpfDownstream4Map.getFirstKey());
+    }
+
+    @Test
+    @IgnoreUpTo(Build.VERSION_CODES.R)
+    public void testStartStopConntrackEventPipeline() throws Exception {
+        setupFunctioningNetdInterface();
+        when(mTetherConfig.isConntrackEventPipelineEnabled()).thenReturn(true);
+        final BpfCoordinator coordinator = makeBpfCoordinator();
+
+        coordinator.startMonitoring(mIpServer);
+        verify(mConntrackEventPipeline).start();
+        verify(mConntrackMonitor, never()).start();
+
+        coordinator.stopMonitoring(mIpServer);
+        verify(mConntrackEventPipeline).stop();
+        verify(mConntrackMonitor, never()).stop();
+    }
+
+    @Test
+    @IgnoreUpTo(Build.VERSION_CODES.R)
+    public void testClientTrafficAccounting() throws Exception {
+        when(mTetherConfig.isClientTrafficAccountingEnabled()).thenReturn(true);
+        final BpfCoordinator coordinator = makeBpfCoordinator();
+        initBpfCoordinatorForRule4(coordinator);
+
+        // The client is counted from zero once it is added.
+        final TetherClientStatsKey key = new TetherClientStatsKey(DOWNSTREAM_IFINDEX,
+                PRIVATE_ADDR);
+        assertEquals(new TetherStatsValue(0, 0, 0, 0, 0, 0), mBpfClientStatsMap.getValue(key));
+        assertTrue(coordinator.pollClientTraffic().isEmpty());
+
+        // Each poll returns the traffic since the previous one.
+        mBpfClientStatsMap.updateEntry(key, new TetherStatsValue(10 /* rxPackets */,
+                1000 /* rxBytes */, 0 /* rxErrors */, 5 /* txPackets */, 500 /* txBytes */,
+                0 /* txErrors */));
+        assertEquals(List.of(new TetheredClientTraffic(MAC_A, PRIVATE_ADDR, UPSTREAM_IFACE,
+                1000 /* rxBytes */, 10 /* rxPackets */, 500 /* txBytes */, 5 /* txPackets */)),
+                coordinator.pollClientTraffic());
+        assertTrue(coordinator.pollClientTraffic().isEmpty());
+
+        // The last traffic of a removed client is returned by the next poll.
+        mBpfClientStatsMap.updateEntry(key, new TetherStatsValue(12 /* rxPackets */,
+                1200 /* rxBytes */, 0 /* rxErrors */, 5 /* txPackets */, 500 /* txBytes */,
+                0 /* txErrors */));
+        coordinator.tetherOffloadClientRemove(mIpServer, CLIENT_INFO_A);
+        assertNull(mBpfClientStatsMap.getValue(key));
+        assertEquals(List.of(new TetheredClientTraffic(MAC_A, PRIVATE_ADDR, UPSTREAM_IFACE,
+                200 /* rxBytes */, 2 /* rxPackets */, 0 /* txBytes */, 0 /* txPackets */)),
+                coordinator.pollClientTraffic());
+    }
+
+    @Test
+    @IgnoreUpTo(Build.VERSION_CODES.R)
+    public void testClientTrafficAccountingDisabled() throws Exception {
+        final BpfCoordinator coordinator = makeBpfCoordinator();
+        initBpfCoordinatorForRule4(coordinator);
+
+        assertTrue(mBpfClientStatsMap.isEmpty());
+        assertNull(coordinator.pollClientTraffic());
+    }
+
     @Test
     @IgnoreUpTo(Build.VERSION_CODES.R)
     public void testAddDevMapRule6() throws Exception {
@@ -2158,6 +2375,102 @@ public class BpfCoordinatorTest {
         checkRefreshConntrackTimeout(bpfDownstream4Map, tcpKey, tcpValue, udpKey, udpValue);
     }
 
+    @Test
+    @IgnoreUpTo(Build.VERSION_CODES.R)
+    public void testRefreshConntrackTimeout_Batched() throws Exception {
+        final TestBpfMap<Tether4Key, Tether4Value> bpfUpstream4Map =
+                new TestBpfMap<>(Tether4Key.class, Tether4Value.class);
+        doReturn(bpfUpstream4Map).when(mDeps).getBpfUpstream4Map();
+        when(mTetherConfig.isBatchConntrackTimeoutUpdateEnabled()).thenReturn(true);
+        when(mConntrackTimeoutUpdater.start()).thenReturn(true);
+        when(mConntrackTimeoutUpdater.isStarted()).thenReturn(true);
+
+        MockitoSession mockSession = ExtendedMockito.mockitoSession()
+                .mockStatic(NetlinkUtils.class)
+                .startMocking();
+        try {
+            final BpfCoordinator coordinator = makeBpfCoordinator();
+            coordinator.startPolling();
+            verify(mConntrackTimeoutUpdater).start();
+            bpfUpstream4Map.insertEntry(
+                    new TestUpstream4Key.Builder().setProto(IPPROTO_TCP).build(),
+                    new TestUpstream4Value.Builder().build());
+            bpfUpstream4Map.insertEntry(
+                    new TestUpstream4Key.Builder().setProto(IPPROTO_UDP).build(),
+                    new TestUpstream4Value.Builder().build());
+
+            // Updates are queued, then sent at once over the persistent socket.
+            setElapsedRealtimeNanos((CONNTRACK_TIMEOUT_UPDATE_INTERVAL_MS - 1) * 1_000_000L);
+            mTestLooper.moveTimeForward(CONNTRACK_TIMEOUT_UPDATE_INTERVAL_MS);
+            waitForIdle();
+            verify(mConntrackTimeoutUpdater).queueTimeoutUpdate(IPPROTO_TCP,
+                    PRIVATE_ADDR, Short.toUnsignedInt(PRIVATE_PORT), REMOTE_ADDR,
+                    Short.toUnsignedInt(REMOTE_PORT), NF_CONNTRACK_TCP_TIMEOUT_ESTABLISHED);
+            verify(mConntrackTimeoutUpdater).queueTimeoutUpdate(IPPROTO_UDP,
+                    PRIVATE_ADDR, Short.toUnsignedInt(PRIVATE_PORT), REMOTE_ADDR,
+                    Short.toUnsignedInt(REMOTE_PORT), NF_CONNTRACK_UDP_TIMEOUT_STREAM);
+            verify(mConntrackTimeoutUpdater).flush();
+            ExtendedMockito.verifyNoMoreInteractions(staticMockMarker(NetlinkUtils.class));
+
+            coordinator.stopPolling();
+            verify(mConntrackTimeoutUpdater).stop();
+        } finally {
+            mockSession.finishMocking();
+        }
+    }
+
+    @Test
+    @IgnoreUpTo(Build.VERSION_CODES.R)
+    public void testRefreshConntrackTimeout_BatchedUpdaterStopped() throws Exception {
+        final TestBpfMap<Tether4Key, Tether4Value> bpfUpstream4Map =
+                new TestBpfMap<>(Tether4Key.class, Tether4Value.class);
+        doReturn(bpfUpstream4Map).when(mDeps).getBpfUpstream4Map();
+        when(mTetherConfig.isBatchConntrackTimeoutUpdateEnabled()).thenReturn(true);
+        when(mConntrackTimeoutUpdater.start()).thenReturn(true);
+
+        MockitoSession mockSession = ExtendedMockito.mockitoSession()
+                .mockStatic(NetlinkUtils.class)
+                .startMocking();
+        try {
+            final BpfCoordinator coordinator = makeBpfCoordinator();
+            coordinator.startPolling();
+            bpfUpstream4Map.insertEntry(
+                    new TestUpstream4Key.Builder().setProto(IPPROTO_TCP).build(),
+                    new TestUpstream4Value.Builder().build());
+            setElapsedRealtimeNanos((CONNTRACK_TIMEOUT_UPDATE_INTERVAL_MS - 1) * 1_000_000L);
+
+            // The updater stopped on a fatal read error: it is restarted before queueing.
+            when(mConntrackTimeoutUpdater.isStarted()).thenReturn(false);
+            mTestLooper.moveTimeForward(CONNTRACK_TIMEOUT_UPDATE_INTERVAL_MS);
+            waitForIdle();
+            verify(mConntrackTimeoutUpdater, times(2)).start();
+            verify(mConntrackTimeoutUpdater).queueTimeoutUpdate(IPPROTO_TCP,
+                    PRIVATE_ADDR, Short.toUnsignedInt(PRIVATE_PORT), REMOTE_ADDR,
+                    Short.toUnsignedInt(REMOTE_PORT), NF_CONNTRACK_TCP_TIMEOUT_ESTABLISHED);
+            verify(mConntrackTimeoutUpdater).flush();
+            ExtendedMockito.verifyNoMoreInteractions(staticMockMarker(NetlinkUtils.class));
+
+            // If the socket can't be created again, updates are sent with one-shot sockets.
+            when(mConntrackTimeoutUpdater.start()).thenReturn(false);
+            mTestLooper.moveTimeForward(CONNTRACK_TIMEOUT_UPDATE_INTERVAL_MS);
+            waitForIdle();
+            verify(mConntrackTimeoutUpdater, times(3)).start();
+            verify(mConntrackTimeoutUpdater).queueTimeoutUpdate(anyInt(), any(), anyInt(),
+                    any(), anyInt(), anyInt());
+            verify(mConntrackTimeoutUpdater).flush();
+            ExtendedMockito.verify(() -> NetlinkUtils.sendOneShotKernelMessage(
+                    eq(NETLINK_NETFILTER), eq(ConntrackMessage.newIPv4TimeoutUpdateRequest(
+                            IPPROTO_TCP, PRIVATE_ADDR, (int) PRIVATE_PORT, REMOTE_ADDR,
+                            (int) REMOTE_PORT, NF_CONNTRACK_TCP_TIMEOUT_ESTABLISHED))));
+            ExtendedMockito.verifyNoMoreInteractions(staticMockMarker(NetlinkUtils.class));
+
+            coordinator.stopPolling();
+            verify(mConntrackTimeoutUpdater, never()).stop();
+        } finally {
+            mockSession.finishMocking();
+        }
+    }
+
     @Test
     @IgnoreUpTo(Build.VERSION_CODES.R)
     public void testNotAllowOffloadByConntrackMessageDestinationPort() throws Exception {
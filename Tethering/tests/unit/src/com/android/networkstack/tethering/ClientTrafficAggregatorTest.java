@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.networkstack.tethering;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.net.InetAddresses;
+import android.net.MacAddress;
+import android.net.TetheredClientTraffic;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.networkstack.tethering.util.TetheringUtils.ForwardedStats;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.net.Inet4Address;
+import java.util.List;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class ClientTrafficAggregatorTest {
+    private static final MacAddress MAC_A = MacAddress.fromString("00:00:00:00:00:0a");
+    private static final MacAddress MAC_B = MacAddress.fromString("00:00:00:00:00:0b");
+    private static final MacAddress MAC_C = MacAddress.fromString("00:00:00:00:00:0c");
+    private static final Inet4Address ADDR_A =
+            (Inet4Address) InetAddresses.parseNumericAddress("192.168.80.12");
+    private static final Inet4Address ADDR_B =
+            (Inet4Address) InetAddresses.parseNumericAddress("192.168.80.13");
+    private static final Inet4Address ADDR_C =
+            (Inet4Address) InetAddresses.parseNumericAddress("192.168.80.14");
+    private static final String UPSTREAM_IFACE = "rmnet0";
+    private static final String UPSTREAM_IFACE2 = "wlan0";
+
+    @Test
+    public void testPollReturnsTrafficSinceLastPoll() {
+        final ClientTrafficAggregator aggregator = new ClientTrafficAggregator();
+        aggregator.add(MAC_A, ADDR_A, UPSTREAM_IFACE, new ForwardedStats(100, 1, 50, 1));
+        aggregator.add(MAC_A, ADDR_A, UPSTREAM_IFACE, new ForwardedStats(200, 2, 0, 0));
+        aggregator.add(MAC_A, ADDR_A, UPSTREAM_IFACE2, new ForwardedStats(10, 1, 10, 1));
+        // Clients without traffic are not included.
+        aggregator.add(MAC_B, ADDR_B, UPSTREAM_IFACE, new ForwardedStats());
+        assertEquals(2, aggregator.size());
+
+        assertEquals(List.of(
+                new TetheredClientTraffic(MAC_A, ADDR_A, UPSTREAM_IFACE, 300, 3, 50, 1),
+                new TetheredClientTraffic(MAC_A, ADDR_A, UPSTREAM_IFACE2, 10, 1, 10, 1)),
+                aggregator.poll());
+        assertTrue(aggregator.poll().isEmpty());
+    }
+
+    @Test
+    public void testLeastRecentlyActiveClientDropped() {
+        final ClientTrafficAggregator aggregator = new ClientTrafficAggregator(2);
+        aggregator.add(MAC_A, ADDR_A, UPSTREAM_IFACE, new ForwardedStats(100, 1, 0, 0));
+        aggregator.add(MAC_B, ADDR_B, UPSTREAM_IFACE, new ForwardedStats(200, 1, 0, 0));
+        aggregator.add(MAC_A, ADDR_A, UPSTREAM_IFACE, new ForwardedStats(100, 1, 0, 0));
+        // Client B is the least recently active when the entries of client C are added.
+        aggregator.add(MAC_C, ADDR_C, UPSTREAM_IFACE, new ForwardedStats(300, 1, 0, 0));
+
+        assertEquals(2, aggregator.size());
+        assertEquals(200, aggregator.getDroppedBytes());
+        assertEquals(List.of(
+                new TetheredClientTraffic(MAC_A, ADDR_A, UPSTREAM_IFACE, 200, 2, 0, 0),
+                new TetheredClientTraffic(MAC_C, ADDR_C, UPSTREAM_IFACE, 300, 1, 0, 0)),
+                aggregator.poll());
+    }
+}
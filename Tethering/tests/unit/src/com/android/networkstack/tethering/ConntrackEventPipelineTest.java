@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.networkstack.tethering;
+
+import static android.system.OsConstants.IPPROTO_TCP;
+
+import static com.android.net.module.util.netlink.ConntrackMessage.ESTABLISHED_MASK;
+import static com.android.net.module.util.netlink.NetlinkConstants.IPCTNL_MSG_CT_DELETE;
+import static com.android.net.module.util.netlink.NetlinkConstants.IPCTNL_MSG_CT_NEW;
+import static com.android.net.module.util.netlink.NetlinkConstants.NFNL_SUBSYS_CTNETLINK;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+import android.net.InetAddresses;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.test.TestLooper;
+
+import androidx.annotation.NonNull;
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.net.module.util.SharedLog;
+import com.android.net.module.util.ip.ConntrackMonitor;
+import com.android.net.module.util.ip.ConntrackMonitor.ConntrackEvent;
+import com.android.net.module.util.ip.ConntrackMonitor.ConntrackEventConsumer;
+import com.android.net.module.util.netlink.ConntrackMessage;
+import com.android.networkstack.tethering.ConntrackEventPipeline.ConntrackEventBatchConsumer;
+import com.android.networkstack.tethering.ConntrackEventPipeline.ReceivedEvent;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.net.Inet4Address;
+import java.util.ArrayList;
+import java.util.List;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class ConntrackEventPipelineTest {
+    private static final long TIMEOUT_MS = 10_000L;
+    private static final Inet4Address PRIVATE_ADDR =
+            (Inet4Address) InetAddresses.parseNumericAddress("192.168.80.12");
+    private static final Inet4Address PUBLIC_ADDR =
+            (Inet4Address) InetAddresses.parseNumericAddress("1.0.0.1");
+    private static final Inet4Address REMOTE_ADDR =
+            (Inet4Address) InetAddresses.parseNumericAddress("140.112.8.116");
+    private static final short REMOTE_PORT = (short) 443;
+
+    private final TestLooper mTestLooper = new TestLooper();
+    private final List<List<ReceivedEvent>> mBatches = new ArrayList<>();
+    private final ConntrackEventBatchConsumer mBatchConsumer = mBatches::add;
+    private final List<HandlerThread> mDecodeThreads = new ArrayList<>();
+    private final List<ConntrackMonitor> mMonitors = new ArrayList<>();
+    private final List<ConntrackEventConsumer> mMonitorConsumers = new ArrayList<>();
+    private long mElapsedRealtime = 1000L;
+    private ConntrackEventPipeline mPipeline;
+
+    @Before
+    public void setUp() {
+        final ConntrackEventPipeline.Dependencies deps = new ConntrackEventPipeline.Dependencies() {
+            @NonNull
+            @Override
+            public HandlerThread makeDecodeThread() {
+                final HandlerThread thread = super.makeDecodeThread();
+                mDecodeThreads.add(thread);
+                return thread;
+            }
+
+            @NonNull
+            @Override
+            public ConntrackMonitor makeConntrackMonitor(@NonNull Handler h,
+                    @NonNull SharedLog log, @NonNull ConntrackEventConsumer consumer) {
+                final ConntrackMonitor monitor = mock(ConntrackMonitor.class);
+                mMonitors.add(monitor);
+                mMonitorConsumers.add(consumer);
+                return monitor;
+            }
+
+            @Override
+            public long elapsedRealtime() {
+                return mElapsedRealtime;
+            }
+        };
+        mPipeline = new ConntrackEventPipeline(new Handler(mTestLooper.getLooper()),
+                new SharedLog("ConntrackEventPipelineTest"), mBatchConsumer, deps);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mPipeline.stop();
+        for (HandlerThread thread : mDecodeThreads) {
+            thread.join(TIMEOUT_MS);
+        }
+    }
+
+    private static ConntrackEvent makeEvent(short msgType, short privatePort) {
+        final ConntrackMessage.Tuple tupleOrig = new ConntrackMessage.Tuple(
+                new ConntrackMessage.TupleIpv4(PRIVATE_ADDR, REMOTE_ADDR),
+                new ConntrackMessage.TupleProto((byte) IPPROTO_TCP, privatePort, REMOTE_PORT));
+        final ConntrackMessage.Tuple tupleReply = new ConntrackMessage.Tuple(
+                new ConntrackMessage.TupleIpv4(REMOTE_ADDR, PUBLIC_ADDR),
+                new ConntrackMessage.TupleProto((byte) IPPROTO_TCP, REMOTE_PORT, privatePort));
+        final boolean isNew = msgType == IPCTNL_MSG_CT_NEW;
+        return new ConntrackEvent((short) (NFNL_SUBSYS_CTNETLINK << 8 | msgType), tupleOrig,
+                tupleReply, ESTABLISHED_MASK, isNew ? 432_000 : 0 /* timeoutSec */);
+    }
+
+    private ConntrackEventConsumer startAndGetMonitorConsumer() {
+        mPipeline.start();
+        final ConntrackMonitor monitor = mMonitors.get(mMonitors.size() - 1);
+        // The monitor is started on the decode thread.
+        verify(monitor, timeout(TIMEOUT_MS)).start();
+        return mMonitorConsumers.get(mMonitorConsumers.size() - 1);
+    }
+
+    @Test
+    public void testEventsDeliveredInBatches() {
+        final ConntrackEventConsumer consumer = startAndGetMonitorConsumer();
+        final ConntrackEvent new1 = makeEvent(IPCTNL_MSG_CT_NEW, (short) 1000);
+        final ConntrackEvent new2 = makeEvent(IPCTNL_MSG_CT_NEW, (short) 1001);
+        consumer.accept(new1);
+        consumer.accept(new2);
+        assertTrue(mBatches.isEmpty());
+
+        // Events received until the handler runs are delivered in a single batch.
+        mTestLooper.dispatchAll();
+        assertEquals(1, mBatches.size());
+        assertEquals(2, mBatches.get(0).size());
+        assertEquals(new1, mBatches.get(0).get(0).event);
+        assertEquals(new2, mBatches.get(0).get(1).event);
+
+        final ConntrackEvent delete1 = makeEvent(IPCTNL_MSG_CT_DELETE, (short) 1000);
+        consumer.accept(delete1);
+        mTestLooper.dispatchAll();
+        assertEquals(2, mBatches.size());
+        assertEquals(1, mBatches.get(1).size());
+        assertEquals(delete1, mBatches.get(1).get(0).event);
+    }
+
+    @Test
+    public void testEventsCoalesced() {
+        final ConntrackEventConsumer consumer = startAndGetMonitorConsumer();
+        final ConntrackEvent new1 = makeEvent(IPCTNL_MSG_CT_NEW, (short) 1000);
+        final ConntrackEvent new2 = makeEvent(IPCTNL_MSG_CT_NEW, (short) 1001);
+        final ConntrackEvent delete2 = makeEvent(IPCTNL_MSG_CT_DELETE, (short) 1001);
+
+        // The second NEW event of a flow keeps the time of the first one.
+        consumer.accept(new1);
+        mElapsedRealtime += 10;
+        consumer.accept(new2);
+        consumer.accept(new1);
+        // A flow destroyed before being offloaded only needs its rules to be removed.
+        consumer.accept(delete2);
+        mTestLooper.dispatchAll();
+
+        assertEquals(1, mBatches.size());
+        final List<ReceivedEvent> batch = mBatches.get(0);
+        assertEquals(2, batch.size());
+        assertEquals(new1, batch.get(0).event);
+        assertEquals(1000L, batch.get(0).receivedMs);
+        assertEquals(delete2, batch.get(1).event);
+        assertEquals(2, mPipeline.getCoalescedEventCount());
+    }
+
+    @Test
+    public void testEventsDroppedAfterStop() throws Exception {
+        final ConntrackEventConsumer consumer = startAndGetMonitorConsumer();
+        consumer.accept(makeEvent(IPCTNL_MSG_CT_NEW, (short) 1000));
+        mPipeline.stop();
+        verify(mMonitors.get(0), timeout(TIMEOUT_MS)).stop();
+        mTestLooper.dispatchAll();
+        assertTrue(mBatches.isEmpty());
+
+        // Events from the monitor of a previous start are ignored.
+        final ConntrackEventConsumer newConsumer = startAndGetMonitorConsumer();
+        final ConntrackEvent new2 = makeEvent(IPCTNL_MSG_CT_NEW, (short) 1001);
+        consumer.accept(makeEvent(IPCTNL_MSG_CT_NEW, (short) 1000));
+        newConsumer.accept(new2);
+        mTestLooper.dispatchAll();
+        assertEquals(1, mBatches.size());
+        assertEquals(1, mBatches.get(0).size());
+        assertEquals(new2, mBatches.get(0).get(0).event);
+        verify(mMonitors.get(1), never()).stop();
+    }
+
+    @Test
+    public void testTimeToOffload() {
+        final ConntrackEvent event = makeEvent(IPCTNL_MSG_CT_NEW, (short) 1000);
+        final long[] timesToOffloadMs = { 0, 1, 2, 30, 30, 10_000 };
+        for (long timeToOffloadMs : timesToOffloadMs) {
+            mPipeline.onFlowOffloaded(
+                    new ReceivedEvent(event, mElapsedRealtime - timeToOffloadMs));
+        }
+
+        assertEquals(2, mPipeline.getTimeToOffloadCount(0));   // <= 1ms
+        assertEquals(1, mPipeline.getTimeToOffloadCount(1));   // <= 5ms
+        assertEquals(0, mPipeline.getTimeToOffloadCount(2));   // <= 20ms
+        assertEquals(2, mPipeline.getTimeToOffloadCount(3));   // <= 100ms
+        assertEquals(0, mPipeline.getTimeToOffloadCount(4));   // <= 500ms
+        assertEquals(1, mPipeline.getTimeToOffloadCount(5));   // > 500ms
+    }
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.networkstack.tethering;
+
+import static android.system.OsConstants.AF_UNIX;
+import static android.system.OsConstants.ENOENT;
+import static android.system.OsConstants.IPPROTO_TCP;
+import static android.system.OsConstants.POLLIN;
+import static android.system.OsConstants.SOCK_DGRAM;
+import static android.system.OsConstants.SOCK_NONBLOCK;
+
+import static com.android.net.module.util.netlink.StructNlMsgHdr.NLM_F_ACK;
+import static com.android.networkstack.tethering.ConntrackTimeoutUpdater.MAX_BATCHES_IN_FLIGHT;
+import static com.android.networkstack.tethering.ConntrackTimeoutUpdater.MAX_BATCH_SIZE_BYTES;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.net.InetAddresses;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructPollfd;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.net.module.util.SharedLog;
+import com.android.net.module.util.netlink.ConntrackMessage;
+import com.android.net.module.util.netlink.NetlinkConstants;
+import com.android.net.module.util.netlink.StructNlMsgErr;
+import com.android.net.module.util.netlink.StructNlMsgHdr;
+import com.android.testutils.HandlerUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.FileDescriptor;
+import java.net.Inet4Address;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class ConntrackTimeoutUpdaterTest {
+    private static final String TAG = ConntrackTimeoutUpdaterTest.class.getSimpleName();
+    private static final long TIMEOUT_MS = 10_000L;
+    private static final long NO_PACKET_TIMEOUT_MS = 100L;
+    private static final int TIMEOUT_SEC = 432_000;
+    private static final int UPDATE_MSG_LEN = 80;
+    private static final int UPDATES_PER_BATCH = MAX_BATCH_SIZE_BYTES / UPDATE_MSG_LEN;
+    private static final Inet4Address SRC_ADDR =
+            (Inet4Address) InetAddresses.parseNumericAddress("192.168.80.12");
+    private static final Inet4Address DST_ADDR =
+            (Inet4Address) InetAddresses.parseNumericAddress("140.112.8.116");
+
+    private final HandlerThread mHandlerThread = new HandlerThread(TAG);
+    private Handler mHandler;
+    private FakeNetfilterEndpoint mKernel;
+    private ConntrackTimeoutUpdater mUpdater;
+
+    /**
+     * Fake kernel netfilter endpoint, at the other end of a socket pair given to the updater.
+     */
+    private static class FakeNetfilterEndpoint {
+        final FileDescriptor mUpdaterFd = new FileDescriptor();
+        final FileDescriptor mKernelFd = new FileDescriptor();
+        final byte[] mRecvBuf = new byte[MAX_BATCH_SIZE_BYTES];
+
+        FakeNetfilterEndpoint() throws ErrnoException {
+            Os.socketpair(AF_UNIX, SOCK_DGRAM | SOCK_NONBLOCK, 0, mUpdaterFd, mKernelFd);
+        }
+
+        /**
+         * Read the next batch written by the updater, as the list of its netlink messages, or
+         * null if nothing was written before the timeout.
+         */
+        @Nullable
+        List<byte[]> readBatch(long timeoutMs) throws Exception {
+            final StructPollfd pollFd = new StructPollfd();
+            pollFd.fd = mKernelFd;
+            pollFd.events = (short) POLLIN;
+            if (Os.poll(new StructPollfd[] { pollFd }, (int) timeoutMs) == 0) return null;
+
+            final int length = Os.read(mKernelFd, mRecvBuf, 0, mRecvBuf.length);
+            final ByteBuffer buffer = ByteBuffer.wrap(mRecvBuf, 0, length);
+            buffer.order(ByteOrder.nativeOrder());
+            final List<byte[]> messages = new ArrayList<>();
+            while (buffer.remaining() > 0) {
+                final int start = buffer.position();
+                final StructNlMsgHdr hdr = StructNlMsgHdr.parse(buffer);
+                if (hdr == null) fail("Invalid netlink message at offset " + start);
+                messages.add(Arrays.copyOfRange(mRecvBuf, start, start + hdr.nlmsg_len));
+                buffer.position(start + NetlinkConstants.alignedLengthOf(hdr.nlmsg_len));
+            }
+            return messages;
+        }
+
+        /**
+         * Reply to the given message like the kernel, with an acknowledgement if error is 0.
+         */
+        void reply(@NonNull byte[] msg, int error) throws Exception {
+            final ByteBuffer request = ByteBuffer.wrap(msg);
+            request.order(ByteOrder.nativeOrder());
+            final StructNlMsgHdr requestHdr = StructNlMsgHdr.parse(request);
+
+            final StructNlMsgErr err = new StructNlMsgErr();
+            err.error = error;
+            err.msg = requestHdr;
+            final StructNlMsgHdr hdr = new StructNlMsgHdr(StructNlMsgErr.STRUCT_SIZE,
+                    NetlinkConstants.NLMSG_ERROR, (short) 0, requestHdr.nlmsg_seq);
+            final ByteBuffer reply = ByteBuffer.allocate(hdr.nlmsg_len);
+            reply.order(ByteOrder.nativeOrder());
+            hdr.pack(reply);
+            err.pack(reply);
+            Os.write(mKernelFd, reply.array(), 0, reply.position());
+        }
+
+        void close() throws ErrnoException {
+            Os.close(mKernelFd);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        mHandlerThread.start();
+        mHandler = new Handler(mHandlerThread.getLooper());
+        mKernel = new FakeNetfilterEndpoint();
+        final ConntrackTimeoutUpdater.Dependencies deps =
+                new ConntrackTimeoutUpdater.Dependencies() {
+                    @Override
+                    public FileDescriptor createNetlinkSocket() {
+                        return mKernel.mUpdaterFd;
+                    }
+                };
+        mUpdater = new ConntrackTimeoutUpdater(mHandler, new SharedLog(TAG), deps);
+        HandlerUtils.visibleOnHandlerThread(mHandler, () -> assertTrue(mUpdater.start()));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        HandlerUtils.visibleOnHandlerThread(mHandler, () -> mUpdater.stop());
+        mKernel.close();
+        mHandlerThread.quitSafely();
+        mHandlerThread.join();
+    }
+
+    private static byte[] makeUpdate(int port, int seqNo, boolean requestAck) {
+        return ConntrackMessage.newIPv4TimeoutUpdateRequest(IPPROTO_TCP, SRC_ADDR, port,
+                DST_ADDR, 443, TIMEOUT_SEC, seqNo, requestAck);
+    }
+
+    private void queueUpdatesAndFlush(int count) {
+        HandlerUtils.visibleOnHandlerThread(mHandler, () -> {
+            for (int port = 0; port < count; port++) {
+                mUpdater.queueTimeoutUpdate(IPPROTO_TCP, SRC_ADDR, port, DST_ADDR, 443,
+                        TIMEOUT_SEC);
+            }
+            mUpdater.flush();
+        });
+    }
+
+    // Check that a batch contains the updates for the given ports, with consecutive sequence
+    // numbers and an acknowledgement requested for the last message only.
+    private static void assertBatch(@Nullable List<byte[]> batch, int firstPort, int firstSeqNo,
+            int count) {
+        assertEquals(count, batch.size());
+        for (int i = 0; i < count; i++) {
+            final boolean last = i == count - 1;
+            assertArrayEquals(makeUpdate(firstPort + i, firstSeqNo + i, last), batch.get(i));
+        }
+    }
+
+    private static boolean isAckRequested(@NonNull byte[] msg) {
+        final ByteBuffer buffer = ByteBuffer.wrap(msg);
+        buffer.order(ByteOrder.nativeOrder());
+        return (StructNlMsgHdr.parse(buffer).nlmsg_flags & NLM_F_ACK) != 0;
+    }
+
+    @Test
+    public void testUpdatesSentInBatches() throws Exception {
+        final int count = UPDATES_PER_BATCH * (MAX_BATCHES_IN_FLIGHT + 1) - 10;
+        queueUpdatesAndFlush(count);
+
+        final List<List<byte[]>> batches = new ArrayList<>();
+        for (int i = 0; i < MAX_BATCHES_IN_FLIGHT; i++) {
+            final List<byte[]> batch = mKernel.readBatch(TIMEOUT_MS);
+            assertBatch(batch, i * UPDATES_PER_BATCH, 1 + i * UPDATES_PER_BATCH,
+                    UPDATES_PER_BATCH);
+            batches.add(batch);
+        }
+        // No more batches are sent until the first batch is acknowledged.
+        assertNull(mKernel.readBatch(NO_PACKET_TIMEOUT_MS));
+
+        final List<byte[]> first = batches.get(0);
+        mKernel.reply(first.get(first.size() - 1), 0 /* error */);
+        final int sent = MAX_BATCHES_IN_FLIGHT * UPDATES_PER_BATCH;
+        assertBatch(mKernel.readBatch(TIMEOUT_MS), sent, 1 + sent, count - sent);
+        assertNull(mKernel.readBatch(NO_PACKET_TIMEOUT_MS));
+
+        HandlerUtils.waitForIdle(mHandler, TIMEOUT_MS);
+        assertEquals(0, (long) HandlerUtils.visibleOnHandlerThread(mHandler,
+                () -> mUpdater.getFailedUpdateCount()));
+    }
+
+    @Test
+    public void testErrorReplies() throws Exception {
+        queueUpdatesAndFlush(3);
+        final List<byte[]> batch = mKernel.readBatch(TIMEOUT_MS);
+        assertBatch(batch, 0 /* firstPort */, 1 /* firstSeqNo */, 3);
+
+        // The kernel replies to failed messages even if no acknowledgement was requested.
+        mKernel.reply(batch.get(0), -ENOENT);
+        mKernel.reply(batch.get(2), 0 /* error */);
+        HandlerUtils.waitForIdle(mHandler, TIMEOUT_MS);
+        assertEquals(1, (long) HandlerUtils.visibleOnHandlerThread(mHandler,
+                () -> mUpdater.getFailedUpdateCount()));
+
+        // The batch is completed: the next updates are sent immediately with new sequence numbers.
+        queueUpdatesAndFlush(1);
+        assertBatch(mKernel.readBatch(TIMEOUT_MS), 0 /* firstPort */, 4 /* firstSeqNo */, 1);
+    }
+
+    @Test
+    public void testRestartAfterSocketClosed() throws Exception {
+        // Closing the kernel end is a fatal read error for the updater, which stops.
+        mKernel.close();
+        final long deadline = SystemClock.elapsedRealtime() + TIMEOUT_MS;
+        while (HandlerUtils.visibleOnHandlerThread(mHandler, () -> mUpdater.isStarted())) {
+            if (SystemClock.elapsedRealtime() > deadline) fail("Updater did not stop");
+            HandlerUtils.waitForIdle(mHandler, TIMEOUT_MS);
+        }
+
+        // Updates are sent again once the updater is restarted with a new socket.
+        mKernel = new FakeNetfilterEndpoint();
+        HandlerUtils.visibleOnHandlerThread(mHandler, () -> assertTrue(mUpdater.start()));
+        queueUpdatesAndFlush(2);
+        assertBatch(mKernel.readBatch(TIMEOUT_MS), 0 /* firstPort */, 1 /* firstSeqNo */, 2);
+    }
+
+    @Test
+    public void testThroughputComparedToOneShotSockets() throws Exception {
+        final int count = 5_000;
+
+        // One-shot path, as used without the updater: for each update, create a socket, send
+        // the update, wait for the acknowledgement and close the socket.
+        final long oneShotStart = SystemClock.elapsedRealtime();
+        final byte[] ack = new byte[NetlinkConstants.alignedLengthOf(
+                StructNlMsgHdr.STRUCT_SIZE + StructNlMsgErr.STRUCT_SIZE)];
+        for (int port = 0; port < count; port++) {
+            final FakeNetfilterEndpoint oneShot = new FakeNetfilterEndpoint();
+            final byte[] msg = makeUpdate(port, 1 /* seqNo */, true /* requestAck */);
+            Os.write(oneShot.mUpdaterFd, msg, 0, msg.length);
+            oneShot.reply(oneShot.readBatch(TIMEOUT_MS).get(0), 0 /* error */);
+            Os.read(oneShot.mUpdaterFd, ack, 0, ack.length);
+            Os.close(oneShot.mUpdaterFd);
+            oneShot.close();
+        }
+        final long oneShotMs = SystemClock.elapsedRealtime() - oneShotStart;
+
+        // Batched path, acknowledging each batch as soon as it is received.
+        final long batchedStart = SystemClock.elapsedRealtime();
+        queueUpdatesAndFlush(count);
+        int received = 0;
+        int writes = 0;
+        while (received < count) {
+            final List<byte[]> batch = mKernel.readBatch(TIMEOUT_MS);
+            if (batch == null) fail("Timed out after receiving " + received + " updates");
+            writes++;
+            received += batch.size();
+            for (byte[] msg : batch) {
+                if (isAckRequested(msg)) mKernel.reply(msg, 0 /* error */);
+            }
+        }
+        HandlerUtils.waitForIdle(mHandler, TIMEOUT_MS);
+        final long batchedMs = SystemClock.elapsedRealtime() - batchedStart;
+
+        Log.i(TAG, count + " updates: one-shot sockets " + oneShotMs + "ms, " + count
+                + " writes; batched " + batchedMs + "ms, " + writes + " writes");
+        assertEquals(count, received);
+        assertEquals((count + UPDATES_PER_BATCH - 1) / UPDATES_PER_BATCH, writes);
+        assertNull(mKernel.readBatch(NO_PACKET_TIMEOUT_MS));
+    }
+}
@@ -130,11 +130,17 @@ public class OffloadControllerTest {
             ArgumentCaptor.forClass(OffloadHalCallback.class);
     private MockContentResolver mContentResolver;
     private final TestLooper mTestLooper = new TestLooper();
+    private long mElapsedRealtimeMs = 0;
     private OffloadController.Dependencies mDeps = new OffloadController.Dependencies() {
         @Override
         public TetheringConfiguration getTetherConfig() {
             return mTetherConfig;
         }
+
+        @Override
+        public long elapsedRealtime() {
+            return mElapsedRealtimeMs;
+        }
     };
 
     @Before public void setUp() {
@@ -173,6 +179,13 @@ public class OffloadControllerTest {
         mTestLooper.dispatchAll();
     }
 
+    // Move both the looper time and the elapsed realtime used by the polling scheduler.
+    private void moveTimeForward(long ms) {
+        mElapsedRealtimeMs += ms;
+        mTestLooper.moveTimeForward(ms);
+        waitForIdle();
+    }
+
     private OffloadController makeOffloadController() throws Exception {
         OffloadController offload = new OffloadController(new Handler(mTestLooper.getLooper()),
                 mHardware, mContentResolver, mStatsManager, new SharedLog("test"), mDeps);
@@ -909,6 +922,51 @@ public class OffloadControllerTest {
         verify(mHardware, never()).getForwardedStats(any());
     }
 
+    @Test
+    public void testAdaptivePollingQuotaChangeOnlyMovesPollEarlier() throws Exception {
+        final long interval = DEFAULT_TETHER_OFFLOAD_POLL_INTERVAL_MS;
+        final long margin = interval / 10;
+        enableOffload();
+        setOffloadPollInterval(DEFAULT_TETHER_OFFLOAD_POLL_INTERVAL_MS);
+        when(mTetherConfig.isAdaptiveStatsPollingEnabled()).thenReturn(true);
+        final OffloadController offload =
+                startOffloadController(OFFLOAD_HAL_VERSION_HIDL_1_0, true /*expectStart*/);
+        final String ethernetIface = "eth1";
+        offload.setUpstreamLinkProperties(makeEthernetLinkProperties());
+
+        // Polling starts with the alert quota. The first poll sees traffic so that the idle
+        // back-off is not bounded by the regular interval.
+        when(mHardware.getForwardedStats(eq(ethernetIface))).thenAnswer(
+                inv -> new ForwardedStats(500, 500));
+        mTetherStatsProvider.onSetAlert(1_000_000_000_000L);
+        waitForIdle();
+        moveTimeForward(interval);
+        verify(mHardware, times(1)).getForwardedStats(eq(ethernetIface));
+
+        // The second poll does not see any traffic, so the next one backs off to 4 * interval.
+        when(mHardware.getForwardedStats(eq(ethernetIface))).thenAnswer(
+                inv -> new ForwardedStats(0, 0));
+        moveTimeForward(interval);
+        verify(mHardware, times(2)).getForwardedStats(eq(ethernetIface));
+        clearInvocations(mHardware);
+
+        // A new quota at 2.5 * interval moves the next poll earlier, to 3.5 * interval.
+        moveTimeForward(interval / 2);
+        mTetherStatsProvider.onSetAlert(2_000_000_000_000L);
+        waitForIdle();
+
+        // Another quota at 3 * interval does not delay the next poll to 4 * interval.
+        moveTimeForward(interval / 2);
+        mTetherStatsProvider.onSetAlert(3_000_000_000_000L);
+        waitForIdle();
+        verify(mHardware, never()).getForwardedStats(any());
+
+        moveTimeForward(interval / 2 - margin);
+        verify(mHardware, never()).getForwardedStats(any());
+        moveTimeForward(margin);
+        verify(mHardware, times(1)).getForwardedStats(eq(ethernetIface));
+    }
+
     private static LinkProperties makeEthernetLinkProperties() {
         final String ethernetIface = "eth1";
         final LinkProperties lp = new LinkProperties();
@@ -575,6 +575,43 @@ public final class PrivateAddressCoordinatorTest {
                 localHotspotAddress);
     }
 
+    @Test
+    public void testManyUpstreamPrefixes() throws Exception {
+        final int randomAddress = 0x8605; // 134.5
+        when(mPrivateAddressCoordinator.getRandomInt()).thenReturn(randomAddress);
+        // 255 upstream /24s cover 192.168.0.0/16 except 192.168.200.0/24, and 745 adjacent
+        // upstream /28s in different /24s cover 172.16.134.0/24 to 172.19.110.0/24.
+        int netId = 100;
+        for (int i = 0; i < 256; i++) {
+            if (i == 200) continue;
+            mPrivateAddressCoordinator.updateUpstreamPrefix(buildUpstreamNetworkState(
+                    new Network(netId++), new LinkAddress("192.168." + i + ".1/24"), null,
+                    makeNetworkCapabilities(TRANSPORT_WIFI)));
+        }
+        for (int i = 134; i < 134 + 745; i++) {
+            mPrivateAddressCoordinator.updateUpstreamPrefix(buildUpstreamNetworkState(
+                    new Network(netId++),
+                    new LinkAddress("172." + (16 + i / 256) + "." + (i % 256) + ".17/28"), null,
+                    makeNetworkCapabilities(TRANSPORT_CELLULAR)));
+        }
+        assertEquals(1100, netId);
+
+        final LinkAddress hotspotAddr = requestDownstreamAddress(mHotspotIpServer,
+                CONNECTIVITY_SCOPE_GLOBAL, true /* useLastAddress */);
+        assertEquals(new LinkAddress("192.168.200.5/24"), hotspotAddr);
+
+        // Used as a benchmark of the allocation with 1000 upstream prefixes: the time of this test
+        // is reported by the test runner. Each request skips the prefix cached by the previous
+        // one, so the allocated prefix alternates between 172.19.111.0/24 and 172.19.112.0/24.
+        for (int i = 0; i < 1000; i++) {
+            final LinkAddress usbAddr = requestDownstreamAddress(mUsbIpServer,
+                    CONNECTIVITY_SCOPE_GLOBAL, false /* useLastAddress */);
+            assertEquals(new LinkAddress("172.19." + (i % 2 == 0 ? 111 : 112) + ".5/24"),
+                    usbAddr);
+            mPrivateAddressCoordinator.releaseDownstream(mUsbIpServer);
+        }
+    }
+
     @Test
     public void testStartedPrefixRange() throws Exception {
         when(mConfig.isRandomPrefixBaseEnabled()).thenReturn(true);
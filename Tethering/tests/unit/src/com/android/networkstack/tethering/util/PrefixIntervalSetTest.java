@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.networkstack.tethering.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import android.net.InetAddresses;
+import android.net.IpPrefix;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.net.Inet4Address;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class PrefixIntervalSetTest {
+    private final PrefixIntervalSet mSet = new PrefixIntervalSet(24);
+
+    private int block(String address) {
+        return mSet.getBlock((Inet4Address) InetAddresses.parseNumericAddress(address));
+    }
+
+    @Test
+    public void testAddMergesIntervals() {
+        mSet.add(new IpPrefix("192.168.1.16/28"));
+        mSet.add(new IpPrefix("192.168.3.0/24"));
+        assertEquals(2, mSet.getIntervalCount());
+
+        // Adjacent blocks are merged.
+        mSet.add(new IpPrefix("192.168.2.128/25"));
+        assertEquals(1, mSet.getIntervalCount());
+
+        // A prefix covering several intervals replaces them.
+        mSet.add(new IpPrefix("192.168.10.0/24"));
+        mSet.add(new IpPrefix("192.168.20.0/24"));
+        assertEquals(3, mSet.getIntervalCount());
+        mSet.add(new IpPrefix("192.168.0.0/19"));
+        assertEquals(1, mSet.getIntervalCount());
+        assertEquals("{192.168.0.0 - 192.168.31.0}", mSet.toString());
+
+        mSet.clear();
+        assertEquals(0, mSet.getIntervalCount());
+    }
+
+    @Test
+    public void testOverlaps() {
+        mSet.add(new IpPrefix("10.1.2.64/26"));
+        mSet.add(new IpPrefix("10.2.0.0/16"));
+
+        assertTrue(mSet.overlaps(new IpPrefix("10.1.2.0/24")));
+        assertTrue(mSet.overlaps(new IpPrefix("10.0.0.0/8")));
+        assertTrue(mSet.overlaps(new IpPrefix("10.2.255.0/24")));
+        // Blocks are marked entirely, even if the added prefix only covers part of them.
+        assertTrue(mSet.overlaps(new IpPrefix("10.1.2.0/28")));
+        assertFalse(mSet.overlaps(new IpPrefix("10.1.1.0/24")));
+        assertFalse(mSet.overlaps(new IpPrefix("10.1.3.0/24")));
+        assertFalse(mSet.overlaps(new IpPrefix("10.3.0.0/16")));
+    }
+
+    @Test
+    public void testNextFreeBlock() {
+        mSet.add(new IpPrefix("172.16.0.0/22"));
+        mSet.add(new IpPrefix("172.16.5.0/24"));
+        final int end = block("172.16.8.0");
+
+        assertEquals(block("172.16.4.0"), mSet.nextFreeBlock(block("172.16.0.0"), end));
+        assertEquals(block("172.16.4.0"), mSet.nextFreeBlock(block("172.16.3.0"), end));
+        assertEquals(block("172.16.6.0"), mSet.nextFreeBlock(block("172.16.5.0"), end));
+        assertEquals(block("172.16.7.0"), mSet.nextFreeBlock(block("172.16.7.0"), end));
+        assertEquals(-1, mSet.nextFreeBlock(block("172.16.5.0"), block("172.16.6.0")));
+        assertEquals(-1, mSet.nextFreeBlock(end, end));
+        assertEquals(new IpPrefix("172.16.4.0/24"), mSet.getBlockPrefix(block("172.16.4.1")));
+    }
+
+    @Test
+    public void testHighAddresses() {
+        // Block indexes of addresses with the high bit set are not negative.
+        mSet.add(new IpPrefix("255.255.255.0/24"));
+        mSet.add(new IpPrefix("192.168.0.0/16"));
+        assertEquals(2, mSet.getIntervalCount());
+        assertTrue(mSet.overlaps(new IpPrefix("255.255.255.255/32")));
+        assertEquals(block("192.169.0.0"),
+                mSet.nextFreeBlock(block("192.168.0.0"), block("255.255.255.0")));
+        assertEquals(-1, mSet.nextFreeBlock(block("255.255.255.0"), block("255.255.255.0") + 1));
+    }
+
+    @Test
+    public void testInvalidArguments() {
+        assertThrows(IllegalArgumentException.class, () -> new PrefixIntervalSet(0));
+        assertThrows(IllegalArgumentException.class, () -> new PrefixIntervalSet(32));
+        assertThrows(IllegalArgumentException.class,
+                () -> mSet.add(new IpPrefix("2001:db8::/64")));
+    }
+}
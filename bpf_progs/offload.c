@@ -113,6 +113,12 @@ DEFINE_BPF_MAP_GRW(tether_stats_map, HASH, TetherStatsKey, TetherStatsValue, 16,
 // (tethering allowed when stats[iif].rxBytes + stats[iif].txBytes < limit[iif])
 DEFINE_BPF_MAP_GRW(tether_limit_map, HASH, TetherLimitKey, TetherLimitValue, 16, TETHERING_GID)
 
+// Tethering stats, indexed by downstream client (rx: upstream to client, tx: client to upstream).
+// Only IPv4 traffic is counted. Entries are created and deleted by userspace, and traffic of
+// clients without an entry is not counted.
+DEFINE_BPF_MAP_GRW(tether_client_stats_map, HASH, TetherClientStatsKey, TetherStatsValue, 256,
+                   TETHERING_GID)
+
 // ----- IPv6 Support -----
 
 DEFINE_BPF_MAP_GRW(tether_downstream6_map, HASH, TetherDownstream6Key, Tether6Value, 64,
@@ -544,6 +550,20 @@ static inline __always_inline int do_forward4_bottom(struct __sk_buff* skb,
     __sync_fetch_and_add(stream.down ? &stat_v->rxPackets : &stat_v->txPackets, packets);
     __sync_fetch_and_add(stream.down ? &stat_v->rxBytes : &stat_v->txBytes, L3_bytes);
 
+    // The client is the destination of downstream traffic (after NAT) and the source of
+    // upstream traffic (before NAT).
+    TetherClientStatsKey client_k = {
+            .iif = stream.down ? v->oif : skb->ifindex,
+            .clientAddr.s_addr = stream.down ? new_daddr : old_saddr,
+    };
+    TetherStatsValue* client_stat_v = bpf_tether_client_stats_map_lookup_elem(&client_k);
+    if (client_stat_v) {
+        __sync_fetch_and_add(stream.down ? &client_stat_v->rxPackets : &client_stat_v->txPackets,
+                             packets);
+        __sync_fetch_and_add(stream.down ? &client_stat_v->rxBytes : &client_stat_v->txBytes,
+                             L3_bytes);
+    }
+
     // Redirect to forwarded interface.
     //
     // Note that bpf_redirect() cannot fail unless you pass invalid flags.
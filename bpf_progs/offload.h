@@ -90,6 +90,12 @@ STRUCT_SIZE(TetherStatsValue, 6 * 8);  // 48
 typedef uint32_t TetherLimitKey;    // upstream ifindex
 typedef uint64_t TetherLimitValue;  // in bytes
 
+typedef struct {
+    uint32_t iif;               // The downstream interface index
+    struct in_addr clientAddr;  // The IPv4 address of the client on the downstream
+} TetherClientStatsKey;
+STRUCT_SIZE(TetherClientStatsKey, 4 + 4);  // 8
+
 // For now tethering offload only needs to support downstreams that use 6-byte MAC addresses,
 // because all downstream types that are currently supported (WiFi, USB, Bluetooth and
 // Ethernet) have 6-byte MAC addresses.
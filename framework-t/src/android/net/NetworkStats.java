@@ -49,6 +49,7 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.function.Function;
 import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
 
 /**
  * Collection of active network statistics. Can contain summary details across
@@ -661,6 +662,37 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
      * @hide
      */
     public NetworkStats insertEntry(Entry entry) {
+        growIfFull();
+        setValues(size, entry);
+        size++;
+
+        return this;
+    }
+
+    /**
+     * Add a new row with the keys of row {@code srcIndex} of {@code src} and the given values,
+     * without going through an {@link Entry}.
+     */
+    private void appendRow(@NonNull NetworkStats src, int srcIndex, long rxBytes,
+            long rxPackets, long txBytes, long txPackets, long operations) {
+        growIfFull();
+        final int i = size;
+        iface[i] = src.iface[srcIndex];
+        uid[i] = src.uid[srcIndex];
+        set[i] = src.set[srcIndex];
+        tag[i] = src.tag[srcIndex];
+        metered[i] = src.metered[srcIndex];
+        roaming[i] = src.roaming[srcIndex];
+        defaultNetwork[i] = src.defaultNetwork[srcIndex];
+        this.rxBytes[i] = rxBytes;
+        this.rxPackets[i] = rxPackets;
+        this.txBytes[i] = txBytes;
+        this.txPackets[i] = txPackets;
+        this.operations[i] = operations;
+        size++;
+    }
+
+    private void growIfFull() {
         if (size >= capacity) {
             final int newLength = Math.max(size, 10) * 3 / 2;
             iface = Arrays.copyOf(iface, newLength);
@@ -677,11 +709,6 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
             operations = Arrays.copyOf(operations, newLength);
             capacity = newLength;
         }
-
-        setValues(size, entry);
-        size++;
-
-        return this;
     }
 
     private void setValues(int i, Entry entry) {
@@ -831,6 +858,22 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
     public @NonNull NetworkStats combineValues(@NonNull Entry entry) {
         final int i = findIndex(entry.iface, entry.uid, entry.set, entry.tag, entry.metered,
                 entry.roaming, entry.defaultNetwork);
+        combineValuesAt(i, entry);
+        return this;
+    }
+
+    /**
+     * Same as {@link #combineValues(Entry)}, but looks up the row with the passed index of this
+     * object, and adds new rows to the index.
+     */
+    private void combineValues(@NonNull Entry entry, @NonNull RowIndex index) {
+        final int i = index.find(entry.iface, entry.uid, entry.set, entry.tag, entry.metered,
+                entry.roaming, entry.defaultNetwork);
+        combineValuesAt(i, entry);
+        if (i == -1) index.add(size - 1);
+    }
+
+    private void combineValuesAt(int i, @NonNull Entry entry) {
         if (i == -1) {
             // only create new entry when positive contribution
             insertEntry(entry);
@@ -841,7 +884,6 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
             txPackets[i] += entry.txPackets;
             operations[i] += entry.operations;
         }
-        return this;
     }
 
     /**
@@ -872,10 +914,20 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
      * @hide
      */
     public void combineAllValues(@NonNull NetworkStats another) {
-        NetworkStats.Entry entry = null;
+        final RowIndex index = new RowIndex(this);
         for (int i = 0; i < another.size; i++) {
-            entry = another.getValues(i, entry);
-            combineValues(entry);
+            final int j = index.find(another, i);
+            if (j == -1) {
+                appendRow(another, i, another.rxBytes[i], another.rxPackets[i],
+                        another.txBytes[i], another.txPackets[i], another.operations[i]);
+                index.add(size - 1);
+            } else {
+                rxBytes[j] += another.rxBytes[i];
+                rxPackets[j] += another.rxPackets[i];
+                txBytes[j] += another.txBytes[i];
+                txPackets[j] += another.txPackets[i];
+                operations[j] += another.operations[i];
+            }
         }
     }
 
@@ -896,6 +948,110 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
         return -1;
     }
 
+    private boolean keyEquals(int i, @Nullable String iface, int uid, int set, int tag,
+            int metered, int roaming, int defaultNetwork) {
+        return uid == this.uid[i] && set == this.set[i] && tag == this.tag[i]
+                && metered == this.metered[i] && roaming == this.roaming[i]
+                && defaultNetwork == this.defaultNetwork[i]
+                && Objects.equals(iface, this.iface[i]);
+    }
+
+    /**
+     * An open-addressing hash index over the keys of the rows of a {@link NetworkStats}, used to
+     * find matching rows in constant time instead of scanning all rows, without allocating any
+     * {@link Entry}. The index does not see rows inserted in the indexed object after its
+     * creation, unless they are passed to {@link #add(int)}.
+     */
+    private static class RowIndex {
+        @NonNull private final NetworkStats mStats;
+        // Index of the row + 1 in each slot, or 0 for empty slots. The length is a power of 2,
+        // and at least twice the number of indexed rows.
+        private int[] mSlots;
+        private int mCount;
+
+        RowIndex(@NonNull NetworkStats stats) {
+            mStats = stats;
+            int length = 8;
+            while (length < stats.size * 2) length <<= 1;
+            mSlots = new int[length];
+            for (int i = 0; i < stats.size; i++) {
+                add(i);
+            }
+        }
+
+        private static int hash(@Nullable String iface, int uid, int set, int tag, int metered,
+                int roaming, int defaultNetwork) {
+            int h = Objects.hashCode(iface);
+            h = 31 * h + uid;
+            h = 31 * h + set;
+            h = 31 * h + tag;
+            h = 31 * h + metered;
+            h = 31 * h + roaming;
+            h = 31 * h + defaultNetwork;
+            // Slots are picked from the low bits, so mix in the high bits.
+            return h ^ (h >>> 16);
+        }
+
+        /**
+         * Index the given row of the indexed object. If another row with the same key is already
+         * indexed, it is kept so that lookups return the first matching row, like
+         * {@link NetworkStats#findIndex}.
+         */
+        void add(int row) {
+            if ((mCount + 1) * 2 > mSlots.length) rehash();
+            final NetworkStats s = mStats;
+            final int mask = mSlots.length - 1;
+            int slot = hash(s.iface[row], s.uid[row], s.set[row], s.tag[row], s.metered[row],
+                    s.roaming[row], s.defaultNetwork[row]) & mask;
+            while (mSlots[slot] != 0) {
+                if (s.keyEquals(mSlots[slot] - 1, s.iface[row], s.uid[row], s.set[row],
+                        s.tag[row], s.metered[row], s.roaming[row], s.defaultNetwork[row])) {
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+            mSlots[slot] = row + 1;
+            mCount++;
+        }
+
+        /** Find the indexed row with the given key, or -1 if none. */
+        int find(@Nullable String iface, int uid, int set, int tag, int metered, int roaming,
+                int defaultNetwork) {
+            final int mask = mSlots.length - 1;
+            int slot = hash(iface, uid, set, tag, metered, roaming, defaultNetwork) & mask;
+            while (mSlots[slot] != 0) {
+                final int row = mSlots[slot] - 1;
+                if (mStats.keyEquals(row, iface, uid, set, tag, metered, roaming,
+                        defaultNetwork)) {
+                    return row;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        /** Find the indexed row with the same key as row {@code i} of {@code other}. */
+        int find(@NonNull NetworkStats other, int i) {
+            return find(other.iface[i], other.uid[i], other.set[i], other.tag[i],
+                    other.metered[i], other.roaming[i], other.defaultNetwork[i]);
+        }
+
+        private void rehash() {
+            final int[] oldSlots = mSlots;
+            mSlots = new int[oldSlots.length * 2];
+            final int mask = mSlots.length - 1;
+            final NetworkStats s = mStats;
+            for (final int value : oldSlots) {
+                if (value == 0) continue;
+                final int row = value - 1;
+                int slot = hash(s.iface[row], s.uid[row], s.set[row], s.tag[row], s.metered[row],
+                        s.roaming[row], s.defaultNetwork[row]) & mask;
+                while (mSlots[slot] != 0) slot = (slot + 1) & mask;
+                mSlots[slot] = value;
+            }
+        }
+    }
+
     /**
      * Find first stats index that matches the requested parameters, starting
      * search around the hinted index as an optimization.
@@ -925,6 +1081,17 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
         return -1;
     }
 
+    /**
+     * Replace the interface name of each row with the result of the given function, which must
+     * return an equal name. Used to share interface name instances between rows.
+     * @hide
+     */
+    public void mapIfacesInPlace(@NonNull UnaryOperator<String> f) {
+        for (int i = 0; i < size; i++) {
+            iface[i] = f.apply(iface[i]);
+        }
+    }
+
     /**
      * Splice in {@link #operations} from the given {@link NetworkStats} based
      * on matching {@link #uid} and {@link #tag} rows. Ignores {@link #iface},
@@ -1125,7 +1292,6 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
         }
 
         // result will have our rows, and elapsed time between snapshots
-        final Entry entry = new Entry();
         final NetworkStats result;
         if (recycle != null && recycle.capacity >= left.size) {
             result = recycle;
@@ -1134,45 +1300,47 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
         } else {
             result = new NetworkStats(deltaRealtime, left.size);
         }
+        // Rows are usually in the same order in both snapshots, so try the row at the same
+        // position first, and only build the index of the right rows if that fails.
+        RowIndex rightIndex = null;
         for (int i = 0; i < left.size; i++) {
-            entry.iface = left.iface[i];
-            entry.uid = left.uid[i];
-            entry.set = left.set[i];
-            entry.tag = left.tag[i];
-            entry.metered = left.metered[i];
-            entry.roaming = left.roaming[i];
-            entry.defaultNetwork = left.defaultNetwork[i];
-            entry.rxBytes = left.rxBytes[i];
-            entry.rxPackets = left.rxPackets[i];
-            entry.txBytes = left.txBytes[i];
-            entry.txPackets = left.txPackets[i];
-            entry.operations = left.operations[i];
+            long rxBytes = left.rxBytes[i];
+            long rxPackets = left.rxPackets[i];
+            long txBytes = left.txBytes[i];
+            long txPackets = left.txPackets[i];
+            long operations = left.operations[i];
 
             // Find the remote row that matches and subtract.
             // The returned row must be uniquely matched.
-            final int j = right.findIndexHinted(entry.iface, entry.uid, entry.set, entry.tag,
-                    entry.metered, entry.roaming, entry.defaultNetwork, i);
+            final int j;
+            if (i < right.size && right.keyEquals(i, left.iface[i], left.uid[i], left.set[i],
+                    left.tag[i], left.metered[i], left.roaming[i], left.defaultNetwork[i])) {
+                j = i;
+            } else {
+                if (rightIndex == null) rightIndex = new RowIndex(right);
+                j = rightIndex.find(left, i);
+            }
             if (j != -1) {
                 // Found matching row, subtract remote value.
-                entry.rxBytes -= right.rxBytes[j];
-                entry.rxPackets -= right.rxPackets[j];
-                entry.txBytes -= right.txBytes[j];
-                entry.txPackets -= right.txPackets[j];
-                entry.operations -= right.operations[j];
+                rxBytes -= right.rxBytes[j];
+                rxPackets -= right.rxPackets[j];
+                txBytes -= right.txBytes[j];
+                txPackets -= right.txPackets[j];
+                operations -= right.operations[j];
             }
 
-            if (entry.isNegative()) {
+            if (rxBytes < 0 || rxPackets < 0 || txBytes < 0 || txPackets < 0 || operations < 0) {
                 if (observer != null) {
                     observer.foundNonMonotonic(left, i, right, j, cookie);
                 }
-                entry.rxBytes = Math.max(entry.rxBytes, 0);
-                entry.rxPackets = Math.max(entry.rxPackets, 0);
-                entry.txBytes = Math.max(entry.txBytes, 0);
-                entry.txPackets = Math.max(entry.txPackets, 0);
-                entry.operations = Math.max(entry.operations, 0);
+                rxBytes = Math.max(rxBytes, 0);
+                rxPackets = Math.max(rxPackets, 0);
+                txBytes = Math.max(txBytes, 0);
+                txPackets = Math.max(txPackets, 0);
+                operations = Math.max(operations, 0);
             }
 
-            result.insertEntry(entry);
+            result.appendRow(left, i, rxBytes, rxPackets, txBytes, txPackets, operations);
         }
 
         return result;
@@ -1335,6 +1503,7 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
     @NonNull
     private NetworkStats mapKeysNotNull(@NonNull Function<Entry, Entry> f) {
         final NetworkStats ret = new NetworkStats(0, 1);
+        final RowIndex index = new RowIndex(ret);
         for (Entry e : this) {
             final NetworkStats.Entry transformed = f.apply(e);
             if (transformed == null) continue;
@@ -1343,7 +1512,7 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
             }
             transformed.setValues(e.getRxBytes(), e.getRxPackets(), e.getTxBytes(),
                     e.getTxPackets(), e.getOperations());
-            ret.combineValues(transformed);
+            ret.combineValues(transformed, index);
         }
         return ret;
     }
@@ -56,6 +56,7 @@ import android.util.AtomicFile;
 import android.util.IndentingPrintWriter;
 import android.util.Log;
 import android.util.Range;
+import android.util.SparseArray;
 import android.util.proto.ProtoOutputStream;
 
 import com.android.internal.annotations.VisibleForTesting;
@@ -110,6 +111,12 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
     private static final int VERSION_UNIFIED_INIT = 16;
 
     private ArrayMap<Key, NetworkStatsHistory> mStats = new ArrayMap<>();
+    // Secondary indexes of the keys of mStats, so that queries only look at the histories
+    // that can match. Templates only match on the identity set of keys, so keys are grouped
+    // by identity set, and history queries are for a single UID, so keys are grouped by UID.
+    // Always updated along with mStats, through putHistory and removeHistory.
+    private final ArrayMap<NetworkIdentitySet, ArraySet<Key>> mKeysByIdent = new ArrayMap<>();
+    private final SparseArray<ArraySet<Key>> mKeysByUid = new SparseArray<>();
 
     private final long mBucketDurationMillis;
 
@@ -150,6 +157,8 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
     /** @hide */
     public void reset() {
         mStats.clear();
+        mKeysByIdent.clear();
+        mKeysByUid.clear();
         mStartMillis = Long.MAX_VALUE;
         mEndMillis = Long.MIN_VALUE;
         mTotalBytes = 0;
@@ -238,16 +247,12 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
     /** @hide */
     public int[] getRelevantUids(@NetworkStatsAccess.Level int accessLevel,
                 final int callerUid) {
+        // mKeysByUid is sorted by UID.
         final ArrayList<Integer> uids = new ArrayList<>();
-        for (int i = 0; i < mStats.size(); i++) {
-            final Key key = mStats.keyAt(i);
-            if (NetworkStatsAccess.isAccessibleToUser(key.uid, callerUid, accessLevel)) {
-                int j = Collections.binarySearch(uids, new Integer(key.uid));
-
-                if (j < 0) {
-                    j = ~j;
-                    uids.add(j, key.uid);
-                }
+        for (int i = 0; i < mKeysByUid.size(); i++) {
+            final int uid = mKeysByUid.keyAt(i);
+            if (NetworkStatsAccess.isAccessibleToUser(uid, callerUid, accessLevel)) {
+                uids.add(uid);
             }
         }
         return CollectionUtils.toIntArray(uids);
@@ -309,11 +314,13 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
             collectEnd = roundUp(collectEnd);
         }
 
-        for (int i = 0; i < mStats.size(); i++) {
-            final Key key = mStats.keyAt(i);
-            if (key.uid == uid && NetworkStats.setMatches(set, key.set) && key.tag == tag
+        final ArraySet<Key> uidKeys = mKeysByUid.get(uid);
+        final int uidKeyCount = uidKeys != null ? uidKeys.size() : 0;
+        for (int i = 0; i < uidKeyCount; i++) {
+            final Key key = uidKeys.valueAt(i);
+            if (NetworkStats.setMatches(set, key.set) && key.tag == tag
                     && templateMatches(template, key.ident)) {
-                final NetworkStatsHistory value = mStats.valueAt(i);
+                final NetworkStatsHistory value = mStats.get(key);
                 combined.recordHistory(value, collectStart, collectEnd);
             }
         }
@@ -397,22 +404,30 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
         final NetworkStats.Entry entry = new NetworkStats.Entry();
         NetworkStatsHistory.Entry historyEntry = null;
 
-        for (int i = 0; i < mStats.size(); i++) {
-            final Key key = mStats.keyAt(i);
-            if (templateMatches(template, key.ident)
-                    && NetworkStatsAccess.isAccessibleToUser(key.uid, callerUid, accessLevel)
-                    && key.set < NetworkStats.SET_DEBUG_START) {
-                final NetworkStatsHistory value = mStats.valueAt(i);
+        for (int i = 0; i < mKeysByIdent.size(); i++) {
+            final NetworkIdentitySet ident = mKeysByIdent.keyAt(i);
+            if (!templateMatches(template, ident)) continue;
+
+            // These only depend on the identity set, so they are the same for all its keys.
+            entry.iface = IFACE_ALL;
+            entry.defaultNetwork = ident.areAllMembersOnDefaultNetwork()
+                    ? DEFAULT_NETWORK_YES : DEFAULT_NETWORK_NO;
+            entry.metered = ident.isAnyMemberMetered() ? METERED_YES : METERED_NO;
+            entry.roaming = ident.isAnyMemberRoaming() ? ROAMING_YES : ROAMING_NO;
+
+            final ArraySet<Key> identKeys = mKeysByIdent.valueAt(i);
+            for (int j = 0; j < identKeys.size(); j++) {
+                final Key key = identKeys.valueAt(j);
+                if (!NetworkStatsAccess.isAccessibleToUser(key.uid, callerUid, accessLevel)
+                        || key.set >= NetworkStats.SET_DEBUG_START) {
+                    continue;
+                }
+                final NetworkStatsHistory value = mStats.get(key);
                 historyEntry = value.getValues(start, end, now, historyEntry);
 
-                entry.iface = IFACE_ALL;
                 entry.uid = key.uid;
                 entry.set = key.set;
                 entry.tag = key.tag;
-                entry.defaultNetwork = key.ident.areAllMembersOnDefaultNetwork()
-                        ? DEFAULT_NETWORK_YES : DEFAULT_NETWORK_NO;
-                entry.metered = key.ident.isAnyMemberMetered() ? METERED_YES : METERED_NO;
-                entry.roaming = key.ident.isAnyMemberRoaming() ? ROAMING_YES : ROAMING_NO;
                 entry.rxBytes = historyEntry.rxBytes;
                 entry.rxPackets = historyEntry.rxPackets;
                 entry.txBytes = historyEntry.txBytes;
@@ -453,11 +468,55 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
         NetworkStatsHistory target = mStats.get(key);
         if (target == null) {
             target = new NetworkStatsHistory(history.getBucketDuration());
-            mStats.put(key, target);
+            putHistory(internKey(key), target);
         }
         target.recordEntireHistory(history);
     }
 
+    /**
+     * Associate the given history with the given key, keeping the indexes of keys up to date.
+     */
+    private void putHistory(@NonNull Key key, @NonNull NetworkStatsHistory history) {
+        if (mStats.put(key, history) != null) return;
+
+        ArraySet<Key> identKeys = mKeysByIdent.get(key.ident);
+        if (identKeys == null) {
+            identKeys = new ArraySet<>();
+            mKeysByIdent.put(key.ident, identKeys);
+        }
+        identKeys.add(key);
+        ArraySet<Key> uidKeys = mKeysByUid.get(key.uid);
+        if (uidKeys == null) {
+            uidKeys = new ArraySet<>();
+            mKeysByUid.put(key.uid, uidKeys);
+        }
+        uidKeys.add(key);
+    }
+
+    /**
+     * Remove the history associated with the given key, keeping the indexes of keys up to date.
+     */
+    private void removeHistory(@NonNull Key key) {
+        if (mStats.remove(key) == null) return;
+
+        final ArraySet<Key> identKeys = mKeysByIdent.get(key.ident);
+        identKeys.remove(key);
+        if (identKeys.isEmpty()) mKeysByIdent.remove(key.ident);
+        final ArraySet<Key> uidKeys = mKeysByUid.get(key.uid);
+        uidKeys.remove(key);
+        if (uidKeys.isEmpty()) mKeysByUid.remove(key.uid);
+    }
+
+    /**
+     * Return a key equal to the given key, using the shared instance of its identity set, so
+     * that keys stored in collections share their identity sets and compare quickly.
+     */
+    private static Key internKey(@NonNull Key key) {
+        final NetworkIdentitySet ident =
+                NetworkStatsKeyDictionary.getInstance().internIdentitySet(key.ident);
+        return ident == key.ident ? key : new Key(ident, key.uid, key.set, key.tag);
+    }
+
     /**
      * Record all {@link NetworkStatsHistory} contained in the given collection
      * into this collection.
@@ -487,7 +546,7 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
         }
 
         if (updated != null) {
-            mStats.put(key, updated);
+            putHistory(existing == null ? internKey(key) : key, updated);
             return updated;
         } else {
             return existing;
@@ -517,7 +576,8 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
                 // uid := size *(NetworkIdentitySet size *(uid set tag NetworkStatsHistory))
                 final int identSize = in.readInt();
                 for (int i = 0; i < identSize; i++) {
-                    final NetworkIdentitySet ident = new NetworkIdentitySet(in);
+                    final NetworkIdentitySet ident = NetworkStatsKeyDictionary.getInstance()
+                            .internIdentitySet(new NetworkIdentitySet(in));
 
                     final int size = in.readInt();
                     for (int j = 0; j < size; j++) {
@@ -603,7 +663,8 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
                     // network := size *(NetworkIdentitySet NetworkStatsHistory)
                     final int size = in.readInt();
                     for (int i = 0; i < size; i++) {
-                        final NetworkIdentitySet ident = new NetworkIdentitySet(in);
+                        final NetworkIdentitySet ident = NetworkStatsKeyDictionary.getInstance()
+                                .internIdentitySet(new NetworkIdentitySet(in));
                         final NetworkStatsHistory history = new NetworkStatsHistory(in);
 
                         final Key key = new Key(ident, UID_ALL, SET_ALL, TAG_NONE);
@@ -664,7 +725,8 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
                     // uid := size *(NetworkIdentitySet size *(uid set tag NetworkStatsHistory))
                     final int identSize = in.readInt();
                     for (int i = 0; i < identSize; i++) {
-                        final NetworkIdentitySet ident = new NetworkIdentitySet(in);
+                        final NetworkIdentitySet ident = NetworkStatsKeyDictionary.getInstance()
+                                .internIdentitySet(new NetworkIdentitySet(in));
 
                         final int size = in.readInt();
                         for (int j = 0; j < size; j++) {
@@ -701,22 +763,23 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
      * @hide
      */
     public void removeUids(int[] uids) {
-        final ArrayList<Key> knownKeys = new ArrayList<>();
-        knownKeys.addAll(mStats.keySet());
+        final ArraySet<Key> knownKeys = new ArraySet<>();
+        for (int uid : uids) {
+            final ArraySet<Key> uidKeys = mKeysByUid.get(uid);
+            if (uidKeys != null) knownKeys.addAll(uidKeys);
+        }
 
         // migrate all UID stats into special "removed" bucket
         for (Key key : knownKeys) {
-            if (CollectionUtils.contains(uids, key.uid)) {
-                // only migrate combined TAG_NONE history
-                if (key.tag == TAG_NONE) {
-                    final NetworkStatsHistory uidHistory = mStats.get(key);
-                    final NetworkStatsHistory removedHistory = findOrCreateHistory(
-                            key.ident, UID_REMOVED, SET_DEFAULT, TAG_NONE);
-                    removedHistory.recordEntireHistory(uidHistory);
-                }
-                mStats.remove(key);
-                mDirty = true;
+            // only migrate combined TAG_NONE history
+            if (key.tag == TAG_NONE) {
+                final NetworkStatsHistory uidHistory = mStats.get(key);
+                final NetworkStatsHistory removedHistory = findOrCreateHistory(
+                        key.ident, UID_REMOVED, SET_DEFAULT, TAG_NONE);
+                removedHistory.recordEntireHistory(uidHistory);
             }
+            removeHistory(key);
+            mDirty = true;
         }
     }
 
@@ -734,7 +797,7 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
 
             history.removeBucketsStartingBefore(cutoffMillis);
             if (history.size() == 0) {
-                mStats.remove(key);
+                removeHistory(key);
             }
             mDirty = true;
         }
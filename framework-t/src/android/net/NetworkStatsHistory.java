@@ -106,6 +106,27 @@ public final class NetworkStatsHistory implements Parcelable {
     private long[] operations;
     private long totalBytes;
 
+    // Sums of the values of the buckets before each bucket, used to sum ranges of buckets in
+    // constant time. For the bucket i and the field f (in the order of PREFIX_SUM_*),
+    // prefixSums[i * PREFIX_SUM_FIELDS + f] is the sum of the values of the field in buckets 0
+    // to i - 1. Only computed on the second large range query after the buckets last changed,
+    // so that histories that are being recorded into, or queried once, do not keep them.
+    // Both fields are reset whenever the buckets change. They are volatile as histories of
+    // persisted collections are queried from several threads.
+    private volatile long[] prefixSums;
+    private volatile boolean queriedSinceChange;
+
+    private static final int PREFIX_SUM_ACTIVE_TIME = 0;
+    private static final int PREFIX_SUM_RX_BYTES = 1;
+    private static final int PREFIX_SUM_RX_PACKETS = 2;
+    private static final int PREFIX_SUM_TX_BYTES = 3;
+    private static final int PREFIX_SUM_TX_PACKETS = 4;
+    private static final int PREFIX_SUM_OPERATIONS = 5;
+    private static final int PREFIX_SUM_FIELDS = 6;
+    // Ranges of fewer complete buckets are summed bucket by bucket, as computing the prefix
+    // sums would cost more than it saves.
+    private static final int PREFIX_SUM_MIN_BUCKETS = 8;
+
     /** @hide */
     public NetworkStatsHistory(long bucketDuration, long[] bucketStart, long[] activeTime,
             long[] rxBytes, long[] rxPackets, long[] txBytes, long[] txPackets,
@@ -507,6 +528,7 @@ public final class NetworkStatsHistory implements Parcelable {
 
     /** @hide */
     public void setValues(int i, Entry entry) {
+        invalidatePrefixSums();
         // Unwind old values
         if (rxBytes != null) totalBytes -= rxBytes[i];
         if (txBytes != null) totalBytes -= txBytes[i];
@@ -555,6 +577,7 @@ public final class NetworkStatsHistory implements Parcelable {
             return;
         }
 
+        invalidatePrefixSums();
         // create any buckets needed by this range
         ensureBuckets(start, end);
         // Return fast if there is still no entry. This would typically happen when the start,
@@ -656,6 +679,7 @@ public final class NetworkStatsHistory implements Parcelable {
      * Insert new bucket at requested index and starting time.
      */
     private void insertBucket(int index, long start) {
+        invalidatePrefixSums();
         // create more buckets when needed
         if (bucketCount >= bucketStart.length) {
             final int newLength = Math.max(bucketStart.length, 10) * 3 / 2;
@@ -706,6 +730,7 @@ public final class NetworkStatsHistory implements Parcelable {
         if (operations != null) operations = EmptyArray.LONG;
         bucketCount = 0;
         totalBytes = 0;
+        invalidatePrefixSums();
     }
 
     /**
@@ -727,6 +752,7 @@ public final class NetworkStatsHistory implements Parcelable {
         }
 
         if (i > 0) {
+            invalidatePrefixSums();
             final int length = bucketStart.length;
             bucketStart = Arrays.copyOfRange(bucketStart, i, length);
             if (activeTime != null) activeTime = Arrays.copyOfRange(activeTime, i, length);
@@ -785,8 +811,30 @@ public final class NetworkStatsHistory implements Parcelable {
         // Return fast if there is no entry.
         if (bucketCount == 0) return entry;
 
+        // Buckets that are entirely within the range and complete at now are counted whole,
+        // so a run of them is summed from the prefix sums, and only the buckets at the edges
+        // of the range are interpolated below.
+        final long completeEnd = Math.min(end, now);
+        final int completeFrom = getFirstIndexStartingAtOrAfter(start);
+        final int completeTo = completeEnd < Long.MIN_VALUE + bucketDuration ? 0
+                : getFirstIndexStartingAtOrAfter(completeEnd - bucketDuration + 1);
+        final int skipFrom;
+        final int skipTo;
+        if (completeTo - completeFrom >= PREFIX_SUM_MIN_BUCKETS) {
+            addCompleteBuckets(entry, completeFrom, completeTo);
+            skipFrom = completeFrom;
+            skipTo = completeTo;
+        } else {
+            skipFrom = skipTo = 0;
+        }
+
         final int startIndex = getIndexAfter(end);
         for (int i = startIndex; i >= 0; i--) {
+            if (i < skipTo && i >= skipFrom) {
+                // Already counted from the prefix sums.
+                i = skipFrom;
+                continue;
+            }
             final long curStart = bucketStart[i];
             long curEnd = curStart + bucketDuration;
 
@@ -830,6 +878,100 @@ public final class NetworkStatsHistory implements Parcelable {
         return entry;
     }
 
+    /**
+     * Return the index of the first bucket starting at or after the given time, or
+     * {@link #bucketCount} if there is none.
+     */
+    private int getFirstIndexStartingAtOrAfter(long time) {
+        final int index = Arrays.binarySearch(bucketStart, 0, bucketCount, time);
+        return index < 0 ? ~index : index;
+    }
+
+    private void invalidatePrefixSums() {
+        prefixSums = null;
+        queriedSinceChange = false;
+    }
+
+    /**
+     * Add the sums of the values of the buckets {@code from} to {@code to - 1} to the
+     * known fields of the given entry, from the prefix sums if the history was already queried
+     * since it last changed.
+     */
+    private void addCompleteBuckets(Entry entry, int from, int to) {
+        long[] sums = prefixSums;
+        if (sums == null) {
+            if (!queriedSinceChange) {
+                queriedSinceChange = true;
+                addBuckets(entry, from, to);
+                return;
+            }
+            sums = computePrefixSums();
+            prefixSums = sums;
+        }
+        final int fromOffset = from * PREFIX_SUM_FIELDS;
+        final int toOffset = to * PREFIX_SUM_FIELDS;
+        if (activeTime != null) {
+            entry.activeTime += sums[toOffset + PREFIX_SUM_ACTIVE_TIME]
+                    - sums[fromOffset + PREFIX_SUM_ACTIVE_TIME];
+        }
+        if (rxBytes != null) {
+            entry.rxBytes += sums[toOffset + PREFIX_SUM_RX_BYTES]
+                    - sums[fromOffset + PREFIX_SUM_RX_BYTES];
+        }
+        if (rxPackets != null) {
+            entry.rxPackets += sums[toOffset + PREFIX_SUM_RX_PACKETS]
+                    - sums[fromOffset + PREFIX_SUM_RX_PACKETS];
+        }
+        if (txBytes != null) {
+            entry.txBytes += sums[toOffset + PREFIX_SUM_TX_BYTES]
+                    - sums[fromOffset + PREFIX_SUM_TX_BYTES];
+        }
+        if (txPackets != null) {
+            entry.txPackets += sums[toOffset + PREFIX_SUM_TX_PACKETS]
+                    - sums[fromOffset + PREFIX_SUM_TX_PACKETS];
+        }
+        if (operations != null) {
+            entry.operations += sums[toOffset + PREFIX_SUM_OPERATIONS]
+                    - sums[fromOffset + PREFIX_SUM_OPERATIONS];
+        }
+    }
+
+    /**
+     * Add the values of the buckets {@code from} to {@code to - 1} to the known fields of the
+     * given entry, bucket by bucket.
+     */
+    private void addBuckets(Entry entry, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (activeTime != null) entry.activeTime += activeTime[i];
+            if (rxBytes != null) entry.rxBytes += rxBytes[i];
+            if (rxPackets != null) entry.rxPackets += rxPackets[i];
+            if (txBytes != null) entry.txBytes += txBytes[i];
+            if (txPackets != null) entry.txPackets += txPackets[i];
+            if (operations != null) entry.operations += operations[i];
+        }
+    }
+
+    private long[] computePrefixSums() {
+        final long[] sums = new long[(bucketCount + 1) * PREFIX_SUM_FIELDS];
+        for (int i = 0; i < bucketCount; i++) {
+            final int prev = i * PREFIX_SUM_FIELDS;
+            final int next = prev + PREFIX_SUM_FIELDS;
+            sums[next + PREFIX_SUM_ACTIVE_TIME] =
+                    sums[prev + PREFIX_SUM_ACTIVE_TIME] + getLong(activeTime, i, 0L);
+            sums[next + PREFIX_SUM_RX_BYTES] =
+                    sums[prev + PREFIX_SUM_RX_BYTES] + getLong(rxBytes, i, 0L);
+            sums[next + PREFIX_SUM_RX_PACKETS] =
+                    sums[prev + PREFIX_SUM_RX_PACKETS] + getLong(rxPackets, i, 0L);
+            sums[next + PREFIX_SUM_TX_BYTES] =
+                    sums[prev + PREFIX_SUM_TX_BYTES] + getLong(txBytes, i, 0L);
+            sums[next + PREFIX_SUM_TX_PACKETS] =
+                    sums[prev + PREFIX_SUM_TX_PACKETS] + getLong(txPackets, i, 0L);
+            sums[next + PREFIX_SUM_OPERATIONS] =
+                    sums[prev + PREFIX_SUM_OPERATIONS] + getLong(operations, i, 0L);
+        }
+        return sums;
+    }
+
     /**
      * @deprecated only for temporary testing
      * @hide
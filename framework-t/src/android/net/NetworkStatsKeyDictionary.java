@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.net;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * A dictionary of the interface names and {@link NetworkIdentitySet}s used as keys of network
+ * stats.
+ *
+ * Stats are read, recorded and queried many times with the same few interfaces and identity
+ * sets, but each snapshot or file read creates new equal instances of them. Interning them
+ * through this dictionary makes equal keys share a single instance, so that comparisons of
+ * {@link NetworkStats} rows and {@link NetworkStatsCollection.Key}s succeed on the identity
+ * check, and long-lived collections hold each distinct key only once.
+ *
+ * Interned {@link NetworkIdentitySet}s are shared, so they are unmodifiable copies of the sets
+ * passed by callers.
+ *
+ * This class is thread-safe.
+ * @hide
+ */
+public final class NetworkStatsKeyDictionary {
+    // Bounds for the number of interned keys, so that the dictionary cannot grow without bound
+    // on devices creating many different interfaces over time. Past these, keys are returned
+    // as is.
+    @VisibleForTesting
+    static final int MAX_IFACES = 1000;
+    @VisibleForTesting
+    static final int MAX_IDENTITY_SETS = 1000;
+
+    private static final NetworkStatsKeyDictionary sInstance = new NetworkStatsKeyDictionary();
+
+    @GuardedBy("mIfaces")
+    private final HashMap<String, String> mIfaces = new HashMap<>();
+    @GuardedBy("mIdentitySets")
+    private final HashMap<NetworkIdentitySet, NetworkIdentitySet> mIdentitySets = new HashMap<>();
+
+    // Copy of an identity set that throws UnsupportedOperationException when modified.
+    private static final class UnmodifiableIdentitySet extends NetworkIdentitySet {
+        // False while the superclass constructor adds the elements of the copied set.
+        private final boolean mFrozen;
+
+        UnmodifiableIdentitySet(@NonNull NetworkIdentitySet ident) {
+            super(ident);
+            mFrozen = true;
+        }
+
+        private void checkNotFrozen() {
+            if (mFrozen) throw new UnsupportedOperationException("Interned set is unmodifiable");
+        }
+
+        @Override
+        public boolean add(NetworkIdentity ident) {
+            checkNotFrozen();
+            return super.add(ident);
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            checkNotFrozen();
+            return super.remove(o);
+        }
+
+        @Override
+        public void clear() {
+            checkNotFrozen();
+            super.clear();
+        }
+
+        @Override
+        public Iterator<NetworkIdentity> iterator() {
+            // Iterator#remove throws by default.
+            final Iterator<NetworkIdentity> it = super.iterator();
+            return new Iterator<NetworkIdentity>() {
+                @Override
+                public boolean hasNext() {
+                    return it.hasNext();
+                }
+
+                @Override
+                public NetworkIdentity next() {
+                    return it.next();
+                }
+            };
+        }
+    }
+
+    @VisibleForTesting
+    NetworkStatsKeyDictionary() {}
+
+    /**
+     * Get the dictionary shared by all network stats components in this process.
+     */
+    @NonNull
+    public static NetworkStatsKeyDictionary getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Return the canonical instance of the given interface name.
+     */
+    @Nullable
+    public String internIface(@Nullable String iface) {
+        if (iface == null) return null;
+        synchronized (mIfaces) {
+            final String existing = mIfaces.get(iface);
+            if (existing != null) return existing;
+            if (mIfaces.size() >= MAX_IFACES) return iface;
+            mIfaces.put(iface, iface);
+            return iface;
+        }
+    }
+
+    /**
+     * Return the canonical instance of the given identity set.
+     *
+     * The returned instance is an unmodifiable copy of the first equal set that was interned,
+     * unless the dictionary is full, in which case the given set is returned as is. Later
+     * changes to the given set do not affect the interned copy.
+     */
+    @NonNull
+    public NetworkIdentitySet internIdentitySet(@NonNull NetworkIdentitySet ident) {
+        synchronized (mIdentitySets) {
+            final NetworkIdentitySet existing = mIdentitySets.get(ident);
+            if (existing != null) return existing;
+            if (mIdentitySets.size() >= MAX_IDENTITY_SETS) return ident;
+            final NetworkIdentitySet copy = new UnmodifiableIdentitySet(ident);
+            mIdentitySets.put(copy, copy);
+            return copy;
+        }
+    }
+
+    /**
+     * Intern all the interface names of the given stats, in place.
+     */
+    public void internIfaces(@NonNull NetworkStats stats) {
+        stats.mapIfacesInPlace(this::internIface);
+    }
+}
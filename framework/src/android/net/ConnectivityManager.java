@@ -4264,6 +4264,11 @@ public class ConnectivityManager {
     public static final int CALLBACK_BLK_CHANGED                = 11;
     /** @hide */
     public static final int CALLBACK_LOCAL_NETWORK_INFO_CHANGED = 12;
+    /** @hide data = list of callback messages under CALLBACK_BATCH_MESSAGES */
+    public static final int CALLBACK_BATCH                      = 13;
+
+    /** @hide */
+    public static final String CALLBACK_BATCH_MESSAGES = "CallbackBatchMessages";
 
     /** @hide */
     public static String getCallbackName(int whichCallback) {
@@ -4280,6 +4285,7 @@ public class ConnectivityManager {
             case CALLBACK_RESUMED:      return "CALLBACK_RESUMED";
             case CALLBACK_BLK_CHANGED:  return "CALLBACK_BLK_CHANGED";
             case CALLBACK_LOCAL_NETWORK_INFO_CHANGED: return "CALLBACK_LOCAL_NETWORK_INFO_CHANGED";
+            case CALLBACK_BATCH:        return "CALLBACK_BATCH";
             default:
                 return Integer.toString(whichCallback);
         }
@@ -4306,6 +4312,17 @@ public class ConnectivityManager {
                 sInstance.expireRequest((NetworkCapabilities) message.obj, message.arg1);
                 return;
             }
+            if (message.what == CALLBACK_BATCH) {
+                final ArrayList<Message> batch = SdkLevel.isAtLeastT()
+                        ? message.getData().getParcelableArrayList(CALLBACK_BATCH_MESSAGES,
+                                Message.class)
+                        : message.getData().getParcelableArrayList(CALLBACK_BATCH_MESSAGES);
+                if (batch == null) return;
+                for (final Message m : batch) {
+                    handleMessage(m);
+                }
+                return;
+            }
 
             final NetworkRequest request = getObject(message, NetworkRequest.class);
             final Network network = getObject(message, Network.class);
@@ -77,6 +77,7 @@ import android.os.Looper;
 import android.os.Message;
 import android.os.RemoteCallbackList;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.provider.DeviceConfig;
 import android.text.TextUtils;
@@ -85,6 +86,7 @@ import android.util.Log;
 import android.util.Pair;
 import android.util.SparseArray;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.IndentingPrintWriter;
 import com.android.internal.util.State;
@@ -103,6 +105,7 @@ import com.android.server.connectivity.mdns.MdnsAdvertisingOptions;
 import com.android.server.connectivity.mdns.MdnsDiscoveryManager;
 import com.android.server.connectivity.mdns.MdnsFeatureFlags;
 import com.android.server.connectivity.mdns.MdnsInterfaceSocket;
+import com.android.server.connectivity.mdns.MdnsMetrics;
 import com.android.server.connectivity.mdns.MdnsMultinetworkSocketClient;
 import com.android.server.connectivity.mdns.MdnsSearchOptions;
 import com.android.server.connectivity.mdns.MdnsServiceBrowserListener;
@@ -111,6 +114,8 @@ import com.android.server.connectivity.mdns.MdnsSocketProvider;
 import com.android.server.connectivity.mdns.util.MdnsUtils;
 
 import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.net.Inet6Address;
 import java.net.InetAddress;
@@ -216,6 +221,9 @@ public class NsdService extends INsdManager.Stub {
     private final MdnsDiscoveryManager mMdnsDiscoveryManager;
     @NonNull
     private final MdnsSocketProvider mMdnsSocketProvider;
+    // Thread-safe
+    @NonNull
+    private final MdnsMetrics mMdnsMetrics = new MdnsMetrics();
     @NonNull
     private final MdnsAdvertiser mAdvertiser;
     @NonNull
@@ -235,6 +243,26 @@ public class NsdService extends INsdManager.Stub {
     /* A map from transaction(unique) id to client info */
     private final SparseArray<ClientInfo> mTransactionIdToClientInfoMap = new SparseArray<>();
 
+    // Events from the MdnsDiscoveryManager listeners that are not yet delivered to clients. They
+    // are delivered in batches by a single MDNS_DISCOVERY_MANAGER_EVENT message, so that a burst
+    // of events does not queue one message per event behind other requests.
+    @GuardedBy("mPendingMdnsEvents")
+    @NonNull
+    private final ArrayList<MdnsEvent> mPendingMdnsEvents = new ArrayList<>();
+
+    // Queueing latency of each stage of the dispatch on the state machine thread.
+    @NonNull
+    private final DispatchLatencyStats mClientRequestLatency =
+            new DispatchLatencyStats("Client requests");
+    @NonNull
+    private final DispatchLatencyStats mDaemonEventLatency =
+            new DispatchLatencyStats("mdns_responder events");
+    @NonNull
+    private final DispatchLatencyStats mDiscoveryManagerEventLatency =
+            new DispatchLatencyStats("DiscoveryManager events");
+    // The number of batches of DiscoveryManager events that were delivered
+    private int mDiscoveryManagerEventBatchCount = 0;
+
     // Note this is not final to avoid depending on the Wi-Fi service starting before NsdService
     @Nullable
     private WifiManager.MulticastLock mHeldMulticastLock;
@@ -333,14 +361,14 @@ public class NsdService extends INsdManager.Stub {
         @Override
         public void onServiceNameDiscovered(@NonNull MdnsServiceInfo serviceInfo,
                 boolean isServiceFromCache) {
-            mNsdStateMachine.sendMessage(MDNS_DISCOVERY_MANAGER_EVENT, mTransactionId,
+            enqueueMdnsDiscoveryManagerEvent(mTransactionId,
                     NsdManager.SERVICE_FOUND,
                     new MdnsEvent(mClientRequestId, serviceInfo, isServiceFromCache));
         }
 
         @Override
         public void onServiceNameRemoved(@NonNull MdnsServiceInfo serviceInfo) {
-            mNsdStateMachine.sendMessage(MDNS_DISCOVERY_MANAGER_EVENT, mTransactionId,
+            enqueueMdnsDiscoveryManagerEvent(mTransactionId,
                     NsdManager.SERVICE_LOST,
                     new MdnsEvent(mClientRequestId, serviceInfo));
         }
@@ -348,7 +376,7 @@ public class NsdService extends INsdManager.Stub {
         @Override
         public void onDiscoveryQuerySent(@NonNull List<String> subtypes,
                 int sentQueryTransactionId) {
-            mNsdStateMachine.sendMessage(MDNS_DISCOVERY_MANAGER_EVENT, mTransactionId,
+            enqueueMdnsDiscoveryManagerEvent(mTransactionId,
                     DISCOVERY_QUERY_SENT_CALLBACK, new MdnsEvent(mClientRequestId));
         }
     }
@@ -362,7 +390,7 @@ public class NsdService extends INsdManager.Stub {
 
         @Override
         public void onServiceFound(MdnsServiceInfo serviceInfo, boolean isServiceFromCache) {
-            mNsdStateMachine.sendMessage(MDNS_DISCOVERY_MANAGER_EVENT, mTransactionId,
+            enqueueMdnsDiscoveryManagerEvent(mTransactionId,
                     NsdManager.RESOLVE_SERVICE_SUCCEEDED,
                     new MdnsEvent(mClientRequestId, serviceInfo, isServiceFromCache));
         }
@@ -370,7 +398,7 @@ public class NsdService extends INsdManager.Stub {
         @Override
         public void onDiscoveryQuerySent(@NonNull List<String> subtypes,
                 int sentQueryTransactionId) {
-            mNsdStateMachine.sendMessage(MDNS_DISCOVERY_MANAGER_EVENT, mTransactionId,
+            enqueueMdnsDiscoveryManagerEvent(mTransactionId,
                     DISCOVERY_QUERY_SENT_CALLBACK, new MdnsEvent(mClientRequestId));
         }
     }
@@ -385,21 +413,21 @@ public class NsdService extends INsdManager.Stub {
         @Override
         public void onServiceFound(@NonNull MdnsServiceInfo serviceInfo,
                 boolean isServiceFromCache) {
-            mNsdStateMachine.sendMessage(MDNS_DISCOVERY_MANAGER_EVENT, mTransactionId,
+            enqueueMdnsDiscoveryManagerEvent(mTransactionId,
                     NsdManager.SERVICE_UPDATED,
                     new MdnsEvent(mClientRequestId, serviceInfo, isServiceFromCache));
         }
 
         @Override
         public void onServiceUpdated(@NonNull MdnsServiceInfo serviceInfo) {
-            mNsdStateMachine.sendMessage(MDNS_DISCOVERY_MANAGER_EVENT, mTransactionId,
+            enqueueMdnsDiscoveryManagerEvent(mTransactionId,
                     NsdManager.SERVICE_UPDATED,
                     new MdnsEvent(mClientRequestId, serviceInfo));
         }
 
         @Override
         public void onServiceRemoved(@NonNull MdnsServiceInfo serviceInfo) {
-            mNsdStateMachine.sendMessage(MDNS_DISCOVERY_MANAGER_EVENT, mTransactionId,
+            enqueueMdnsDiscoveryManagerEvent(mTransactionId,
                     NsdManager.SERVICE_UPDATED_LOST,
                     new MdnsEvent(mClientRequestId, serviceInfo));
         }
@@ -407,7 +435,7 @@ public class NsdService extends INsdManager.Stub {
         @Override
         public void onDiscoveryQuerySent(@NonNull List<String> subtypes,
                 int sentQueryTransactionId) {
-            mNsdStateMachine.sendMessage(MDNS_DISCOVERY_MANAGER_EVENT, mTransactionId,
+            enqueueMdnsDiscoveryManagerEvent(mTransactionId,
                     DISCOVERY_QUERY_SENT_CALLBACK, new MdnsEvent(mClientRequestId));
         }
     }
@@ -518,6 +546,10 @@ public class NsdService extends INsdManager.Stub {
         @Nullable
         final MdnsServiceInfo mMdnsServiceInfo;
         final boolean mIsServiceFromCache;
+        // Set when the event is enqueued for delivery
+        int mTransactionId;
+        int mCode;
+        long mEnqueuedTimeMs;
 
         MdnsEvent(int clientRequestId) {
             this(clientRequestId, null /* mdnsServiceInfo */, false /* isServiceFromCache */);
@@ -535,6 +567,57 @@ public class NsdService extends INsdManager.Stub {
         }
     }
 
+    /**
+     * Statistics of the time spent by events queued before being processed by the state machine.
+     *
+     * Only accessed on the state machine thread.
+     */
+    private static class DispatchLatencyStats {
+        @NonNull
+        private final String mName;
+        private long mCount;
+        private long mTotalLatencyMs;
+        private long mMaxLatencyMs;
+
+        DispatchLatencyStats(@NonNull String name) {
+            mName = name;
+        }
+
+        void record(long latencyMs) {
+            mCount++;
+            mTotalLatencyMs += latencyMs;
+            mMaxLatencyMs = Math.max(mMaxLatencyMs, latencyMs);
+        }
+
+        @Override
+        public String toString() {
+            return mName + ": " + mCount + " events, average latency "
+                    + (mCount == 0 ? 0 : mTotalLatencyMs / mCount) + "ms, max latency "
+                    + mMaxLatencyMs + "ms";
+        }
+    }
+
+    /**
+     * Enqueue an event from a MdnsDiscoveryManager listener, to be delivered to the client.
+     *
+     * This can be called on any thread.
+     */
+    private void enqueueMdnsDiscoveryManagerEvent(int transactionId, int code,
+            @NonNull MdnsEvent event) {
+        event.mTransactionId = transactionId;
+        event.mCode = code;
+        event.mEnqueuedTimeMs = SystemClock.uptimeMillis();
+        final boolean needsDispatch;
+        synchronized (mPendingMdnsEvents) {
+            needsDispatch = mPendingMdnsEvents.isEmpty();
+            mPendingMdnsEvents.add(event);
+        }
+        // Events enqueued while a batch is pending are delivered with that batch.
+        if (needsDispatch) {
+            mNsdStateMachine.sendMessage(MDNS_DISCOVERY_MANAGER_EVENT);
+        }
+    }
+
     // TODO: Use a Handler instead of a StateMachine since there are no state changes.
     private class NsdStateMachine extends StateMachine {
 
@@ -770,6 +853,7 @@ public class NsdService extends INsdManager.Stub {
 
             @Override
             public boolean processMessage(Message msg) {
+                recordDispatchLatency(msg);
                 final ClientInfo clientInfo;
                 final int transactionId;
                 final int clientRequestId = msg.arg2;
@@ -1257,9 +1341,7 @@ public class NsdService extends INsdManager.Stub {
                         }
                         break;
                     case MDNS_DISCOVERY_MANAGER_EVENT:
-                        if (!handleMdnsDiscoveryManagerEvent(msg.arg1, msg.arg2, msg.obj)) {
-                            return NOT_HANDLED;
-                        }
+                        handleMdnsDiscoveryManagerEvents();
                         break;
                     case NsdManager.REGISTER_OFFLOAD_ENGINE:
                         offloadEngineInfo = (OffloadEngineInfo) msg.obj;
@@ -1553,16 +1635,68 @@ public class NsdService extends INsdManager.Stub {
                 return servInfo;
             }
 
-            private boolean handleMdnsDiscoveryManagerEvent(
-                    int transactionId, int code, Object obj) {
-                final ClientInfo clientInfo = mTransactionIdToClientInfoMap.get(transactionId);
-                if (clientInfo == null) {
-                    Log.e(TAG, String.format(
-                            "id %d for %d has no client mapping", transactionId, code));
-                    return false;
+            private void recordDispatchLatency(@NonNull Message msg) {
+                // Message#getWhen is the time the message was due, in the uptimeMillis base
+                final long latencyMs = SystemClock.uptimeMillis() - msg.getWhen();
+                switch (msg.what) {
+                    case MDNS_SERVICE_EVENT:
+                        mDaemonEventLatency.record(latencyMs);
+                        break;
+                    case MDNS_DISCOVERY_MANAGER_EVENT:
+                        // Recorded for each event of the batch
+                    case NsdManager.DAEMON_CLEANUP:
+                        break;
+                    default:
+                        mClientRequestLatency.record(latencyMs);
+                        break;
+                }
+            }
+
+            /**
+             * Deliver all pending MdnsDiscoveryManager events.
+             *
+             * Events are grouped by client, so that the callbacks of each client are sent
+             * together, in the order of the events.
+             */
+            private void handleMdnsDiscoveryManagerEvents() {
+                final ArrayList<MdnsEvent> events;
+                synchronized (mPendingMdnsEvents) {
+                    events = new ArrayList<>(mPendingMdnsEvents);
+                    mPendingMdnsEvents.clear();
+                }
+                if (events.isEmpty()) return;
+                mDiscoveryManagerEventBatchCount++;
+
+                final long now = SystemClock.uptimeMillis();
+                final LinkedHashMap<ClientInfo, List<MdnsEvent>> eventsByClient =
+                        new LinkedHashMap<>();
+                for (MdnsEvent event : events) {
+                    mDiscoveryManagerEventLatency.record(now - event.mEnqueuedTimeMs);
+                    final ClientInfo clientInfo =
+                            mTransactionIdToClientInfoMap.get(event.mTransactionId);
+                    if (clientInfo == null) {
+                        Log.e(TAG, String.format("id %d for %d has no client mapping",
+                                event.mTransactionId, event.mCode));
+                        continue;
+                    }
+                    eventsByClient.computeIfAbsent(clientInfo, c -> new ArrayList<>()).add(event);
                 }
 
-                final MdnsEvent event = (MdnsEvent) obj;
+                for (Map.Entry<ClientInfo, List<MdnsEvent>> entry : eventsByClient.entrySet()) {
+                    for (MdnsEvent event : entry.getValue()) {
+                        // A previous event of the batch may have removed the client or request
+                        // (for example a successful resolution), which is checked here.
+                        if (!handleMdnsDiscoveryManagerEvent(entry.getKey(), event) && DBG) {
+                            Log.d(TAG, "Unhandled MdnsDiscoveryManager event " + event.mCode);
+                        }
+                    }
+                }
+            }
+
+            private boolean handleMdnsDiscoveryManagerEvent(@NonNull ClientInfo clientInfo,
+                    @NonNull MdnsEvent event) {
+                final int transactionId = event.mTransactionId;
+                final int code = event.mCode;
                 final int clientRequestId = event.mClientRequestId;
                 final ClientRequest request = clientInfo.mClientRequests.get(clientRequestId);
                 if (request == null) {
@@ -1585,6 +1719,11 @@ public class NsdService extends INsdManager.Stub {
                         NsdManager.nameOf(code), transactionId));
                 switch (code) {
                     case NsdManager.SERVICE_FOUND:
+                        if (request.getFoundServiceCount() == 0) {
+                            mMdnsMetrics.onFirstServiceFound(
+                                    event.mMdnsServiceInfo.getServiceType(),
+                                    request.calculateRequestDurationMs(mClock.elapsedRealtime()));
+                        }
                         clientInfo.onServiceFound(clientRequestId, info, request);
                         break;
                     case NsdManager.SERVICE_LOST:
@@ -1608,6 +1747,8 @@ public class NsdService extends INsdManager.Stub {
                         if (addresses.size() != 0) {
                             info.setHostAddresses(addresses);
                             request.setServiceFromCache(event.mIsServiceFromCache);
+                            mMdnsMetrics.onServiceResolved(serviceInfo.getServiceType(),
+                                    request.calculateRequestDurationMs(mClock.elapsedRealtime()));
                             clientInfo.onResolveServiceSucceeded(clientRequestId, info, request);
                         } else {
                             // No address. Notify resolution failure.
@@ -1819,7 +1960,8 @@ public class NsdService extends INsdManager.Stub {
         mDeps = deps;
 
         mMdnsSocketProvider = deps.makeMdnsSocketProvider(ctx, handler.getLooper(),
-                LOGGER.forSubComponent("MdnsSocketProvider"), new SocketRequestMonitor());
+                LOGGER.forSubComponent("MdnsSocketProvider"), new SocketRequestMonitor(),
+                mMdnsMetrics);
         // Netlink monitor starts on boot, and intentionally never stopped, to ensure that all
         // address events are received. When the netlink monitor starts, any IP addresses already
         // on the interfaces will not be seen. In practice, the network will not connect at boot
@@ -1851,6 +1993,14 @@ public class NsdService extends INsdManager.Stub {
                         mContext, MdnsFeatureFlags.NSD_UNICAST_REPLY_ENABLED))
                 .setIsAggressiveQueryModeEnabled(mDeps.isFeatureEnabled(
                         mContext, MdnsFeatureFlags.NSD_AGGRESSIVE_QUERY_MODE))
+                .setIsResponseRecordFilteringEnabled(mDeps.isFeatureEnabled(
+                        mContext, MdnsFeatureFlags.NSD_FILTER_RESPONSE_RECORDS))
+                .setIsQueryAggregationEnabled(mDeps.isFeatureEnabled(
+                        mContext, MdnsFeatureFlags.NSD_AGGREGATE_QUERIES))
+                .setIsReplyPacketCacheEnabled(mDeps.isFeatureEnabled(
+                        mContext, MdnsFeatureFlags.NSD_CACHE_REPLY_PACKETS))
+                .setIsDecodeOnWorkerThreadsEnabled(mDeps.isFeatureEnabled(
+                        mContext, MdnsFeatureFlags.NSD_DECODE_ON_WORKER_THREADS))
                 .setOverrideProvider(flag -> mDeps.isFeatureEnabled(
                         mContext, FORCE_ENABLE_FLAG_FOR_TEST_PREFIX + flag))
                 .build();
@@ -1944,8 +2094,10 @@ public class NsdService extends INsdManager.Stub {
          */
         public MdnsSocketProvider makeMdnsSocketProvider(@NonNull Context context,
                 @NonNull Looper looper, @NonNull SharedLog sharedLog,
-                @NonNull MdnsSocketProvider.SocketRequestMonitor socketCreationCallback) {
-            return new MdnsSocketProvider(context, looper, sharedLog, socketCreationCallback);
+                @NonNull MdnsSocketProvider.SocketRequestMonitor socketCreationCallback,
+                @NonNull MdnsMetrics metrics) {
+            return new MdnsSocketProvider(context, looper, sharedLog, socketCreationCallback,
+                    metrics);
         }
 
         /**
@@ -2539,10 +2691,30 @@ public class NsdService extends INsdManager.Stub {
     public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
         if (!PermissionUtils.hasDumpPermission(mContext, TAG, writer)) return;
 
+        if (args != null && args.length > 0 && "--proto".equals(args[0])) {
+            dumpMdnsMetricsProto(fd);
+            return;
+        }
+
         final IndentingPrintWriter pw = new IndentingPrintWriter(writer, "  ");
         // Dump state machine logs
         mNsdStateMachine.dump(fd, pw, args);
 
+        // Dump dispatch latency
+        pw.println();
+        pw.println("Dispatch latency:");
+        pw.increaseIndent();
+        HandlerUtils.runWithScissorsForDump(
+                mNsdStateMachine.getHandler(), () -> dumpDispatchLatency(pw), 10_000);
+        pw.decreaseIndent();
+
+        // Dump mDNS metrics
+        pw.println();
+        pw.println("mDNS metrics:");
+        pw.increaseIndent();
+        mMdnsMetrics.dump(pw);
+        pw.decreaseIndent();
+
         // Dump service and clients logs
         pw.println();
         pw.println("Logs:");
@@ -2559,6 +2731,21 @@ public class NsdService extends INsdManager.Stub {
         pw.decreaseIndent();
     }
 
+    private void dumpMdnsMetricsProto(@NonNull FileDescriptor fd) {
+        try {
+            mMdnsMetrics.toProto().writeTo(new FileOutputStream(fd));
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing mDNS metrics proto", e);
+        }
+    }
+
+    private void dumpDispatchLatency(@NonNull PrintWriter pw) {
+        pw.println(mClientRequestLatency);
+        pw.println(mDaemonEventLatency);
+        pw.println(mDiscoveryManagerEventLatency + ", in "
+                + mDiscoveryManagerEventBatchCount + " batches");
+    }
+
     private abstract static class ClientRequest {
         private final int mTransactionId;
         private final long mStartTimeMs;
@@ -19,6 +19,7 @@ package com.android.server.connectivity.mdns;
 import static com.android.server.connectivity.mdns.MdnsServiceTypeClient.INVALID_TRANSACTION_ID;
 
 import android.annotation.NonNull;
+import android.annotation.Nullable;
 import android.os.Build;
 import android.text.TextUtils;
 import android.util.Pair;
@@ -80,6 +81,10 @@ public class EnqueueMdnsQueryCallable implements Callable<Pair<Integer, List<Str
     @NonNull
     private final SharedLog sharedLog;
     private final boolean onlyUseIpv6OnIpv6OnlyNetworks;
+    @Nullable
+    private final MdnsQueryAggregator queryAggregator;
+    @NonNull
+    private final List<MdnsRecord> knownAnswers;
 
     EnqueueMdnsQueryCallable(
             @NonNull MdnsSocketClientBase requestSender,
@@ -94,6 +99,35 @@ public class EnqueueMdnsQueryCallable implements Callable<Pair<Integer, List<Str
             @NonNull Collection<MdnsResponse> servicesToResolve,
             @NonNull MdnsUtils.Clock clock,
             @NonNull SharedLog sharedLog) {
+        this(requestSender, packetWriter, serviceType, subtypes, expectUnicastResponse,
+                transactionId, socketKey, onlyUseIpv6OnIpv6OnlyNetworks, sendDiscoveryQueries,
+                servicesToResolve, clock, sharedLog, null /* queryAggregator */,
+                Collections.emptyList() /* knownAnswers */);
+    }
+
+    /**
+     * Create a callable that enqueues a query.
+     *
+     * @param queryAggregator If non-null, the aggregator used to send the query with the queries
+     *                        of other service types.
+     * @param knownAnswers Answers to the discovery queries to include in the query, only used when
+     *                     the query is sent through a {@link MdnsQueryAggregator}.
+     */
+    EnqueueMdnsQueryCallable(
+            @NonNull MdnsSocketClientBase requestSender,
+            @NonNull MdnsPacketWriter packetWriter,
+            @NonNull String serviceType,
+            @NonNull Collection<String> subtypes,
+            boolean expectUnicastResponse,
+            int transactionId,
+            @NonNull SocketKey socketKey,
+            boolean onlyUseIpv6OnIpv6OnlyNetworks,
+            boolean sendDiscoveryQueries,
+            @NonNull Collection<MdnsResponse> servicesToResolve,
+            @NonNull MdnsUtils.Clock clock,
+            @NonNull SharedLog sharedLog,
+            @Nullable MdnsQueryAggregator queryAggregator,
+            @NonNull Collection<MdnsRecord> knownAnswers) {
         weakRequestSender = new WeakReference<>(requestSender);
         this.packetWriter = packetWriter;
         serviceTypeLabels = TextUtils.split(serviceType, "\\.");
@@ -106,6 +140,8 @@ public class EnqueueMdnsQueryCallable implements Callable<Pair<Integer, List<Str
         this.servicesToResolve = new ArrayList<>(servicesToResolve);
         this.clock = clock;
         this.sharedLog = sharedLog;
+        this.queryAggregator = queryAggregator;
+        this.knownAnswers = new ArrayList<>(knownAnswers);
     }
 
     /**
@@ -176,6 +212,14 @@ public class EnqueueMdnsQueryCallable implements Callable<Pair<Integer, List<Str
                 return Pair.create(INVALID_TRANSACTION_ID, new ArrayList<>());
             }
 
+            if (queryAggregator != null) {
+                // The aggregator sends the questions along with those of other service types on
+                // the same socket, and the known answers that are still valid.
+                queryAggregator.enqueueQuery(socketKey, expectUnicastResponse,
+                        onlyUseIpv6OnIpv6OnlyNetworks, transactionId, questions, knownAnswers);
+                return Pair.create(transactionId, subtypes);
+            }
+
             final MdnsPacket queryPacket = new MdnsPacket(
                     transactionId,
                     MdnsConstants.FLAGS_QUERY,
@@ -184,10 +228,8 @@ public class EnqueueMdnsQueryCallable implements Callable<Pair<Integer, List<Str
                     Collections.emptyList(), /* authorityRecords */
                     Collections.emptyList() /* additionalRecords */);
             MdnsUtils.writeMdnsPacket(packetWriter, queryPacket);
-            sendPacketToIpv4AndIpv6(requestSender, MdnsConstants.MDNS_PORT);
-            for (Integer emulatorPort : castShellEmulatorMdnsPorts) {
-                sendPacketToIpv4AndIpv6(requestSender, emulatorPort);
-            }
+            sendQueryPacket(requestSender, packetWriter, socketKey, expectUnicastResponse,
+                    onlyUseIpv6OnIpv6OnlyNetworks, sharedLog);
             return Pair.create(transactionId, subtypes);
         } catch (IOException e) {
             sharedLog.e(String.format("Failed to create mDNS packet for subtype: %s.",
@@ -196,7 +238,25 @@ public class EnqueueMdnsQueryCallable implements Callable<Pair<Integer, List<Str
         }
     }
 
-    private void sendPacket(MdnsSocketClientBase requestSender, InetSocketAddress address)
+    /**
+     * Send a query packet to the IPv4 and IPv6 mDNS addresses, on the mDNS port and the cast shell
+     * emulator ports.
+     */
+    static void sendQueryPacket(@NonNull MdnsSocketClientBase requestSender,
+            @NonNull MdnsPacketWriter packetWriter, @NonNull SocketKey socketKey,
+            boolean expectUnicastResponse, boolean onlyUseIpv6OnIpv6OnlyNetworks,
+            @NonNull SharedLog sharedLog) {
+        sendPacketToIpv4AndIpv6(requestSender, packetWriter, socketKey, expectUnicastResponse,
+                onlyUseIpv6OnIpv6OnlyNetworks, sharedLog, MdnsConstants.MDNS_PORT);
+        for (Integer emulatorPort : castShellEmulatorMdnsPorts) {
+            sendPacketToIpv4AndIpv6(requestSender, packetWriter, socketKey, expectUnicastResponse,
+                    onlyUseIpv6OnIpv6OnlyNetworks, sharedLog, emulatorPort);
+        }
+    }
+
+    private static void sendPacket(MdnsSocketClientBase requestSender,
+            MdnsPacketWriter packetWriter, SocketKey socketKey, boolean expectUnicastResponse,
+            boolean onlyUseIpv6OnIpv6OnlyNetworks, InetSocketAddress address)
             throws IOException {
         DatagramPacket packet = packetWriter.getPacket(address);
         if (expectUnicastResponse) {
@@ -222,15 +282,19 @@ public class EnqueueMdnsQueryCallable implements Callable<Pair<Integer, List<Str
         }
     }
 
-    private void sendPacketToIpv4AndIpv6(MdnsSocketClientBase requestSender, int port) {
+    private static void sendPacketToIpv4AndIpv6(MdnsSocketClientBase requestSender,
+            MdnsPacketWriter packetWriter, SocketKey socketKey, boolean expectUnicastResponse,
+            boolean onlyUseIpv6OnIpv6OnlyNetworks, SharedLog sharedLog, int port) {
         try {
-            sendPacket(requestSender,
+            sendPacket(requestSender, packetWriter, socketKey, expectUnicastResponse,
+                    onlyUseIpv6OnIpv6OnlyNetworks,
                     new InetSocketAddress(MdnsConstants.getMdnsIPv4Address(), port));
         } catch (IOException e) {
             sharedLog.e("Can't send packet to IPv4", e);
         }
         try {
-            sendPacket(requestSender,
+            sendPacket(requestSender, packetWriter, socketKey, expectUnicastResponse,
+                    onlyUseIpv6OnIpv6OnlyNetworks,
                     new InetSocketAddress(MdnsConstants.getMdnsIPv6Address(), port));
         } catch (IOException e) {
             sharedLog.e("Can't send packet to IPv6", e);
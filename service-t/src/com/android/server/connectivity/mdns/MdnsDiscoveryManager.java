@@ -24,6 +24,7 @@ import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.Log;
 import android.util.Pair;
 
@@ -38,6 +39,7 @@ import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.Executor;
 
 /**
@@ -59,6 +61,9 @@ public class MdnsDiscoveryManager implements MdnsSocketClientBase.Callback {
     // Only accessed on the handler thread, initialized before first use
     @Nullable
     private MdnsServiceCache serviceCache;
+    // Only used when query aggregation is enabled
+    @Nullable
+    private MdnsQueryAggregator queryAggregator;
 
     private static class PerSocketServiceTypeClients {
         private final ArrayMap<Pair<String, SocketKey>, MdnsServiceTypeClient> clients =
@@ -108,6 +113,15 @@ public class MdnsDiscoveryManager implements MdnsSocketClientBase.Callback {
             return new ArrayList<>(clients.values());
         }
 
+        /** Returns the DNS lower case service types of all clients. */
+        public Set<String> getServiceTypes() {
+            final Set<String> serviceTypes = new ArraySet<>();
+            for (int i = 0; i < clients.size(); i++) {
+                serviceTypes.add(clients.keyAt(i).first);
+            }
+            return serviceTypes;
+        }
+
         public void remove(@NonNull MdnsServiceTypeClient client) {
             for (int i = 0; i < clients.size(); ++i) {
                 if (Objects.equals(client, clients.valueAt(i))) {
@@ -254,6 +268,7 @@ public class MdnsDiscoveryManager implements MdnsSocketClientBase.Callback {
                             serviceTypeClient = createServiceTypeClient(serviceType, socketKey);
                             perSocketServiceTypeClients.put(serviceType, socketKey,
                                     serviceTypeClient);
+                            updateRecordFilter();
                         }
                         serviceTypeClient.startSendAndReceive(listener, searchOptions);
                     }
@@ -268,6 +283,7 @@ public class MdnsDiscoveryManager implements MdnsSocketClientBase.Callback {
                         serviceTypeClient.notifySocketDestroyed();
                         executorProvider.shutdownExecutorService(serviceTypeClient.getExecutor());
                         perSocketServiceTypeClients.remove(serviceTypeClient);
+                        updateRecordFilter();
                     }
                 });
     }
@@ -306,6 +322,7 @@ public class MdnsDiscoveryManager implements MdnsSocketClientBase.Callback {
                 perSocketServiceTypeClients.remove(serviceTypeClient);
             }
         }
+        updateRecordFilter();
         if (perSocketServiceTypeClients.isEmpty()) {
             // No discovery request. Stops the socket client.
             sharedLog.i("All service type listeners unregistered; stopping discovery");
@@ -313,6 +330,16 @@ public class MdnsDiscoveryManager implements MdnsSocketClientBase.Callback {
         }
     }
 
+    /**
+     * Update the socket client filter so that it only decodes records about the service types
+     * being discovered.
+     */
+    private void updateRecordFilter() {
+        if (!mdnsFeatureFlags.isResponseRecordFilteringEnabled()) return;
+        socketClient.setRecordFilter(
+                new MdnsRecordFilter(perSocketServiceTypeClients.getServiceTypes()));
+    }
+
     @Override
     public void onResponseReceived(@NonNull MdnsPacket packet, @NonNull SocketKey socketKey) {
         discoveryExecutor.checkAndRunOnHandlerThread(() ->
@@ -359,10 +386,14 @@ public class MdnsDiscoveryManager implements MdnsSocketClientBase.Callback {
         if (serviceCache == null) {
             serviceCache = new MdnsServiceCache(looper, mdnsFeatureFlags);
         }
+        if (queryAggregator == null && mdnsFeatureFlags.isQueryAggregationEnabled()) {
+            queryAggregator = new MdnsQueryAggregator(looper, socketClient,
+                    sharedLog.forSubComponent("QueryAggregator"));
+        }
         return new MdnsServiceTypeClient(
                 serviceType, socketClient,
                 executorProvider.newServiceTypeClientSchedulerExecutor(), socketKey,
-                sharedLog.forSubComponent(tag), looper, serviceCache);
+                sharedLog.forSubComponent(tag), looper, serviceCache, queryAggregator);
     }
 
     /**
@@ -371,6 +402,12 @@ public class MdnsDiscoveryManager implements MdnsSocketClientBase.Callback {
     public void dump(PrintWriter pw) {
         discoveryExecutor.checkAndRunOnHandlerThread(() -> {
             pw.println();
+            if (serviceCache != null) {
+                serviceCache.dump(pw);
+            }
+            if (queryAggregator != null) {
+                queryAggregator.dump(pw);
+            }
             // Dump ServiceTypeClients
             for (MdnsServiceTypeClient serviceTypeClient
                     : perSocketServiceTypeClients.getAllMdnsServiceTypeClient()) {
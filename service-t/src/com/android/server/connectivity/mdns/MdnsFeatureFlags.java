@@ -62,6 +62,30 @@ public class MdnsFeatureFlags {
      */
     public static final String NSD_AGGRESSIVE_QUERY_MODE = "nsd_aggressive_query_mode";
 
+    /**
+     * A feature flag to control whether records of received responses that are not about browsed
+     * service types should be skipped without being decoded.
+     */
+    public static final String NSD_FILTER_RESPONSE_RECORDS = "nsd_filter_response_records";
+
+    /**
+     * A feature flag to control whether discovery queries due at the same time on a socket should
+     * be sent together with their known answers.
+     */
+    public static final String NSD_AGGREGATE_QUERIES = "nsd_aggregate_queries";
+
+    /**
+     * A feature flag to control whether the wire format of sent mDNS reply packets should be
+     * cached, so that repeated replies are not encoded again.
+     */
+    public static final String NSD_CACHE_REPLY_PACKETS = "nsd_cache_reply_packets";
+
+    /**
+     * A feature flag to control whether received mDNS responses should be decoded on worker
+     * threads instead of the discovery looper thread.
+     */
+    public static final String NSD_DECODE_ON_WORKER_THREADS = "nsd_decode_on_worker_threads";
+
     // Flag for offload feature
     public final boolean mIsMdnsOffloadFeatureEnabled;
 
@@ -83,6 +107,18 @@ public class MdnsFeatureFlags {
     // Flag for aggressive query mode
     public final boolean mIsAggressiveQueryModeEnabled;
 
+    // Flag for skipping records of responses that are not about browsed service types
+    public final boolean mIsResponseRecordFilteringEnabled;
+
+    // Flag for aggregating the queries of service types on a socket
+    public final boolean mIsQueryAggregationEnabled;
+
+    // Flag for caching the wire format of reply packets
+    public final boolean mIsReplyPacketCacheEnabled;
+
+    // Flag for decoding responses on worker threads
+    public final boolean mIsDecodeOnWorkerThreadsEnabled;
+
     @Nullable
     private final FlagOverrideProvider mOverrideProvider;
 
@@ -125,6 +161,35 @@ public class MdnsFeatureFlags {
                 || isForceEnabledForTest(NSD_KNOWN_ANSWER_SUPPRESSION);
     }
 
+    /**
+     * Indicates whether {@link #NSD_FILTER_RESPONSE_RECORDS} is enabled, including for testing.
+     */
+    public boolean isResponseRecordFilteringEnabled() {
+        return mIsResponseRecordFilteringEnabled
+                || isForceEnabledForTest(NSD_FILTER_RESPONSE_RECORDS);
+    }
+
+    /**
+     * Indicates whether {@link #NSD_AGGREGATE_QUERIES} is enabled, including for testing.
+     */
+    public boolean isQueryAggregationEnabled() {
+        return mIsQueryAggregationEnabled || isForceEnabledForTest(NSD_AGGREGATE_QUERIES);
+    }
+
+    /**
+     * Indicates whether {@link #NSD_CACHE_REPLY_PACKETS} is enabled, including for testing.
+     */
+    public boolean isReplyPacketCacheEnabled() {
+        return mIsReplyPacketCacheEnabled || isForceEnabledForTest(NSD_CACHE_REPLY_PACKETS);
+    }
+
+    /**
+     * Indicates whether {@link #NSD_DECODE_ON_WORKER_THREADS} is enabled, including for testing.
+     */
+    public boolean isDecodeOnWorkerThreadsEnabled() {
+        return mIsDecodeOnWorkerThreadsEnabled || isForceEnabledForTest(NSD_DECODE_ON_WORKER_THREADS);
+    }
+
     /**
      * The constructor for {@link MdnsFeatureFlags}.
      */
@@ -135,6 +200,10 @@ public class MdnsFeatureFlags {
             boolean isKnownAnswerSuppressionEnabled,
             boolean isUnicastReplyEnabled,
             boolean isAggressiveQueryModeEnabled,
+            boolean isResponseRecordFilteringEnabled,
+            boolean isQueryAggregationEnabled,
+            boolean isReplyPacketCacheEnabled,
+            boolean isDecodeOnWorkerThreadsEnabled,
             @Nullable FlagOverrideProvider overrideProvider) {
         mIsMdnsOffloadFeatureEnabled = isOffloadFeatureEnabled;
         mIncludeInetAddressRecordsInProbing = includeInetAddressRecordsInProbing;
@@ -143,6 +212,10 @@ public class MdnsFeatureFlags {
         mIsKnownAnswerSuppressionEnabled = isKnownAnswerSuppressionEnabled;
         mIsUnicastReplyEnabled = isUnicastReplyEnabled;
         mIsAggressiveQueryModeEnabled = isAggressiveQueryModeEnabled;
+        mIsResponseRecordFilteringEnabled = isResponseRecordFilteringEnabled;
+        mIsQueryAggregationEnabled = isQueryAggregationEnabled;
+        mIsReplyPacketCacheEnabled = isReplyPacketCacheEnabled;
+        mIsDecodeOnWorkerThreadsEnabled = isDecodeOnWorkerThreadsEnabled;
         mOverrideProvider = overrideProvider;
     }
 
@@ -162,6 +235,10 @@ public class MdnsFeatureFlags {
         private boolean mIsKnownAnswerSuppressionEnabled;
         private boolean mIsUnicastReplyEnabled;
         private boolean mIsAggressiveQueryModeEnabled;
+        private boolean mIsResponseRecordFilteringEnabled;
+        private boolean mIsQueryAggregationEnabled;
+        private boolean mIsReplyPacketCacheEnabled;
+        private boolean mIsDecodeOnWorkerThreadsEnabled;
         private FlagOverrideProvider mOverrideProvider;
 
         /**
@@ -175,6 +252,10 @@ public class MdnsFeatureFlags {
             mIsKnownAnswerSuppressionEnabled = false;
             mIsUnicastReplyEnabled = true;
             mIsAggressiveQueryModeEnabled = false;
+            mIsResponseRecordFilteringEnabled = false;
+            mIsQueryAggregationEnabled = false;
+            mIsReplyPacketCacheEnabled = false;
+            mIsDecodeOnWorkerThreadsEnabled = false;
             mOverrideProvider = null;
         }
 
@@ -260,6 +341,47 @@ public class MdnsFeatureFlags {
             return this;
         }
 
+        /**
+         * Set whether records of responses that are not about browsed types are skipped.
+         *
+         * @see #NSD_FILTER_RESPONSE_RECORDS
+         */
+        public Builder setIsResponseRecordFilteringEnabled(
+                boolean isResponseRecordFilteringEnabled) {
+            mIsResponseRecordFilteringEnabled = isResponseRecordFilteringEnabled;
+            return this;
+        }
+
+        /**
+         * Set whether discovery queries of service types on a socket are aggregated.
+         *
+         * @see #NSD_AGGREGATE_QUERIES
+         */
+        public Builder setIsQueryAggregationEnabled(boolean isQueryAggregationEnabled) {
+            mIsQueryAggregationEnabled = isQueryAggregationEnabled;
+            return this;
+        }
+
+        /**
+         * Set whether the wire format of reply packets is cached.
+         *
+         * @see #NSD_CACHE_REPLY_PACKETS
+         */
+        public Builder setIsReplyPacketCacheEnabled(boolean isReplyPacketCacheEnabled) {
+            mIsReplyPacketCacheEnabled = isReplyPacketCacheEnabled;
+            return this;
+        }
+
+        /**
+         * Set whether received responses are decoded on worker threads.
+         *
+         * @see #NSD_DECODE_ON_WORKER_THREADS
+         */
+        public Builder setIsDecodeOnWorkerThreadsEnabled(boolean isDecodeOnWorkerThreadsEnabled) {
+            mIsDecodeOnWorkerThreadsEnabled = isDecodeOnWorkerThreadsEnabled;
+            return this;
+        }
+
         /**
          * Builds a {@link MdnsFeatureFlags} with the arguments supplied to this builder.
          */
@@ -271,6 +393,10 @@ public class MdnsFeatureFlags {
                     mIsKnownAnswerSuppressionEnabled,
                     mIsUnicastReplyEnabled,
                     mIsAggressiveQueryModeEnabled,
+                    mIsResponseRecordFilteringEnabled,
+                    mIsQueryAggregationEnabled,
+                    mIsReplyPacketCacheEnabled,
+                    mIsDecodeOnWorkerThreadsEnabled,
                     mOverrideProvider);
         }
     }
@@ -27,7 +27,9 @@ import android.net.nsd.NsdServiceInfo;
 import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.util.ArraySet;
+import android.util.SparseLongArray;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.net.module.util.HexDump;
@@ -78,6 +80,13 @@ public class MdnsInterfaceAdvertiser implements MulticastPacketReader.PacketHand
     private final byte[] mPacketCreationBuffer;
     @NonNull
     private final MdnsFeatureFlags mMdnsFeatureFlags;
+    @NonNull
+    private final MdnsMetrics.InterfaceMetrics mMetrics;
+    // Start time of probing and announcing of each service, for metrics
+    @NonNull
+    private final SparseLongArray mProbingStartTimes = new SparseLongArray();
+    @NonNull
+    private final SparseLongArray mAnnouncingStartTimes = new SparseLongArray();
 
     /**
      * Callbacks called by {@link MdnsInterfaceAdvertiser} to report status updates.
@@ -122,6 +131,12 @@ public class MdnsInterfaceAdvertiser implements MulticastPacketReader.PacketHand
         public void onFinished(MdnsProber.ProbingInfo info) {
             final MdnsAnnouncer.AnnouncementInfo announcementInfo;
             mSharedLog.i("Probing finished for service " + info.getServiceId());
+            final long now = SystemClock.elapsedRealtime();
+            final int probingIndex = mProbingStartTimes.indexOfKey(info.getServiceId());
+            if (probingIndex >= 0) {
+                mMetrics.onProbingFinished(now - mProbingStartTimes.valueAt(probingIndex));
+                mProbingStartTimes.removeAt(probingIndex);
+            }
             mCbHandler.post(() -> mCb.onServiceProbingSucceeded(
                     MdnsInterfaceAdvertiser.this, info.getServiceId()));
             try {
@@ -131,6 +146,7 @@ public class MdnsInterfaceAdvertiser implements MulticastPacketReader.PacketHand
                 return;
             }
 
+            mAnnouncingStartTimes.put(info.getServiceId(), now);
             mAnnouncer.startSending(info.getServiceId(), announcementInfo,
                     0L /* initialDelayMs */);
         }
@@ -153,6 +169,13 @@ public class MdnsInterfaceAdvertiser implements MulticastPacketReader.PacketHand
                 if (mRecordRepository.getServicesCount() == 0) {
                     destroyNow();
                 }
+            } else {
+                final int announcingIndex = mAnnouncingStartTimes.indexOfKey(info.getServiceId());
+                if (announcingIndex >= 0) {
+                    mMetrics.onAnnouncingFinished(SystemClock.elapsedRealtime()
+                            - mAnnouncingStartTimes.valueAt(announcingIndex));
+                    mAnnouncingStartTimes.removeAt(announcingIndex);
+                }
             }
         }
     }
@@ -228,6 +251,7 @@ public class MdnsInterfaceAdvertiser implements MulticastPacketReader.PacketHand
                 sharedLog);
         mSharedLog = sharedLog;
         mMdnsFeatureFlags = mdnsFeatureFlags;
+        mMetrics = socket.getMetrics();
     }
 
     /**
@@ -251,6 +275,7 @@ public class MdnsInterfaceAdvertiser implements MulticastPacketReader.PacketHand
         // The current implementation is intended to be used in cases where subtypes don't get
         // announced.
         mRecordRepository.updateService(id, subtypes);
+        mReplySender.clearPacketCache();
     }
 
     /**
@@ -270,6 +295,8 @@ public class MdnsInterfaceAdvertiser implements MulticastPacketReader.PacketHand
             mAnnouncer.stop(replacedExitingService);
         }
         mProber.startProbing(mRecordRepository.setServiceProbing(id));
+        mProbingStartTimes.put(id, SystemClock.elapsedRealtime());
+        mAnnouncingStartTimes.delete(id);
     }
 
     /**
@@ -281,6 +308,9 @@ public class MdnsInterfaceAdvertiser implements MulticastPacketReader.PacketHand
         if (!mRecordRepository.hasActiveService(id)) return;
         mProber.stop(id);
         mAnnouncer.stop(id);
+        mProbingStartTimes.delete(id);
+        mAnnouncingStartTimes.delete(id);
+        mReplySender.clearPacketCache();
         final MdnsAnnouncer.ExitAnnouncementInfo exitInfo = mRecordRepository.exitService(id);
         if (exitInfo != null) {
             // This effectively schedules destroyNow(), as it is to be called when the exit
@@ -323,6 +353,7 @@ public class MdnsInterfaceAdvertiser implements MulticastPacketReader.PacketHand
      */
     public void updateAddresses(@NonNull List<LinkAddress> newAddresses) {
         mRecordRepository.updateAddresses(newAddresses);
+        mReplySender.clearPacketCache();
         // TODO: restart advertising, but figure out what exit messages need to be sent for the
         // previous addresses
     }
@@ -337,7 +368,10 @@ public class MdnsInterfaceAdvertiser implements MulticastPacketReader.PacketHand
             mProber.stop(serviceId);
             mAnnouncer.stop(serviceId);
         }
+        mProbingStartTimes.clear();
+        mAnnouncingStartTimes.clear();
         mReplySender.cancelAll();
+        mReplySender.clearPacketCache();
         mSocket.removePacketHandler(this);
         mCbHandler.post(() -> mCb.onDestroyed(mSocket));
     }
@@ -350,6 +384,12 @@ public class MdnsInterfaceAdvertiser implements MulticastPacketReader.PacketHand
         if (probingInfo == null) return false;
 
         mAnnouncer.stop(serviceId);
+        mAnnouncingStartTimes.delete(serviceId);
+        // Probing durations include restarts for conflicts
+        if (mProbingStartTimes.indexOfKey(serviceId) < 0) {
+            mProbingStartTimes.put(serviceId, SystemClock.elapsedRealtime());
+        }
+        mReplySender.clearPacketCache();
         mProber.restartForConflict(probingInfo);
         return true;
     }
@@ -364,6 +404,11 @@ public class MdnsInterfaceAdvertiser implements MulticastPacketReader.PacketHand
                 serviceId, newInfo);
         if (probingInfo == null) return;
 
+        mAnnouncingStartTimes.delete(serviceId);
+        if (mProbingStartTimes.indexOfKey(serviceId) < 0) {
+            mProbingStartTimes.put(serviceId, SystemClock.elapsedRealtime());
+        }
+        mReplySender.clearPacketCache();
         mProber.restartForConflict(probingInfo);
     }
 
@@ -379,9 +424,12 @@ public class MdnsInterfaceAdvertiser implements MulticastPacketReader.PacketHand
     @Override
     public void handlePacket(byte[] recvbuf, int length, InetSocketAddress src) {
         final MdnsPacket packet;
+        final long decodeStartNs = SystemClock.elapsedRealtimeNanos();
         try {
             packet = MdnsPacket.parse(new MdnsPacketReader(recvbuf, length, mMdnsFeatureFlags));
+            mMetrics.onPacketDecoded((SystemClock.elapsedRealtimeNanos() - decodeStartNs) / 1000);
         } catch (MdnsPacket.ParseException e) {
+            mMetrics.onPacketParseFailed();
             mSharedLog.e("Error parsing mDNS packet", e);
             if (DBG) {
                 mSharedLog.v("Packet: " + HexDump.toHexString(recvbuf, 0, length));
@@ -59,13 +59,16 @@ public class MdnsInterfaceSocket {
     @NonNull private final MulticastPacketReader mPacketReader;
     @NonNull private final ParcelFileDescriptor mFileDescriptor;
     @NonNull private final SharedLog mSharedLog;
+    @NonNull private final MdnsMetrics.InterfaceMetrics mMetrics;
     private boolean mJoinedIpv4 = false;
     private boolean mJoinedIpv6 = false;
 
     public MdnsInterfaceSocket(@NonNull NetworkInterface networkInterface, int port,
-            @NonNull Looper looper, @NonNull byte[] packetReadBuffer, @NonNull SharedLog sharedLog)
+            @NonNull Looper looper, @NonNull byte[][] packetReadBuffers,
+            @NonNull SharedLog sharedLog, @NonNull MdnsMetrics.InterfaceMetrics metrics)
             throws IOException {
         mNetworkInterface = networkInterface;
+        mMetrics = metrics;
         mMulticastSocket = new MulticastSocket(port);
         // RFC Spec: https://tools.ietf.org/html/rfc6762. Time to live is set 255
         mMulticastSocket.setTimeToLive(255);
@@ -83,7 +86,9 @@ public class MdnsInterfaceSocket {
         }
 
         mPacketReader = new MulticastPacketReader(networkInterface.getName(), mFileDescriptor,
-                new Handler(looper), packetReadBuffer);
+                new Handler(looper), packetReadBuffers);
+        mPacketReader.addPacketHandler(
+                (recvbuf, length, src) -> mMetrics.onPacketReceived(length));
         mPacketReader.start();
 
         mSharedLog = sharedLog;
@@ -96,6 +101,7 @@ public class MdnsInterfaceSocket {
      */
     public void send(@NonNull DatagramPacket packet) throws IOException {
         mMulticastSocket.send(packet);
+        mMetrics.onPacketSent(packet.getLength());
     }
 
     private static boolean hasIpv4Address(@NonNull List<LinkAddress> addresses) {
@@ -185,6 +191,16 @@ public class MdnsInterfaceSocket {
         return mNetworkInterface;
     }
 
+    /**
+     * Returns the metrics of the interface that this socket is bound to.
+     *
+     * <p>This method could be used on any thread.
+     */
+    @NonNull
+    public MdnsMetrics.InterfaceMetrics getMetrics() {
+        return mMetrics;
+    }
+
     /*** Returns whether this socket has joined IPv4 group */
     public boolean hasJoinedIpv4() {
         return mJoinedIpv4;
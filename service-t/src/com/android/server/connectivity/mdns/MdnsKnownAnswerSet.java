@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity.mdns;
+
+import android.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A set of Known-Answer records received from a querier, used for Known-Answer Suppression
+ * (RFC6762 7.1).
+ *
+ * <p>Known answers are hashed by record value, so checking whether an answer is known takes
+ * constant time regardless of the number of known answers, which can be large when a querier
+ * sends a multipacket Known-Answer list (RFC6762 7.2).
+ *
+ * <p>This class is not thread safe.
+ */
+public final class MdnsKnownAnswerSet {
+    // Known answers by value (name, type and data, ignoring the TTL). When a record is known with
+    // multiple TTLs, the one with the largest TTL is kept.
+    @NonNull
+    private final HashMap<MdnsRecord, MdnsRecord> mKnownAnswers = new HashMap<>();
+
+    public MdnsKnownAnswerSet() {}
+
+    public MdnsKnownAnswerSet(@NonNull Collection<MdnsRecord> knownAnswers) {
+        addAll(knownAnswers);
+    }
+
+    /**
+     * Add a known answer to the set.
+     */
+    public void add(@NonNull MdnsRecord knownAnswer) {
+        final MdnsRecord existing = mKnownAnswers.get(knownAnswer);
+        if (existing == null || existing.getTtl() < knownAnswer.getTtl()) {
+            mKnownAnswers.put(knownAnswer, knownAnswer);
+        }
+    }
+
+    /**
+     * Add all the given known answers to the set.
+     */
+    public void addAll(@NonNull Collection<MdnsRecord> knownAnswers) {
+        for (MdnsRecord knownAnswer : knownAnswers) {
+            add(knownAnswer);
+        }
+    }
+
+    /**
+     * Returns whether the given answer is suppressed by the known answers.
+     *
+     * <p>As per RFC6762 7.1, an answer is suppressed if it is included in the known answers with
+     * a TTL at least half of the TTL of the answer.
+     */
+    public boolean isKnownAnswer(@NonNull MdnsRecord answer) {
+        final MdnsRecord knownAnswer = mKnownAnswers.get(answer);
+        return knownAnswer != null && knownAnswer.getTtl() > (answer.getTtl() / 2);
+    }
+
+    /**
+     * Returns the number of distinct known answers in the set.
+     */
+    public int size() {
+        return mKnownAnswers.size();
+    }
+
+    /**
+     * Returns whether the set has no known answer.
+     */
+    public boolean isEmpty() {
+        return mKnownAnswers.isEmpty();
+    }
+
+    /**
+     * Returns a new list containing the known answers in the set.
+     */
+    @NonNull
+    public List<MdnsRecord> toList() {
+        return new ArrayList<>(mKnownAnswers.values());
+    }
+}
@@ -0,0 +1,462 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity.mdns;
+
+import android.annotation.NonNull;
+import android.util.ArrayMap;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.metrics.MdnsHistogramProto;
+import com.android.metrics.MdnsInterfaceMetricsProto;
+import com.android.metrics.MdnsMetricsDumpProto;
+import com.android.metrics.MdnsServiceTypeMetricsProto;
+import com.android.server.connectivity.mdns.util.MdnsUtils;
+
+import java.io.PrintWriter;
+
+/**
+ * Traffic and latency metrics of mDNS discovery and advertising.
+ *
+ * <p>Metrics are kept per network interface (packets and bytes received and sent, parse failures,
+ * decode time, probing and announcing durations) and per discovered service type (time to the
+ * first service found, resolution time). They are cumulative since the start of the service, and
+ * dumped by NsdService as text or as a {@link MdnsMetricsDumpProto}.
+ *
+ * <p>This class is thread-safe: packets can be sent from any thread.
+ */
+public class MdnsMetrics {
+    // Interfaces above this limit are counted together, to bound memory usage when interfaces
+    // with different names keep being created, such as tunnels or virtual machine interfaces.
+    @VisibleForTesting
+    static final int MAX_INTERFACES = 50;
+    @VisibleForTesting
+    static final String OTHER_INTERFACES = "(other)";
+    // Service types above this limit are counted together, to bound memory usage when apps
+    // discover many different types.
+    @VisibleForTesting
+    static final int MAX_SERVICE_TYPES = 100;
+    @VisibleForTesting
+    static final String OTHER_SERVICE_TYPES = "(other)";
+    private static final long[] DECODE_TIME_BOUNDS_US =
+            { 50, 100, 200, 500, 1_000, 2_000, 5_000, 10_000 };
+    private static final long[] DURATION_BOUNDS_MS =
+            { 100, 200, 500, 1_000, 2_000, 5_000, 10_000, 30_000 };
+    private static final long ONE_SECOND_MS = 1000L;
+
+    @NonNull
+    private final MdnsUtils.Clock mClock;
+    @GuardedBy("this")
+    private final ArrayMap<String, InterfaceMetrics> mInterfaceMetrics = new ArrayMap<>();
+    @GuardedBy("this")
+    private final ArrayMap<String, ServiceTypeMetrics> mServiceTypeMetrics = new ArrayMap<>();
+
+    /**
+     * Histogram of values in buckets with fixed upper bounds.
+     *
+     * <p>Not thread-safe: synchronized by its owner.
+     */
+    @VisibleForTesting
+    static class Histogram {
+        @NonNull
+        private final long[] mBucketUpperBounds;
+        @NonNull
+        private final long[] mBucketCounts;
+        private long mCount;
+        private long mSum;
+        private long mMax;
+
+        Histogram(@NonNull long[] bucketUpperBounds) {
+            mBucketUpperBounds = bucketUpperBounds;
+            mBucketCounts = new long[bucketUpperBounds.length + 1];
+        }
+
+        void add(long value) {
+            int bucket = 0;
+            while (bucket < mBucketUpperBounds.length && value > mBucketUpperBounds[bucket]) {
+                bucket++;
+            }
+            mBucketCounts[bucket]++;
+            mCount++;
+            mSum += value;
+            mMax = Math.max(mMax, value);
+        }
+
+        long getCount() {
+            return mCount;
+        }
+
+        long getBucketCount(int bucket) {
+            return mBucketCounts[bucket];
+        }
+
+        @NonNull
+        MdnsHistogramProto toProto() {
+            final MdnsHistogramProto.Builder builder = MdnsHistogramProto.newBuilder()
+                    .setCount(mCount)
+                    .setSum(mSum)
+                    .setMax(mMax);
+            for (long bound : mBucketUpperBounds) {
+                builder.addBucketUpperBounds(bound);
+            }
+            for (long count : mBucketCounts) {
+                builder.addBucketCounts(count);
+            }
+            return builder.build();
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder()
+                    .append("count=").append(mCount)
+                    .append(", average=").append(mCount == 0 ? 0 : mSum / mCount)
+                    .append(", max=").append(mMax)
+                    .append(", buckets=[");
+            for (int i = 0; i < mBucketCounts.length; i++) {
+                if (i > 0) sb.append(", ");
+                sb.append(i < mBucketUpperBounds.length
+                        ? "<=" + mBucketUpperBounds[i]
+                        : ">" + mBucketUpperBounds[i - 1]);
+                sb.append(": ").append(mBucketCounts[i]);
+            }
+            return sb.append("]").toString();
+        }
+    }
+
+    /**
+     * Metrics of a network interface.
+     *
+     * <p>All methods can be called on any thread.
+     */
+    public class InterfaceMetrics {
+        @NonNull
+        private final String mInterfaceName;
+        @GuardedBy("MdnsMetrics.this")
+        private long mReceivedPackets;
+        @GuardedBy("MdnsMetrics.this")
+        private long mReceivedBytes;
+        @GuardedBy("MdnsMetrics.this")
+        private long mSentPackets;
+        @GuardedBy("MdnsMetrics.this")
+        private long mSentBytes;
+        @GuardedBy("MdnsMetrics.this")
+        private long mParseFailures;
+        @GuardedBy("MdnsMetrics.this")
+        private long mDroppedPackets;
+        @GuardedBy("MdnsMetrics.this")
+        private long mReceiveWindowStartMs;
+        @GuardedBy("MdnsMetrics.this")
+        private long mReceiveWindowPackets;
+        @GuardedBy("MdnsMetrics.this")
+        private long mMaxReceivedPacketsPerSecond;
+        @GuardedBy("MdnsMetrics.this")
+        private final Histogram mDecodeTimeUs = new Histogram(DECODE_TIME_BOUNDS_US);
+        @GuardedBy("MdnsMetrics.this")
+        private final Histogram mProbingDurationMs = new Histogram(DURATION_BOUNDS_MS);
+        @GuardedBy("MdnsMetrics.this")
+        private final Histogram mAnnouncingDurationMs = new Histogram(DURATION_BOUNDS_MS);
+
+        private InterfaceMetrics(@NonNull String interfaceName) {
+            mInterfaceName = interfaceName;
+        }
+
+        /**
+         * Record a packet received on the interface.
+         */
+        public void onPacketReceived(int length) {
+            final long now = mClock.elapsedRealtime();
+            synchronized (MdnsMetrics.this) {
+                mReceivedPackets++;
+                mReceivedBytes += length;
+                // Packets are counted in windows of one second to find peaks (mDNS storms)
+                if (mReceiveWindowPackets == 0 || now - mReceiveWindowStartMs >= ONE_SECOND_MS) {
+                    mReceiveWindowStartMs = now;
+                    mReceiveWindowPackets = 0;
+                }
+                mReceiveWindowPackets++;
+                mMaxReceivedPacketsPerSecond =
+                        Math.max(mMaxReceivedPacketsPerSecond, mReceiveWindowPackets);
+            }
+        }
+
+        /**
+         * Record a packet sent on the interface.
+         */
+        public void onPacketSent(int length) {
+            synchronized (MdnsMetrics.this) {
+                mSentPackets++;
+                mSentBytes += length;
+            }
+        }
+
+        /**
+         * Record the time taken to decode a received packet.
+         */
+        public void onPacketDecoded(long decodeTimeUs) {
+            synchronized (MdnsMetrics.this) {
+                mDecodeTimeUs.add(decodeTimeUs);
+            }
+        }
+
+        /**
+         * Record a received packet that could not be parsed.
+         */
+        public void onPacketParseFailed() {
+            synchronized (MdnsMetrics.this) {
+                mParseFailures++;
+            }
+        }
+
+        /**
+         * Record a received packet that was dropped because too many packets were waiting to be
+         * decoded.
+         */
+        public void onPacketDropped() {
+            synchronized (MdnsMetrics.this) {
+                mDroppedPackets++;
+            }
+        }
+
+        /**
+         * Record the duration of the probing of a service, including restarts after conflicts.
+         */
+        public void onProbingFinished(long durationMs) {
+            synchronized (MdnsMetrics.this) {
+                mProbingDurationMs.add(durationMs);
+            }
+        }
+
+        /**
+         * Record the duration of the announcements of a service.
+         */
+        public void onAnnouncingFinished(long durationMs) {
+            synchronized (MdnsMetrics.this) {
+                mAnnouncingDurationMs.add(durationMs);
+            }
+        }
+
+        @GuardedBy("MdnsMetrics.this")
+        @NonNull
+        private MdnsInterfaceMetricsProto toProto() {
+            return MdnsInterfaceMetricsProto.newBuilder()
+                    .setInterfaceName(mInterfaceName)
+                    .setReceivedPackets(mReceivedPackets)
+                    .setReceivedBytes(mReceivedBytes)
+                    .setSentPackets(mSentPackets)
+                    .setSentBytes(mSentBytes)
+                    .setParseFailures(mParseFailures)
+                    .setDroppedPackets(mDroppedPackets)
+                    .setMaxReceivedPacketsPerSecond(mMaxReceivedPacketsPerSecond)
+                    .setDecodeTimeMicros(mDecodeTimeUs.toProto())
+                    .setProbingDurationMillis(mProbingDurationMs.toProto())
+                    .setAnnouncingDurationMillis(mAnnouncingDurationMs.toProto())
+                    .build();
+        }
+
+        @GuardedBy("MdnsMetrics.this")
+        private void dump(@NonNull PrintWriter pw) {
+            pw.println("  " + mInterfaceName + ": received " + mReceivedPackets + " packets ("
+                    + mReceivedBytes + " bytes), peak " + mMaxReceivedPacketsPerSecond
+                    + " packets/s, sent " + mSentPackets + " packets (" + mSentBytes
+                    + " bytes), " + mParseFailures + " parse failures, " + mDroppedPackets
+                    + " dropped packets");
+            pw.println("    Decode time (us): " + mDecodeTimeUs);
+            pw.println("    Probing duration (ms): " + mProbingDurationMs);
+            pw.println("    Announcing duration (ms): " + mAnnouncingDurationMs);
+        }
+
+        @VisibleForTesting
+        long getReceivedPackets() {
+            synchronized (MdnsMetrics.this) {
+                return mReceivedPackets;
+            }
+        }
+
+        @VisibleForTesting
+        long getSentPackets() {
+            synchronized (MdnsMetrics.this) {
+                return mSentPackets;
+            }
+        }
+
+        @VisibleForTesting
+        long getMaxReceivedPacketsPerSecond() {
+            synchronized (MdnsMetrics.this) {
+                return mMaxReceivedPacketsPerSecond;
+            }
+        }
+
+        @VisibleForTesting
+        long getParseFailures() {
+            synchronized (MdnsMetrics.this) {
+                return mParseFailures;
+            }
+        }
+
+        @VisibleForTesting
+        long getDroppedPackets() {
+            synchronized (MdnsMetrics.this) {
+                return mDroppedPackets;
+            }
+        }
+
+        @VisibleForTesting
+        long getDecodedPackets() {
+            synchronized (MdnsMetrics.this) {
+                return mDecodeTimeUs.getCount();
+            }
+        }
+
+        @VisibleForTesting
+        long getProbingCount() {
+            synchronized (MdnsMetrics.this) {
+                return mProbingDurationMs.getCount();
+            }
+        }
+
+        @VisibleForTesting
+        long getAnnouncingCount() {
+            synchronized (MdnsMetrics.this) {
+                return mAnnouncingDurationMs.getCount();
+            }
+        }
+    }
+
+    private static class ServiceTypeMetrics {
+        @NonNull
+        private final String mServiceType;
+        private final Histogram mFirstServiceFoundMs = new Histogram(DURATION_BOUNDS_MS);
+        private final Histogram mResolveMs = new Histogram(DURATION_BOUNDS_MS);
+
+        ServiceTypeMetrics(@NonNull String serviceType) {
+            mServiceType = serviceType;
+        }
+
+        @NonNull
+        MdnsServiceTypeMetricsProto toProto() {
+            return MdnsServiceTypeMetricsProto.newBuilder()
+                    .setServiceType(mServiceType)
+                    .setFirstServiceFoundMillis(mFirstServiceFoundMs.toProto())
+                    .setResolveMillis(mResolveMs.toProto())
+                    .build();
+        }
+
+        void dump(@NonNull PrintWriter pw) {
+            pw.println("  " + mServiceType + ":");
+            pw.println("    First service found (ms): " + mFirstServiceFoundMs);
+            pw.println("    Resolve (ms): " + mResolveMs);
+        }
+    }
+
+    public MdnsMetrics() {
+        this(new MdnsUtils.Clock());
+    }
+
+    @VisibleForTesting
+    MdnsMetrics(@NonNull MdnsUtils.Clock clock) {
+        mClock = clock;
+    }
+
+    /**
+     * Get the metrics of the interface with the given name, creating them if needed.
+     *
+     * <p>Past {@link #MAX_INTERFACES} interfaces, the metrics of all new interfaces are shared.
+     */
+    @NonNull
+    public synchronized InterfaceMetrics getInterfaceMetrics(@NonNull String interfaceName) {
+        InterfaceMetrics metrics = mInterfaceMetrics.get(interfaceName);
+        if (metrics != null) return metrics;
+        if (mInterfaceMetrics.size() >= MAX_INTERFACES) {
+            metrics = mInterfaceMetrics.get(OTHER_INTERFACES);
+            if (metrics != null) return metrics;
+            metrics = new InterfaceMetrics(OTHER_INTERFACES);
+            mInterfaceMetrics.put(OTHER_INTERFACES, metrics);
+            return metrics;
+        }
+        metrics = new InterfaceMetrics(interfaceName);
+        mInterfaceMetrics.put(interfaceName, metrics);
+        return metrics;
+    }
+
+    @GuardedBy("this")
+    @NonNull
+    private ServiceTypeMetrics getServiceTypeMetrics(@NonNull String[] serviceType) {
+        final String type = MdnsUtils.toDnsLowerCase(String.join(".", serviceType));
+        ServiceTypeMetrics metrics = mServiceTypeMetrics.get(type);
+        if (metrics != null) return metrics;
+        if (mServiceTypeMetrics.size() >= MAX_SERVICE_TYPES) {
+            metrics = mServiceTypeMetrics.get(OTHER_SERVICE_TYPES);
+            if (metrics != null) return metrics;
+            metrics = new ServiceTypeMetrics(OTHER_SERVICE_TYPES);
+            mServiceTypeMetrics.put(OTHER_SERVICE_TYPES, metrics);
+            return metrics;
+        }
+        metrics = new ServiceTypeMetrics(type);
+        mServiceTypeMetrics.put(type, metrics);
+        return metrics;
+    }
+
+    /**
+     * Record the time from the start of a discovery to the first service found.
+     *
+     * @param serviceType The labels of the discovered service type, such as {"_http", "_tcp"}.
+     * @param durationMs The time until the first service was found.
+     */
+    public synchronized void onFirstServiceFound(@NonNull String[] serviceType,
+            long durationMs) {
+        getServiceTypeMetrics(serviceType).mFirstServiceFoundMs.add(durationMs);
+    }
+
+    /**
+     * Record the time taken to resolve a service.
+     *
+     * @param serviceType The labels of the resolved service type, such as {"_http", "_tcp"}.
+     * @param durationMs The time until the service was resolved.
+     */
+    public synchronized void onServiceResolved(@NonNull String[] serviceType, long durationMs) {
+        getServiceTypeMetrics(serviceType).mResolveMs.add(durationMs);
+    }
+
+    /**
+     * Get the metrics as a proto.
+     */
+    @NonNull
+    public synchronized MdnsMetricsDumpProto toProto() {
+        final MdnsMetricsDumpProto.Builder builder = MdnsMetricsDumpProto.newBuilder();
+        for (int i = 0; i < mInterfaceMetrics.size(); i++) {
+            builder.addInterfaceMetrics(mInterfaceMetrics.valueAt(i).toProto());
+        }
+        for (int i = 0; i < mServiceTypeMetrics.size(); i++) {
+            builder.addServiceTypeMetrics(mServiceTypeMetrics.valueAt(i).toProto());
+        }
+        return builder.build();
+    }
+
+    /**
+     * Dump the metrics.
+     */
+    public synchronized void dump(@NonNull PrintWriter pw) {
+        pw.println("Interfaces:");
+        for (int i = 0; i < mInterfaceMetrics.size(); i++) {
+            mInterfaceMetrics.valueAt(i).dump(pw);
+        }
+        pw.println("Service types:");
+        for (int i = 0; i < mServiceTypeMetrics.size(); i++) {
+            mServiceTypeMetrics.valueAt(i).dump(pw);
+        }
+    }
+}
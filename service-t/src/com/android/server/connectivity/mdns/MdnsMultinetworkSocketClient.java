@@ -46,16 +46,20 @@ import java.util.List;
 public class MdnsMultinetworkSocketClient implements MdnsSocketClientBase {
     private static final String TAG = MdnsMultinetworkSocketClient.class.getSimpleName();
     private static final boolean DBG = MdnsDiscoveryManager.DBG;
+    private static final int DECODE_WORKER_COUNT = 2;
 
     @NonNull private final Handler mHandler;
     @NonNull private final MdnsSocketProvider mSocketProvider;
     @NonNull private final SharedLog mSharedLog;
     @NonNull private final MdnsFeatureFlags mMdnsFeatureFlags;
+    @Nullable private final MdnsResponseDecodeStage mDecodeStage;
 
     private final ArrayMap<MdnsServiceBrowserListener, InterfaceSocketCallback> mSocketRequests =
             new ArrayMap<>();
     private final ArrayMap<SocketKey, ReadPacketHandler> mSocketPacketHandlers = new ArrayMap<>();
     private MdnsSocketClientBase.Callback mCallback = null;
+    @Nullable
+    private MdnsRecordFilter mRecordFilter = null;
     private int mReceivedPacketNumber = 0;
 
     public MdnsMultinetworkSocketClient(@NonNull Looper looper,
@@ -65,6 +69,9 @@ public class MdnsMultinetworkSocketClient implements MdnsSocketClientBase {
         mSocketProvider = provider;
         mSharedLog = sharedLog;
         mMdnsFeatureFlags = mdnsFeatureFlags;
+        mDecodeStage = mdnsFeatureFlags.isDecodeOnWorkerThreadsEnabled()
+                ? new MdnsResponseDecodeStage(looper, DECODE_WORKER_COUNT, mdnsFeatureFlags)
+                : null;
     }
 
     private class InterfaceSocketCallback implements MdnsSocketProvider.SocketCallback {
@@ -85,7 +92,7 @@ public class MdnsMultinetworkSocketClient implements MdnsSocketClientBase {
             ReadPacketHandler handler = mSocketPacketHandlers.get(socketKey);
             if (handler == null) {
                 // First request to create this socket. Initial a ReadPacketHandler for this socket.
-                handler = new ReadPacketHandler(socketKey);
+                handler = new ReadPacketHandler(socketKey, socket.getMetrics());
                 mSocketPacketHandlers.put(socketKey, handler);
             }
             socket.addPacketHandler(handler);
@@ -145,16 +152,58 @@ public class MdnsMultinetworkSocketClient implements MdnsSocketClientBase {
         mSocketPacketHandlers.remove(socketKey);
     }
 
-    private class ReadPacketHandler implements MulticastPacketReader.PacketHandler {
+    private class ReadPacketHandler implements MulticastPacketReader.PacketHandler,
+            MdnsResponseDecodeStage.Callback {
         @NonNull private final SocketKey mSocketKey;
+        @NonNull private final MdnsMetrics.InterfaceMetrics mMetrics;
+        // Decodes the packets of this socket in order on a worker thread, if enabled
+        @Nullable private final MdnsResponseDecodeStage.SocketDecoder mDecoder;
 
-        ReadPacketHandler(@NonNull SocketKey socketKey) {
+        ReadPacketHandler(@NonNull SocketKey socketKey,
+                @NonNull MdnsMetrics.InterfaceMetrics metrics) {
             mSocketKey = socketKey;
+            mMetrics = metrics;
+            mDecoder = mDecodeStage == null ? null : mDecodeStage.newSocketDecoder(metrics, this);
         }
 
         @Override
         public void handlePacket(byte[] recvbuf, int length, InetSocketAddress src) {
-            processResponsePacket(recvbuf, length, mSocketKey);
+            final int packetNumber = ++mReceivedPacketNumber;
+            if (mDecoder != null) {
+                // The filter is immutable and only replaced on the handler thread, so the
+                // current one can be used on the worker thread.
+                mDecoder.decode(packetNumber, recvbuf, length, mRecordFilter);
+                return;
+            }
+
+            final MdnsPacket response;
+            try {
+                response = MdnsResponseDecodeStage.decodeResponse(recvbuf, length,
+                        mMdnsFeatureFlags, mRecordFilter, mMetrics);
+            } catch (MdnsPacket.ParseException e) {
+                onResponseParseFailed(packetNumber, e);
+                return;
+            }
+            onResponseDecoded(packetNumber, response);
+        }
+
+        @Override
+        public void onResponseDecoded(int packetNumber, @NonNull MdnsPacket response) {
+            // Drop packets decoded after the socket was destroyed
+            if (mSocketPacketHandlers.get(mSocketKey) != this) return;
+            processResponsePacket(response, mSocketKey);
+        }
+
+        @Override
+        public void onResponseParseFailed(int packetNumber,
+                @NonNull MdnsPacket.ParseException e) {
+            if (mSocketPacketHandlers.get(mSocketKey) != this) return;
+            if (e.code == MdnsResponseErrorCode.ERROR_NOT_RESPONSE_MESSAGE) return;
+            mMetrics.onPacketParseFailed();
+            mSharedLog.e(e.getMessage(), e);
+            if (mCallback != null) {
+                mCallback.onFailedToParseMdnsResponse(packetNumber, e.code, mSocketKey);
+            }
         }
     }
 
@@ -203,6 +252,13 @@ public class MdnsMultinetworkSocketClient implements MdnsSocketClientBase {
         mSocketProvider.unrequestSocket(callback);
     }
 
+    @Override
+    public void stopDiscovery() {
+        ensureRunningOnHandlerThread(mHandler);
+        // Do not keep decode threads running while nothing is discovered
+        if (mDecodeStage != null) mDecodeStage.shutdown();
+    }
+
     @Override
     public Looper getLooper() {
         return mHandler.getLooper();
@@ -213,6 +269,12 @@ public class MdnsMultinetworkSocketClient implements MdnsSocketClientBase {
         return true;
     }
 
+    @Override
+    public void setRecordFilter(@Nullable MdnsRecordFilter filter) {
+        ensureRunningOnHandlerThread(mHandler);
+        mRecordFilter = filter;
+    }
+
     private void sendMdnsPacket(@NonNull DatagramPacket packet, @NonNull SocketKey targetSocketKey,
             boolean onlyUseIpv6OnIpv6OnlyNetworks) {
         final MdnsInterfaceSocket socket = getTargetSocket(targetSocketKey);
@@ -237,19 +299,11 @@ public class MdnsMultinetworkSocketClient implements MdnsSocketClientBase {
         }
     }
 
-    private void processResponsePacket(byte[] recvbuf, int length, @NonNull SocketKey socketKey) {
-        int packetNumber = ++mReceivedPacketNumber;
-
-        final MdnsPacket response;
-        try {
-            response = MdnsResponseDecoder.parseResponse(recvbuf, length, mMdnsFeatureFlags);
-        } catch (MdnsPacket.ParseException e) {
-            if (e.code != MdnsResponseErrorCode.ERROR_NOT_RESPONSE_MESSAGE) {
-                mSharedLog.e(e.getMessage(), e);
-                if (mCallback != null) {
-                    mCallback.onFailedToParseMdnsResponse(packetNumber, e.code, socketKey);
-                }
-            }
+    private void processResponsePacket(@NonNull MdnsPacket response,
+            @NonNull SocketKey socketKey) {
+        // Nothing to process if all records were skipped by the filter
+        if (response.answers.isEmpty() && response.additionalRecords.isEmpty()
+                && response.authorityRecords.isEmpty()) {
             return;
         }
 
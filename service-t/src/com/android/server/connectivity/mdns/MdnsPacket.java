@@ -99,16 +99,32 @@ public class MdnsPacket {
      */
     public static MdnsPacket parseRecordsSection(@NonNull MdnsPacketReader reader, int flags,
             int transactionId) throws ParseException {
+        return parseRecordsSection(reader, flags, transactionId, null /* filter */);
+    }
+
+    /**
+     * Parse the records section of a mDNS packet in the provided {@link MdnsPacketReader}.
+     *
+     * The records section starts with the questions count, just after the packet flags.
+     * @param filter If non-null, a filter to skip records that are not relevant without decoding
+     *               them. Questions are not filtered.
+     */
+    public static MdnsPacket parseRecordsSection(@NonNull MdnsPacketReader reader, int flags,
+            int transactionId, @Nullable MdnsRecordFilter filter) throws ParseException {
         try {
             final int numQuestions = reader.readUInt16();
             final int numAnswers = reader.readUInt16();
             final int numAuthority = reader.readUInt16();
             final int numAdditional = reader.readUInt16();
 
-            final ArrayList<MdnsRecord> questions = parseRecords(reader, numQuestions, true);
-            final ArrayList<MdnsRecord> answers = parseRecords(reader, numAnswers, false);
-            final ArrayList<MdnsRecord> authority = parseRecords(reader, numAuthority, false);
-            final ArrayList<MdnsRecord> additional = parseRecords(reader, numAdditional, false);
+            final ArrayList<MdnsRecord> questions =
+                    parseRecords(reader, numQuestions, true, null /* filter */);
+            final ArrayList<MdnsRecord> answers =
+                    parseRecords(reader, numAnswers, false, filter);
+            final ArrayList<MdnsRecord> authority =
+                    parseRecords(reader, numAuthority, false, filter);
+            final ArrayList<MdnsRecord> additional =
+                    parseRecords(reader, numAdditional, false, filter);
 
             return new MdnsPacket(transactionId, flags, questions, answers, authority, additional);
         } catch (EOFException e) {
@@ -118,11 +134,11 @@ public class MdnsPacket {
     }
 
     private static ArrayList<MdnsRecord> parseRecords(@NonNull MdnsPacketReader reader, int count,
-            boolean isQuestion)
+            boolean isQuestion, @Nullable MdnsRecordFilter filter)
             throws ParseException {
         final ArrayList<MdnsRecord> records = new ArrayList<>(count);
         for (int i = 0; i < count; ++i) {
-            final MdnsRecord record = parseRecord(reader, isQuestion);
+            final MdnsRecord record = parseRecord(reader, isQuestion, filter);
             if (record != null) {
                 records.add(record);
             }
@@ -131,11 +147,11 @@ public class MdnsPacket {
     }
 
     @Nullable
-    private static MdnsRecord parseRecord(@NonNull MdnsPacketReader reader, boolean isQuestion)
-            throws ParseException {
-        String[] name;
+    private static MdnsRecord parseRecord(@NonNull MdnsPacketReader reader, boolean isQuestion,
+            @Nullable MdnsRecordFilter filter) throws ParseException {
+        final int labelCount;
         try {
-            name = reader.readLabels();
+            labelCount = reader.scanLabels();
         } catch (IOException e) {
             throw new ParseException(MdnsResponseErrorCode.ERROR_READING_RECORD_NAME,
                     "Failed to read labels from mDNS response.", e);
@@ -149,6 +165,18 @@ public class MdnsPacket {
                     "Reached the end of the mDNS response unexpectedly.", e);
         }
 
+        if (filter != null && !filter.isRelevant(reader, labelCount, type)) {
+            try {
+                skipMdnsRecord(reader, isQuestion);
+                return null;
+            } catch (IOException e) {
+                throw new ParseException(MdnsResponseErrorCode.ERROR_SKIPPING_UNKNOWN_RECORD,
+                        "Failed to skip mDNS record.", e);
+            }
+        }
+        // Decode the name before reading any other name from the packet.
+        final String[] name = reader.getScannedLabels(labelCount);
+
         switch (type) {
             case MdnsRecord.TYPE_A: {
                 try {
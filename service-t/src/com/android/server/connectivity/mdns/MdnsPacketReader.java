@@ -18,15 +18,14 @@ package com.android.server.connectivity.mdns;
 
 import android.annotation.NonNull;
 import android.annotation.Nullable;
-import android.util.SparseArray;
 
 import com.android.server.connectivity.mdns.MdnsServiceInfo.TextEntry;
 
 import java.io.EOFException;
 import java.io.IOException;
 import java.net.DatagramPacket;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Locale;
 
 /** Simple decoder for mDNS packets. */
@@ -36,12 +35,29 @@ public class MdnsPacketReader {
     // length).
     // https://www.rfc-editor.org/rfc/rfc9267.html#name-label-and-name-length-valid
     private static final int LABEL_COUNT_LIMIT = 128;
+
+    // Labels found in most packets, returned as shared instances instead of decoding new strings.
+    private static final String[] COMMON_LABELS = new String[] {
+            "local", "_tcp", "_udp", "_sub", "_services", "_dns-sd", "arpa", "in-addr", "ip6" };
+    private static final byte[][] COMMON_LABELS_BYTES = new byte[COMMON_LABELS.length][];
+    // Single-character ASCII labels, which are used for each nibble of IPv6 reverse DNS names.
+    private static final String[] SINGLE_CHAR_LABELS = new String[0x80];
+    static {
+        for (int i = 0; i < COMMON_LABELS.length; i++) {
+            COMMON_LABELS_BYTES[i] = COMMON_LABELS[i].getBytes(StandardCharsets.UTF_8);
+        }
+        for (int i = 0; i < SINGLE_CHAR_LABELS.length; i++) {
+            SINGLE_CHAR_LABELS[i] = String.valueOf((char) i);
+        }
+    }
+
     private final byte[] buf;
     private final int count;
-    private final SparseArray<LabelEntry> labelDictionary;
     private final MdnsFeatureFlags mMdnsFeatureFlags;
     private int pos;
     private int limit;
+    // Offsets of the length bytes of the labels found by the last call to scanLabels.
+    private int[] labelOffsets = new int[16];
 
     /** Constructs a reader for the given packet. */
     public MdnsPacketReader(DatagramPacket packet) {
@@ -54,7 +70,6 @@ public class MdnsPacketReader {
         count = length;
         pos = 0;
         limit = -1;
-        labelDictionary = new SparseArray<>(16);
         mMdnsFeatureFlags = mdnsFeatureFlags;
     }
 
@@ -143,10 +158,23 @@ public class MdnsPacketReader {
      * @throws IOException  If invalid data is read.
      */
     public String[] readLabels() throws IOException {
-        List<String> result = new ArrayList<>(5);
-        LabelEntry previousEntry = null;
-        int tracingHops = 0;
+        return getScannedLabels(scanLabels());
+    }
 
+    /**
+     * Reads a sequence of labels like {@link #readLabels()}, but without decoding them.
+     *
+     * The labels can then be compared with {@link #scannedLabelEqualsIgnoreDnsCase} and decoded
+     * with {@link #getScannedLabels}, until the next call to this method or to
+     * {@link #readLabels()}.
+     *
+     * @return The number of labels.
+     * @throws EOFException If there are not enough bytes remaining in the packet to satisfy the
+     *                      read.
+     * @throws IOException  If invalid data is read.
+     */
+    public int scanLabels() throws IOException {
+        int labelCount = 0;
         while (getRemaining() > 0) {
             byte nextByte = peekByte();
 
@@ -156,51 +184,123 @@ public class MdnsPacketReader {
                 break;
             }
 
-            int currentOffset = pos;
-
             boolean isLabelPointer = (nextByte & 0xC0) == 0xC0;
             if (isLabelPointer) {
-                // A pointer terminates a sequence of labels. Store the pointer value in the
-                // previous label entry.
+                // A pointer terminates a sequence of labels. Follow the chain of labels starting
+                // at this pointer in the packet, adding all of them onto the result.
+                int jumpLimit = pos;
                 int labelOffset = ((readUInt8() & 0x3F) << 8) | (readUInt8() & 0xFF);
-                if (previousEntry != null) {
-                    previousEntry.nextOffset = labelOffset;
-                }
-
-                // Follow the chain of labels starting at this pointer, adding all of them onto the
-                // result.
-                while (labelOffset != 0) {
-                    if (mMdnsFeatureFlags.mIsLabelCountLimitEnabled
-                            && tracingHops > LABEL_COUNT_LIMIT) {
-                        throw new IOException("Invalid MDNS response packet: Too many labels.");
-                    }
-                    LabelEntry entry = labelDictionary.get(labelOffset);
-                    if (entry == null) {
+                int tracingHops = 0;
+                boolean done = false;
+                while (!done) {
+                    // Each pointer must refer to labels earlier in the packet than the previous
+                    // pointer target, so following pointers always terminates.
+                    if (labelOffset >= jumpLimit) {
                         throw new IOException(
                                 String.format(Locale.ROOT, "Invalid label pointer: %04X",
                                         labelOffset));
                     }
-                    result.add(entry.label);
-                    labelOffset = entry.nextOffset;
-                    tracingHops++;
+                    jumpLimit = labelOffset;
+                    while (true) {
+                        final int labelByte = buf[labelOffset] & 0xFF;
+                        if (labelByte == 0) {
+                            done = true;
+                            break;
+                        }
+                        if ((labelByte & 0xC0) == 0xC0) {
+                            if (labelOffset + 1 >= count) throw new EOFException();
+                            labelOffset = ((labelByte & 0x3F) << 8)
+                                    | (buf[labelOffset + 1] & 0xFF);
+                            break;
+                        }
+                        if ((labelByte & 0xC0) != 0 || labelOffset + 1 + labelByte >= count) {
+                            throw new IOException(
+                                    String.format(Locale.ROOT, "Invalid label at: %04X",
+                                            labelOffset));
+                        }
+                        if (mMdnsFeatureFlags.mIsLabelCountLimitEnabled
+                                && tracingHops > LABEL_COUNT_LIMIT) {
+                            throw new IOException(
+                                    "Invalid MDNS response packet: Too many labels.");
+                        }
+                        labelCount = addLabelOffset(labelCount, labelOffset);
+                        labelOffset += 1 + labelByte;
+                        tracingHops++;
+                    }
                 }
                 break;
             } else {
-                // It's an ordinary label. Chain it onto the previous label entry (if any), and add
-                // it onto the result.
-                String val = readString();
-                LabelEntry newEntry = new LabelEntry(val);
-                labelDictionary.put(currentOffset, newEntry);
+                // It's an ordinary label: add it onto the result.
+                final int labelOffset = pos;
+                final int len = readUInt8();
+                skip(len);
+                labelCount = addLabelOffset(labelCount, labelOffset);
+            }
+        }
+        return labelCount;
+    }
 
-                if (previousEntry != null) {
-                    previousEntry.nextOffset = currentOffset;
-                }
-                previousEntry = newEntry;
-                result.add(val);
+    private int addLabelOffset(int labelCount, int labelOffset) {
+        if (labelCount == labelOffsets.length) {
+            labelOffsets = Arrays.copyOf(labelOffsets, labelCount * 2);
+        }
+        labelOffsets[labelCount] = labelOffset;
+        return labelCount + 1;
+    }
+
+    /**
+     * Decodes the labels found by the last call to {@link #scanLabels()}.
+     *
+     * @param labelCount The number of labels returned by {@link #scanLabels()}.
+     */
+    @NonNull
+    public String[] getScannedLabels(int labelCount) {
+        final String[] result = new String[labelCount];
+        for (int i = 0; i < labelCount; i++) {
+            result[i] = decodeLabel(labelOffsets[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Returns whether a label found by the last call to {@link #scanLabels()} is equal to the
+     * given label, ignoring DNS case.
+     *
+     * @param index The index of the label in the scanned labels.
+     * @param lowerCaseLabel The label to compare to, encoded in UTF-8 and in DNS lower case.
+     */
+    public boolean scannedLabelEqualsIgnoreDnsCase(int index, @NonNull byte[] lowerCaseLabel) {
+        final int offset = labelOffsets[index];
+        final int len = buf[offset] & 0xFF;
+        if (len != lowerCaseLabel.length) return false;
+        for (int i = 0; i < len; i++) {
+            byte b = buf[offset + 1 + i];
+            if (b >= 'A' && b <= 'Z') b += 'a' - 'A';
+            if (b != lowerCaseLabel[i]) return false;
+        }
+        return true;
+    }
+
+    private String decodeLabel(int offset) {
+        final int len = buf[offset] & 0xFF;
+        final int start = offset + 1;
+        if (len == 1 && buf[start] >= 0) {
+            return SINGLE_CHAR_LABELS[buf[start]];
+        }
+        for (int i = 0; i < COMMON_LABELS_BYTES.length; i++) {
+            if (bytesEqual(COMMON_LABELS_BYTES[i], buf, start, len)) {
+                return COMMON_LABELS[i];
             }
         }
+        return new String(buf, start, len, MdnsConstants.getUtf8Charset());
+    }
 
-        return result.toArray(new String[result.size()]);
+    private static boolean bytesEqual(byte[] label, byte[] buf, int start, int len) {
+        if (label.length != len) return false;
+        for (int i = 0; i < len; i++) {
+            if (label[i] != buf[start + i]) return false;
+        }
+        return true;
     }
 
     /**
@@ -274,13 +374,4 @@ public class MdnsPacketReader {
             throw new EOFException();
         }
     }
-
-    private static class LabelEntry {
-        public final String label;
-        public int nextOffset = 0;
-
-        public LabelEntry(String label) {
-            this.label = label;
-        }
-    }
 }
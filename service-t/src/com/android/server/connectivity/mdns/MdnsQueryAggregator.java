@@ -0,0 +1,329 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity.mdns;
+
+import static com.android.server.connectivity.mdns.util.MdnsUtils.ensureRunningOnHandlerThread;
+
+import android.annotation.NonNull;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.util.ArrayMap;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.net.module.util.SharedLog;
+import com.android.server.connectivity.mdns.util.MdnsUtils;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Aggregates the queries of the {@link MdnsServiceTypeClient}s of each socket.
+ *
+ * <p>Queries that are enqueued within {@link #AGGREGATION_DELAY_MS} of each other for the same
+ * socket are sent together, so that multiple service types being discovered on a network do not
+ * each cause a separate packet. If the questions and their known answers do not fit in a single
+ * packet, the known answers are continued in following packets, with the TC bit set on all but the
+ * last one (RFC6762 7.2).
+ *
+ * <p>Queries can be enqueued from any thread; they are sent on the looper thread.
+ */
+public class MdnsQueryAggregator {
+    @VisibleForTesting
+    static final long AGGREGATION_DELAY_MS = 20L;
+    private static final int MSG_ENQUEUE = 1;
+    private static final int MSG_SEND = 2;
+    private static final int DNS_HEADER_SIZE = 12;
+
+    @NonNull
+    private final Handler mHandler;
+    @NonNull
+    private final MdnsSocketClientBase mSocketClient;
+    @NonNull
+    private final MdnsUtils.Clock mClock;
+    @NonNull
+    private final SharedLog mSharedLog;
+    @NonNull
+    private final Dependencies mDependencies;
+    private final int mMaxPacketSize;
+    // Used to compute the size of records, only on the looper thread
+    @NonNull
+    private final byte[] mSizingBuffer;
+    @NonNull
+    private final ArrayMap<QueryKey, PendingQuery> mPendingQueries = new ArrayMap<>();
+    private int mEnqueuedQueryCount;
+    private int mSentPacketCount;
+
+    /**
+     * Dependencies of MdnsQueryAggregator, for injection in tests.
+     */
+    @VisibleForTesting
+    public static class Dependencies {
+        /**
+         * @see Handler#sendMessageDelayed(Message, long)
+         */
+        public void sendMessageDelayed(@NonNull Handler handler, @NonNull Message message,
+                long delayMillis) {
+            handler.sendMessageDelayed(message, delayMillis);
+        }
+    }
+
+    // Queries are aggregated per socket and per type of query
+    private static class QueryKey {
+        @NonNull
+        final SocketKey mSocketKey;
+        final boolean mExpectUnicastResponse;
+        final boolean mOnlyUseIpv6OnIpv6OnlyNetworks;
+
+        QueryKey(@NonNull SocketKey socketKey, boolean expectUnicastResponse,
+                boolean onlyUseIpv6OnIpv6OnlyNetworks) {
+            mSocketKey = socketKey;
+            mExpectUnicastResponse = expectUnicastResponse;
+            mOnlyUseIpv6OnIpv6OnlyNetworks = onlyUseIpv6OnIpv6OnlyNetworks;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mSocketKey, mExpectUnicastResponse,
+                    mOnlyUseIpv6OnIpv6OnlyNetworks);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) {
+                return true;
+            }
+            if (!(other instanceof QueryKey)) {
+                return false;
+            }
+            final QueryKey otherKey = (QueryKey) other;
+            return mSocketKey.equals(otherKey.mSocketKey)
+                    && mExpectUnicastResponse == otherKey.mExpectUnicastResponse
+                    && mOnlyUseIpv6OnIpv6OnlyNetworks == otherKey.mOnlyUseIpv6OnIpv6OnlyNetworks;
+        }
+    }
+
+    private static class PendingQuery {
+        @NonNull
+        final QueryKey mKey;
+        final int mTransactionId;
+        @NonNull
+        final List<MdnsRecord> mQuestions = new ArrayList<>();
+        @NonNull
+        final List<MdnsRecord> mKnownAnswers = new ArrayList<>();
+
+        PendingQuery(@NonNull QueryKey key, int transactionId) {
+            mKey = key;
+            mTransactionId = transactionId;
+        }
+    }
+
+    private class QueryHandler extends Handler {
+        QueryHandler(@NonNull Looper looper) {
+            super(looper);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_ENQUEUE:
+                    addQuery((PendingQuery) msg.obj);
+                    break;
+                case MSG_SEND:
+                    sendQuery((QueryKey) msg.obj);
+                    break;
+                default:
+                    mSharedLog.e("Unrecognized event " + msg.what);
+                    break;
+            }
+        }
+    }
+
+    public MdnsQueryAggregator(@NonNull Looper looper, @NonNull MdnsSocketClientBase socketClient,
+            @NonNull SharedLog sharedLog) {
+        this(looper, socketClient, new MdnsUtils.Clock(), sharedLog, new Dependencies(),
+                MdnsServiceTypeClient.DEFAULT_MTU);
+    }
+
+    @VisibleForTesting
+    MdnsQueryAggregator(@NonNull Looper looper, @NonNull MdnsSocketClientBase socketClient,
+            @NonNull MdnsUtils.Clock clock, @NonNull SharedLog sharedLog,
+            @NonNull Dependencies dependencies, int maxPacketSize) {
+        mHandler = new QueryHandler(looper);
+        mSocketClient = socketClient;
+        mClock = clock;
+        mSharedLog = sharedLog;
+        mDependencies = dependencies;
+        mMaxPacketSize = maxPacketSize;
+        mSizingBuffer = new byte[maxPacketSize];
+    }
+
+    /**
+     * Enqueue a query, to be sent with the other queries enqueued for the same socket within
+     * {@link #AGGREGATION_DELAY_MS}.
+     *
+     * @param socketKey The socket to send the query on.
+     * @param expectUnicastResponse Whether the questions request unicast responses.
+     * @param onlyUseIpv6OnIpv6OnlyNetworks Whether IPv6 should only be used on IPv6-only networks.
+     * @param transactionId The transaction ID to use if the query is not aggregated.
+     * @param questions The questions of the query.
+     * @param knownAnswers The answers to the questions that are already known.
+     */
+    public void enqueueQuery(@NonNull SocketKey socketKey, boolean expectUnicastResponse,
+            boolean onlyUseIpv6OnIpv6OnlyNetworks, int transactionId,
+            @NonNull Collection<MdnsRecord> questions,
+            @NonNull Collection<MdnsRecord> knownAnswers) {
+        final PendingQuery query = new PendingQuery(
+                new QueryKey(socketKey, expectUnicastResponse, onlyUseIpv6OnIpv6OnlyNetworks),
+                transactionId);
+        query.mQuestions.addAll(questions);
+        query.mKnownAnswers.addAll(knownAnswers);
+        mHandler.sendMessage(mHandler.obtainMessage(MSG_ENQUEUE, query));
+    }
+
+    private void addQuery(@NonNull PendingQuery query) {
+        mEnqueuedQueryCount++;
+        final PendingQuery pendingQuery = mPendingQueries.get(query.mKey);
+        if (pendingQuery != null) {
+            pendingQuery.mQuestions.addAll(query.mQuestions);
+            pendingQuery.mKnownAnswers.addAll(query.mKnownAnswers);
+            return;
+        }
+        mPendingQueries.put(query.mKey, query);
+        mDependencies.sendMessageDelayed(
+                mHandler, mHandler.obtainMessage(MSG_SEND, query.mKey), AGGREGATION_DELAY_MS);
+    }
+
+    private void sendQuery(@NonNull QueryKey key) {
+        final PendingQuery query = mPendingQueries.remove(key);
+        if (query == null) return;
+
+        final long now = mClock.elapsedRealtime();
+        final List<MdnsRecord> questions = query.mQuestions;
+        final List<MdnsRecord> knownAnswers = query.mKnownAnswers;
+        // Record sizes are computed without name compression with other records, so they are
+        // upper bounds of the size of the records in the packet.
+        final int[] questionSizes = removeOversizedRecords(questions, now, true /* isQuestion */);
+        final int[] answerSizes = removeOversizedRecords(knownAnswers, now, false /* isQuestion */);
+        int questionIndex = 0;
+        int answerIndex = 0;
+        try {
+            while (questionIndex < questions.size() || answerIndex < knownAnswers.size()) {
+                int size = DNS_HEADER_SIZE;
+                final int firstQuestion = questionIndex;
+                while (questionIndex < questions.size()
+                        && size + questionSizes[questionIndex] <= mMaxPacketSize) {
+                    size += questionSizes[questionIndex];
+                    questionIndex++;
+                }
+                final int firstAnswer = answerIndex;
+                // Known answers are only sent after all questions
+                while (questionIndex == questions.size() && answerIndex < knownAnswers.size()
+                        && size + answerSizes[answerIndex] <= mMaxPacketSize) {
+                    size += answerSizes[answerIndex];
+                    answerIndex++;
+                }
+                // RFC6762 7.2: if the known answers do not fit, set the TC bit and continue them
+                // in following packets.
+                final boolean truncated = questionIndex == questions.size()
+                        && answerIndex < knownAnswers.size();
+                writeAndSendPacket(query, questions.subList(firstQuestion, questionIndex),
+                        knownAnswers.subList(firstAnswer, answerIndex), truncated, now);
+            }
+        } catch (IOException e) {
+            mSharedLog.e("Failed to create mDNS query packet", e);
+        }
+    }
+
+    /**
+     * Remove the records that are too large to fit in a packet on their own.
+     *
+     * @return The sizes of the remaining records, in the same order.
+     */
+    @NonNull
+    private int[] removeOversizedRecords(@NonNull List<MdnsRecord> records, long now,
+            boolean isQuestion) {
+        final int[] sizes = new int[records.size()];
+        int count = 0;
+        for (int i = 0; i < records.size(); i++) {
+            final MdnsRecord record = records.get(i);
+            final int size = getRecordSize(record, now, isQuestion);
+            if (size > mMaxPacketSize - DNS_HEADER_SIZE) {
+                mSharedLog.e("Dropping a record too large for a query packet");
+                continue;
+            }
+            records.set(count, record);
+            sizes[count] = size;
+            count++;
+        }
+        records.subList(count, records.size()).clear();
+        return sizes;
+    }
+
+    // Returns a size larger than the packet size if the record cannot be written in a packet.
+    private int getRecordSize(@NonNull MdnsRecord record, long now, boolean isQuestion) {
+        final MdnsPacketWriter writer = new MdnsPacketWriter(mSizingBuffer);
+        try {
+            if (isQuestion) {
+                record.writeHeaderFields(writer);
+            } else {
+                record.write(writer, now);
+            }
+        } catch (IOException e) {
+            return mMaxPacketSize + 1;
+        }
+        return writer.getWritePosition();
+    }
+
+    private void writeAndSendPacket(@NonNull PendingQuery query,
+            @NonNull List<MdnsRecord> questions, @NonNull List<MdnsRecord> knownAnswers,
+            boolean truncated, long now) throws IOException {
+        // Packets are sent asynchronously by the socket client, so each needs its own buffer.
+        final MdnsPacketWriter writer = new MdnsPacketWriter(mMaxPacketSize);
+        writer.writeUInt16(query.mTransactionId);
+        writer.writeUInt16(truncated
+                ? MdnsConstants.FLAGS_QUERY | MdnsConstants.FLAG_TRUNCATED
+                : MdnsConstants.FLAGS_QUERY);
+        writer.writeUInt16(questions.size()); // questions count
+        writer.writeUInt16(knownAnswers.size()); // answers count
+        writer.writeUInt16(0); // authority entries count
+        writer.writeUInt16(0); // additional records count
+        for (MdnsRecord question : questions) {
+            question.writeHeaderFields(writer);
+        }
+        for (MdnsRecord knownAnswer : knownAnswers) {
+            knownAnswer.write(writer, now);
+        }
+        mSentPacketCount++;
+        EnqueueMdnsQueryCallable.sendQueryPacket(mSocketClient, writer, query.mKey.mSocketKey,
+                query.mKey.mExpectUnicastResponse, query.mKey.mOnlyUseIpv6OnIpv6OnlyNetworks,
+                mSharedLog);
+    }
+
+    /**
+     * Dump QueryAggregator state.
+     */
+    public void dump(@NonNull PrintWriter pw) {
+        ensureRunningOnHandlerThread(mHandler);
+        pw.println("QueryAggregator: " + mEnqueuedQueryCount + " queries sent in "
+                + mSentPacketCount + " packets");
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity.mdns;
+
+import android.annotation.NonNull;
+import android.text.TextUtils;
+
+import com.android.server.connectivity.mdns.util.MdnsUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A filter selecting the records of received packets that are relevant to a set of browsed service
+ * types.
+ *
+ * Records are matched in wire format on the packet being parsed, so that records about other
+ * service types can be skipped without being decoded. PTR records are kept if they are named
+ * after a browsed type or one of its subtypes, and SRV and TXT records if they are named after an
+ * instance of a browsed type, as these are the only ones used by
+ * {@link MdnsResponseDecoder#augmentResponses}. Records of other types are always kept, as address
+ * records may refer to hosts of any service.
+ */
+public class MdnsRecordFilter {
+    private static final byte[] SUBTYPE_LABEL =
+            MdnsConstants.SUBTYPE_LABEL.getBytes(StandardCharsets.UTF_8);
+
+    // Browsed types, as labels in DNS lower case encoded in UTF-8
+    @NonNull
+    private final List<byte[][]> mServiceTypes;
+
+    /**
+     * Create a filter for the given service types.
+     *
+     * @param serviceTypes Service types, such as "_type._tcp.local".
+     */
+    public MdnsRecordFilter(@NonNull Collection<String> serviceTypes) {
+        mServiceTypes = new ArrayList<>(serviceTypes.size());
+        for (String serviceType : serviceTypes) {
+            final String[] labels = TextUtils.split(MdnsUtils.toDnsLowerCase(serviceType), "\\.");
+            final byte[][] encodedLabels = new byte[labels.length][];
+            for (int i = 0; i < labels.length; i++) {
+                encodedLabels[i] = labels[i].getBytes(StandardCharsets.UTF_8);
+            }
+            mServiceTypes.add(encodedLabels);
+        }
+    }
+
+    /**
+     * Indicates whether a record should be parsed.
+     *
+     * @param reader The reader on which {@link MdnsPacketReader#scanLabels()} was just called to
+     *               read the record name.
+     * @param labelCount The number of labels in the record name.
+     * @param type The record type.
+     */
+    public boolean isRelevant(@NonNull MdnsPacketReader reader, int labelCount, int type) {
+        switch (type) {
+            case MdnsRecord.TYPE_PTR:
+                for (byte[][] serviceType : mServiceTypes) {
+                    if (labelCount == serviceType.length
+                            && hasSuffix(reader, labelCount, serviceType)) {
+                        return true;
+                    }
+                    if (labelCount == serviceType.length + 2
+                            && reader.scannedLabelEqualsIgnoreDnsCase(1, SUBTYPE_LABEL)
+                            && hasSuffix(reader, labelCount, serviceType)) {
+                        return true;
+                    }
+                }
+                return false;
+            case MdnsRecord.TYPE_SRV:
+            case MdnsRecord.TYPE_TXT:
+                for (byte[][] serviceType : mServiceTypes) {
+                    if (labelCount == serviceType.length + 1
+                            && hasSuffix(reader, labelCount, serviceType)) {
+                        return true;
+                    }
+                }
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    private static boolean hasSuffix(@NonNull MdnsPacketReader reader, int labelCount,
+            @NonNull byte[][] suffix) {
+        final int offset = labelCount - suffix.length;
+        for (int i = 0; i < suffix.length; i++) {
+            if (!reader.scannedLabelEqualsIgnoreDnsCase(offset + i, suffix[i])) return false;
+        }
+        return true;
+    }
+}
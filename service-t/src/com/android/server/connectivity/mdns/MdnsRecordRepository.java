@@ -34,6 +34,7 @@ import android.text.TextUtils;
 import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.SparseArray;
+import android.util.SparseBooleanArray;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.net.module.util.CollectionUtils;
@@ -50,6 +51,8 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
@@ -92,6 +95,11 @@ public class MdnsRecordRepository {
     // Map of service unique ID -> records for service
     @NonNull
     private final SparseArray<ServiceRegistration> mServices = new SparseArray<>();
+    // Index of record name (as lowercase labels) -> IDs of the services in mServices that have
+    // records with that name, so that replies do not need to scan the records of all services.
+    // The IDs are kept sorted, so services are visited in the same order as in mServices.
+    @NonNull
+    private final Map<List<String>, SparseBooleanArray> mServiceIdsByRecordName = new HashMap<>();
     @NonNull
     private final List<RecordInfo<?>> mGeneralRecords = new ArrayList<>();
     @NonNull
@@ -389,7 +397,7 @@ public class MdnsRecordRepository {
         }
         final ServiceRegistration updatedRegistration = existingRegistration.withSubtypes(
                 subtypes);
-        mServices.put(serviceId, updatedRegistration);
+        putServiceRegistration(serviceId, updatedRegistration);
     }
 
     /**
@@ -420,13 +428,63 @@ public class MdnsRecordRepository {
         final ServiceRegistration registration = new ServiceRegistration(
                 mDeviceHostname, serviceInfo, NO_PACKET /* repliedServiceCount */,
                 NO_PACKET /* sentPacketCount */, ttl);
-        mServices.put(serviceId, registration);
+        putServiceRegistration(serviceId, registration);
 
         // Remove existing exiting service
-        mServices.remove(existing);
+        removeServiceRegistration(existing);
         return existing;
     }
 
+    /**
+     * Add or replace the registration of a service, updating the record name index.
+     */
+    private void putServiceRegistration(int serviceId, @NonNull ServiceRegistration registration) {
+        removeServiceRegistration(serviceId);
+        mServices.put(serviceId, registration);
+        for (RecordInfo<?> info : registration.allRecords) {
+            final List<String> nameKey = getRecordNameKey(info.record.getName());
+            SparseBooleanArray serviceIds = mServiceIdsByRecordName.get(nameKey);
+            if (serviceIds == null) {
+                serviceIds = new SparseBooleanArray(1);
+                mServiceIdsByRecordName.put(nameKey, serviceIds);
+            }
+            serviceIds.put(serviceId, true);
+        }
+    }
+
+    /**
+     * Remove the registration of a service if it exists, updating the record name index.
+     */
+    private void removeServiceRegistration(int serviceId) {
+        final ServiceRegistration registration = mServices.get(serviceId);
+        if (registration == null) return;
+        mServices.remove(serviceId);
+        for (RecordInfo<?> info : registration.allRecords) {
+            final List<String> nameKey = getRecordNameKey(info.record.getName());
+            final SparseBooleanArray serviceIds = mServiceIdsByRecordName.get(nameKey);
+            if (serviceIds == null) continue;
+            serviceIds.delete(serviceId);
+            if (serviceIds.size() == 0) {
+                mServiceIdsByRecordName.remove(nameKey);
+            }
+        }
+    }
+
+    /**
+     * Get the IDs of services that have records named {@code name}, or null if there are none.
+     *
+     * The returned array must not be modified.
+     */
+    @Nullable
+    private SparseBooleanArray getServiceIdsWithRecordName(@NonNull String[] name) {
+        return mServiceIdsByRecordName.get(getRecordNameKey(name));
+    }
+
+    @NonNull
+    private static List<String> getRecordNameKey(@NonNull String[] name) {
+        return Arrays.asList(MdnsUtils.toDnsLabelsLowerCase(name));
+    }
+
     /**
      * @return The ID of the service identified by its name and type, or -1 if none.
      */
@@ -517,7 +575,7 @@ public class MdnsRecordRepository {
     }
 
     public void removeService(int id) {
-        mServices.remove(id);
+        removeServiceRegistration(id);
     }
 
     /**
@@ -556,6 +614,7 @@ public class MdnsRecordRepository {
             ret[i] = mServices.keyAt(i);
         }
         mServices.clear();
+        mServiceIdsByRecordName.clear();
         return ret;
     }
 
@@ -589,25 +648,36 @@ public class MdnsRecordRepository {
         // Reply unicast if the feature is enabled AND all replied questions request unicast
         final boolean replyUnicastEnabled = mMdnsFeatureFlags.isUnicastReplyEnabled();
         boolean replyUnicast = replyUnicastEnabled;
+        // Hash the known answers once, so that checking each candidate answer does not need to
+        // scan all of them.
+        final MdnsKnownAnswerSet knownAnswers =
+                mMdnsFeatureFlags.isKnownAnswerSuppressionEnabled() && !packet.questions.isEmpty()
+                        ? new MdnsKnownAnswerSet(packet.answers)
+                        : new MdnsKnownAnswerSet();
+        // General records are not subject to known-answer suppression
+        final MdnsKnownAnswerSet noKnownAnswers = new MdnsKnownAnswerSet();
         for (MdnsRecord question : packet.questions) {
             // Add answers from general records
             if (addReplyFromService(question, mGeneralRecords, null /* servicePtrRecord */,
                     null /* serviceSrvRecord */, null /* serviceTxtRecord */,
                     null /* hostname */,
                     replyUnicastEnabled, now, answerInfo, additionalAnswerInfo,
-                    Collections.emptyList())) {
+                    noKnownAnswers)) {
                 replyUnicast &= question.isUnicastReplyRequested();
             }
 
-            // Add answers from each service
-            for (int i = 0; i < mServices.size(); i++) {
-                final ServiceRegistration registration = mServices.valueAt(i);
+            // Add answers from each service that has records with the question name; other
+            // services can neither answer nor need a negative response.
+            final SparseBooleanArray serviceIds = getServiceIdsWithRecordName(question.getName());
+            if (serviceIds == null) continue;
+            for (int i = 0; i < serviceIds.size(); i++) {
+                final ServiceRegistration registration = mServices.get(serviceIds.keyAt(i));
                 if (registration.exiting || registration.isProbing) continue;
                 if (addReplyFromService(question, registration.allRecords, registration.ptrRecords,
                         registration.srvRecord, registration.txtRecord,
                         registration.serviceInfo.getHostname(),
                         replyUnicastEnabled, now,
-                        answerInfo, additionalAnswerInfo, packet.answers)) {
+                        answerInfo, additionalAnswerInfo, knownAnswers)) {
                     replyUnicast &= question.isUnicastReplyRequested();
                     registration.repliedServiceCount++;
                     registration.sentPacketCount++;
@@ -623,11 +693,12 @@ public class MdnsRecordRepository {
 
         final List<MdnsRecord> additionalAnswerRecords =
                 new ArrayList<>(additionalAnswerInfo.size());
+        final Set<MdnsRecord> addedRecords = new HashSet<>();
         for (RecordInfo<?> info : additionalAnswerInfo) {
             // Different RecordInfos may contain the same record.
             // For example, when there are multiple services referring to the same custom host,
             // there are multiple RecordInfos containing the same address record.
-            if (!additionalAnswerRecords.contains(info.record)) {
+            if (addedRecords.add(info.record)) {
                 additionalAnswerRecords.add(info.record);
             }
         }
@@ -693,6 +764,7 @@ public class MdnsRecordRepository {
 
         // Build the list of answer records from their RecordInfo
         final ArrayList<MdnsRecord> answerRecords = new ArrayList<>(answerInfo.size());
+        addedRecords.clear();
         for (RecordInfo<?> info : answerInfo) {
             // TODO: consider actual packet send delay after response aggregation
             info.lastSentTimeMs = now + delayMs;
@@ -700,7 +772,7 @@ public class MdnsRecordRepository {
                 info.lastAdvertisedTimeMs = info.lastSentTimeMs;
             }
             // Different RecordInfos may the contain the same record
-            if (!answerRecords.contains(info.record)) {
+            if (addedRecords.add(info.record)) {
                 answerRecords.add(info.record);
             }
         }
@@ -709,15 +781,6 @@ public class MdnsRecordRepository {
                 new ArrayList<>(packet.answers));
     }
 
-    private boolean isKnownAnswer(MdnsRecord answer, @NonNull List<MdnsRecord> knownAnswerRecords) {
-        for (MdnsRecord knownAnswer : knownAnswerRecords) {
-            if (answer.equals(knownAnswer) && knownAnswer.getTtl() > (answer.getTtl() / 2)) {
-                return true;
-            }
-        }
-        return false;
-    }
-
     /**
      * Add answers and additional answers for a question, from a ServiceRegistration.
      */
@@ -729,7 +792,7 @@ public class MdnsRecordRepository {
             @Nullable String hostname,
             boolean replyUnicastEnabled, long now, @NonNull Set<RecordInfo<?>> answerInfo,
             @NonNull Set<RecordInfo<?>> additionalAnswerInfo,
-            @NonNull List<MdnsRecord> knownAnswerRecords) {
+            @NonNull MdnsKnownAnswerSet knownAnswers) {
         boolean hasDnsSdPtrRecordAnswer = false;
         boolean hasDnsSdSrvRecordAnswer = false;
         boolean hasFullyOwnedNameMatch = false;
@@ -768,7 +831,7 @@ public class MdnsRecordRepository {
             // send an answer so as to update the querier's cache before the record
             // becomes in danger of expiration.
             if (mMdnsFeatureFlags.isKnownAnswerSuppressionEnabled()
-                    && isKnownAnswer(info.record, knownAnswerRecords)) {
+                    && knownAnswers.isKnownAnswer(info.record)) {
                 continue;
             }
 
@@ -881,8 +944,10 @@ public class MdnsRecordRepository {
     private int countUniqueRecords(String[] name) {
         int cnt = countUniqueRecords(mGeneralRecords, name);
 
-        for (int i = 0; i < mServices.size(); i++) {
-            final ServiceRegistration registration = mServices.valueAt(i);
+        final SparseBooleanArray serviceIds = getServiceIdsWithRecordName(name);
+        if (serviceIds == null) return cnt;
+        for (int i = 0; i < serviceIds.size(); i++) {
+            final ServiceRegistration registration = mServices.get(serviceIds.keyAt(i));
             cnt += countUniqueRecords(registration.allRecords, name);
         }
         return cnt;
@@ -1234,7 +1299,7 @@ public class MdnsRecordRepository {
 
         final ServiceRegistration newService = new ServiceRegistration(mDeviceHostname, newInfo,
                 existing.repliedServiceCount, existing.sentPacketCount, existing.ttl);
-        mServices.put(serviceId, newService);
+        putServiceRegistration(serviceId, newService);
         return makeProbingInfo(serviceId, newService);
     }
 
@@ -40,9 +40,11 @@ import java.net.Inet6Address;
 import java.net.InetSocketAddress;
 import java.net.MulticastSocket;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 /**
  * A class that handles sending mDNS replies to a {@link MulticastSocket}, possibly queueing them
@@ -55,6 +57,8 @@ public class MdnsReplySender {
     private static final int MSG_SEND = 1;
     private static final int PACKET_NOT_SENT = 0;
     private static final int PACKET_SENT = 1;
+    // Maximum number of packets in mPacketCache
+    private static final int PACKET_CACHE_SIZE = 32;
 
     @NonNull
     private final MdnsInterfaceSocket mSocket;
@@ -70,9 +74,123 @@ public class MdnsReplySender {
     // RFC6762 15.2. Multipacket Known-Answer lists
     // Multicast DNS responders associate the initial truncated query with its
     // continuation packets by examining the source IP address in each packet.
-    private final Map<InetSocketAddress, MdnsReplyInfo> mSrcReplies = new ArrayMap<>();
+    private final Map<InetSocketAddress, PendingReply> mSrcReplies = new ArrayMap<>();
     @NonNull
     private final MdnsFeatureFlags mMdnsFeatureFlags;
+    // Wire format of the recently sent packets, in access order. Only used on the looper thread.
+    @NonNull
+    private final LinkedHashMap<PacketKey, byte[]> mPacketCache =
+            new LinkedHashMap<>(PACKET_CACHE_SIZE, 0.75f, true /* accessOrder */) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<PacketKey, byte[]> eldest) {
+                    return size() > PACKET_CACHE_SIZE;
+                }
+            };
+
+    /**
+     * A reply queued for a querier, accumulating the answers and Known-Answer lists of the
+     * packets it sent before the reply is sent.
+     */
+    private static final class PendingReply {
+        @NonNull
+        final ArraySet<MdnsRecord> mAnswers = new ArraySet<>();
+        @NonNull
+        final ArraySet<MdnsRecord> mAdditionalAnswers = new ArraySet<>();
+        @NonNull
+        final MdnsKnownAnswerSet mKnownAnswers = new MdnsKnownAnswerSet();
+        @NonNull
+        InetSocketAddress mDestination;
+        long mSendDelayMs;
+
+        PendingReply(@NonNull InetSocketAddress destination) {
+            mDestination = destination;
+        }
+
+        @NonNull
+        MdnsReplyInfo toReplyInfo(@NonNull InetSocketAddress source) {
+            return new MdnsReplyInfo(new ArrayList<>(mAnswers),
+                    new ArrayList<>(mAdditionalAnswers), mSendDelayMs, mDestination, source,
+                    mKnownAnswers.toList());
+        }
+    }
+
+    /**
+     * Key of a packet in the packet cache.
+     *
+     * <p>Records of advertised services are not modified once created, so packets with the same
+     * record instances have the same wire format; records are recreated when services or
+     * addresses change. NSEC records are created for each reply, so they are compared by value,
+     * including their name case, TTL and class.
+     */
+    private static final class PacketKey {
+        @NonNull
+        private final MdnsPacket mPacket;
+        private final int mHashCode;
+
+        PacketKey(@NonNull MdnsPacket packet) {
+            mPacket = packet;
+            int hashCode = 31 * packet.transactionId + packet.flags;
+            hashCode = 31 * hashCode + hashRecords(packet.questions);
+            hashCode = 31 * hashCode + hashRecords(packet.answers);
+            hashCode = 31 * hashCode + hashRecords(packet.authorityRecords);
+            hashCode = 31 * hashCode + hashRecords(packet.additionalRecords);
+            mHashCode = hashCode;
+        }
+
+        private static int hashRecords(@NonNull List<MdnsRecord> records) {
+            int hashCode = 1;
+            for (MdnsRecord record : records) {
+                hashCode = 31 * hashCode + (record instanceof MdnsNsecRecord
+                        ? Arrays.hashCode(record.getName())
+                        : System.identityHashCode(record));
+            }
+            return hashCode;
+        }
+
+        private static boolean sameRecords(@NonNull List<MdnsRecord> records,
+                @NonNull List<MdnsRecord> otherRecords) {
+            if (records.size() != otherRecords.size()) return false;
+            for (int i = 0; i < records.size(); i++) {
+                if (!sameRecord(records.get(i), otherRecords.get(i))) return false;
+            }
+            return true;
+        }
+
+        private static boolean sameRecord(@NonNull MdnsRecord record,
+                @NonNull MdnsRecord otherRecord) {
+            if (record == otherRecord) return true;
+            if (!(record instanceof MdnsNsecRecord) || !(otherRecord instanceof MdnsNsecRecord)) {
+                return false;
+            }
+            final MdnsNsecRecord nsec = (MdnsNsecRecord) record;
+            final MdnsNsecRecord otherNsec = (MdnsNsecRecord) otherRecord;
+            return Arrays.equals(nsec.getName(), otherNsec.getName())
+                    && nsec.getRecordClass() == otherNsec.getRecordClass()
+                    && nsec.getTtl() == otherNsec.getTtl()
+                    && nsec.getReceiptTime() == otherNsec.getReceiptTime()
+                    && Arrays.equals(nsec.getNextDomain(), otherNsec.getNextDomain())
+                    && Arrays.equals(nsec.getTypes(), otherNsec.getTypes());
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) return true;
+            if (!(other instanceof PacketKey)) return false;
+            final MdnsPacket otherPacket = ((PacketKey) other).mPacket;
+            return mHashCode == other.hashCode()
+                    && mPacket.transactionId == otherPacket.transactionId
+                    && mPacket.flags == otherPacket.flags
+                    && sameRecords(mPacket.questions, otherPacket.questions)
+                    && sameRecords(mPacket.answers, otherPacket.answers)
+                    && sameRecords(mPacket.authorityRecords, otherPacket.authorityRecords)
+                    && sameRecords(mPacket.additionalRecords, otherPacket.additionalRecords);
+        }
+    }
 
     /**
      * Dependencies of MdnsReplySender, for injection in tests.
@@ -148,26 +266,27 @@ public class MdnsReplySender {
         if (mMdnsFeatureFlags.isKnownAnswerSuppressionEnabled()) {
             mDependencies.removeMessages(mHandler, MSG_SEND, reply.source);
 
-            final MdnsReplyInfo queuingReply = mSrcReplies.remove(reply.source);
-            final ArraySet<MdnsRecord> answers = new ArraySet<>();
-            final Set<MdnsRecord> additionalAnswers = new ArraySet<>();
-            final Set<MdnsRecord> knownAnswers = new ArraySet<>();
-            if (queuingReply != null) {
-                answers.addAll(queuingReply.answers);
-                additionalAnswers.addAll(queuingReply.additionalAnswers);
-                knownAnswers.addAll(queuingReply.knownAnswers);
+            // The pending reply is updated in place, so each packet of a multipacket Known-Answer
+            // list only costs the hashing of its own known answers.
+            PendingReply pendingReply = mSrcReplies.remove(reply.source);
+            if (pendingReply == null) {
+                pendingReply = new PendingReply(reply.destination);
+            } else {
+                pendingReply.mDestination = getReplyDestination(pendingReply.mDestination,
+                        reply.destination);
             }
-            answers.addAll(reply.answers);
-            additionalAnswers.addAll(reply.additionalAnswers);
-            knownAnswers.addAll(reply.knownAnswers);
+            pendingReply.mAnswers.addAll(reply.answers);
+            pendingReply.mAdditionalAnswers.addAll(reply.additionalAnswers);
+            pendingReply.mKnownAnswers.addAll(reply.knownAnswers);
+            pendingReply.mSendDelayMs = reply.sendDelayMs;
             // RFC6762 7.2. Multipacket Known-Answer Suppression
             // If the responder sees any of its answers listed in the Known-Answer
             // lists of subsequent packets from the querying host, it MUST delete
             // that answer from the list of answers it is planning to give.
-            for (MdnsRecord knownAnswer : knownAnswers) {
-                final int idx = answers.indexOf(knownAnswer);
-                if (idx >= 0 && knownAnswer.getTtl() > answers.valueAt(idx).getTtl() / 2) {
-                    answers.removeAt(idx);
+            final ArraySet<MdnsRecord> answers = pendingReply.mAnswers;
+            for (int i = answers.size() - 1; i >= 0; i--) {
+                if (pendingReply.mKnownAnswers.isKnownAnswer(answers.valueAt(i))) {
+                    answers.removeAt(i);
                 }
             }
 
@@ -175,18 +294,9 @@ public class MdnsReplySender {
                 return;
             }
 
-            final MdnsReplyInfo newReply = new MdnsReplyInfo(
-                    new ArrayList<>(answers),
-                    new ArrayList<>(additionalAnswers),
-                    reply.sendDelayMs,
-                    queuingReply == null ? reply.destination
-                            : getReplyDestination(queuingReply.destination, reply.destination),
-                    reply.source,
-                    new ArrayList<>(knownAnswers));
-
-            mSrcReplies.put(newReply.source, newReply);
+            mSrcReplies.put(reply.source, pendingReply);
             mDependencies.sendMessageDelayed(mHandler,
-                    mHandler.obtainMessage(MSG_SEND, newReply.source), newReply.sendDelayMs);
+                    mHandler.obtainMessage(MSG_SEND, reply.source), reply.sendDelayMs);
         } else {
             mDependencies.sendMessageDelayed(
                     mHandler, mHandler.obtainMessage(MSG_SEND, reply), reply.sendDelayMs);
@@ -210,11 +320,37 @@ public class MdnsReplySender {
             // Skip sending if the socket has not joined the v4/v6 group (there was no address)
             return PACKET_NOT_SENT;
         }
-        final byte[] outBuffer = MdnsUtils.createRawDnsPacket(mPacketCreationBuffer, packet);
+        final byte[] outBuffer = mMdnsFeatureFlags.isReplyPacketCacheEnabled()
+                ? getOrCreateRawDnsPacket(packet)
+                : MdnsUtils.createRawDnsPacket(mPacketCreationBuffer, packet);
         mSocket.send(new DatagramPacket(outBuffer, 0, outBuffer.length, destination));
         return PACKET_SENT;
     }
 
+    // The returned buffer is shared with the cache: it must not be modified, and can only be used
+    // until the packet is sent synchronously.
+    @NonNull
+    private byte[] getOrCreateRawDnsPacket(@NonNull MdnsPacket packet) throws IOException {
+        final PacketKey key = new PacketKey(packet);
+        final byte[] cachedPacket = mPacketCache.get(key);
+        if (cachedPacket != null) return cachedPacket;
+
+        final byte[] rawPacket = MdnsUtils.createRawDnsPacket(mPacketCreationBuffer, packet);
+        mPacketCache.put(key, rawPacket);
+        return rawPacket;
+    }
+
+    /**
+     * Clear the cache of sent packets.
+     *
+     * <p>This is not necessary for correctness as packets are cached by record instance, but
+     * allows releasing the records when they are replaced.
+     */
+    public void clearPacketCache() {
+        ensureRunningOnHandlerThread(mHandler);
+        mPacketCache.clear();
+    }
+
     /**
      * Cancel all pending sends.
      */
@@ -235,7 +371,8 @@ public class MdnsReplySender {
                 // Retrieve the MdnsReplyInfo from the map via a source address, as the reply info
                 // will be combined or updated.
                 final InetSocketAddress source = (InetSocketAddress) msg.obj;
-                replyInfo = mSrcReplies.remove(source);
+                final PendingReply pendingReply = mSrcReplies.remove(source);
+                replyInfo = pendingReply == null ? null : pendingReply.toReplyInfo(source);
             } else {
                 replyInfo = (MdnsReplyInfo) msg.obj;
             }
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity.mdns;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decodes received mDNS responses on a pool of worker threads, and delivers the decoded packets on
+ * a looper thread.
+ *
+ * <p>Each socket is assigned one worker, so packets received on a socket are decoded and delivered
+ * in the order they were received. Different sockets can be decoded in parallel, which avoids
+ * decoding becoming a bottleneck of the looper thread on devices with many interfaces.
+ *
+ * <p>Decoded {@link MdnsPacket}s are not modified after decoding, so they can be handed over to
+ * the looper thread.
+ *
+ * <p>The number of packets waiting to be decoded by a worker is bounded, so that an mDNS storm
+ * cannot use an unbounded amount of memory; packets received while the queue is full are dropped
+ * and counted in the metrics of the interface.
+ */
+public class MdnsResponseDecodeStage {
+    // Packets waiting to be decoded by a worker, above which received packets are dropped.
+    @VisibleForTesting
+    static final int MAX_QUEUED_PACKETS_PER_WORKER = 100;
+
+    @NonNull
+    private final Handler mHandler;
+    @NonNull
+    private final MdnsFeatureFlags mMdnsFeatureFlags;
+    @GuardedBy("mWorkers")
+    @NonNull
+    private final ThreadPoolExecutor[] mWorkers;
+    @GuardedBy("mWorkers")
+    private int mNextWorker = 0;
+
+    /**
+     * Callback receiving the result of decoding packets, called on the looper thread.
+     */
+    public interface Callback {
+        /**
+         * Called when a response was decoded.
+         */
+        void onResponseDecoded(int packetNumber, @NonNull MdnsPacket response);
+
+        /**
+         * Called when a packet could not be parsed as a response.
+         */
+        void onResponseParseFailed(int packetNumber, @NonNull MdnsPacket.ParseException e);
+    }
+
+    /**
+     * Decoder for the packets received on a socket.
+     */
+    public final class SocketDecoder {
+        private final int mWorkerIndex;
+        @NonNull
+        private final MdnsMetrics.InterfaceMetrics mMetrics;
+        @NonNull
+        private final Callback mCallback;
+
+        private SocketDecoder(int workerIndex, @NonNull MdnsMetrics.InterfaceMetrics metrics,
+                @NonNull Callback callback) {
+            mWorkerIndex = workerIndex;
+            mMetrics = metrics;
+            mCallback = callback;
+        }
+
+        /**
+         * Decode a received packet on the worker of the socket.
+         *
+         * <p>recvbuf is copied, so it can be reused after this method returns. The packet is
+         * dropped if too many packets are already waiting to be decoded by the worker.
+         *
+         * @param packetNumber A number identifying the packet, passed to the callback.
+         * @param recvbuf The buffer containing the packet.
+         * @param length The length of the packet.
+         * @param filter The filter to apply to the records, or null to parse all records.
+         */
+        public void decode(int packetNumber, @NonNull byte[] recvbuf, int length,
+                @Nullable MdnsRecordFilter filter) {
+            final byte[] packet = Arrays.copyOf(recvbuf, length);
+            try {
+                getOrStartWorker(mWorkerIndex).execute(() -> {
+                    try {
+                        final MdnsPacket response = decodeResponse(packet, length,
+                                mMdnsFeatureFlags, filter, mMetrics);
+                        mHandler.post(() -> mCallback.onResponseDecoded(packetNumber, response));
+                    } catch (MdnsPacket.ParseException e) {
+                        mHandler.post(() -> mCallback.onResponseParseFailed(packetNumber, e));
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                mMetrics.onPacketDropped();
+            }
+        }
+    }
+
+    /**
+     * Create a decode stage with the given number of worker threads.
+     *
+     * <p>Worker threads are only started when they first receive a packet to decode.
+     *
+     * @param looper The looper to deliver decoded packets on.
+     * @param workerCount The number of worker threads.
+     * @param mdnsFeatureFlags The feature flags to use to parse packets.
+     */
+    public MdnsResponseDecodeStage(@NonNull Looper looper, int workerCount,
+            @NonNull MdnsFeatureFlags mdnsFeatureFlags) {
+        if (workerCount <= 0) {
+            throw new IllegalArgumentException("Invalid worker count " + workerCount);
+        }
+        mHandler = new Handler(looper);
+        mMdnsFeatureFlags = mdnsFeatureFlags;
+        mWorkers = new ThreadPoolExecutor[workerCount];
+    }
+
+    /**
+     * Create a decoder for a new socket, assigning it the next worker.
+     *
+     * @param metrics The metrics of the interface of the socket, to record decode times in.
+     * @param callback The callback to deliver decoded packets to.
+     */
+    @NonNull
+    public SocketDecoder newSocketDecoder(@NonNull MdnsMetrics.InterfaceMetrics metrics,
+            @NonNull Callback callback) {
+        final int index;
+        synchronized (mWorkers) {
+            index = mNextWorker;
+            mNextWorker = (mNextWorker + 1) % mWorkers.length;
+        }
+        return new SocketDecoder(index, metrics, callback);
+    }
+
+    @NonNull
+    private ThreadPoolExecutor getOrStartWorker(int index) {
+        synchronized (mWorkers) {
+            if (mWorkers[index] == null) {
+                mWorkers[index] = new ThreadPoolExecutor(1 /* corePoolSize */,
+                        1 /* maximumPoolSize */, 0L /* keepAliveTime */, TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<>(MAX_QUEUED_PACKETS_PER_WORKER),
+                        r -> new Thread(r, "MdnsDecodeWorker" + index));
+            }
+            return mWorkers[index];
+        }
+    }
+
+    /**
+     * Stop the worker threads. Packets that are not decoded yet are dropped.
+     *
+     * <p>Workers are started again when packets are received after this call.
+     */
+    public void shutdown() {
+        synchronized (mWorkers) {
+            for (int i = 0; i < mWorkers.length; i++) {
+                if (mWorkers[i] == null) continue;
+                mWorkers[i].shutdownNow();
+                mWorkers[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Decode a received response on the current thread, recording the decode time in the metrics
+     * of the interface.
+     *
+     * @throws MdnsPacket.ParseException if the packet could not be parsed as a response.
+     */
+    @NonNull
+    public static MdnsPacket decodeResponse(@NonNull byte[] recvbuf, int length,
+            @NonNull MdnsFeatureFlags mdnsFeatureFlags, @Nullable MdnsRecordFilter filter,
+            @NonNull MdnsMetrics.InterfaceMetrics metrics) throws MdnsPacket.ParseException {
+        final long decodeStartNs = SystemClock.elapsedRealtimeNanos();
+        final MdnsPacket response = MdnsResponseDecoder.parseResponse(recvbuf, length,
+                mdnsFeatureFlags, filter);
+        metrics.onPacketDecoded((SystemClock.elapsedRealtimeNanos() - decodeStartNs) / 1000);
+        return response;
+    }
+}
@@ -86,6 +86,24 @@ public class MdnsResponseDecoder {
     @NonNull
     public static MdnsPacket parseResponse(@NonNull byte[] recvbuf, int length,
             @NonNull MdnsFeatureFlags mdnsFeatureFlags) throws MdnsPacket.ParseException {
+        return parseResponse(recvbuf, length, mdnsFeatureFlags, null /* filter */);
+    }
+
+    /**
+     * Decodes the mDNS responses from a packet, skipping records that are not relevant as per the
+     * given filter.
+     *
+     * @param recvbuf The received data buffer to read from.
+     * @param length The length of received data buffer.
+     * @param filter If non-null, records that are not relevant per the filter are skipped without
+     *               being decoded.
+     * @return A decoded {@link MdnsPacket}.
+     * @throws MdnsPacket.ParseException if a response packet could not be parsed.
+     */
+    @NonNull
+    public static MdnsPacket parseResponse(@NonNull byte[] recvbuf, int length,
+            @NonNull MdnsFeatureFlags mdnsFeatureFlags, @Nullable MdnsRecordFilter filter)
+            throws MdnsPacket.ParseException {
         final MdnsPacketReader reader = new MdnsPacketReader(recvbuf, length, mdnsFeatureFlags);
 
         final MdnsPacket mdnsPacket;
@@ -97,7 +115,13 @@ public class MdnsResponseDecoder {
                         MdnsResponseErrorCode.ERROR_NOT_RESPONSE_MESSAGE, "Not a response", null);
             }
 
-            mdnsPacket = MdnsPacket.parseRecordsSection(reader, flags, transactionId);
+            mdnsPacket = MdnsPacket.parseRecordsSection(reader, flags, transactionId, filter);
+            // All answers may have been skipped by the filter: only responses that really have no
+            // answers are invalid. The answers count is at offset 6 of the header (RFC1035 4.1.1).
+            if (filter != null && mdnsPacket.answers.size() < 1
+                    && ((recvbuf[6] & 0xFF) | (recvbuf[7] & 0xFF)) != 0) {
+                return mdnsPacket;
+            }
             if (mdnsPacket.answers.size() < 1) {
                 throw new MdnsPacket.ParseException(
                         MdnsResponseErrorCode.ERROR_NO_ANSWERS, "Response has no answers",
@@ -18,11 +18,8 @@ package com.android.server.connectivity.mdns;
 
 import static com.android.server.connectivity.mdns.MdnsResponse.EXPIRATION_NEVER;
 import static com.android.server.connectivity.mdns.util.MdnsUtils.ensureRunningOnHandlerThread;
-import static com.android.server.connectivity.mdns.util.MdnsUtils.equalsIgnoreDnsCase;
 import static com.android.server.connectivity.mdns.util.MdnsUtils.toDnsLowerCase;
 
-import static java.lang.Math.min;
-
 import android.annotation.NonNull;
 import android.annotation.Nullable;
 import android.os.Handler;
@@ -31,10 +28,12 @@ import android.util.ArrayMap;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.server.connectivity.mdns.util.MdnsUtils;
+import com.android.server.connectivity.mdns.util.TimingWheel;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Objects;
 
@@ -72,15 +71,27 @@ public class MdnsServiceCache {
                     && Objects.equals(mSocketKey, ((CacheKey) other).mSocketKey);
         }
     }
+
+    private static class CachedService {
+        @NonNull final CacheKey mCacheKey;
+        @NonNull MdnsResponse mResponse;
+        @NonNull final TimingWheel.Entry<CachedService> mExpiration =
+                new TimingWheel.Entry<>(this);
+
+        CachedService(@NonNull CacheKey cacheKey, @NonNull MdnsResponse response) {
+            mCacheKey = cacheKey;
+            mResponse = response;
+        }
+    }
+
     /**
-     * A map of cached services. Key is composed of service type and socket. Value is the list of
-     * services which are discovered from the given CacheKey.
-     * When the MdnsFeatureFlags#NSD_EXPIRED_SERVICES_REMOVAL flag is enabled, the lists are sorted
-     * by expiration time, with the earliest entries appearing first. This sorting allows the
-     * removal process to progress through the expiration check efficiently.
+     * A map of cached services. Key is composed of service type and socket. Value is the map of
+     * services which are discovered from the given CacheKey, indexed by their service instance name
+     * in DNS lower case, in the order they were last added or updated.
      */
     @NonNull
-    private final ArrayMap<CacheKey, List<MdnsResponse>> mCachedServices = new ArrayMap<>();
+    private final ArrayMap<CacheKey, LinkedHashMap<String, CachedService>> mCachedServices =
+            new ArrayMap<>();
     /**
      * A map of service expire callbacks. Key is composed of service type and socket and value is
      * the callback listener.
@@ -93,7 +104,15 @@ public class MdnsServiceCache {
     private final MdnsFeatureFlags mMdnsFeatureFlags;
     @NonNull
     private final MdnsUtils.Clock mClock;
-    private long mNextExpirationTime = EXPIRATION_NEVER;
+    /**
+     * The expiration times of the cached services, when the
+     * MdnsFeatureFlags#NSD_EXPIRED_SERVICES_REMOVAL flag is enabled.
+     */
+    @NonNull
+    private final TimingWheel<CachedService> mExpirations;
+    private int mHitCount;
+    private int mMissCount;
+    private int mEvictionCount;
 
     public MdnsServiceCache(@NonNull Looper looper, @NonNull MdnsFeatureFlags mdnsFeatureFlags) {
         this(looper, mdnsFeatureFlags, new MdnsUtils.Clock());
@@ -105,6 +124,12 @@ public class MdnsServiceCache {
         mHandler = new Handler(looper);
         mMdnsFeatureFlags = mdnsFeatureFlags;
         mClock = clock;
+        mExpirations = new TimingWheel<>(clock.elapsedRealtime());
+    }
+
+    @Nullable
+    private static String toCacheName(@Nullable String serviceName) {
+        return serviceName == null ? null : toDnsLowerCase(serviceName);
     }
 
     /**
@@ -117,28 +142,17 @@ public class MdnsServiceCache {
     public List<MdnsResponse> getCachedServices(@NonNull CacheKey cacheKey) {
         ensureRunningOnHandlerThread(mHandler);
         if (mMdnsFeatureFlags.mIsExpiredServicesRemovalEnabled) {
-            maybeRemoveExpiredServices(cacheKey, mClock.elapsedRealtime());
+            maybeRemoveExpiredServices(mClock.elapsedRealtime());
         }
-        return mCachedServices.containsKey(cacheKey)
-                ? Collections.unmodifiableList(new ArrayList<>(mCachedServices.get(cacheKey)))
-                : Collections.emptyList();
-    }
-
-    /**
-     * Find a matched response for given service name
-     *
-     * @param responses the responses to be searched.
-     * @param serviceName the target service name
-     * @return the response which matches the given service name or null if not found.
-     */
-    public static MdnsResponse findMatchedResponse(@NonNull List<MdnsResponse> responses,
-            @NonNull String serviceName) {
-        for (MdnsResponse response : responses) {
-            if (equalsIgnoreDnsCase(serviceName, response.getServiceInstanceName())) {
-                return response;
-            }
+        final LinkedHashMap<String, CachedService> services = mCachedServices.get(cacheKey);
+        if (services == null) {
+            return Collections.emptyList();
+        }
+        final List<MdnsResponse> responses = new ArrayList<>(services.size());
+        for (CachedService service : services.values()) {
+            responses.add(service.mResponse);
         }
-        return null;
+        return Collections.unmodifiableList(responses);
     }
 
     /**
@@ -152,24 +166,17 @@ public class MdnsServiceCache {
     public MdnsResponse getCachedService(@NonNull String serviceName, @NonNull CacheKey cacheKey) {
         ensureRunningOnHandlerThread(mHandler);
         if (mMdnsFeatureFlags.mIsExpiredServicesRemovalEnabled) {
-            maybeRemoveExpiredServices(cacheKey, mClock.elapsedRealtime());
+            maybeRemoveExpiredServices(mClock.elapsedRealtime());
         }
-        final List<MdnsResponse> responses = mCachedServices.get(cacheKey);
-        if (responses == null) {
+        final LinkedHashMap<String, CachedService> services = mCachedServices.get(cacheKey);
+        final CachedService service = services == null
+                ? null : services.get(toCacheName(serviceName));
+        if (service == null) {
+            mMissCount++;
             return null;
         }
-        final MdnsResponse response = findMatchedResponse(responses, serviceName);
-        return response != null ? new MdnsResponse(response) : null;
-    }
-
-    static void insertResponseAndSortList(
-            List<MdnsResponse> responses, MdnsResponse response, long now) {
-        // binarySearch returns "the index of the search key, if it is contained in the list;
-        // otherwise, (-(insertion point) - 1)"
-        final int searchRes = Collections.binarySearch(responses, response,
-                // Sort the list by ttl.
-                (o1, o2) -> Long.compare(o1.getMinRemainingTtl(now), o2.getMinRemainingTtl(now)));
-        responses.add(searchRes >= 0 ? searchRes : (-searchRes - 1), response);
+        mHitCount++;
+        return new MdnsResponse(service.mResponse);
     }
 
     /**
@@ -180,20 +187,29 @@ public class MdnsServiceCache {
      */
     public void addOrUpdateService(@NonNull CacheKey cacheKey, @NonNull MdnsResponse response) {
         ensureRunningOnHandlerThread(mHandler);
-        final List<MdnsResponse> responses = mCachedServices.computeIfAbsent(
-                cacheKey, key -> new ArrayList<>());
-        // Remove existing service if present.
-        final MdnsResponse existing =
-                findMatchedResponse(responses, response.getServiceInstanceName());
-        responses.remove(existing);
+        final LinkedHashMap<String, CachedService> services = mCachedServices.computeIfAbsent(
+                cacheKey, key -> new LinkedHashMap<>());
+        // Remove existing service if present, so that updated services are last in the map.
+        final String cacheName = toCacheName(response.getServiceInstanceName());
+        CachedService service = services.remove(cacheName);
+        if (service == null) {
+            service = new CachedService(cacheKey, response);
+        } else {
+            service.mResponse = response;
+        }
+        services.put(cacheName, service);
         if (mMdnsFeatureFlags.mIsExpiredServicesRemovalEnabled) {
-            final long now = mClock.elapsedRealtime();
-            // Insert and sort service
-            insertResponseAndSortList(responses, response, now);
-            // Update the next expiration check time when a new service is added.
-            mNextExpirationTime = getNextExpirationTime(now);
+            scheduleExpiration(service, mClock.elapsedRealtime());
+        }
+    }
+
+    private void scheduleExpiration(@NonNull CachedService service, long now) {
+        // Services without a service record never expire.
+        final long minRemainingTtl = service.mResponse.getMinRemainingTtl(now);
+        if (minRemainingTtl == EXPIRATION_NEVER) {
+            mExpirations.cancel(service.mExpiration);
         } else {
-            responses.add(response);
+            mExpirations.schedule(service.mExpiration, now + minRemainingTtl);
         }
     }
 
@@ -206,30 +222,23 @@ public class MdnsServiceCache {
     @Nullable
     public MdnsResponse removeService(@NonNull String serviceName, @NonNull CacheKey cacheKey) {
         ensureRunningOnHandlerThread(mHandler);
-        final List<MdnsResponse> responses = mCachedServices.get(cacheKey);
-        if (responses == null) {
+        final LinkedHashMap<String, CachedService> services = mCachedServices.get(cacheKey);
+        if (services == null) {
             return null;
         }
-        final Iterator<MdnsResponse> iterator = responses.iterator();
-        MdnsResponse removedResponse = null;
-        while (iterator.hasNext()) {
-            final MdnsResponse response = iterator.next();
-            if (equalsIgnoreDnsCase(serviceName, response.getServiceInstanceName())) {
-                iterator.remove();
-                removedResponse = response;
-                break;
-            }
+        final CachedService removedService = services.remove(toCacheName(serviceName));
+        if (removedService == null) {
+            return null;
         }
+        mExpirations.cancel(removedService.mExpiration);
 
         if (mMdnsFeatureFlags.mIsExpiredServicesRemovalEnabled) {
             // Remove the serviceType if no response.
-            if (responses.isEmpty()) {
+            if (services.isEmpty()) {
                 mCachedServices.remove(cacheKey);
             }
-            // Update the next expiration check time when a service is removed.
-            mNextExpirationTime = getNextExpirationTime(mClock.elapsedRealtime());
         }
-        return removedResponse;
+        return removedService.mResponse;
     }
 
     /**
@@ -267,75 +276,46 @@ public class MdnsServiceCache {
         mHandler.post(()-> callback.onServiceRecordExpired(previousResponse, newResponse));
     }
 
-    static List<MdnsResponse> removeExpiredServices(@NonNull List<MdnsResponse> responses,
-            long now) {
-        final List<MdnsResponse> removedResponses = new ArrayList<>();
-        final Iterator<MdnsResponse> iterator = responses.iterator();
-        while (iterator.hasNext()) {
-            final MdnsResponse response = iterator.next();
+    /**
+     * Remove the services whose ttl time is expired and notify the listeners
+     */
+    private void maybeRemoveExpiredServices(long now) {
+        ensureRunningOnHandlerThread(mHandler);
+        for (TimingWheel.Entry<CachedService> entry : mExpirations.advance(now)) {
+            final CachedService service = entry.getValue();
             // TODO: Check other records (A, AAAA, TXT) ttl time and remove the record if it's
             //  expired. Then send service update notification.
-            if (!response.hasServiceRecord() || response.getMinRemainingTtl(now) > 0) {
-                // The responses are sorted by the service record ttl time. Break out of loop
-                // early if service is not expired or no service record.
-                break;
+            // Cached responses may have been refreshed without being updated in the cache: only
+            // remove them if they are actually expired.
+            if (service.mResponse.getMinRemainingTtl(now) > 0) {
+                scheduleExpiration(service, now);
+                continue;
             }
-            // Remove the ttl expired service.
-            iterator.remove();
-            removedResponses.add(response);
-        }
-        return removedResponses;
-    }
 
-    private long getNextExpirationTime(long now) {
-        if (mCachedServices.isEmpty()) {
-            return EXPIRATION_NEVER;
-        }
-
-        long minRemainingTtl = EXPIRATION_NEVER;
-        for (int i = 0; i < mCachedServices.size(); i++) {
-            minRemainingTtl = min(minRemainingTtl,
-                    // The empty lists are not kept in the map, so there's always at least one
-                    // element in the list. Therefore, it's fine to get the first element without a
-                    // null check.
-                    mCachedServices.valueAt(i).get(0).getMinRemainingTtl(now));
+            final LinkedHashMap<String, CachedService> services =
+                    mCachedServices.get(service.mCacheKey);
+            services.remove(toCacheName(service.mResponse.getServiceInstanceName()));
+            // Remove the serviceType if no response.
+            if (services.isEmpty()) {
+                mCachedServices.remove(service.mCacheKey);
+            }
+            mEvictionCount++;
+            notifyServiceExpired(service.mCacheKey, service.mResponse, null /* newResponse */);
         }
-        return minRemainingTtl == EXPIRATION_NEVER ? EXPIRATION_NEVER : now + minRemainingTtl;
     }
 
     /**
-     * Check whether the ttl time is expired on each service and notify to the listeners
+     * Dump ServiceCache state.
      */
-    private void maybeRemoveExpiredServices(CacheKey cacheKey, long now) {
+    public void dump(@NonNull PrintWriter pw) {
         ensureRunningOnHandlerThread(mHandler);
-        if (now < mNextExpirationTime) {
-            // Skip the check if ttl time is not expired.
-            return;
-        }
-
-        final List<MdnsResponse> responses = mCachedServices.get(cacheKey);
-        if (responses == null) {
-            // No such services.
-            return;
-        }
-
-        final List<MdnsResponse> removedResponses = removeExpiredServices(responses, now);
-        if (removedResponses.isEmpty()) {
-            // No expired services.
-            return;
-        }
-
-        for (MdnsResponse previousResponse : removedResponses) {
-            notifyServiceExpired(cacheKey, previousResponse, null /* newResponse */);
-        }
-
-        // Remove the serviceType if no response.
-        if (responses.isEmpty()) {
-            mCachedServices.remove(cacheKey);
+        int serviceCount = 0;
+        for (int i = 0; i < mCachedServices.size(); i++) {
+            serviceCount += mCachedServices.valueAt(i).size();
         }
-
-        // Update next expiration time.
-        mNextExpirationTime = getNextExpirationTime(now);
+        pw.println("ServiceCache: " + serviceCount + " services for " + mCachedServices.size()
+                + " service types, " + mHitCount + " hits, " + mMissCount + " misses, "
+                + mEvictionCount + " evictions");
     }
 
     /*** Callbacks for listening service expiration */
@@ -17,7 +17,6 @@
 package com.android.server.connectivity.mdns;
 
 import static com.android.server.connectivity.mdns.MdnsServiceCache.ServiceExpiredCallback;
-import static com.android.server.connectivity.mdns.MdnsServiceCache.findMatchedResponse;
 import static com.android.server.connectivity.mdns.util.MdnsUtils.Clock;
 import static com.android.server.connectivity.mdns.util.MdnsUtils.ensureRunningOnHandlerThread;
 
@@ -43,6 +42,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
@@ -55,7 +55,7 @@ import java.util.concurrent.ScheduledExecutorService;
 public class MdnsServiceTypeClient {
 
     private static final String TAG = MdnsServiceTypeClient.class.getSimpleName();
-    private static final int DEFAULT_MTU = 1500;
+    static final int DEFAULT_MTU = 1500;
     @VisibleForTesting
     static final int EVENT_START_QUERYTASK = 1;
     static final int EVENT_QUERY_RESULT = 2;
@@ -76,6 +76,7 @@ public class MdnsServiceTypeClient {
      */
     @NonNull private final MdnsServiceCache serviceCache;
     @NonNull private final MdnsServiceCache.CacheKey cacheKey;
+    @Nullable private final MdnsQueryAggregator queryAggregator;
     @NonNull private final ServiceExpiredCallback serviceExpiredCallback =
             new ServiceExpiredCallback() {
                 @Override
@@ -141,8 +142,10 @@ public class MdnsServiceTypeClient {
                     // that were received before it is called, so to take into account all answers
                     // before sending the query, it needs to be called just before sending it.
                     final List<MdnsResponse> servicesToResolve = makeResponsesForResolve(socketKey);
+                    final Set<String> subtypes = getAllDiscoverySubtypes();
                     final QueryTask queryTask = new QueryTask(taskArgs, servicesToResolve,
-                            getAllDiscoverySubtypes(), needSendDiscoveryQueries(listeners));
+                            subtypes, needSendDiscoveryQueries(listeners),
+                            makeKnownAnswers(subtypes));
                     executor.submit(queryTask);
                     break;
                 }
@@ -236,9 +239,10 @@ public class MdnsServiceTypeClient {
             @NonNull SocketKey socketKey,
             @NonNull SharedLog sharedLog,
             @NonNull Looper looper,
-            @NonNull MdnsServiceCache serviceCache) {
+            @NonNull MdnsServiceCache serviceCache,
+            @Nullable MdnsQueryAggregator queryAggregator) {
         this(serviceType, socketClient, executor, new Clock(), socketKey, sharedLog, looper,
-                new Dependencies(), serviceCache);
+                new Dependencies(), serviceCache, queryAggregator);
     }
 
     @VisibleForTesting
@@ -252,6 +256,22 @@ public class MdnsServiceTypeClient {
             @NonNull Looper looper,
             @NonNull Dependencies dependencies,
             @NonNull MdnsServiceCache serviceCache) {
+        this(serviceType, socketClient, executor, clock, socketKey, sharedLog, looper,
+                dependencies, serviceCache, null /* queryAggregator */);
+    }
+
+    @VisibleForTesting
+    public MdnsServiceTypeClient(
+            @NonNull String serviceType,
+            @NonNull MdnsSocketClientBase socketClient,
+            @NonNull ScheduledExecutorService executor,
+            @NonNull Clock clock,
+            @NonNull SocketKey socketKey,
+            @NonNull SharedLog sharedLog,
+            @NonNull Looper looper,
+            @NonNull Dependencies dependencies,
+            @NonNull MdnsServiceCache serviceCache,
+            @Nullable MdnsQueryAggregator queryAggregator) {
         this.serviceType = serviceType;
         this.socketClient = socketClient;
         this.executor = executor;
@@ -265,6 +285,7 @@ public class MdnsServiceTypeClient {
         this.serviceCache = serviceCache;
         this.mdnsQueryScheduler = new MdnsQueryScheduler();
         this.cacheKey = new MdnsServiceCache.CacheKey(serviceType, socketKey);
+        this.queryAggregator = queryAggregator;
     }
 
     /**
@@ -388,10 +409,11 @@ public class MdnsServiceTypeClient {
                     calculateTimeToNextTask(args, now, sharedLog));
         } else {
             final List<MdnsResponse> servicesToResolve = makeResponsesForResolve(socketKey);
+            final Set<String> subtypes = getAllDiscoverySubtypes();
             final QueryTask queryTask = new QueryTask(
                     mdnsQueryScheduler.scheduleFirstRun(taskConfig, now,
                             minRemainingTtl, currentSessionId), servicesToResolve,
-                    getAllDiscoverySubtypes(), needSendDiscoveryQueries(listeners));
+                    subtypes, needSendDiscoveryQueries(listeners), makeKnownAnswers(subtypes));
             executor.submit(queryTask);
         }
 
@@ -407,6 +429,34 @@ public class MdnsServiceTypeClient {
         return subtypes;
     }
 
+    /**
+     * Make the list of known answers to send with discovery queries, when queries are sent through
+     * a {@link MdnsQueryAggregator}.
+     *
+     * <p>As per RFC6762 7.1, these are the cached PTR records answering the discovery questions,
+     * which have more than half of their TTL remaining.
+     */
+    private List<MdnsRecord> makeKnownAnswers(@NonNull Set<String> subtypes) {
+        final List<MdnsRecord> knownAnswers = new ArrayList<>();
+        if (queryAggregator == null || !needSendDiscoveryQueries(listeners)) {
+            return knownAnswers;
+        }
+        final long now = clock.elapsedRealtime();
+        for (MdnsResponse response : serviceCache.getCachedServices(cacheKey)) {
+            for (MdnsPointerRecord pointerRecord : response.getPointerRecords()) {
+                if (pointerRecord.getRemainingTTL(now) <= pointerRecord.getTtl() / 2) {
+                    continue;
+                }
+                final String subtype = pointerRecord.getSubtype();
+                if (subtype == null || CollectionUtils.any(subtypes, s -> MdnsUtils
+                        .equalsIgnoreDnsCase(MdnsConstants.SUBTYPE_PREFIX + s, subtype))) {
+                    knownAnswers.add(pointerRecord);
+                }
+            }
+        }
+        return knownAnswers;
+    }
+
     /**
      * Get the executor service.
      */
@@ -459,6 +509,11 @@ public class MdnsServiceTypeClient {
         return listeners.isEmpty();
     }
 
+    private static boolean isCachedName(@NonNull Set<String> cachedNames,
+            @Nullable String serviceName) {
+        return serviceName != null && cachedNames.contains(MdnsUtils.toDnsLowerCase(serviceName));
+    }
+
     /**
      * Process an incoming response packet.
      */
@@ -469,10 +524,16 @@ public class MdnsServiceTypeClient {
         // requests if there is no known response
         final List<MdnsResponse> cachedList = serviceCache.getCachedServices(cacheKey);
         final List<MdnsResponse> currentList = new ArrayList<>(cachedList);
+        // Names of the cached services in DNS lower case, to avoid searching the list for each
+        // response.
+        final Set<String> cachedNames = new HashSet<>(cachedList.size());
+        for (MdnsResponse cachedResponse : cachedList) {
+            final String name = cachedResponse.getServiceInstanceName();
+            if (name != null) cachedNames.add(MdnsUtils.toDnsLowerCase(name));
+        }
         List<MdnsResponse> additionalResponses = makeResponsesForResolve(socketKey);
         for (MdnsResponse additionalResponse : additionalResponses) {
-            if (findMatchedResponse(
-                    cachedList, additionalResponse.getServiceInstanceName()) == null) {
+            if (!isCachedName(cachedNames, additionalResponse.getServiceInstanceName())) {
                 currentList.add(additionalResponse);
             }
         }
@@ -491,7 +552,7 @@ public class MdnsServiceTypeClient {
                 } else {
                     onResponseModified(response);
                 }
-            } else if (findMatchedResponse(cachedList, serviceInstanceName) != null) {
+            } else if (isCachedName(cachedNames, serviceInstanceName)) {
                 // If the response is not modified and already in the cache. The cache will
                 // need to be updated to refresh the last receipt time.
                 serviceCache.addOrUpdateService(cacheKey, response);
@@ -694,14 +755,17 @@ public class MdnsServiceTypeClient {
         private final List<MdnsResponse> servicesToResolve = new ArrayList<>();
         private final List<String> subtypes = new ArrayList<>();
         private final boolean sendDiscoveryQueries;
+        private final List<MdnsRecord> knownAnswers = new ArrayList<>();
         QueryTask(@NonNull MdnsQueryScheduler.ScheduledQueryTaskArgs taskArgs,
                 @NonNull Collection<MdnsResponse> servicesToResolve,
                 @NonNull Collection<String> subtypes,
-                boolean sendDiscoveryQueries) {
+                boolean sendDiscoveryQueries,
+                @NonNull Collection<MdnsRecord> knownAnswers) {
             this.taskArgs = taskArgs;
             this.servicesToResolve.addAll(servicesToResolve);
             this.subtypes.addAll(subtypes);
             this.sendDiscoveryQueries = sendDiscoveryQueries;
+            this.knownAnswers.addAll(knownAnswers);
         }
 
         @Override
@@ -721,7 +785,9 @@ public class MdnsServiceTypeClient {
                                 sendDiscoveryQueries,
                                 servicesToResolve,
                                 clock,
-                                sharedLog)
+                                sharedLog,
+                                queryAggregator,
+                                knownAnswers)
                                 .call();
             } catch (RuntimeException e) {
                 sharedLog.e(String.format("Failed to run EnqueueMdnsQueryCallable for subtype: %s",
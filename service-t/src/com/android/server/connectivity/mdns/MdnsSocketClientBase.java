@@ -66,6 +66,13 @@ public interface MdnsSocketClientBase {
     /** Returns whether the socket client support requesting per network */
     boolean supportsRequestingSpecificNetworks();
 
+    /**
+     * Set a filter for the records of received responses, or null to decode all records.
+     *
+     * Socket clients that do not support filtering decode all records.
+     */
+    default void setRecordFilter(@Nullable MdnsRecordFilter filter) { }
+
     /*** Callback for mdns response  */
     interface Callback {
         /*** Receive a mdns response */
@@ -76,6 +76,10 @@ public class MdnsSocketProvider {
     // But 1440 should generally be enough because of standard Ethernet.
     // Note: mdnsresponder mDNSEmbeddedAPI.h uses 8940 for Ethernet jumbo frames.
     private static final int READ_BUFFER_SIZE = 2048;
+    // Number of packets read from a socket before they are handled. Bursts of packets, like when
+    // joining a network, are read in batches of this size, and socket readers yield to other
+    // events between batches.
+    private static final int READ_BATCH_SIZE = 16;
     private static final int IFACE_IDX_NOT_EXIST = -1;
     @NonNull private final Context mContext;
     @NonNull private final Looper mLooper;
@@ -97,9 +101,12 @@ public class MdnsSocketProvider {
     // mIfaceIdxToLinkProperties should not be cleared in maybeStopMonitoringSockets() because
     // the netlink monitor is never stop and the old states must be kept.
     private final SparseArray<LinkProperties> mIfaceIdxToLinkProperties = new SparseArray<>();
-    private final byte[] mPacketReadBuffer = new byte[READ_BUFFER_SIZE];
+    // Shared by all sockets, as they are only read on the looper thread
+    private final byte[][] mPacketReadBuffers = new byte[READ_BATCH_SIZE][READ_BUFFER_SIZE];
     @NonNull
     private final SocketRequestMonitor mSocketRequestMonitor;
+    @NonNull
+    private final MdnsMetrics mMetrics;
     private boolean mMonitoringSockets = false;
     private boolean mRequestStop = false;
     private String mWifiP2pTetherInterface = null;
@@ -159,19 +166,20 @@ public class MdnsSocketProvider {
 
     public MdnsSocketProvider(@NonNull Context context, @NonNull Looper looper,
             @NonNull SharedLog sharedLog,
-            @NonNull SocketRequestMonitor socketRequestMonitor) {
-        this(context, looper, new Dependencies(), sharedLog, socketRequestMonitor);
+            @NonNull SocketRequestMonitor socketRequestMonitor, @NonNull MdnsMetrics metrics) {
+        this(context, looper, new Dependencies(), sharedLog, socketRequestMonitor, metrics);
     }
 
     MdnsSocketProvider(@NonNull Context context, @NonNull Looper looper,
             @NonNull Dependencies deps, @NonNull SharedLog sharedLog,
-            @NonNull SocketRequestMonitor socketRequestMonitor) {
+            @NonNull SocketRequestMonitor socketRequestMonitor, @NonNull MdnsMetrics metrics) {
         mContext = context;
         mLooper = looper;
         mHandler = new Handler(looper);
         mDependencies = deps;
         mSharedLog = sharedLog;
         mSocketRequestMonitor = socketRequestMonitor;
+        mMetrics = metrics;
         mNetworkCallback = new NetworkCallback() {
             @Override
             public void onLost(Network network) {
@@ -234,9 +242,11 @@ public class MdnsSocketProvider {
         /*** Create a MdnsInterfaceSocket */
         public MdnsInterfaceSocket createMdnsInterfaceSocket(
                 @NonNull NetworkInterface networkInterface, int port, @NonNull Looper looper,
-                @NonNull byte[] packetReadBuffer, @NonNull SharedLog sharedLog) throws IOException {
-            return new MdnsInterfaceSocket(networkInterface, port, looper, packetReadBuffer,
-                    sharedLog);
+                @NonNull byte[][] packetReadBuffers, @NonNull SharedLog sharedLog,
+                @NonNull MdnsMetrics.InterfaceMetrics metrics)
+                throws IOException {
+            return new MdnsInterfaceSocket(networkInterface, port, looper, packetReadBuffers,
+                    sharedLog, metrics);
         }
 
         /*** Get network interface by given interface name */
@@ -528,8 +538,9 @@ public class MdnsSocketProvider {
             mSharedLog.log("Create socket on net:" + networkKey + ", ifName:" + interfaceName);
             final MdnsInterfaceSocket socket = mDependencies.createMdnsInterfaceSocket(
                     networkInterface.getNetworkInterface(), MdnsConstants.MDNS_PORT, mLooper,
-                    mPacketReadBuffer, mSharedLog.forSubComponent(
-                            MdnsInterfaceSocket.class.getSimpleName() + "/" + interfaceName));
+                    mPacketReadBuffers, mSharedLog.forSubComponent(
+                            MdnsInterfaceSocket.class.getSimpleName() + "/" + interfaceName),
+                    mMetrics.getInterfaceMetrics(interfaceName));
             final List<LinkAddress> addresses = lp.getLinkAddresses();
             final Network network =
                     networkKey == LOCAL_NET ? null : ((NetworkAsKey) networkKey).mNetwork;
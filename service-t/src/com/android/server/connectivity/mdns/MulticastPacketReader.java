@@ -28,6 +28,8 @@ import com.android.server.connectivity.mdns.util.MdnsUtils;
 
 import java.io.FileDescriptor;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 
 /** Simple reader for mDNS packets. */
@@ -64,20 +66,29 @@ public class MulticastPacketReader extends FdEventsReader<MulticastPacketReader.
     /**
      * Create a new {@link MulticastPacketReader}.
      * @param socket Socket to read from. This will *not* be closed when the reader terminates.
-     * @param buffer Buffer to read packets into. Will only be used from the handler thread.
-     * @param port the port number for the socket
+     * @param buffers Buffers to read packets into; up to one packet per buffer is read at each
+     *                read event before packets are handled. Will only be used from the handler
+     *                thread, so they can be shared by readers on the same thread.
      */
     protected MulticastPacketReader(@NonNull String interfaceTag,
             @NonNull ParcelFileDescriptor socket, @NonNull Handler handler,
-            @NonNull byte[] buffer) {
-        // Set the port to zero as placeholder as the recvfrom() call will fill the actual port
-        // value later.
-        super(handler, new RecvBuffer(buffer, new InetSocketAddress(0 /* port */)));
+            @NonNull byte[][] buffers) {
+        super(handler, makeRecvBuffers(buffers));
         mLogTag = MulticastPacketReader.class.getSimpleName() + "/" + interfaceTag;
         mSocket = socket;
         mHandler = handler;
     }
 
+    private static List<RecvBuffer> makeRecvBuffers(@NonNull byte[][] buffers) {
+        final List<RecvBuffer> recvBuffers = new ArrayList<>(buffers.length);
+        for (byte[] buffer : buffers) {
+            // Set the port to zero as placeholder as the recvfrom() call will fill the actual
+            // port value later.
+            recvBuffers.add(new RecvBuffer(buffer, new InetSocketAddress(0 /* port */)));
+        }
+        return recvBuffers;
+    }
+
     @Override
     protected int recvBufSize(@NonNull RecvBuffer buffer) {
         return buffer.data.length;
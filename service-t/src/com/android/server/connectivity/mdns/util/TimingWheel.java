@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity.mdns.util;
+
+import android.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hierarchical timing wheel, tracking the deadlines of a set of entries.
+ *
+ * <p>Deadlines are in milliseconds. Each level of the wheel has 64 slots, and a slot at level N
+ * spans 64^N milliseconds, so scheduling and cancelling an entry is O(1), and advancing the wheel
+ * is O(1) amortized per entry regardless of how much time has elapsed. Entries are moved to
+ * lower levels as their deadline gets closer, and are returned by {@link #advance} once their
+ * deadline is reached.
+ *
+ * <p>This class is not thread safe.
+ *
+ * @param <T> The type of the values of the entries.
+ */
+public class TimingWheel<T> {
+    private static final int SLOT_BITS = 6;
+    private static final int SLOT_COUNT = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOT_COUNT - 1;
+    // 64^6 milliseconds is about 2 years: later deadlines are kept in the last slot of the wheel
+    // until it is reached.
+    private static final int LEVEL_COUNT = 6;
+
+    /** An entry that can be scheduled in a {@link TimingWheel}. */
+    public static final class Entry<T> {
+        @NonNull
+        private final T mValue;
+        private long mDeadline;
+        // The level of the entry in the wheel, or -1 if it is not scheduled.
+        private int mLevel = -1;
+        private int mSlot;
+        private Entry<T> mPrev;
+        private Entry<T> mNext;
+
+        public Entry(@NonNull T value) {
+            mValue = value;
+        }
+
+        /** Get the value of the entry. */
+        @NonNull
+        public T getValue() {
+            return mValue;
+        }
+
+        /** Get the deadline the entry was last scheduled at. */
+        public long getDeadline() {
+            return mDeadline;
+        }
+
+        /** Indicates whether the entry is scheduled in a wheel. */
+        public boolean isScheduled() {
+            return mLevel >= 0;
+        }
+    }
+
+    // The first entry of each slot of each level
+    @NonNull
+    private final Entry<T>[][] mSlots;
+    // Bitmaps of the slots of each level that have entries
+    @NonNull
+    private final long[] mOccupiedSlots = new long[LEVEL_COUNT];
+    private long mNow;
+    private int mSize;
+
+    @SuppressWarnings("unchecked")
+    public TimingWheel(long now) {
+        mSlots = (Entry<T>[][]) new Entry[LEVEL_COUNT][SLOT_COUNT];
+        mNow = now;
+    }
+
+    /** Get the number of scheduled entries. */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Schedule an entry, or reschedule it if it is already scheduled.
+     *
+     * <p>Entries with a deadline that is already passed are returned by the next call to
+     * {@link #advance}.
+     */
+    public void schedule(@NonNull Entry<T> entry, long deadline) {
+        cancel(entry);
+        entry.mDeadline = deadline;
+        insert(entry);
+        mSize++;
+    }
+
+    /** Cancel an entry. This is a no-op if the entry is not scheduled. */
+    public void cancel(@NonNull Entry<T> entry) {
+        if (!entry.isScheduled()) return;
+        final Entry<T>[] slots = mSlots[entry.mLevel];
+        if (entry.mPrev != null) {
+            entry.mPrev.mNext = entry.mNext;
+        } else {
+            slots[entry.mSlot] = entry.mNext;
+            if (entry.mNext == null) {
+                mOccupiedSlots[entry.mLevel] &= ~(1L << entry.mSlot);
+            }
+        }
+        if (entry.mNext != null) {
+            entry.mNext.mPrev = entry.mPrev;
+        }
+        entry.mPrev = null;
+        entry.mNext = null;
+        entry.mLevel = -1;
+        mSize--;
+    }
+
+    /**
+     * Advance the wheel to the given time.
+     *
+     * @return The entries with a deadline before or at the given time, which are not scheduled
+     *         anymore.
+     */
+    @NonNull
+    public List<Entry<T>> advance(long now) {
+        final List<Entry<T>> expired = new ArrayList<>();
+        if (now < mNow) return expired;
+
+        // Detach all slots between the current time and the new time: they contain all entries
+        // that are expired, and entries that need to be moved to a lower level.
+        Entry<T> detached = null;
+        for (int level = 0; level < LEVEL_COUNT; level++) {
+            final int shift = SLOT_BITS * level;
+            final long oldSlot = mNow >> shift;
+            final long span = (now >> shift) - oldSlot + 1;
+            long slots = mOccupiedSlots[level] & getSlotMask((int) (oldSlot & SLOT_MASK), span);
+            while (slots != 0) {
+                final int slot = Long.numberOfTrailingZeros(slots);
+                slots &= slots - 1;
+                Entry<T> entry = mSlots[level][slot];
+                mSlots[level][slot] = null;
+                mOccupiedSlots[level] &= ~(1L << slot);
+                while (entry != null) {
+                    final Entry<T> next = entry.mNext;
+                    entry.mLevel = -1;
+                    entry.mPrev = null;
+                    entry.mNext = detached;
+                    detached = entry;
+                    mSize--;
+                    entry = next;
+                }
+            }
+        }
+
+        mNow = now;
+        while (detached != null) {
+            final Entry<T> entry = detached;
+            detached = entry.mNext;
+            entry.mNext = null;
+            if (entry.mDeadline <= now) {
+                expired.add(entry);
+            } else {
+                insert(entry);
+                mSize++;
+            }
+        }
+        return expired;
+    }
+
+    private static long getSlotMask(int startSlot, long span) {
+        if (span >= SLOT_COUNT) return -1L;
+        final long mask = (1L << span) - 1;
+        return (mask << startSlot) | (mask >>> (SLOT_COUNT - startSlot));
+    }
+
+    private void insert(@NonNull Entry<T> entry) {
+        final long tick = Math.max(entry.mDeadline, mNow);
+        int level = 0;
+        while (level < LEVEL_COUNT - 1
+                && (tick >> (SLOT_BITS * level)) - (mNow >> (SLOT_BITS * level)) >= SLOT_COUNT) {
+            level++;
+        }
+        final int shift = SLOT_BITS * level;
+        final long slotIndex = Math.min(tick >> shift, (mNow >> shift) + SLOT_COUNT - 1);
+        final int slot = (int) (slotIndex & SLOT_MASK);
+
+        entry.mLevel = level;
+        entry.mSlot = slot;
+        entry.mPrev = null;
+        entry.mNext = mSlots[level][slot];
+        if (entry.mNext != null) {
+            entry.mNext.mPrev = entry;
+        }
+        mSlots[level][slot] = entry;
+        mOccupiedSlots[level] |= 1L << slot;
+    }
+}
@@ -0,0 +1,653 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.net;
+
+import static android.net.NetworkStats.SET_DEFAULT;
+import static android.net.NetworkStats.TAG_NONE;
+import static android.net.TrafficStats.UID_REMOVED;
+
+import android.annotation.NonNull;
+import android.net.NetworkIdentitySet;
+import android.net.NetworkStatsCollection;
+import android.net.NetworkStatsHistory;
+import android.net.NetworkStatsKeyDictionary;
+import android.util.IndentingPrintWriter;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.net.module.util.CollectionUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Persistent store of {@link NetworkStatsHistory} buckets, backed by a single memory-mapped
+ * file.
+ * <p>
+ * Unlike {@link com.android.internal.util.FileRotator}, which rewrites whole files to persist
+ * any change, records in this store are appended once and then updated in place: recording
+ * pending stats only adds to the existing buckets or appends new ones, and removing UIDs or old
+ * data only marks the affected records as tombstones. The file is compacted when tombstones
+ * take more than half of it.
+ * <p>
+ * The file is made of a header followed by a log of records:
+ * <pre>
+ * header := magic version bucketDuration dataEnd flags unused
+ * record := type flags unused length payload
+ * key    := keyId uid set tag NetworkIdentitySet
+ * bucket := keyId bucketStart activeTime rxBytes rxPackets txBytes txPackets operations
+ * </pre>
+ * Records after {@code dataEnd} are ignored, so that an interrupted append does not corrupt
+ * the store. An in-memory index maps each {@link NetworkStatsCollection.Key} and bucket start
+ * to the offset of its record.
+ * <p>
+ * Not inherently thread safe.
+ */
+public class NetworkStatsBucketStore implements Closeable {
+    private static final String TAG = "NetworkStatsBucketStore";
+
+    private static final int FILE_MAGIC = 0x4E534253; // "NSBS"
+    private static final int VERSION_INIT = 1;
+
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_VERSION = 4;
+    private static final int OFFSET_BUCKET_DURATION = 8;
+    private static final int OFFSET_DATA_END = 16;
+    private static final int OFFSET_FLAGS = 24;
+    private static final int HEADER_SIZE = 32;
+
+    /** Set while data from the legacy files is being migrated into the store. */
+    private static final int HEADER_FLAG_MIGRATION_PENDING = 1;
+    /** Set once the data of the legacy files was migrated into the store. */
+    private static final int HEADER_FLAG_LEGACY_MIGRATED = 2;
+
+    private static final byte TYPE_KEY = 1;
+    private static final byte TYPE_BUCKET = 2;
+    private static final byte RECORD_FLAG_TOMBSTONE = 1;
+
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int RECORD_OFFSET_TYPE = 0;
+    private static final int RECORD_OFFSET_FLAGS = 1;
+    private static final int RECORD_OFFSET_LENGTH = 4;
+
+    // Fixed part of key records, followed by the serialized NetworkIdentitySet.
+    private static final int KEY_FIXED_SIZE = 4 * 4;
+
+    // Bucket records have a fixed size so that they can be updated in place.
+    private static final int VALUE_COUNT = 6;
+    private static final int BUCKET_PAYLOAD_SIZE = 4 + 8 + VALUE_COUNT * 8;
+    private static final int BUCKET_RECORD_SIZE = RECORD_HEADER_SIZE + BUCKET_PAYLOAD_SIZE;
+    private static final int BUCKET_OFFSET_KEY_ID = RECORD_HEADER_SIZE;
+    private static final int BUCKET_OFFSET_START = BUCKET_OFFSET_KEY_ID + 4;
+    private static final int BUCKET_OFFSET_VALUES = BUCKET_OFFSET_START + 8;
+    private static final int VALUE_ACTIVE_TIME = 0;
+
+    private static final int INITIAL_FILE_SIZE = 64 * 1024;
+    @VisibleForTesting
+    static final int COMPACT_THRESHOLD_BYTES = 64 * 1024;
+
+    /** The records of a key, and the buckets of its history sorted by start time. */
+    private static final class KeyRecord {
+        final NetworkStatsCollection.Key key;
+        final int id;
+        final int offset;
+        long[] bucketStarts = new long[8];
+        int[] bucketOffsets = new int[8];
+        int bucketCount;
+
+        KeyRecord(@NonNull NetworkStatsCollection.Key key, int id, int offset) {
+            this.key = key;
+            this.id = id;
+            this.offset = offset;
+        }
+
+        /** Same contract as {@link Arrays#binarySearch(long[], int, int, long)}. */
+        int indexOf(long bucketStart) {
+            return Arrays.binarySearch(bucketStarts, 0, bucketCount, bucketStart);
+        }
+
+        void insert(int index, long bucketStart, int recordOffset) {
+            if (bucketCount == bucketStarts.length) {
+                final int newLength = bucketStarts.length * 2;
+                bucketStarts = Arrays.copyOf(bucketStarts, newLength);
+                bucketOffsets = Arrays.copyOf(bucketOffsets, newLength);
+            }
+            System.arraycopy(bucketStarts, index, bucketStarts, index + 1, bucketCount - index);
+            System.arraycopy(bucketOffsets, index, bucketOffsets, index + 1, bucketCount - index);
+            bucketStarts[index] = bucketStart;
+            bucketOffsets[index] = recordOffset;
+            bucketCount++;
+        }
+
+        void removeFirst(int count) {
+            System.arraycopy(bucketStarts, count, bucketStarts, 0, bucketCount - count);
+            System.arraycopy(bucketOffsets, count, bucketOffsets, 0, bucketCount - count);
+            bucketCount -= count;
+        }
+    }
+
+    private final File mFile;
+    private final long mBucketDuration;
+    private final long mDeleteAgeMillis;
+
+    private FileChannel mChannel;
+    private MappedByteBuffer mBuffer;
+    private int mDataEnd;
+    private int mDeadBytes;
+    private int mNextKeyId;
+
+    private final HashMap<NetworkStatsCollection.Key, KeyRecord> mKeys = new HashMap<>();
+    private final SparseArray<KeyRecord> mKeysById = new SparseArray<>();
+    private final long[] mValues = new long[VALUE_COUNT];
+
+    /**
+     * Open the store at the given path, creating it if it does not exist.
+     *
+     * @param file the file backing the store.
+     * @param bucketDuration the duration of the buckets of the store, in milliseconds.
+     * @param deleteAgeMillis the age after which data is removed by {@link #removeExpired}.
+     * @throws IOException if the file cannot be mapped, or has an unexpected format.
+     */
+    public NetworkStatsBucketStore(@NonNull File file, long bucketDuration, long deleteAgeMillis)
+            throws IOException {
+        mFile = file;
+        mBucketDuration = bucketDuration;
+        mDeleteAgeMillis = deleteAgeMillis;
+        open();
+    }
+
+    private void open() throws IOException {
+        final boolean exists = mFile.exists() && mFile.length() > 0;
+        mChannel = new RandomAccessFile(mFile, "rw").getChannel();
+        try {
+            mBuffer = mChannel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    Math.max(mChannel.size(), INITIAL_FILE_SIZE));
+            if (exists) {
+                readIndex();
+            } else {
+                mBuffer.putInt(OFFSET_MAGIC, FILE_MAGIC);
+                mBuffer.putInt(OFFSET_VERSION, VERSION_INIT);
+                mBuffer.putLong(OFFSET_BUCKET_DURATION, mBucketDuration);
+                mBuffer.putInt(OFFSET_FLAGS, 0);
+                mDataEnd = HEADER_SIZE;
+                writeDataEnd();
+            }
+        } catch (IOException | RuntimeException e) {
+            closeChannel();
+            throw e;
+        }
+    }
+
+    private void readIndex() throws IOException {
+        final int magic = mBuffer.getInt(OFFSET_MAGIC);
+        if (magic != FILE_MAGIC) {
+            throw new ProtocolException("unexpected magic: " + magic);
+        }
+        final int version = mBuffer.getInt(OFFSET_VERSION);
+        if (version != VERSION_INIT) {
+            throw new ProtocolException("unexpected version: " + version);
+        }
+        final long bucketDuration = mBuffer.getLong(OFFSET_BUCKET_DURATION);
+        if (bucketDuration != mBucketDuration) {
+            throw new ProtocolException("unexpected bucket duration: " + bucketDuration);
+        }
+        final long dataEnd = mBuffer.getLong(OFFSET_DATA_END);
+        if (dataEnd < HEADER_SIZE || dataEnd > mBuffer.capacity()) {
+            throw new ProtocolException("unexpected data end: " + dataEnd);
+        }
+        mDataEnd = (int) dataEnd;
+
+        int offset = HEADER_SIZE;
+        while (offset < mDataEnd) {
+            if (offset + RECORD_HEADER_SIZE > mDataEnd) {
+                throw new ProtocolException("truncated record at " + offset);
+            }
+            final byte type = mBuffer.get(offset + RECORD_OFFSET_TYPE);
+            final byte flags = mBuffer.get(offset + RECORD_OFFSET_FLAGS);
+            final int length = mBuffer.getInt(offset + RECORD_OFFSET_LENGTH);
+            if (length < 0 || length > mDataEnd - offset - RECORD_HEADER_SIZE) {
+                throw new ProtocolException("unexpected record length " + length + " at " + offset);
+            }
+            final int recordSize = RECORD_HEADER_SIZE + length;
+            if ((flags & RECORD_FLAG_TOMBSTONE) != 0) {
+                mDeadBytes += recordSize;
+                offset += recordSize;
+                continue;
+            }
+            switch (type) {
+                case TYPE_KEY:
+                    readKeyRecord(offset, length);
+                    break;
+                case TYPE_BUCKET:
+                    readBucketRecord(offset, length);
+                    break;
+                default:
+                    throw new ProtocolException("unexpected record type " + type + " at " + offset);
+            }
+            offset += recordSize;
+        }
+    }
+
+    private void readKeyRecord(int offset, int length) throws IOException {
+        if (length < KEY_FIXED_SIZE) {
+            throw new ProtocolException("truncated key at " + offset);
+        }
+        final int payload = offset + RECORD_HEADER_SIZE;
+        final int id = mBuffer.getInt(payload);
+        final int uid = mBuffer.getInt(payload + 4);
+        final int set = mBuffer.getInt(payload + 8);
+        final int tag = mBuffer.getInt(payload + 12);
+        final byte[] identBytes = new byte[length - KEY_FIXED_SIZE];
+        final ByteBuffer identBuffer = mBuffer.duplicate();
+        identBuffer.position(payload + KEY_FIXED_SIZE);
+        identBuffer.get(identBytes);
+        final NetworkIdentitySet ident = NetworkStatsKeyDictionary.getInstance().internIdentitySet(
+                new NetworkIdentitySet(new DataInputStream(new ByteArrayInputStream(identBytes))));
+
+        final NetworkStatsCollection.Key key = new NetworkStatsCollection.Key(ident, uid, set, tag);
+        if (mKeys.containsKey(key) || mKeysById.get(id) != null) {
+            throw new ProtocolException("duplicate key at " + offset);
+        }
+        final KeyRecord record = new KeyRecord(key, id, offset);
+        mKeys.put(key, record);
+        mKeysById.put(id, record);
+        mNextKeyId = Math.max(mNextKeyId, id + 1);
+    }
+
+    private void readBucketRecord(int offset, int length) throws IOException {
+        if (length != BUCKET_PAYLOAD_SIZE) {
+            throw new ProtocolException("unexpected bucket length " + length + " at " + offset);
+        }
+        final KeyRecord record = mKeysById.get(mBuffer.getInt(offset + BUCKET_OFFSET_KEY_ID));
+        if (record == null) {
+            throw new ProtocolException("bucket without key at " + offset);
+        }
+        final long bucketStart = mBuffer.getLong(offset + BUCKET_OFFSET_START);
+        final int index = record.indexOf(bucketStart);
+        if (index >= 0) {
+            throw new ProtocolException("duplicate bucket at " + offset);
+        }
+        record.insert(-index - 1, bucketStart, offset);
+    }
+
+    /**
+     * Whether the store contains no data.
+     */
+    public boolean isEmpty() {
+        return mKeys.isEmpty();
+    }
+
+    /**
+     * Whether a migration of legacy data into this store was started and not completed.
+     */
+    public boolean isMigrationPending() {
+        return (mBuffer.getInt(OFFSET_FLAGS) & HEADER_FLAG_MIGRATION_PENDING) != 0;
+    }
+
+    /**
+     * Mark a migration of legacy data into this store as started or completed, and write the
+     * mark to disk.
+     */
+    public void setMigrationPending(boolean pending) {
+        final int flags = mBuffer.getInt(OFFSET_FLAGS);
+        mBuffer.putInt(OFFSET_FLAGS, pending ? flags | HEADER_FLAG_MIGRATION_PENDING
+                : flags & ~HEADER_FLAG_MIGRATION_PENDING);
+        mBuffer.force();
+    }
+
+    /**
+     * Whether the data of the legacy files was migrated into this store. Data recorded since
+     * then is only in the store.
+     */
+    public boolean isLegacyMigrated() {
+        return (mBuffer.getInt(OFFSET_FLAGS) & HEADER_FLAG_LEGACY_MIGRATED) != 0;
+    }
+
+    /**
+     * Mark a migration of legacy data into this store as completed, and write the mark to disk.
+     */
+    public void setMigrationCompleted() {
+        final int flags = mBuffer.getInt(OFFSET_FLAGS);
+        mBuffer.putInt(OFFSET_FLAGS,
+                (flags | HEADER_FLAG_LEGACY_MIGRATED) & ~HEADER_FLAG_MIGRATION_PENDING);
+        mBuffer.force();
+    }
+
+    /**
+     * Read the buckets of the store overlapping with the given time range into the given
+     * {@link NetworkStatsCollection}.
+     */
+    public void read(@NonNull NetworkStatsCollection collection, long start, long end) {
+        for (final KeyRecord record : mKeys.values()) {
+            NetworkStatsHistory.Builder builder = null;
+            for (int i = 0; i < record.bucketCount; i++) {
+                final long bucketStart = record.bucketStarts[i];
+                if (bucketStart >= end) break;
+                if (bucketStart + mBucketDuration <= start) continue;
+                if (builder == null) {
+                    builder = new NetworkStatsHistory.Builder(mBucketDuration,
+                            record.bucketCount - i);
+                }
+                readValues(record.bucketOffsets[i]);
+                builder.addEntry(new NetworkStatsHistory.Entry(bucketStart,
+                        mValues[0], mValues[1], mValues[2], mValues[3], mValues[4], mValues[5]));
+            }
+            if (builder != null) {
+                collection.recordHistory(record.key, builder.build());
+            }
+        }
+    }
+
+    /**
+     * Add all the histories of the given {@link NetworkStatsCollection} into this store.
+     */
+    public void recordCollection(@NonNull NetworkStatsCollection collection) throws IOException {
+        for (final Map.Entry<NetworkStatsCollection.Key, NetworkStatsHistory> entry
+                : collection.getEntries().entrySet()) {
+            recordHistory(entry.getKey(), entry.getValue());
+        }
+        writeDataEnd();
+    }
+
+    private void recordHistory(@NonNull NetworkStatsCollection.Key key,
+            @NonNull NetworkStatsHistory history) throws IOException {
+        if (history.size() == 0) return;
+        if (history.getBucketDuration() != mBucketDuration) {
+            history = new NetworkStatsHistory(history, mBucketDuration);
+        }
+        final KeyRecord record = getOrAppendKey(key);
+        NetworkStatsHistory.Entry entry = null;
+        for (int i = 0; i < history.size(); i++) {
+            entry = history.getValues(i, entry);
+            mValues[0] = entry.activeTime;
+            mValues[1] = entry.rxBytes;
+            mValues[2] = entry.rxPackets;
+            mValues[3] = entry.txBytes;
+            mValues[4] = entry.txPackets;
+            mValues[5] = entry.operations;
+            addBucket(record, entry.bucketStart);
+        }
+    }
+
+    /**
+     * Move the histories of the given UIDs to {@link android.net.TrafficStats#UID_REMOVED},
+     * with the same semantics as {@link NetworkStatsCollection#removeUids}.
+     */
+    public void removeUids(@NonNull int[] uids) throws IOException {
+        final ArrayList<KeyRecord> removed = new ArrayList<>();
+        for (final KeyRecord record : mKeys.values()) {
+            if (CollectionUtils.contains(uids, record.key.uid)) removed.add(record);
+        }
+        for (final KeyRecord record : removed) {
+            // only migrate combined TAG_NONE history
+            if (record.key.tag == TAG_NONE && record.key.uid != UID_REMOVED) {
+                final KeyRecord target = getOrAppendKey(new NetworkStatsCollection.Key(
+                        record.key.ident, UID_REMOVED, SET_DEFAULT, TAG_NONE));
+                for (int i = 0; i < record.bucketCount; i++) {
+                    readValues(record.bucketOffsets[i]);
+                    addBucket(target, record.bucketStarts[i]);
+                }
+            }
+            tombstoneKey(record);
+        }
+        writeDataEnd();
+        maybeCompact();
+    }
+
+    /**
+     * Remove all buckets starting before the given time, with the same semantics as
+     * {@link NetworkStatsCollection#removeHistoryBefore}.
+     */
+    public void removeDataBefore(long cutoffMillis) throws IOException {
+        final ArrayList<KeyRecord> emptied = new ArrayList<>();
+        for (final KeyRecord record : mKeys.values()) {
+            if (record.bucketCount == 0 || record.bucketStarts[0] >= cutoffMillis) continue;
+            final int index = record.indexOf(cutoffMillis);
+            final int count = index >= 0 ? index : -index - 1;
+            for (int i = 0; i < count; i++) {
+                tombstone(record.bucketOffsets[i], BUCKET_RECORD_SIZE);
+            }
+            record.removeFirst(count);
+            if (record.bucketCount == 0) emptied.add(record);
+        }
+        for (final KeyRecord record : emptied) {
+            tombstoneKey(record);
+        }
+        maybeCompact();
+    }
+
+    /**
+     * Remove the data older than the delete age of this store.
+     */
+    public void removeExpired(long currentTimeMillis) throws IOException {
+        removeDataBefore(currentTimeMillis - mDeleteAgeMillis);
+    }
+
+    /**
+     * Write all changes to disk.
+     */
+    public void flush() {
+        writeDataEnd();
+        mBuffer.force();
+    }
+
+    /**
+     * Delete all data of the store, and start over from an empty file.
+     */
+    public void deleteAll() throws IOException {
+        closeChannel();
+        mFile.delete();
+        clearIndex();
+        open();
+    }
+
+    /**
+     * Write the raw contents of the store to the given stream, for debugging.
+     */
+    public void dumpAll(@NonNull OutputStream out) throws IOException {
+        final byte[] bytes = new byte[mDataEnd];
+        final ByteBuffer buffer = mBuffer.duplicate();
+        buffer.position(0);
+        buffer.get(bytes);
+        out.write(bytes);
+    }
+
+    /**
+     * Dump the state of the store.
+     */
+    public void dump(@NonNull IndentingPrintWriter pw) {
+        pw.println("Store " + mFile.getName() + ": keys=" + mKeys.size()
+                + " dataBytes=" + mDataEnd + " deadBytes=" + mDeadBytes
+                + " fileBytes=" + mBuffer.capacity());
+    }
+
+    @Override
+    public void close() throws IOException {
+        closeChannel();
+    }
+
+    @VisibleForTesting
+    int getDataBytes() {
+        return mDataEnd;
+    }
+
+    @VisibleForTesting
+    int getDeadBytes() {
+        return mDeadBytes;
+    }
+
+    private void closeChannel() throws IOException {
+        if (mChannel != null) {
+            mChannel.close();
+            mChannel = null;
+        }
+    }
+
+    private void clearIndex() {
+        mKeys.clear();
+        mKeysById.clear();
+        mDataEnd = 0;
+        mDeadBytes = 0;
+        mNextKeyId = 0;
+    }
+
+    @NonNull
+    private KeyRecord getOrAppendKey(@NonNull NetworkStatsCollection.Key key) throws IOException {
+        final KeyRecord existing = mKeys.get(key);
+        if (existing != null) return existing;
+
+        final ByteArrayOutputStream identBytes = new ByteArrayOutputStream();
+        key.ident.writeToStream(new DataOutputStream(identBytes));
+        final int length = KEY_FIXED_SIZE + identBytes.size();
+        final int offset = appendRecordHeader(TYPE_KEY, length);
+        final int id = mNextKeyId++;
+        final int payload = offset + RECORD_HEADER_SIZE;
+        mBuffer.putInt(payload, id);
+        mBuffer.putInt(payload + 4, key.uid);
+        mBuffer.putInt(payload + 8, key.set);
+        mBuffer.putInt(payload + 12, key.tag);
+        final ByteBuffer identBuffer = mBuffer.duplicate();
+        identBuffer.position(payload + KEY_FIXED_SIZE);
+        identBuffer.put(identBytes.toByteArray());
+
+        final NetworkStatsCollection.Key interned = new NetworkStatsCollection.Key(
+                NetworkStatsKeyDictionary.getInstance().internIdentitySet(key.ident),
+                key.uid, key.set, key.tag);
+        final KeyRecord record = new KeyRecord(interned, id, offset);
+        mKeys.put(interned, record);
+        mKeysById.put(id, record);
+        return record;
+    }
+
+    /** Add {@link #mValues} to the given bucket of the key, appending it if needed. */
+    private void addBucket(@NonNull KeyRecord record, long bucketStart) throws IOException {
+        final int index = record.indexOf(bucketStart);
+        if (index >= 0) {
+            final int values = record.bucketOffsets[index] + BUCKET_OFFSET_VALUES;
+            for (int i = 0; i < VALUE_COUNT; i++) {
+                long value = mBuffer.getLong(values + i * 8) + mValues[i];
+                // Active time should not go over bucket duration.
+                if (i == VALUE_ACTIVE_TIME) value = Math.min(value, mBucketDuration);
+                mBuffer.putLong(values + i * 8, value);
+            }
+            return;
+        }
+        final int offset = appendRecordHeader(TYPE_BUCKET, BUCKET_PAYLOAD_SIZE);
+        mBuffer.putInt(offset + BUCKET_OFFSET_KEY_ID, record.id);
+        mBuffer.putLong(offset + BUCKET_OFFSET_START, bucketStart);
+        for (int i = 0; i < VALUE_COUNT; i++) {
+            mBuffer.putLong(offset + BUCKET_OFFSET_VALUES + i * 8, mValues[i]);
+        }
+        record.insert(-index - 1, bucketStart, offset);
+    }
+
+    /** Read the values of the bucket record at the given offset into {@link #mValues}. */
+    private void readValues(int offset) {
+        for (int i = 0; i < VALUE_COUNT; i++) {
+            mValues[i] = mBuffer.getLong(offset + BUCKET_OFFSET_VALUES + i * 8);
+        }
+    }
+
+    private int appendRecordHeader(byte type, int length) throws IOException {
+        final int offset = mDataEnd;
+        ensureCapacity((long) offset + RECORD_HEADER_SIZE + length);
+        mBuffer.put(offset + RECORD_OFFSET_TYPE, type);
+        mBuffer.put(offset + RECORD_OFFSET_FLAGS, (byte) 0);
+        mBuffer.putShort(offset + 2, (short) 0);
+        mBuffer.putInt(offset + RECORD_OFFSET_LENGTH, length);
+        mDataEnd = offset + RECORD_HEADER_SIZE + length;
+        return offset;
+    }
+
+    private void ensureCapacity(long size) throws IOException {
+        if (size <= mBuffer.capacity()) return;
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("store too large: " + size);
+        }
+        final long newSize = Math.min(Math.max(size, 2L * mBuffer.capacity()), Integer.MAX_VALUE);
+        mBuffer = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, newSize);
+    }
+
+    private void tombstone(int offset, int recordSize) {
+        mBuffer.put(offset + RECORD_OFFSET_FLAGS, RECORD_FLAG_TOMBSTONE);
+        mDeadBytes += recordSize;
+    }
+
+    private void tombstoneKey(@NonNull KeyRecord record) {
+        for (int i = 0; i < record.bucketCount; i++) {
+            tombstone(record.bucketOffsets[i], BUCKET_RECORD_SIZE);
+        }
+        tombstone(record.offset,
+                RECORD_HEADER_SIZE + mBuffer.getInt(record.offset + RECORD_OFFSET_LENGTH));
+        mKeys.remove(record.key);
+        mKeysById.remove(record.id);
+    }
+
+    private void writeDataEnd() {
+        mBuffer.putLong(OFFSET_DATA_END, mDataEnd);
+    }
+
+    private void maybeCompact() throws IOException {
+        if (mDeadBytes < COMPACT_THRESHOLD_BYTES || mDeadBytes * 2 < mDataEnd) return;
+        compact();
+    }
+
+    /**
+     * Rewrite the live records of the store into a new file, and replace the current file
+     * with it.
+     */
+    @VisibleForTesting
+    void compact() throws IOException {
+        final File tmp = new File(mFile.getPath() + ".tmp");
+        tmp.delete();
+        try (NetworkStatsBucketStore compacted =
+                     new NetworkStatsBucketStore(tmp, mBucketDuration, mDeleteAgeMillis)) {
+            for (final KeyRecord record : mKeys.values()) {
+                final KeyRecord copy = compacted.getOrAppendKey(record.key);
+                for (int i = 0; i < record.bucketCount; i++) {
+                    readValues(record.bucketOffsets[i]);
+                    System.arraycopy(mValues, 0, compacted.mValues, 0, VALUE_COUNT);
+                    compacted.addBucket(copy, record.bucketStarts[i]);
+                }
+            }
+            compacted.mBuffer.putInt(OFFSET_FLAGS, mBuffer.getInt(OFFSET_FLAGS));
+            compacted.flush();
+        }
+        closeChannel();
+        final boolean replaced = tmp.renameTo(mFile);
+        clearIndex();
+        open();
+        if (!replaced) {
+            throw new IOException("failed to replace " + mFile + " with compacted store");
+        }
+    }
+}
@@ -24,6 +24,7 @@ import android.annotation.NonNull;
 import android.annotation.Nullable;
 import android.content.Context;
 import android.net.NetworkStats;
+import android.net.NetworkStatsKeyDictionary;
 import android.net.UnderlyingNetworkInfo;
 import android.os.ServiceSpecificException;
 import android.os.SystemClock;
@@ -211,6 +212,9 @@ public class NetworkStatsFactory {
             // Stats are always read from the inactive map, so they must be read after the
             // swap
             final NetworkStats stats = mDeps.getNetworkStatsDetail();
+            // Rows of the same interface get a new name instance in each read. Share them so
+            // that rows kept in mPersistSnapshot don't each hold a copy, and compare quickly.
+            NetworkStatsKeyDictionary.getInstance().internIfaces(stats);
             // BPF stats are incremental; fold into mPersistSnapshot.
             mPersistSnapshot.setElapsedRealtime(stats.getElapsedRealtime());
             mPersistSnapshot.combineAllValues(stats);
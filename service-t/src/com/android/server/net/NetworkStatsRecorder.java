@@ -61,7 +61,9 @@ import java.util.Objects;
  * Logic to record deltas between periodic {@link NetworkStats} snapshots into
  * {@link NetworkStatsHistory} that belong to {@link NetworkStatsCollection}.
  * Keeps pending changes in memory until they pass a specific threshold, in
- * bytes. Uses {@link FileRotator} for persistence logic if present.
+ * bytes. Uses {@link FileRotator} for persistence logic if present, or a
+ * {@link NetworkStatsBucketStore} when one is given, in which case the
+ * {@link FileRotator} data is copied into the store once.
  * <p>
  * Not inherently thread safe.
  */
@@ -76,6 +78,9 @@ public class NetworkStatsRecorder {
     private static final boolean DUMP_BEFORE_DELETE = true;
 
     private final FileRotator mRotator;
+    // Null if this recorder persists through mRotator.
+    @Nullable
+    private NetworkStatsBucketStore mStore;
     private final NonMonotonicObserver<String> mObserver;
     private final DropBoxManager mDropBox;
     private final String mCookie;
@@ -119,6 +124,7 @@ public class NetworkStatsRecorder {
 
         mPendingRewriter = null;
         mStatsDir = null;
+        mStore = null;
     }
 
     /**
@@ -127,6 +133,18 @@ public class NetworkStatsRecorder {
     public NetworkStatsRecorder(FileRotator rotator, NonMonotonicObserver<String> observer,
             DropBoxManager dropBox, String cookie, long bucketDuration, boolean onlyTags,
             boolean wipeOnError, boolean useFastDataInput, @Nullable File statsDir) {
+        this(rotator, observer, dropBox, cookie, bucketDuration, onlyTags, wipeOnError,
+                useFastDataInput, statsDir, null /* store */);
+    }
+
+    /**
+     * Persisted recorder using the given {@link NetworkStatsBucketStore}. Any data persisted
+     * by the {@link FileRotator} is moved into the store.
+     */
+    public NetworkStatsRecorder(FileRotator rotator, NonMonotonicObserver<String> observer,
+            DropBoxManager dropBox, String cookie, long bucketDuration, boolean onlyTags,
+            boolean wipeOnError, boolean useFastDataInput, @Nullable File statsDir,
+            @Nullable NetworkStatsBucketStore store) {
         mRotator = Objects.requireNonNull(rotator, "missing FileRotator");
         mObserver = Objects.requireNonNull(observer, "missing NonMonotonicObserver");
         mDropBox = Objects.requireNonNull(dropBox, "missing DropBoxManager");
@@ -142,6 +160,119 @@ public class NetworkStatsRecorder {
 
         mPendingRewriter = new CombiningRewriter(mPending);
         mStatsDir = statsDir;
+        mStore = store;
+        if (mStore != null) {
+            migrateToStoreLocked();
+        }
+    }
+
+    /**
+     * Copy the data persisted by the {@link FileRotator} into the store, if not done yet. The
+     * migration is marked as pending in the store until it completes, so that an interrupted
+     * migration is started over instead of counting data twice. The {@link FileRotator} files
+     * are kept, so that {@link #restoreFromStoreLocked} can write the data of the store back
+     * into them if the store is disabled.
+     * Falls back to the {@link FileRotator} if the data read back from the store differs from
+     * the data of the files, without removing any data the store held before the migration.
+     */
+    private void migrateToStoreLocked() {
+        boolean migrationStarted = false;
+        try {
+            if (mStore.isMigrationPending()) {
+                // A migration is only started on an empty store, so all the data of the store
+                // was added by the interrupted migration.
+                Log.w(TAG, "previous migration for " + mCookie + " did not complete, retrying");
+                mStore.deleteAll();
+            }
+            if (mStore.isLegacyMigrated()) return;
+
+            final NetworkStatsCollection legacy =
+                    new NetworkStatsCollection(mBucketDuration, mUseFastDataInput);
+            mRotator.readMatching(legacy, Long.MIN_VALUE, Long.MAX_VALUE);
+            if (!legacy.isEmpty()) {
+                if (!mStore.isEmpty()) {
+                    // Both hold data, e.g. if restoring the store into the files failed. Keep
+                    // both untouched rather than guessing which one is complete.
+                    throw new IOException("store and legacy files both contain data");
+                }
+                mStore.setMigrationPending(true);
+                migrationStarted = true;
+                mStore.recordCollection(legacy);
+                mStore.flush();
+                final NetworkStatsCollection migrated =
+                        new NetworkStatsCollection(mBucketDuration);
+                mStore.read(migrated, Long.MIN_VALUE, Long.MAX_VALUE);
+                final String diff = NetworkStatsCollection.compareStats(
+                        migrated, legacy, false /* allowKeyChange */);
+                if (diff != null) {
+                    throw new IOException("migrated data differs: " + diff);
+                }
+            }
+            mStore.setMigrationCompleted();
+            Log.i(TAG, "migrated " + mCookie + " stats into store");
+        } catch (IOException | OutOfMemoryError e) {
+            Log.wtf(TAG, "problem migrating stats for " + mCookie + ", using legacy files", e);
+            try {
+                // The store was empty when the migration started, so this only removes the
+                // data added by the migration.
+                if (migrationStarted) mStore.deleteAll();
+                mStore.close();
+            } catch (IOException ignored) {
+                // The store is not used anymore.
+            }
+            mStore = null;
+        }
+    }
+
+    /**
+     * Write the data of a {@link NetworkStatsBucketStore} used by a previous boot back into the
+     * {@link FileRotator}. Used when the store is disabled, so that the data recorded while it
+     * was enabled is not lost.
+     * <p>
+     * The files are only replaced if the store holds all the data, i.e. if the migration into
+     * the store completed or if the files are empty. The caller deletes the store file once
+     * this returns true, so that an interrupted restore is started over on the next boot.
+     *
+     * @param store the store, which is closed by this method.
+     * @return whether the files hold all the data, and the store file can be deleted.
+     */
+    public boolean restoreFromStoreLocked(@NonNull NetworkStatsBucketStore store) {
+        Objects.requireNonNull(mRotator, "missing FileRotator");
+        if (mStore != null) {
+            throw new IllegalStateException("cannot restore data into a store recorder");
+        }
+        try {
+            // If a migration is pending or the store is empty, the files hold all the data.
+            if (!store.isMigrationPending() && !store.isEmpty()) {
+                final NetworkStatsCollection legacy =
+                        new NetworkStatsCollection(mBucketDuration, mUseFastDataInput);
+                mRotator.readMatching(legacy, Long.MIN_VALUE, Long.MAX_VALUE);
+                if (!store.isLegacyMigrated() && !legacy.isEmpty()) {
+                    Log.e(TAG, "stats store for " + mCookie + " was never migrated into, "
+                            + "keeping it and the legacy files");
+                    store.close();
+                    return false;
+                }
+                final NetworkStatsCollection collection =
+                        new NetworkStatsCollection(mBucketDuration);
+                store.read(collection, Long.MIN_VALUE, Long.MAX_VALUE);
+                mRotator.deleteAll();
+                if (!collection.isEmpty()) {
+                    importCollectionLocked(collection);
+                }
+            }
+            store.close();
+            Log.i(TAG, "restored " + mCookie + " stats from store");
+            return true;
+        } catch (IOException | OutOfMemoryError e) {
+            Log.wtf(TAG, "problem restoring stats for " + mCookie + " from store", e);
+            try {
+                store.close();
+            } catch (IOException ignored) {
+                // Retried on the next boot.
+            }
+            return false;
+        }
     }
 
     public void setPersistThreshold(long thresholdBytes) {
@@ -222,7 +353,11 @@ public class NetworkStatsRecorder {
         final NetworkStatsCollection res =
                 new NetworkStatsCollection(mBucketDuration, mUseFastDataInput);
         try {
-            mRotator.readMatching(res, start, end);
+            if (mStore != null) {
+                mStore.read(res, start, end);
+            } else {
+                mRotator.readMatching(res, start, end);
+            }
             res.recordCollection(mPending);
         } catch (IOException e) {
             Log.wtf(TAG, "problem completely reading network stats", e);
@@ -319,6 +454,13 @@ public class NetworkStatsRecorder {
         final long pendingBytes = mPending.getTotalBytes();
         if (pendingBytes >= mPersistThresholdBytes) {
             forcePersistLocked(currentTimeMillis);
+        } else if (mStore != null) {
+            try {
+                mStore.removeExpired(currentTimeMillis);
+            } catch (IOException e) {
+                Log.wtf(TAG, "problem removing expired stats", e);
+                recoverAndDeleteData();
+            }
         } else {
             mRotator.maybeRotate(currentTimeMillis);
         }
@@ -332,8 +474,14 @@ public class NetworkStatsRecorder {
         if (mPending.isDirty()) {
             if (LOGD) Log.d(TAG, "forcePersistLocked() writing for " + mCookie);
             try {
-                mRotator.rewriteActive(mPendingRewriter, currentTimeMillis);
-                mRotator.maybeRotate(currentTimeMillis);
+                if (mStore != null) {
+                    mStore.recordCollection(mPending);
+                    mStore.removeExpired(currentTimeMillis);
+                    mStore.flush();
+                } else {
+                    mRotator.rewriteActive(mPendingRewriter, currentTimeMillis);
+                    mRotator.maybeRotate(currentTimeMillis);
+                }
                 mPending.reset();
             } catch (IOException e) {
                 Log.wtf(TAG, "problem persisting pending stats", e);
@@ -352,8 +500,13 @@ public class NetworkStatsRecorder {
     public void removeUidsLocked(int[] uids) {
         if (mRotator != null) {
             try {
-                // Rewrite all persisted data to migrate UID stats
-                mRotator.rewriteAll(new RemoveUidRewriter(mBucketDuration, uids));
+                if (mStore != null) {
+                    // Migrate UID stats in place, leaving tombstones behind
+                    mStore.removeUids(uids);
+                } else {
+                    // Rewrite all persisted data to migrate UID stats
+                    mRotator.rewriteAll(new RemoveUidRewriter(mBucketDuration, uids));
+                }
             } catch (IOException e) {
                 Log.wtf(TAG, "problem removing UIDs " + Arrays.toString(uids), e);
                 recoverAndDeleteData();
@@ -457,7 +610,10 @@ public class NetworkStatsRecorder {
      */
     public void importCollectionLocked(@NonNull NetworkStatsCollection collection)
             throws IOException {
-        if (mRotator != null) {
+        if (mStore != null) {
+            mStore.recordCollection(collection);
+            mStore.flush();
+        } else if (mRotator != null) {
             mRotator.rewriteSingle(new CombiningRewriter(collection), collection.getStartMillis(),
                     collection.getEndMillis());
         }
@@ -509,8 +665,12 @@ public class NetworkStatsRecorder {
     public void removeDataBefore(long cutoffMillis) throws IOException {
         if (mRotator != null) {
             try {
-                mRotator.rewriteAll(new RemoveDataBeforeRewriter(
-                        mBucketDuration, cutoffMillis));
+                if (mStore != null) {
+                    mStore.removeDataBefore(cutoffMillis);
+                } else {
+                    mRotator.rewriteAll(new RemoveDataBeforeRewriter(
+                            mBucketDuration, cutoffMillis));
+                }
             } catch (IOException e) {
                 Log.wtf(TAG, "problem importing netstats", e);
                 recoverAndDeleteData();
@@ -538,6 +698,9 @@ public class NetworkStatsRecorder {
         if (mPending != null) {
             pw.print("Pending bytes: "); pw.println(mPending.getTotalBytes());
         }
+        if (mStore != null) {
+            mStore.dump(pw);
+        }
         if (fullHistory) {
             pw.println("Complete history:");
             getOrLoadCompleteLocked().dump(pw);
@@ -572,7 +735,11 @@ public class NetworkStatsRecorder {
         if (DUMP_BEFORE_DELETE) {
             final ByteArrayOutputStream os = new ByteArrayOutputStream();
             try {
-                mRotator.dumpAll(os);
+                if (mStore != null) {
+                    mStore.dumpAll(os);
+                } else {
+                    mRotator.dumpAll(os);
+                }
             } catch (IOException e) {
                 // ignore partial contents
                 os.reset();
@@ -584,6 +751,13 @@ public class NetworkStatsRecorder {
         // Delete all files if this recorder is set wipe on error.
         if (mWipeOnError) {
             mRotator.deleteAll();
+            if (mStore != null) {
+                try {
+                    mStore.deleteAll();
+                } catch (IOException e) {
+                    Log.wtf(TAG, "problem deleting stats store", e);
+                }
+            }
         }
     }
 }
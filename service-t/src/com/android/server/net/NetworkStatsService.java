@@ -112,6 +112,7 @@ import android.net.NetworkStats.NonMonotonicObserver;
 import android.net.NetworkStatsAccess;
 import android.net.NetworkStatsCollection;
 import android.net.NetworkStatsHistory;
+import android.net.NetworkStatsKeyDictionary;
 import android.net.NetworkTemplate;
 import android.net.TelephonyNetworkSpecifier;
 import android.net.TetherStatsParcel;
@@ -293,6 +294,13 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
     static final String NETSTATS_IMPORT_FALLBACKS_COUNTER_NAME = "import.fallbacks";
     static final String CONFIG_ENABLE_NETWORK_STATS_EVENT_LOGGER =
             "enable_network_stats_event_logger";
+    /**
+     * DeviceConfig flag used to indicate whether the recorders persist their data in
+     * memory-mapped {@link NetworkStatsBucketStore}s instead of rotated files.
+     */
+    static final String CONFIG_ENABLE_NETWORK_STATS_BUCKET_STORE =
+            "enable_network_stats_bucket_store";
+    static final String NETSTATS_BUCKET_STORE_SUFFIX = ".store";
 
     static final String NETSTATS_FASTDATAINPUT_TARGET_ATTEMPTS =
             "netstats_fastdatainput_target_attempts";
@@ -888,6 +896,14 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
             return DeviceConfigUtils.isTetheringFeatureNotChickenedOut(
                     ctx, CONFIG_ENABLE_NETWORK_STATS_EVENT_LOGGER);
         }
+
+        /**
+         * Get whether the recorders should persist their data in bucket stores.
+         */
+        public boolean useBucketStore(Context ctx) {
+            return DeviceConfigUtils.isTetheringFeatureEnabled(
+                    ctx, CONFIG_ENABLE_NETWORK_STATS_BUCKET_STORE);
+        }
     }
 
     /**
@@ -988,6 +1004,51 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
                 wipeOnError, useFastDataInput, baseDir);
     }
 
+    /**
+     * Build a recorder persisting its data in a {@link NetworkStatsBucketStore}, after copying
+     * the data of its rotated files into the store. The rotated files are kept so that the data
+     * can be restored if the store is disabled again. Falls back to the rotated files if the
+     * store cannot be opened.
+     */
+    private NetworkStatsRecorder buildStoreRecorder(
+            String prefix, NetworkStatsSettings.Config config, boolean includeTags,
+            boolean useFastDataInput) {
+        final DropBoxManager dropBox = (DropBoxManager) mContext.getSystemService(
+                Context.DROPBOX_SERVICE);
+        // Named so that FileRotator does not consider the store as one of its files.
+        final File storeFile = new File(mStatsDir, prefix + NETSTATS_BUCKET_STORE_SUFFIX);
+        NetworkStatsBucketStore store = null;
+        try {
+            store = new NetworkStatsBucketStore(storeFile, config.bucketDuration,
+                    config.deleteAgeMillis);
+        } catch (IOException e) {
+            Log.wtf(TAG, "Failed to open stats store " + storeFile + ", using legacy files", e);
+            storeFile.delete();
+        }
+        return new NetworkStatsRecorder(new FileRotator(
+                mStatsDir, prefix, config.rotateAgeMillis, config.deleteAgeMillis),
+                mNonMonotonicObserver, dropBox, prefix, config.bucketDuration, includeTags,
+                true /* wipeOnError */, useFastDataInput, mStatsDir, store);
+    }
+
+    /**
+     * Write the data of the {@link NetworkStatsBucketStore} of the given recorder back into its
+     * rotated files, and delete the store. Does nothing if there is no store.
+     */
+    @GuardedBy("mStatsLock")
+    private void maybeRestoreFromStoreLocked(NetworkStatsRecorder recorder, String prefix,
+            NetworkStatsSettings.Config config) {
+        final File storeFile = new File(mStatsDir, prefix + NETSTATS_BUCKET_STORE_SUFFIX);
+        if (!storeFile.exists()) return;
+        try {
+            final NetworkStatsBucketStore store = new NetworkStatsBucketStore(storeFile,
+                    config.bucketDuration, config.deleteAgeMillis);
+            if (recorder.restoreFromStoreLocked(store)) storeFile.delete();
+        } catch (IOException e) {
+            Log.wtf(TAG, "Failed to open stats store " + storeFile + " to restore it", e);
+        }
+    }
+
     @GuardedBy("mStatsLock")
     private void makeRecordersLocked() {
         boolean useFastDataInput = true;
@@ -1025,6 +1086,18 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
             doComparison = false;
         }
 
+        if (mDeps.useBucketStore(mContext)) {
+            // The rotated files are migrated into the stores when building the recorders, so
+            // there is nothing left to compare FastDataInput against.
+            mXtRecorder = buildStoreRecorder(PREFIX_XT, mSettings.getXtConfig(), false,
+                    useFastDataInput);
+            mUidRecorder = buildStoreRecorder(PREFIX_UID, mSettings.getUidConfig(), false,
+                    useFastDataInput);
+            mUidTagRecorder = buildStoreRecorder(PREFIX_UID_TAG, mSettings.getUidTagConfig(),
+                    true, useFastDataInput);
+            return;
+        }
+
         // create data recorders along with historical rotators.
         // Don't wipe on error if comparison is needed.
         mXtRecorder = buildRecorder(PREFIX_XT, mSettings.getXtConfig(), false, mStatsDir,
@@ -1033,6 +1106,11 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
                 !doComparison /* wipeOnError */, useFastDataInput);
         mUidTagRecorder = buildRecorder(PREFIX_UID_TAG, mSettings.getUidTagConfig(), true,
                 mStatsDir, !doComparison /* wipeOnError */, useFastDataInput);
+        // Bring back the data recorded while the bucket stores were enabled, if they were.
+        maybeRestoreFromStoreLocked(mXtRecorder, PREFIX_XT, mSettings.getXtConfig());
+        maybeRestoreFromStoreLocked(mUidRecorder, PREFIX_UID, mSettings.getUidConfig());
+        maybeRestoreFromStoreLocked(mUidTagRecorder, PREFIX_UID_TAG,
+                mSettings.getUidTagConfig());
 
         if (!doComparison) return;
 
@@ -2302,9 +2380,27 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
             }
         }
 
+        internActiveIfaces(mActiveIfaces);
+        internActiveIfaces(mActiveUidIfaces);
         mMobileIfaces = mobileIfaces.toArray(new String[0]);
     }
 
+    /**
+     * Replace the interface names and identity sets of the given map with their shared
+     * instances, so that they compare by identity with the interface names of the snapshots
+     * and the keys of the recorded collections.
+     */
+    private static void internActiveIfaces(ArrayMap<String, NetworkIdentitySet> ifaces) {
+        final NetworkStatsKeyDictionary dictionary = NetworkStatsKeyDictionary.getInstance();
+        final ArrayMap<String, NetworkIdentitySet> interned = new ArrayMap<>(ifaces.size());
+        for (int i = 0; i < ifaces.size(); i++) {
+            interned.put(dictionary.internIface(ifaces.keyAt(i)),
+                    dictionary.internIdentitySet(ifaces.valueAt(i)));
+        }
+        ifaces.clear();
+        ifaces.putAll(interned);
+    }
+
     private static int getSubIdForCellularOrSatellite(@NonNull NetworkStateSnapshot state) {
         if (!state.getNetworkCapabilities().hasTransport(NetworkCapabilities.TRANSPORT_CELLULAR)
                 // Both cellular and satellite are 2 different network transport at Mobile using
@@ -2564,18 +2660,21 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
 
     private <K extends StatsMapKey, V extends StatsMapValue> void deleteStatsMapTagData(
             IBpfMap<K, V> statsMap, int uid) {
+        // Stats maps can hold thousands of entries, so read and delete them in batches instead
+        // of one syscall per key.
+        final ArrayList<K> keys = new ArrayList<>();
         try {
-            statsMap.forEach((key, value) -> {
-                if (key.uid == uid) {
-                    try {
-                        statsMap.deleteEntry(key);
-                    } catch (ErrnoException e) {
-                        logErrorIfNotErrNoent(e, "Failed to delete data(uid = " + key.uid + ")");
-                    }
-                }
+            statsMap.forEachBatch((key, value) -> {
+                if (key.uid == uid) keys.add(key);
             });
         } catch (ErrnoException e) {
-            Log.e(TAG, "FAILED to delete tag data from stats map", e);
+            Log.e(TAG, "FAILED to read tag data from stats map", e);
+        }
+        try {
+            // Keys deleted concurrently are ignored.
+            statsMap.deleteAll(keys);
+        } catch (ErrnoException e) {
+            Log.e(TAG, "Failed to delete data(uid = " + uid + ")", e);
         }
     }
 
@@ -2773,6 +2872,8 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
                 }
             }
             pw.println(CONFIG_ENABLE_NETWORK_STATS_EVENT_LOGGER + ": " + mSupportEventLogger);
+            pw.println(CONFIG_ENABLE_NETWORK_STATS_BUCKET_STORE + ": "
+                    + mDeps.useBucketStore(mContext));
             pw.print(NETSTATS_FASTDATAINPUT_TARGET_ATTEMPTS,
                     mDeps.getUseFastDataInputTargetAttempts());
             pw.println();
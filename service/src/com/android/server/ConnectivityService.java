@@ -237,6 +237,7 @@ import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.Message;
+import android.os.MessageQueue;
 import android.os.Messenger;
 import android.os.ParcelFileDescriptor;
 import android.os.Parcelable;
@@ -333,6 +334,7 @@ import com.android.server.connectivity.NetworkNotificationManager.NotificationTy
 import com.android.server.connectivity.NetworkOffer;
 import com.android.server.connectivity.NetworkPreferenceList;
 import com.android.server.connectivity.NetworkRanker;
+import com.android.server.connectivity.NetworkRequestIndex;
 import com.android.server.connectivity.NetworkRequestStateStatsMetrics;
 import com.android.server.connectivity.PermissionMonitor;
 import com.android.server.connectivity.ProfileNetworkPreferenceInfo;
@@ -1538,6 +1540,14 @@ public class ConnectivityService extends IConnectivityManager.Stub
                     connectivityServiceInternalHandler);
         }
 
+        /**
+         * Whether incremental rematches should be checked against a rematch of all requests.
+         * This is expensive and is only meant to be enabled in tests.
+         */
+        public boolean shouldVerifyIncrementalRematch() {
+            return false;
+        }
+
         /**
          * @see DeviceConfigUtils#isTetheringFeatureEnabled
          */
@@ -1734,6 +1744,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
                 null /* binder */, NetworkCallback.FLAG_INCLUDE_LOCATION_INFO,
                 null /* attributionTags */);
         mNetworkRequests.put(defaultInternetRequest, mDefaultRequest);
+        mNetworkRequestIndex.put(defaultInternetRequest, mDefaultRequest);
         mDefaultNetworkRequests.add(mDefaultRequest);
         mNetworkRequestInfoLogs.log("REGISTER " + mDefaultRequest);
 
@@ -4309,6 +4320,15 @@ public class ConnectivityService extends IConnectivityManager.Stub
             super(looper);
         }
 
+        @Override
+        public void dispatchMessage(Message msg) {
+            try {
+                super.dispatchMessage(msg);
+            } finally {
+                maybeFlushOverduePendingCallbackMessages();
+            }
+        }
+
         private void maybeHandleNetworkAgentMessage(Message msg) {
             final Pair<NetworkAgentInfo, Object> arg = (Pair<NetworkAgentInfo, Object>) msg.obj;
             final NetworkAgentInfo nai = arg.first;
@@ -5428,6 +5448,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
             checkNrisConsistency(nri);
             for (final NetworkRequest req : nri.mRequests) {
                 mNetworkRequests.put(req, nri);
+                mNetworkRequestIndex.put(req, nri);
                 // TODO: Consider update signal strength for other types.
                 if (req.isListen()) {
                     for (final NetworkAgentInfo network : mNetworkAgentInfos) {
@@ -5653,6 +5674,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
                 logw("Attempted removal of untracked request " + req + " for nri " + nri);
                 continue;
             }
+            mNetworkRequestIndex.remove(req);
             if (req.isListen()) {
                 removeListenRequestFromNetworks(req);
             } else if (req.isRequest() && mNetworkRequestStateStatsMetrics != null) {
@@ -5865,7 +5887,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
             // PARTIAL_CONNECTIVITY notification to user again.
             nai.networkAgentConfig.acceptPartialConnectivity = accept;
             nai.updateScoreForNetworkAgentUpdate();
-            rematchAllNetworksAndRequests();
+            rematchForNetworkChange(nai, null /* prevNc */);
         }
 
         if (always) {
@@ -5933,7 +5955,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
         if (0L == nai.getAvoidUnvalidated()) {
             nai.setAvoidUnvalidated();
             nai.updateScoreForNetworkAgentUpdate();
-            rematchAllNetworksAndRequests();
+            rematchForNetworkChange(nai, null /* prevNc */);
         }
     }
 
@@ -6214,7 +6236,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
             // This may have an impact on request matching if bad WiFi avoidance is off and the
             // network was found not to have Internet access.
             nai.updateScoreForNetworkAgentUpdate();
-            rematchAllNetworksAndRequests();
+            rematchForNetworkChange(nai, null /* prevNc */);
 
             // Also, if this is WiFi and it should be preferred actively, now is the time to
             // prompt the user that they walked past and connected to a bad WiFi.
@@ -6291,6 +6313,15 @@ public class ConnectivityService extends IConnectivityManager.Stub
             super(looper);
         }
 
+        @Override
+        public void dispatchMessage(Message msg) {
+            try {
+                super.dispatchMessage(msg);
+            } finally {
+                maybeFlushOverduePendingCallbackMessages();
+            }
+        }
+
         @Override
         public void handleMessage(Message msg) {
             switch (msg.what) {
@@ -7210,6 +7241,10 @@ public class ConnectivityService extends IConnectivityManager.Stub
 
     private final HashMap<Messenger, NetworkProviderInfo> mNetworkProviderInfos = new HashMap<>();
     private final HashMap<NetworkRequest, NetworkRequestInfo> mNetworkRequests = new HashMap<>();
+    // Same contents as mNetworkRequests, indexed by required capabilities and transports so that
+    // the requests a network can satisfy can be found without checking all requests.
+    private final NetworkRequestIndex<NetworkRequestInfo> mNetworkRequestIndex =
+            new NetworkRequestIndex<>();
 
     private static class NetworkProviderInfo {
         public final String name;
@@ -9228,7 +9263,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
         } else {
             // If the requestable capabilities have changed or the score changed, we can't have been
             // called by rematchNetworkAndRequests, so it's safe to start a rematch.
-            rematchAllNetworksAndRequests();
+            rematchForNetworkChange(nai, prevNc);
             notifyNetworkCallbacks(nai, ConnectivityManager.CALLBACK_CAP_CHANGED);
         }
         updateNetworkInfoForRoamingAndSuspended(nai, prevNc, newNc);
@@ -9827,9 +9862,20 @@ public class ConnectivityService extends IConnectivityManager.Stub
         }
         msg.what = notificationType;
         msg.setData(bundle);
+        if (mFlags.batchNetworkCallbacks()
+                && mHandler.getLooper().getThread() == Thread.currentThread()) {
+            enqueueCallbackMessage(nri, msg);
+            return;
+        }
+        sendCallbackMessage(nri, msg);
+    }
+
+    private void sendCallbackMessage(@NonNull final NetworkRequestInfo nri,
+            @NonNull final Message msg) {
+        final NetworkRequest nrForCallback = nri.getNetworkRequestForCallback();
         try {
             if (VDBG) {
-                String notification = ConnectivityManager.getCallbackName(notificationType);
+                String notification = ConnectivityManager.getCallbackName(msg.what);
                 log("sending notification " + notification + " for " + nrForCallback);
             }
             nri.mMessenger.send(msg);
@@ -9839,6 +9885,124 @@ public class ConnectivityService extends IConnectivityManager.Stub
         }
     }
 
+    // Largest number of callback messages sent in one batch, so that batches stay well below the
+    // binder transaction size limit.
+    private static final int MAX_CALLBACK_BATCH_SIZE = 32;
+    // Longest time callback messages are queued while the handler is continuously busy, e.g.
+    // during a storm of network agent messages. They are normally sent as soon as it is idle.
+    private static final long MAX_CALLBACK_BATCH_DELAY_MS = 100L;
+
+    // Callback messages for the NRIs of a messenger, in the order they were generated.
+    private static class PendingCallbackMessages {
+        final ArrayList<NetworkRequestInfo> mNris = new ArrayList<>();
+        final ArrayList<Message> mMessages = new ArrayList<>();
+    }
+
+    // Callback messages waiting to be sent, by messenger. Ordering is only kept per messenger,
+    // like for the client: a messenger is the handler a callback was registered with, which
+    // is shared by all the callbacks of a process registered without an explicit handler, and
+    // specific to a request otherwise. Only used if callback batching is enabled, and only
+    // accessed on the handler thread.
+    private final ArrayMap<Messenger, PendingCallbackMessages> mPendingCallbackMessages =
+            new ArrayMap<>();
+    // Time at which the oldest callback message in mPendingCallbackMessages was queued, as
+    // measured by SystemClock#uptimeMillis.
+    private long mPendingCallbackMessagesSinceMs;
+    // Sends the pending callback messages once the handler has processed all its messages, so
+    // that updates arriving in separate messages in a row can supersede each other.
+    private final MessageQueue.IdleHandler mFlushCallbackMessagesOnIdle = () -> {
+        flushPendingCallbackMessages();
+        return false;
+    };
+
+    private static Network getCallbackMessageNetwork(@NonNull final Message msg) {
+        return msg.getData().getParcelable(Network.class.getSimpleName());
+    }
+
+    /**
+     * Queue a callback message to be sent in a batch with the other callbacks for the same
+     * messenger generated until the handler is idle.
+     *
+     * A CAP_CHANGED or IP_CHANGED callback supersedes a pending callback of the same type for the
+     * same NRI and network, unless the network has become available or been lost in between.
+     */
+    private void enqueueCallbackMessage(@NonNull final NetworkRequestInfo nri,
+            @NonNull final Message msg) {
+        if (mPendingCallbackMessages.isEmpty()) {
+            mPendingCallbackMessagesSinceMs = SystemClock.uptimeMillis();
+            mHandler.getLooper().getQueue().addIdleHandler(mFlushCallbackMessagesOnIdle);
+        }
+        PendingCallbackMessages pending = mPendingCallbackMessages.get(nri.mMessenger);
+        if (null == pending) {
+            pending = new PendingCallbackMessages();
+            mPendingCallbackMessages.put(nri.mMessenger, pending);
+        }
+        if (msg.what == ConnectivityManager.CALLBACK_CAP_CHANGED
+                || msg.what == ConnectivityManager.CALLBACK_IP_CHANGED) {
+            final Network network = getCallbackMessageNetwork(msg);
+            for (int i = pending.mMessages.size() - 1; i >= 0; i--) {
+                if (pending.mNris.get(i) != nri) continue;
+                final Message previous = pending.mMessages.get(i);
+                if (!Objects.equals(network, getCallbackMessageNetwork(previous))) continue;
+                if (previous.what == msg.what) {
+                    pending.mNris.remove(i);
+                    pending.mMessages.remove(i);
+                    break;
+                }
+                if (previous.what == ConnectivityManager.CALLBACK_AVAILABLE
+                        || previous.what == ConnectivityManager.CALLBACK_LOST) {
+                    break;
+                }
+            }
+        }
+        pending.mNris.add(nri);
+        pending.mMessages.add(msg);
+    }
+
+    /**
+     * Send the queued callback messages if they have waited for
+     * {@link #MAX_CALLBACK_BATCH_DELAY_MS}, so that they are not delayed indefinitely while the
+     * handler never becomes idle. Must be called on the handler thread.
+     */
+    private void maybeFlushOverduePendingCallbackMessages() {
+        if (mPendingCallbackMessages.isEmpty()) return;
+        if (SystemClock.uptimeMillis() - mPendingCallbackMessagesSinceMs
+                < MAX_CALLBACK_BATCH_DELAY_MS) {
+            return;
+        }
+        mHandler.getLooper().getQueue().removeIdleHandler(mFlushCallbackMessagesOnIdle);
+        flushPendingCallbackMessages();
+    }
+
+    /**
+     * Send the queued callback messages, in batches of at most {@link #MAX_CALLBACK_BATCH_SIZE}
+     * messages per messenger. Messages are sent synchronously in the order they were queued, and
+     * callback messages generated later are queued again, so they cannot overtake them.
+     */
+    private void flushPendingCallbackMessages() {
+        for (int i = 0; i < mPendingCallbackMessages.size(); i++) {
+            final PendingCallbackMessages pending = mPendingCallbackMessages.valueAt(i);
+            final int count = pending.mMessages.size();
+            for (int start = 0; start < count; start += MAX_CALLBACK_BATCH_SIZE) {
+                final int end = Math.min(count, start + MAX_CALLBACK_BATCH_SIZE);
+                // The NRI is only used to find the messenger and for logging.
+                final NetworkRequestInfo nri = pending.mNris.get(start);
+                if (end - start == 1) {
+                    sendCallbackMessage(nri, pending.mMessages.get(start));
+                    continue;
+                }
+                final Message batch = Message.obtain();
+                batch.what = ConnectivityManager.CALLBACK_BATCH;
+                final Bundle bundle = new Bundle();
+                bundle.putParcelableArrayList(ConnectivityManager.CALLBACK_BATCH_MESSAGES,
+                        new ArrayList<>(pending.mMessages.subList(start, end)));
+                batch.setData(bundle);
+                sendCallbackMessage(nri, batch);
+            }
+        }
+        mPendingCallbackMessages.clear();
+    }
+
     private static <T extends Parcelable> void putParcelable(Bundle bundle, T t) {
         bundle.putParcelable(t.getClass().getSimpleName(), t);
     }
@@ -10104,7 +10268,9 @@ public class ConnectivityService extends IConnectivityManager.Stub
     }
 
     private void processNewlySatisfiedListenRequests(@NonNull final NetworkAgentInfo nai) {
-        for (final NetworkRequestInfo nri : mNetworkRequests.values()) {
+        final ArrayList<NetworkRequestInfo> candidates = new ArrayList<>();
+        mNetworkRequestIndex.addCandidates(nai.networkCapabilities, candidates);
+        for (final NetworkRequestInfo nri : candidates) {
             if (nri.isMultilayerRequest()) {
                 continue;
             }
@@ -10178,6 +10344,21 @@ public class ConnectivityService extends IConnectivityManager.Stub
             return null;
         }
 
+        // Returns whether this reassignment assigns the same requests to the same networks as the
+        // passed reassignment, regardless of the order of the changes.
+        boolean hasSameChangesAs(@NonNull final NetworkReassignment other) {
+            if (mReassignments.size() != other.mReassignments.size()) return false;
+            for (final RequestReassignment rr : getRequestReassignments()) {
+                final RequestReassignment otherRr = other.getReassignment(rr.mNetworkRequestInfo);
+                if (null == otherRr
+                        || rr.mNewNetwork != otherRr.mNewNetwork
+                        || rr.mNewNetworkRequest != otherRr.mNewNetworkRequest) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
         public String toString() {
             final StringJoiner sj = new StringJoiner(", " /* delimiter */,
                     "NetReassign [" /* prefix */, "]" /* suffix */);
@@ -10319,6 +10500,79 @@ public class ConnectivityService extends IConnectivityManager.Stub
         rematchNetworksAndRequests(getNrisFromGlobalRequests());
     }
 
+    /**
+     * Returns the requests whose assignment can be affected by a change of the score or the
+     * capabilities of the passed network.
+     *
+     * The ranker only ever compares networks that satisfy a request, so a request can only be
+     * affected if it is currently satisfied by this network, or if this network satisfies it
+     * either before or after the change. Other requests keep their current satisfier.
+     *
+     * @param nai the network whose score or capabilities changed.
+     * @param prevNc the capabilities of the network before the change, or null if they did not
+     *               change.
+     */
+    @NonNull
+    private Set<NetworkRequestInfo> getNrisAffectedByNetworkChange(
+            @NonNull final NetworkAgentInfo nai, @Nullable final NetworkCapabilities prevNc) {
+        final Set<NetworkRequestInfo> nris = new HashSet<>();
+        for (int i = 0; i < nai.numNetworkRequests(); i++) {
+            final NetworkRequestInfo nri = mNetworkRequests.get(nai.requestAt(i));
+            if (null != nri && nri.getSatisfier() == nai) nris.add(nri);
+        }
+        // Only look at the requests whose capability and transport requirements can be met by
+        // this network before or after the change. There are usually far fewer of these than
+        // requests in total.
+        final ArrayList<NetworkRequestInfo> candidates = new ArrayList<>();
+        mNetworkRequestIndex.addCandidates(nai.networkCapabilities, candidates);
+        if (null != prevNc) mNetworkRequestIndex.addCandidates(prevNc, candidates);
+        for (final NetworkRequestInfo nri : candidates) {
+            // Non-multilayer listen requests are ignored by computeNetworkReassignment.
+            if (!nri.isMultilayerRequest() && nri.mRequests.get(0).isListen()) continue;
+            // Multilayer requests can be returned once per layer.
+            if (nris.contains(nri)) continue;
+            for (final NetworkRequest req : nri.mRequests) {
+                if (nai.satisfies(req) || (null != prevNc && nai.everConnected()
+                        && req.networkCapabilities.satisfiedByNetworkCapabilities(prevNc))) {
+                    nris.add(nri);
+                    break;
+                }
+            }
+        }
+        return nris;
+    }
+
+    /**
+     * Attempt to rematch the NetworkRequests that can be affected by a change of the score or
+     * the capabilities of the passed network. This may result in Networks being disconnected.
+     *
+     * This rematches all requests unless the incremental rematch flag is enabled.
+     *
+     * @param nai the network whose score or capabilities changed.
+     * @param prevNc the capabilities of the network before the change, or null if they did not
+     *               change.
+     */
+    private void rematchForNetworkChange(@NonNull final NetworkAgentInfo nai,
+            @Nullable final NetworkCapabilities prevNc) {
+        if (!mFlags.incrementalRematchOnNetworkChange()) {
+            rematchAllNetworksAndRequests();
+            return;
+        }
+        final Set<NetworkRequestInfo> nris = getNrisAffectedByNetworkChange(nai, prevNc);
+        if (mDeps.shouldVerifyIncrementalRematch()) {
+            final NetworkReassignment incremental = computeNetworkReassignment(nris);
+            final NetworkReassignment full =
+                    computeNetworkReassignment(getNrisFromGlobalRequests());
+            if (!incremental.hasSameChangesAs(full)) {
+                Log.wtf(TAG, "Incremental rematch for " + nai.toShortString() + " computed "
+                        + incremental + " but full rematch computed " + full);
+                rematchAllNetworksAndRequests();
+                return;
+            }
+        }
+        rematchNetworksAndRequests(nris);
+    }
+
     /**
      * Attempt to rematch all Networks with given NetworkRequests.  This may result in Networks
      * being disconnected.
@@ -10909,7 +11163,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
     private void updateNetworkScore(@NonNull final NetworkAgentInfo nai, final NetworkScore score) {
         if (VDBG || DDBG) log("updateNetworkScore for " + nai.toShortString() + " to " + score);
         nai.setScore(score);
-        rematchAllNetworksAndRequests();
+        rematchForNetworkChange(nai, null /* prevNc */);
     }
 
     // Notify only this one new request of the current state. Transfer all the
@@ -38,7 +38,26 @@ public final class ConnectivityFlags {
 
     public static final String REQUEST_RESTRICTED_WIFI =
             "request_restricted_wifi";
+
+    /**
+     * Minimum module version at which to only rematch the requests that can be affected by a
+     * change of score or capabilities of a single network, instead of rematching all requests.
+     */
+    @VisibleForTesting
+    public static final String INCREMENTAL_REMATCH_ON_NETWORK_CHANGE =
+            "incremental_rematch_on_network_change";
+
+    /**
+     * Minimum module version at which to send in one message the network callbacks generated
+     * for a messenger until the ConnectivityService handler is idle.
+     */
+    @VisibleForTesting
+    public static final String BATCH_NETWORK_CALLBACKS =
+            "batch_network_callbacks";
+
     private boolean mNoRematchAllRequestsOnRegister;
+    private boolean mIncrementalRematchOnNetworkChange;
+    private boolean mBatchNetworkCallbacks;
 
     /**
      * Whether ConnectivityService should avoid avoid rematching all requests when a network
@@ -60,6 +79,27 @@ public final class ConnectivityFlags {
         return mNoRematchAllRequestsOnRegister;
     }
 
+    /**
+     * Whether ConnectivityService should only rematch the requests that can be affected when the
+     * score or the capabilities of a single network change.
+     *
+     * This flag is disabled by default. Like {@link #noRematchAllRequestsOnRegister}, it only
+     * controls a performance optimization and its value does not need to be consistent over time.
+     */
+    public boolean incrementalRematchOnNetworkChange() {
+        return mIncrementalRematchOnNetworkChange;
+    }
+
+    /**
+     * Whether ConnectivityService should batch the network callbacks generated for a messenger
+     * until its handler is idle, dropping superseded CAP_CHANGED and IP_CHANGED callbacks.
+     *
+     * This flag is disabled by default.
+     */
+    public boolean batchNetworkCallbacks() {
+        return mBatchNetworkCallbacks;
+    }
+
     /**
      * Load flag values. Should only be called once, and can only be called once PackageManager is
      * ready.
@@ -67,5 +107,8 @@ public final class ConnectivityFlags {
     public void loadFlags(ConnectivityService.Dependencies deps, Context ctx) {
         mNoRematchAllRequestsOnRegister = deps.isFeatureEnabled(
                 ctx, NO_REMATCH_ALL_REQUESTS_ON_REGISTER);
+        mIncrementalRematchOnNetworkChange = deps.isFeatureEnabled(
+                ctx, INCREMENTAL_REMATCH_ON_NETWORK_CHANGE);
+        mBatchNetworkCallbacks = deps.isFeatureEnabled(ctx, BATCH_NETWORK_CALLBACKS);
     }
 }
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
+import android.util.ArrayMap;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.net.module.util.BitUtils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+
+/**
+ * An index of network requests by the capabilities and transports they require.
+ *
+ * Requests are grouped by the masks of their required capabilities, forbidden capabilities and
+ * transports. There are typically only a few dozen distinct groups even when there are thousands
+ * of requests, so finding the requests that can be satisfied by some capabilities only costs a
+ * few mask operations per group. The candidates returned by this index still need to be checked
+ * with {@link NetworkCapabilities#satisfiedByNetworkCapabilities}, as it does not look at
+ * specifiers, UIDs, bandwidth or signal strength.
+ *
+ * This class is not thread-safe.
+ *
+ * @param <T> the type of the values associated with the requests.
+ * @hide
+ */
+public class NetworkRequestIndex<T> {
+    private static final class MaskKey {
+        final long mCapabilities;
+        final long mForbiddenCapabilities;
+        final long mTransports;
+
+        MaskKey(@NonNull final NetworkCapabilities nc) {
+            mCapabilities = nc.getCapabilitiesInternal();
+            mForbiddenCapabilities = BitUtils.packBits(nc.getForbiddenCapabilities());
+            mTransports = nc.getTransportTypesInternal();
+        }
+
+        // Same checks as NetworkCapabilities#satisfiedByNetCapabilities and
+        // NetworkCapabilities#satisfiedByTransportTypes.
+        boolean mayBeSatisfiedBy(final long capabilities, final long transports) {
+            return (capabilities & mCapabilities) == mCapabilities
+                    && (capabilities & mForbiddenCapabilities) == 0
+                    && (mTransports == 0 || (mTransports & transports) != 0);
+        }
+
+        @Override
+        public boolean equals(@Nullable final Object o) {
+            if (!(o instanceof MaskKey)) return false;
+            final MaskKey other = (MaskKey) o;
+            return mCapabilities == other.mCapabilities
+                    && mForbiddenCapabilities == other.mForbiddenCapabilities
+                    && mTransports == other.mTransports;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(mCapabilities) * 31 * 31
+                    + Long.hashCode(mForbiddenCapabilities) * 31
+                    + Long.hashCode(mTransports);
+        }
+    }
+
+    // Groups of requests sharing the same masks. Kept in a map for lookup on insertion, and
+    // iterated in lookups.
+    private final ArrayMap<MaskKey, ArrayMap<NetworkRequest, T>> mGroups = new ArrayMap<>();
+    // The key each request was indexed with, so that it can be removed even if its capabilities
+    // are modified later.
+    private final HashMap<NetworkRequest, MaskKey> mKeys = new HashMap<>();
+
+    /**
+     * Adds a request to the index, or replaces the value associated with it.
+     */
+    public void put(@NonNull final NetworkRequest request, @NonNull final T value) {
+        remove(request);
+        final MaskKey key = new MaskKey(request.networkCapabilities);
+        ArrayMap<NetworkRequest, T> group = mGroups.get(key);
+        if (null == group) {
+            group = new ArrayMap<>();
+            mGroups.put(key, group);
+        }
+        group.put(request, value);
+        mKeys.put(request, key);
+    }
+
+    /**
+     * Removes a request from the index.
+     *
+     * @return the value that was associated with the request, or null if it was not indexed.
+     */
+    @Nullable
+    public T remove(@NonNull final NetworkRequest request) {
+        final MaskKey key = mKeys.remove(request);
+        if (null == key) return null;
+        final ArrayMap<NetworkRequest, T> group = mGroups.get(key);
+        final T value = group.remove(request);
+        if (group.isEmpty()) mGroups.remove(key);
+        return value;
+    }
+
+    /**
+     * Returns the number of indexed requests.
+     */
+    public int size() {
+        return mKeys.size();
+    }
+
+    /**
+     * Returns the number of distinct groups of requests in this index.
+     */
+    @VisibleForTesting
+    int groupCount() {
+        return mGroups.size();
+    }
+
+    /**
+     * Adds to {@code out} the values of all the requests whose capability and transport
+     * requirements are satisfied by {@code nc}.
+     *
+     * This is a superset of the requests that {@code nc} satisfies. Values associated with
+     * several requests may be added several times.
+     */
+    public void addCandidates(@NonNull final NetworkCapabilities nc,
+            @NonNull final Collection<T> out) {
+        final long capabilities = nc.getCapabilitiesInternal();
+        final long transports = nc.getTransportTypesInternal();
+        for (int i = 0; i < mGroups.size(); i++) {
+            if (!mGroups.keyAt(i).mayBeSatisfiedBy(capabilities, transports)) continue;
+            out.addAll(mGroups.valueAt(i).values());
+        }
+    }
+
+    /**
+     * Returns the requests whose capability and transport requirements are satisfied by
+     * {@code nc}.
+     *
+     * This is a superset of the requests that {@code nc} satisfies.
+     */
+    @VisibleForTesting
+    @NonNull
+    ArrayList<NetworkRequest> getCandidateRequests(@NonNull final NetworkCapabilities nc) {
+        final long capabilities = nc.getCapabilitiesInternal();
+        final long transports = nc.getTransportTypesInternal();
+        final ArrayList<NetworkRequest> candidates = new ArrayList<>();
+        for (int i = 0; i < mGroups.size(); i++) {
+            if (!mGroups.keyAt(i).mayBeSatisfiedBy(capabilities, transports)) continue;
+            candidates.addAll(mGroups.valueAt(i).keySet());
+        }
+        return candidates;
+    }
+}
@@ -111,6 +111,17 @@ public class PermissionMonitor {
     @GuardedBy("this")
     private final SparseIntArray mUidToNetworkPerm = new SparseIntArray();
 
+    // Copy of mUidToNetworkPerm, replaced after each update of it so that permission checks from
+    // other threads, like the ConnectivityService handler thread, do not wait for the lock while
+    // permissions of many apps are being recomputed. Never modified once published.
+    private volatile SparseIntArray mUidToNetworkPermSnapshot = new SparseIntArray();
+
+    // The traffic permissions last sent to BpfNetMaps for each appId, so that only the changes
+    // are sent when the permissions of all appIds are recomputed on user changes.
+    @GuardedBy("this")
+    private final SparseIntArray mSentAppIdsTrafficPerm = new SparseIntArray();
+    private static final int TRAFFIC_PERM_NOT_SENT = Integer.MIN_VALUE;
+
     // NonNull keys are active non-bypassable and fully-routed VPN's interface name, Values are uid
     // ranges for apps under the VPNs which enable interface filtering.
     // If key is null, Values are uid ranges for apps under the VPNs which are connected but do not
@@ -365,10 +376,22 @@ public class PermissionMonitor {
     }
 
     private synchronized void updateUidsNetworkPermission(final SparseIntArray uids) {
+        // Only send the uids whose permission changes.
+        final SparseIntArray changedUids = new SparseIntArray();
         for (int i = 0; i < uids.size(); i++) {
-            mUidToNetworkPerm.put(uids.keyAt(i), uids.valueAt(i));
+            final int uid = uids.keyAt(i);
+            final int permission = uids.valueAt(i);
+            if (mUidToNetworkPerm.get(uid, PERMISSION_NONE) == permission) continue;
+            mUidToNetworkPerm.put(uid, permission);
+            changedUids.put(uid, permission);
         }
-        sendUidsNetworkPermission(uids, true /* add */);
+        publishUidToNetworkPerm();
+        sendUidsNetworkPermission(changedUids, true /* add */);
+    }
+
+    @GuardedBy("this")
+    private void publishUidToNetworkPerm() {
+        mUidToNetworkPermSnapshot = mUidToNetworkPerm.clone();
     }
 
     /**
@@ -533,21 +556,21 @@ public class PermissionMonitor {
     }
 
     /** Returns whether the given uid has using background network permission. */
-    public synchronized boolean hasUseBackgroundNetworksPermission(final int uid) {
+    public boolean hasUseBackgroundNetworksPermission(final int uid) {
         // Apps with any of the CHANGE_NETWORK_STATE, NETWORK_STACK, CONNECTIVITY_INTERNAL or
         // CONNECTIVITY_USE_RESTRICTED_NETWORKS permission has the permission to use background
         // networks. mUidToNetworkPerm contains the result of checks for hasNetworkPermission and
         // hasRestrictedNetworkPermission, as well as the list of UIDs allowed on restricted
         // networks. If uid is in the mUidToNetworkPerm list that means uid has one of permissions
         // at least.
-        return mUidToNetworkPerm.get(uid, PERMISSION_NONE) != PERMISSION_NONE;
+        return mUidToNetworkPermSnapshot.get(uid, PERMISSION_NONE) != PERMISSION_NONE;
     }
 
     /**
      * Returns whether the given uid has permission to use restricted networks.
      */
-    public synchronized boolean hasRestrictedNetworksPermission(int uid) {
-        return PERMISSION_SYSTEM == mUidToNetworkPerm.get(uid, PERMISSION_NONE);
+    public boolean hasRestrictedNetworksPermission(int uid) {
+        return PERMISSION_SYSTEM == mUidToNetworkPermSnapshot.get(uid, PERMISSION_NONE);
     }
 
     private void sendUidsNetworkPermission(SparseIntArray uids, boolean add) {
@@ -564,11 +587,15 @@ public class PermissionMonitor {
         }
         try {
             if (add) {
-                mNetd.networkSetPermissionForUser(PERMISSION_NETWORK, toIntArray(network));
-                mNetd.networkSetPermissionForUser(PERMISSION_SYSTEM, toIntArray(system));
+                if (!network.isEmpty()) {
+                    mNetd.networkSetPermissionForUser(PERMISSION_NETWORK, toIntArray(network));
+                }
+                if (!system.isEmpty()) {
+                    mNetd.networkSetPermissionForUser(PERMISSION_SYSTEM, toIntArray(system));
+                }
             } else {
-                mNetd.networkClearPermissionForUser(toIntArray(network));
-                mNetd.networkClearPermissionForUser(toIntArray(system));
+                if (!network.isEmpty()) mNetd.networkClearPermissionForUser(toIntArray(network));
+                if (!system.isEmpty()) mNetd.networkClearPermissionForUser(toIntArray(system));
             }
         } catch (RemoteException e) {
             loge("Exception when updating permissions: " + e);
@@ -583,10 +610,17 @@ public class PermissionMonitor {
      * @hide
      */
     @VisibleForTesting
-    synchronized void onUserAdded(@NonNull UserHandle user) {
-        mUsers.add(user);
-
+    void onUserAdded(@NonNull UserHandle user) {
+        // Listing the packages of a user and computing their traffic permissions can take a long
+        // time with many packages, so do it before taking the lock.
         final List<PackageInfo> apps = getInstalledPackagesAsUser(user);
+        final SparseIntArray addedUserAppIds = makeAppIdsTrafficPerm(apps);
+        onUserAdded(user, apps, addedUserAppIds);
+    }
+
+    private synchronized void onUserAdded(@NonNull UserHandle user,
+            @NonNull List<PackageInfo> apps, @NonNull SparseIntArray addedUserAppIds) {
+        mUsers.add(user);
 
         // Save all apps
         updateAllApps(apps);
@@ -596,11 +630,10 @@ public class PermissionMonitor {
         updateUidsNetworkPermission(uids);
 
         // Add new user appIds permissions.
-        final SparseIntArray addedUserAppIds = makeAppIdsTrafficPerm(apps);
         mUsersTrafficPermissions.put(user, addedUserAppIds);
-        // Generate appIds from all users and send result to netd.
+        // Generate appIds from all users and send the changes to netd.
         final SparseIntArray appIds = makeAppIdsTrafficPermForAllUsers();
-        sendAppIdsTrafficPermission(appIds);
+        sendAppIdsTrafficPermissionChanges(appIds);
 
         // Log user added
         mPermissionUpdateLogs.log("New user(" + user.getIdentifier() + ") added: nPerm uids="
@@ -628,6 +661,7 @@ public class PermissionMonitor {
                 removedUids.put(uid, allUids.valueAt(i));
             }
         }
+        publishUidToNetworkPerm();
         sendUidsNetworkPermission(removedUids, false /* add */);
 
         // Remove appIds traffic permission that belongs to the user
@@ -649,7 +683,7 @@ public class PermissionMonitor {
                 appIds.put(appId, PERMISSION_UNINSTALLED);
             }
         }
-        sendAppIdsTrafficPermission(appIds);
+        sendAppIdsTrafficPermissionChanges(appIds);
 
         // Log user removed
         mPermissionUpdateLogs.log("User(" + user.getIdentifier() + ") removed: nPerm uids="
@@ -817,6 +851,7 @@ public class PermissionMonitor {
                 mUidToNetworkPerm.put(sdkSandboxUid, permission);
                 apps.put(sdkSandboxUid, permission);
             }
+            publishUidToNetworkPerm();
             sendUidsNetworkPermission(apps, true /* add */);
         }
 
@@ -901,6 +936,7 @@ public class PermissionMonitor {
                     mUidToNetworkPerm.delete(sdkSandboxUid);
                     apps.put(sdkSandboxUid, PERMISSION_NETWORK);
                 }
+                publishUidToNetworkPerm();
                 sendUidsNetworkPermission(apps, false);
             } else {
                 mUidToNetworkPerm.put(uid, permission);
@@ -909,6 +945,7 @@ public class PermissionMonitor {
                     mUidToNetworkPerm.put(sdkSandboxUid, permission);
                     apps.put(sdkSandboxUid, permission);
                 }
+                publishUidToNetworkPerm();
                 sendUidsNetworkPermission(apps, true);
             }
         }
@@ -1207,9 +1244,45 @@ public class PermissionMonitor {
                 mBpfNetMaps.setNetPermForUids(PERMISSION_UNINSTALLED,
                         toIntArray(uninstalledAppIds));
             }
+            recordSentAppIdsTrafficPermission(netdPermissionsAppIds, true /* success */);
         } catch (RemoteException | ServiceSpecificException e) {
             Log.e(TAG, "Pass appId list of special permission failed." + e);
+            // Some of the permissions may not have been set: make sure they are sent again.
+            recordSentAppIdsTrafficPermission(netdPermissionsAppIds, false /* success */);
+        }
+    }
+
+    private synchronized void recordSentAppIdsTrafficPermission(
+            SparseIntArray netdPermissionsAppIds, boolean success) {
+        for (int i = 0; i < netdPermissionsAppIds.size(); i++) {
+            if (success) {
+                mSentAppIdsTrafficPerm.put(netdPermissionsAppIds.keyAt(i),
+                        netdPermissionsAppIds.valueAt(i));
+            } else {
+                mSentAppIdsTrafficPerm.delete(netdPermissionsAppIds.keyAt(i));
+            }
+        }
+    }
+
+    /**
+     * Send the traffic permissions of the given appIds, skipping the appIds whose permission is
+     * already set.
+     *
+     * The permissions of all appIds on the device are recomputed on each user change, so this
+     * saves from rewriting thousands of unchanged entries of the permission map.
+     */
+    private synchronized void sendAppIdsTrafficPermissionChanges(
+            SparseIntArray netdPermissionsAppIds) {
+        final SparseIntArray changedAppIds = new SparseIntArray();
+        for (int i = 0; i < netdPermissionsAppIds.size(); i++) {
+            final int appId = netdPermissionsAppIds.keyAt(i);
+            final int permission = netdPermissionsAppIds.valueAt(i);
+            if (mSentAppIdsTrafficPerm.get(appId, TRAFFIC_PERM_NOT_SENT) != permission) {
+                changedAppIds.put(appId, permission);
+            }
         }
+        if (changedAppIds.size() == 0) return;
+        sendAppIdsTrafficPermission(changedAppIds);
     }
 
     private synchronized void onSettingChanged() {
@@ -1247,6 +1320,7 @@ public class PermissionMonitor {
         }
 
         // Step3. Update or revoke permission for uids with netd.
+        publishUidToNetworkPerm();
         sendUidsNetworkPermission(updatedUids, true /* add */);
         sendUidsNetworkPermission(removedUids, false /* add */);
         mPermissionUpdateLogs.log("Setting change: update=" + updatedUids
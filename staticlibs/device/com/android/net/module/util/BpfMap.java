@@ -16,7 +16,10 @@
 package com.android.net.module.util;
 
 import static android.system.OsConstants.EEXIST;
+import static android.system.OsConstants.EINVAL;
 import static android.system.OsConstants.ENOENT;
+import static android.system.OsConstants.ENOSPC;
+import static android.system.OsConstants.EOPNOTSUPP;
 
 import android.os.Build;
 import android.os.ParcelFileDescriptor;
@@ -29,6 +32,8 @@ import androidx.annotation.RequiresApi;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.Collection;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.concurrent.ConcurrentHashMap;
@@ -60,11 +65,32 @@ public class BpfMap<K extends Struct, V extends Struct> implements IBpfMap<K, V>
     private static final int BPF_NOEXIST = 1;
     private static final int BPF_EXIST = 2;
 
+    // Kernel-internal errno returned by batch operations on map types that do not implement them.
+    private static final int ENOTSUPP = 524;
+
+    // Number of entries transferred by each batch syscall.
+    private static final int BATCH_SIZE = 256;
+    // Upper bound of the batch size when growing it after ENOSPC, which is returned when a single
+    // hash bucket has more entries than the batch size.
+    private static final int MAX_BATCH_SIZE = 1 << 16;
+    // Size of the opaque position tokens of lookup batch operations. Hash maps use a 4-byte
+    // bucket index, and other map types use a key.
+    private static final int MIN_BATCH_TOKEN_SIZE = 8;
+
+    // Batch operations, used to remember which ones the kernel does not support for this map.
+    private static final int BATCH_LOOKUP = 1 << 0;
+    private static final int BATCH_LOOKUP_AND_DELETE = 1 << 1;
+    private static final int BATCH_UPDATE = 1 << 2;
+    private static final int BATCH_DELETE = 1 << 3;
+
     private final ParcelFileDescriptor mMapFd;
     private final Class<K> mKeyClass;
     private final Class<V> mValueClass;
     private final int mKeySize;
     private final int mValueSize;
+    // Bitmask of the BATCH_* operations that failed as unsupported, so that they are not
+    // attempted again. Only ever has bits set, so racy updates are harmless.
+    private volatile int mUnsupportedBatchOps = 0;
 
     private static ConcurrentHashMap<Pair<String, Integer>, ParcelFileDescriptor> sFdCache =
             new ConcurrentHashMap<>();
@@ -252,6 +278,200 @@ public class BpfMap<K extends Struct, V extends Struct> implements IBpfMap<K, V>
         return Struct.parse(mValueClass, buffer);
     }
 
+    private static boolean isBatchUnsupportedError(int errno) {
+        // Kernels before 5.6 do not know the batch commands and return EINVAL.
+        return errno == EINVAL || errno == EOPNOTSUPP || errno == ENOTSUPP;
+    }
+
+    private boolean isBatchSupported(int op) {
+        return (mUnsupportedBatchOps & op) == 0;
+    }
+
+    private void setBatchUnsupported(int op) {
+        mUnsupportedBatchOps |= op;
+    }
+
+    /**
+     * Read all entries of the map with lookup batch operations, passing them to the given
+     * BiConsumer, or to nothing if it is null.
+     *
+     * @return false if the kernel does not support the operation, in which case no entry was read.
+     */
+    private boolean lookupBatches(@Nullable ThrowingBiConsumer<K, V> action, boolean andDelete)
+            throws ErrnoException {
+        final int op = andDelete ? BATCH_LOOKUP_AND_DELETE : BATCH_LOOKUP;
+        if (!isBatchSupported(op)) return false;
+
+        int batchSize = BATCH_SIZE;
+        byte[] keys = new byte[batchSize * mKeySize];
+        byte[] values = new byte[batchSize * mValueSize];
+        final int tokenSize = Math.max(mKeySize, MIN_BATCH_TOKEN_SIZE);
+        byte[] inBatch = null;
+        byte[] outBatch = new byte[tokenSize];
+        final int[] count = new int[1];
+        boolean started = false;
+        boolean hasMore = true;
+        while (hasMore) {
+            count[0] = batchSize;
+            try {
+                hasMore = nativeLookupBatch(mMapFd.getFd(), inBatch, outBatch, keys, values, count,
+                        andDelete);
+            } catch (ErrnoException e) {
+                if (!started && isBatchUnsupportedError(e.errno)) {
+                    setBatchUnsupported(op);
+                    return false;
+                }
+                if (e.errno == ENOSPC && count[0] == 0 && batchSize < MAX_BATCH_SIZE) {
+                    // A hash bucket does not fit in the batch: retry the same position with a
+                    // larger one.
+                    batchSize *= 2;
+                    keys = new byte[batchSize * mKeySize];
+                    values = new byte[batchSize * mValueSize];
+                    continue;
+                }
+                throw e;
+            }
+            started = true;
+
+            if (action != null && count[0] > 0) {
+                final ByteBuffer keyBuffer = ByteBuffer.wrap(keys);
+                keyBuffer.order(ByteOrder.nativeOrder());
+                final ByteBuffer valueBuffer = ByteBuffer.wrap(values);
+                valueBuffer.order(ByteOrder.nativeOrder());
+                for (int i = 0; i < count[0]; i++) {
+                    keyBuffer.position(i * mKeySize);
+                    valueBuffer.position(i * mValueSize);
+                    action.accept(Struct.parse(mKeyClass, keyBuffer),
+                            Struct.parse(mValueClass, valueBuffer));
+                }
+            }
+
+            if (inBatch == null) inBatch = new byte[tokenSize];
+            final byte[] tmp = inBatch;
+            inBatch = outBatch;
+            outBatch = tmp;
+        }
+        return true;
+    }
+
+    /**
+     * Iterate through the map with BPF_MAP_LOOKUP_BATCH, which reads up to {@code BATCH_SIZE}
+     * entries per syscall instead of two syscalls per entry for {@link #forEach}. Falls back to
+     * {@link #forEach} on kernels that do not support it.
+     */
+    @Override
+    public void forEachBatch(ThrowingBiConsumer<K, V> action) throws ErrnoException {
+        Objects.requireNonNull(action);
+        if (!lookupBatches(action, false /* andDelete */)) forEach(action);
+    }
+
+    /**
+     * Delete all entries of the map with BPF_MAP_LOOKUP_AND_DELETE_BATCH, passing them to the
+     * given BiConsumer. Falls back to iteration on kernels or map types that do not support it.
+     */
+    @Override
+    public void forEachAndDelete(ThrowingBiConsumer<K, V> action) throws ErrnoException {
+        Objects.requireNonNull(action);
+        if (!lookupBatches(action, true /* andDelete */)) IBpfMap.super.forEachAndDelete(action);
+    }
+
+    /**
+     * Update existing or create new entries with BPF_MAP_UPDATE_BATCH. Falls back to
+     * {@link #updateEntry} on kernels that do not support it.
+     */
+    @Override
+    public void updateAll(@NonNull Map<K, V> entries) throws ErrnoException {
+        if (entries.isEmpty()) return;
+        if (!isBatchSupported(BATCH_UPDATE)) {
+            IBpfMap.super.updateAll(entries);
+            return;
+        }
+
+        final int batchSize = Math.min(entries.size(), BATCH_SIZE);
+        final byte[] keys = new byte[batchSize * mKeySize];
+        final byte[] values = new byte[batchSize * mValueSize];
+        final ByteBuffer keyBuffer = ByteBuffer.wrap(keys);
+        keyBuffer.order(ByteOrder.nativeOrder());
+        final ByteBuffer valueBuffer = ByteBuffer.wrap(values);
+        valueBuffer.order(ByteOrder.nativeOrder());
+        boolean started = false;
+        int count = 0;
+        int written = 0;
+        for (Map.Entry<K, V> entry : entries.entrySet()) {
+            entry.getKey().writeToByteBuffer(keyBuffer);
+            entry.getValue().writeToByteBuffer(valueBuffer);
+            count++;
+            if (count < batchSize && written + count < entries.size()) continue;
+
+            try {
+                nativeWriteToMapBatch(mMapFd.getFd(), keys, values, count, BPF_ANY);
+            } catch (ErrnoException e) {
+                if (!started && isBatchUnsupportedError(e.errno)) {
+                    setBatchUnsupported(BATCH_UPDATE);
+                    IBpfMap.super.updateAll(entries);
+                    return;
+                }
+                throw e;
+            }
+            started = true;
+            written += count;
+            count = 0;
+            keyBuffer.clear();
+            valueBuffer.clear();
+        }
+    }
+
+    /**
+     * Remove the given keys with BPF_MAP_DELETE_BATCH. Falls back to {@link #deleteEntry} on
+     * kernels that do not support it.
+     */
+    @Override
+    public int deleteAll(@NonNull Collection<K> keys, @NonNull int[] deletedCount)
+            throws ErrnoException {
+        deletedCount[0] = 0;
+        if (keys.isEmpty()) return 0;
+        if (!isBatchSupported(BATCH_DELETE)) return IBpfMap.super.deleteAll(keys, deletedCount);
+
+        final byte[] rawKeys = new byte[keys.size() * mKeySize];
+        final ByteBuffer keyBuffer = ByteBuffer.wrap(rawKeys);
+        keyBuffer.order(ByteOrder.nativeOrder());
+        for (K key : keys) {
+            key.writeToByteBuffer(keyBuffer);
+        }
+
+        final int[] count = new int[1];
+        int index = 0;
+        while (index < keys.size()) {
+            count[0] = Math.min(keys.size() - index, BATCH_SIZE);
+            final boolean success;
+            try {
+                success = nativeDeleteMapBatch(mMapFd.getFd(), rawKeys, index * mKeySize, count);
+            } catch (ErrnoException e) {
+                if (index == 0 && isBatchUnsupportedError(e.errno)) {
+                    setBatchUnsupported(BATCH_DELETE);
+                    return IBpfMap.super.deleteAll(keys, deletedCount);
+                }
+                throw e;
+            }
+            deletedCount[0] += count[0];
+            index += count[0];
+            // The kernel stops at the first key that does not exist: skip it.
+            if (!success) index++;
+        }
+        return deletedCount[0];
+    }
+
+    /**
+     * Clears the map, with BPF_MAP_LOOKUP_AND_DELETE_BATCH where supported.
+     *
+     * @throws ErrnoException if the map is already closed, if an error occurred during iteration,
+     *                        or if a non-ENOENT error occurred when deleting a key.
+     */
+    @Override
+    public void clear() throws ErrnoException {
+        if (!lookupBatches(null /* action */, true /* andDelete */)) IBpfMap.super.clear();
+    }
+
     /** Synchronize Kernel RCU */
     public static void synchronizeKernelRCU() throws ErrnoException {
         nativeSynchronizeKernelRCU();
@@ -279,5 +499,20 @@ public class BpfMap<K extends Struct, V extends Struct> implements IBpfMap<K, V>
     private native boolean nativeFindMapEntry(int fd, byte[] key, byte[] value)
             throws ErrnoException;
 
+    // Reads up to count[0] entries into keys and values, starting from the position token inBatch,
+    // or from the beginning of the map if it is null. Sets count[0] to the number of entries read
+    // and outBatch to the token of the next position. Returns false if the end of the map was
+    // reached, possibly after reading some entries.
+    private native boolean nativeLookupBatch(int fd, byte[] inBatch, byte[] outBatch, byte[] keys,
+            byte[] values, int[] count, boolean andDelete) throws ErrnoException;
+
+    private native void nativeWriteToMapBatch(int fd, byte[] keys, byte[] values, int count,
+            int flags) throws ErrnoException;
+
+    // Deletes count[0] keys starting at byte offset in keys, and sets count[0] to the number of
+    // keys deleted. Returns false if it stopped at a key that was not found.
+    private native boolean nativeDeleteMapBatch(int fd, byte[] keys, int offset, int[] count)
+            throws ErrnoException;
+
     private static native void nativeSynchronizeKernelRCU() throws ErrnoException;
 }
@@ -33,6 +33,8 @@ import com.android.internal.annotations.VisibleForTesting;
 
 import java.io.FileDescriptor;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
 
 
 /**
@@ -63,6 +65,11 @@ import java.io.IOException;
  * should make any copies they would like inside their handlePacket()
  * implementation.
  *
+ * Subclasses constructed with multiple receive buffers read packets in batches: on each read
+ * event, up to one packet per buffer is read before the packets are handled, and the reader then
+ * yields to other events of the Looper even if more packets are available. Readers with a single
+ * buffer keep reading and handling packets until no more are available.
+ *
  * All public methods MUST only be called from the same thread with which
  * the Handler constructor argument is associated.
  *
@@ -77,8 +84,11 @@ public abstract class FdEventsReader<BufferType> {
     private final Handler mHandler;
     @NonNull
     private final MessageQueue mQueue;
+    // Receive buffers, reused for every batch of packets
+    @NonNull
+    private final List<BufferType> mBuffers;
     @NonNull
-    private final BufferType mBuffer;
+    private final int[] mPacketLengths;
     @Nullable
     private FileDescriptor mFd;
     private long mPacketsReceived;
@@ -91,9 +101,23 @@ public abstract class FdEventsReader<BufferType> {
     }
 
     protected FdEventsReader(@NonNull Handler h, @NonNull BufferType buffer) {
+        this(h, Collections.singletonList(buffer));
+    }
+
+    /**
+     * Create a FdEventsReader reading up to {@code buffers.size()} packets per read event.
+     *
+     * @param h The handler to read packets on.
+     * @param buffers The receive buffers, at least one.
+     */
+    protected FdEventsReader(@NonNull Handler h, @NonNull List<BufferType> buffers) {
+        if (buffers.isEmpty()) {
+            throw new IllegalArgumentException("At least one receive buffer is needed");
+        }
         mHandler = h;
         mQueue = mHandler.getLooper().getQueue();
-        mBuffer = buffer;
+        mBuffers = buffers;
+        mPacketLengths = new int[buffers.size()];
     }
 
     @VisibleForTesting
@@ -129,7 +153,7 @@ public abstract class FdEventsReader<BufferType> {
 
     /** Returns the size of the receive buffer. */
     public int recvBufSize() {
-        return recvBufSize(mBuffer);
+        return recvBufSize(mBuffers.get(0));
     }
 
     /**
@@ -239,44 +263,67 @@ public abstract class FdEventsReader<BufferType> {
         return (mFd != null) && mFd.valid();
     }
 
-    // Keep trying to read until we get EAGAIN/EWOULDBLOCK or some fatal error.
+    // Keep trying to read until we get EAGAIN/EWOULDBLOCK or some fatal error, or until a batch of
+    // packets was read if there are multiple buffers.
     private boolean handleInput() {
         while (isRunning()) {
-            final int bytesRead;
-
-            try {
-                bytesRead = readPacket(mFd, mBuffer);
-                if (bytesRead == 0 && !shouldProcessZeroLengthPacket()) {
-                    if (isRunning()) logError("Socket closed, exiting", null);
+            int packetCount = 0;
+            boolean fatalError = false;
+            boolean drained = false;
+            while (packetCount < mBuffers.size()) {
+                final int bytesRead;
+                try {
+                    bytesRead = readPacket(mFd, mBuffers.get(packetCount));
+                    if (bytesRead == 0 && !shouldProcessZeroLengthPacket()) {
+                        if (isRunning()) logError("Socket closed, exiting", null);
+                        fatalError = true;
+                        break;
+                    }
+                    mPacketsReceived++;
+                } catch (ErrnoException e) {
+                    if (e.errno == OsConstants.EAGAIN) {
+                        // We've read everything there is to read this time around.
+                        drained = true;
+                        break;
+                    } else if (e.errno == OsConstants.EINTR) {
+                        continue;
+                    } else {
+                        if (!isRunning() || handleReadError(e)) {
+                            fatalError = true;
+                            break;
+                        }
+                        continue;
+                    }
+                } catch (Exception e) {
+                    if (isRunning()) logError("readPacket error: ", e);
+                    fatalError = true;
                     break;
                 }
-                mPacketsReceived++;
-            } catch (ErrnoException e) {
-                if (e.errno == OsConstants.EAGAIN) {
-                    // We've read everything there is to read this time around.
-                    return true;
-                } else if (e.errno == OsConstants.EINTR) {
-                    continue;
-                } else {
-                    if (!isRunning()) break;
-                    final boolean shouldStop = handleReadError(e);
-                    if (shouldStop) break;
-                    continue;
-                }
-            } catch (Exception e) {
-                if (isRunning()) logError("readPacket error: ", e);
-                break;
+                mPacketLengths[packetCount] = bytesRead;
+                packetCount++;
             }
 
+            handlePackets(packetCount);
+            if (fatalError) return false;
+            // With multiple buffers, yield after a full batch: the listener will be called again
+            // as the fd is still readable.
+            if (drained || mBuffers.size() > 1) return isRunning();
+        }
+
+        return false;
+    }
+
+    private void handlePackets(int packetCount) {
+        for (int i = 0; i < packetCount; i++) {
+            // Packets are not handled anymore if a previous packet caused the reader to stop
+            if (!isRunning()) return;
             try {
-                handlePacket(mBuffer, bytesRead);
+                handlePacket(mBuffers.get(i), mPacketLengths[i]);
             } catch (Exception e) {
                 logError("handlePacket error: ", e);
                 Log.wtf(TAG, "Error handling packet", e);
             }
         }
-
-        return false;
     }
 
     private void unregisterAndDestroyFd() {
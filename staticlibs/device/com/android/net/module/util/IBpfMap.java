@@ -21,6 +21,8 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
 import java.util.NoSuchElementException;
 
 /**
@@ -89,6 +91,70 @@ public interface IBpfMap<K extends Struct, V extends Struct> extends AutoCloseab
         }
     }
 
+    /**
+     * Iterate through the map like {@link #forEach}, reading entries in batches where the
+     * implementation supports it.
+     *
+     * Entries are read ahead of the calls to the given BiConsumer, so entries deleted by other
+     * processes during iteration may still be passed to it. Like with {@link #forEach}, the
+     * BiConsumer may delete the passed-in entry, but must not perform any other structural
+     * modification to the map.
+     */
+    default void forEachBatch(ThrowingBiConsumer<K, V> action) throws ErrnoException {
+        forEach(action);
+    }
+
+    /**
+     * Delete all entries of the map, passing each deleted key -> value to the given BiConsumer.
+     * The BiConsumer must not modify the map. Entries inserted concurrently may or may not be
+     * visited.
+     */
+    default void forEachAndDelete(ThrowingBiConsumer<K, V> action) throws ErrnoException {
+        forEach((key, value) -> {
+            // Entries deleted concurrently are skipped, as they are not part of the map anymore.
+            if (deleteEntry(key)) action.accept(key, value);
+        });
+    }
+
+    /**
+     * Update existing or create new key -> value entries for all the given entries, in batches
+     * where the implementation supports it.
+     *
+     * If an error occurs, some of the entries may have been written.
+     */
+    default void updateAll(@NonNull Map<K, V> entries) throws ErrnoException {
+        for (Map.Entry<K, V> entry : entries.entrySet()) {
+            updateEntry(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Remove the given keys from the map, in batches where the implementation supports it.
+     * Keys that do not exist in the map are ignored.
+     *
+     * @return the number of entries that were deleted.
+     */
+    default int deleteAll(@NonNull Collection<K> keys) throws ErrnoException {
+        return deleteAll(keys, new int[1]);
+    }
+
+    /**
+     * Same as {@link #deleteAll(Collection)}, also reporting how many entries were deleted when
+     * an error occurs, as some of the entries may have been deleted before the error.
+     *
+     * @param deletedCount array of length 1, whose element is set to the number of entries
+     *                     deleted so far, including when an exception is thrown.
+     * @return the number of entries that were deleted.
+     */
+    default int deleteAll(@NonNull Collection<K> keys, @NonNull int[] deletedCount)
+            throws ErrnoException {
+        deletedCount[0] = 0;
+        for (K key : keys) {
+            if (deleteEntry(key)) deletedCount[0]++;
+        }
+        return deletedCount[0];
+    }
+
     /**
      * Clears the map. The map may already be empty.
      *
@@ -159,14 +159,48 @@ public class Struct {
         public final Field annotation;
         @NonNull
         public final java.lang.reflect.Field field;
+        // Annotation properties, copied because calling annotation methods is slow.
+        @NonNull
+        public final Type type;
+        public final int padding;
+        public final int arraysize;
+        // Length of the field in bytes, including padding.
+        public final int length;
 
         FieldInfo(final Field annotation, final java.lang.reflect.Field field) {
             this.annotation = annotation;
             this.field = field;
+            this.type = annotation.type();
+            this.padding = annotation.padding();
+            this.arraysize = annotation.arraysize();
+            this.length = getFieldLength(annotation);
         }
     }
     private static ConcurrentHashMap<Class, FieldInfo[]> sFieldCache = new ConcurrentHashMap();
 
+    /**
+     * Everything needed to decode a class, resolved and validated once per class instead of on
+     * every parse.
+     */
+    private static class ParseInfo {
+        @NonNull
+        public final FieldInfo[] fields;
+        // The constructor taking all fields in order, or null to set the fields of an instance
+        // created with the default constructor.
+        @Nullable
+        public final Constructor<?> constructor;
+        @Nullable
+        public final Constructor<?> defaultConstructor;
+
+        ParseInfo(final FieldInfo[] fields, final Constructor<?> constructor,
+                final Constructor<?> defaultConstructor) {
+            this.fields = fields;
+            this.constructor = constructor;
+            this.defaultConstructor = defaultConstructor;
+        }
+    }
+    private static ConcurrentHashMap<Class, ParseInfo> sParseInfoCache = new ConcurrentHashMap();
+
     private static void checkAnnotationType(final Field annotation, final Class fieldType) {
         switch (annotation.type()) {
             case U8:
@@ -355,8 +389,7 @@ public class Struct {
     private static Object getFieldValue(final ByteBuffer buf, final FieldInfo fieldInfo)
             throws BufferUnderflowException {
         final Object value;
-        checkAnnotationType(fieldInfo.annotation, fieldInfo.field.getType());
-        switch (fieldInfo.annotation.type()) {
+        switch (fieldInfo.type) {
             case U8:
                 value = (short) (buf.get() & 0xFF);
                 break;
@@ -407,7 +440,7 @@ public class Struct {
                 value = readBigInteger(buf, Type.UBE64);
                 break;
             case ByteArray:
-                final byte[] array = new byte[fieldInfo.annotation.arraysize()];
+                final byte[] array = new byte[fieldInfo.arraysize];
                 buf.get(array);
                 value = array;
                 break;
@@ -418,7 +451,7 @@ public class Struct {
                 break;
             case Ipv4Address:
             case Ipv6Address:
-                final boolean isIpv6 = (fieldInfo.annotation.type() == Type.Ipv6Address);
+                final boolean isIpv6 = (fieldInfo.type == Type.Ipv6Address);
                 final byte[] address = new byte[isIpv6 ? 16 : 4];
                 buf.get(address);
                 try {
@@ -435,16 +468,86 @@ public class Struct {
                 }
                 break;
             default:
-                throw new IllegalArgumentException("Unknown type:" + fieldInfo.annotation.type());
+                throw new IllegalArgumentException("Unknown type:" + fieldInfo.type);
         }
 
         // Skip the padding data for alignment if any.
-        if (fieldInfo.annotation.padding() > 0) {
-            buf.position(buf.position() + fieldInfo.annotation.padding());
+        if (fieldInfo.padding > 0) {
+            buf.position(buf.position() + fieldInfo.padding);
         }
         return value;
     }
 
+    /**
+     * Read a field from ByteBuffer and set it in the given instance. Primitive fields are set
+     * without boxing, and if {@code reuseArrays} is true, ByteArray fields already holding an
+     * array of the right size are read into that array.
+     */
+    private static void readFieldValue(final ByteBuffer buf, final FieldInfo fieldInfo,
+            final Object instance, final boolean reuseArrays)
+            throws BufferUnderflowException, IllegalAccessException {
+        final java.lang.reflect.Field field = fieldInfo.field;
+        switch (fieldInfo.type) {
+            case U8:
+                field.setShort(instance, (short) (buf.get() & 0xFF));
+                break;
+            case U16:
+                field.setInt(instance, buf.getShort() & 0xFFFF);
+                break;
+            case U32:
+                field.setLong(instance, buf.getInt() & 0xFFFFFFFFL);
+                break;
+            case S8:
+                field.setByte(instance, buf.get());
+                break;
+            case S16:
+                field.setShort(instance, buf.getShort());
+                break;
+            case S32:
+                field.setInt(instance, buf.getInt());
+                break;
+            case U63:
+            case S64:
+                field.setLong(instance, buf.getLong());
+                break;
+            case UBE16:
+                final short be16 = buf.getShort();
+                field.setInt(instance, (buf.order() == ByteOrder.LITTLE_ENDIAN
+                        ? Short.reverseBytes(be16) : be16) & 0xFFFF);
+                break;
+            case UBE32:
+                final int be32 = buf.getInt();
+                field.setLong(instance, (buf.order() == ByteOrder.LITTLE_ENDIAN
+                        ? Integer.reverseBytes(be32) : be32) & 0xFFFFFFFFL);
+                break;
+            case UBE63:
+                final long be63 = buf.getLong();
+                field.setLong(instance, buf.order() == ByteOrder.LITTLE_ENDIAN
+                        ? Long.reverseBytes(be63) : be63);
+                break;
+            case ByteArray:
+                final byte[] existing = reuseArrays ? (byte[]) field.get(instance) : null;
+                if (existing != null && existing.length == fieldInfo.arraysize) {
+                    buf.get(existing);
+                    break;
+                }
+                final byte[] array = new byte[fieldInfo.arraysize];
+                buf.get(array);
+                field.set(instance, array);
+                break;
+            default:
+                // Types represented by immutable objects are always allocated.
+                field.set(instance, getFieldValue(buf, fieldInfo));
+                // getFieldValue already skipped the padding.
+                return;
+        }
+
+        // Skip the padding data for alignment if any.
+        if (fieldInfo.padding > 0) {
+            buf.position(buf.position() + fieldInfo.padding);
+        }
+    }
+
     @Nullable
     private Object getFieldValue(@NonNull java.lang.reflect.Field field) {
         try {
@@ -454,58 +557,72 @@ public class Struct {
         }
     }
 
-    private static void putFieldValue(final ByteBuffer output, final FieldInfo fieldInfo,
-            final Object value) throws BufferUnderflowException {
-        switch (fieldInfo.annotation.type()) {
+    // Primitive fields are read with the typed Field getters, so that they are not boxed.
+    private void putFieldValue(final ByteBuffer output, final FieldInfo fieldInfo)
+            throws BufferUnderflowException, IllegalAccessException {
+        final java.lang.reflect.Field field = fieldInfo.field;
+        switch (fieldInfo.type) {
             case U8:
-                output.put((byte) (((short) value) & 0xFF));
+                output.put((byte) (field.getShort(this) & 0xFF));
                 break;
             case U16:
-                output.putShort((short) (((int) value) & 0xFFFF));
+                output.putShort((short) (field.getInt(this) & 0xFFFF));
                 break;
             case U32:
-                output.putInt((int) (((long) value) & 0xFFFFFFFFL));
+                output.putInt((int) (field.getLong(this) & 0xFFFFFFFFL));
                 break;
             case U63:
-                output.putLong((long) value);
-                break;
-            case U64:
-                output.put(bigIntegerToU64Bytes((BigInteger) value, output.order(), Type.U64));
+                output.putLong(field.getLong(this));
                 break;
             case S8:
-                output.put((byte) value);
+                output.put(field.getByte(this));
                 break;
             case S16:
-                output.putShort((short) value);
+                output.putShort(field.getShort(this));
                 break;
             case S32:
-                output.putInt((int) value);
+                output.putInt(field.getInt(this));
                 break;
             case S64:
-                output.putLong((long) value);
+                output.putLong(field.getLong(this));
                 break;
             case UBE16:
                 if (output.order() == ByteOrder.LITTLE_ENDIAN) {
-                    output.putShort(Short.reverseBytes((short) (((int) value) & 0xFFFF)));
+                    output.putShort(Short.reverseBytes((short) (field.getInt(this) & 0xFFFF)));
                 } else {
-                    output.putShort((short) (((int) value) & 0xFFFF));
+                    output.putShort((short) (field.getInt(this) & 0xFFFF));
                 }
                 break;
             case UBE32:
                 if (output.order() == ByteOrder.LITTLE_ENDIAN) {
                     output.putInt(Integer.reverseBytes(
-                            (int) (((long) value) & 0xFFFFFFFFL)));
+                            (int) (field.getLong(this) & 0xFFFFFFFFL)));
                 } else {
-                    output.putInt((int) (((long) value) & 0xFFFFFFFFL));
+                    output.putInt((int) (field.getLong(this) & 0xFFFFFFFFL));
                 }
                 break;
             case UBE63:
                 if (output.order() == ByteOrder.LITTLE_ENDIAN) {
-                    output.putLong(Long.reverseBytes((long) value));
+                    output.putLong(Long.reverseBytes(field.getLong(this)));
                 } else {
-                    output.putLong((long) value);
+                    output.putLong(field.getLong(this));
                 }
                 break;
+            default:
+                putObjectFieldValue(output, fieldInfo, field.get(this));
+                return;
+        }
+
+        // padding zero after field value for alignment.
+        for (int i = 0; i < fieldInfo.padding; i++) output.put((byte) 0);
+    }
+
+    private static void putObjectFieldValue(final ByteBuffer output, final FieldInfo fieldInfo,
+            final Object value) throws BufferUnderflowException {
+        switch (fieldInfo.type) {
+            case U64:
+                output.put(bigIntegerToU64Bytes((BigInteger) value, output.order(), Type.U64));
+                break;
             case UBE64:
                 output.put(bigIntegerToU64Bytes((BigInteger) value, output.order(), Type.UBE64));
                 break;
@@ -523,11 +640,11 @@ public class Struct {
                 output.put(address);
                 break;
             default:
-                throw new IllegalArgumentException("Unknown type:" + fieldInfo.annotation.type());
+                throw new IllegalArgumentException("Unknown type:" + fieldInfo.type);
         }
 
         // padding zero after field value for alignment.
-        for (int i = 0; i < fieldInfo.annotation.padding(); i++) output.put((byte) 0);
+        for (int i = 0; i < fieldInfo.padding; i++) output.put((byte) 0);
     }
 
     private static FieldInfo[] getClassFieldInfo(final Class clazz) {
@@ -580,33 +697,19 @@ public class Struct {
      */
     public static <T> T parse(final Class<T> clazz, final ByteBuffer buf) {
         try {
-            final FieldInfo[] foundFields = getClassFieldInfo(clazz);
-            if (hasBothMutableAndImmutableFields(foundFields)) {
-                throw new IllegalArgumentException("Class has both final and non-final fields");
-            }
-
-            Constructor<?> constructor = null;
-            Constructor<?> defaultConstructor = null;
-            final Constructor<?>[] constructors = clazz.getDeclaredConstructors();
-            for (Constructor cons : constructors) {
-                if (matchConstructor(cons, foundFields)) constructor = cons;
-                if (cons.getParameterTypes().length == 0) defaultConstructor = cons;
-            }
-
-            if (constructor == null && defaultConstructor == null) {
-                throw new IllegalArgumentException("Fail to find available constructor");
-            }
-            if (constructor != null) {
+            final ParseInfo parseInfo = getParseInfo(clazz);
+            final FieldInfo[] foundFields = parseInfo.fields;
+            if (parseInfo.constructor != null) {
                 final Object[] args = new Object[foundFields.length];
                 for (int i = 0; i < args.length; i++) {
                     args[i] = getFieldValue(buf, foundFields[i]);
                 }
-                return (T) constructor.newInstance(args);
+                return (T) parseInfo.constructor.newInstance(args);
             }
 
-            final Object instance = defaultConstructor.newInstance();
+            final Object instance = parseInfo.defaultConstructor.newInstance();
             for (FieldInfo fi : foundFields) {
-                fi.field.set(instance, getFieldValue(buf, fi));
+                readFieldValue(buf, fi, instance, false /* reuseArrays */);
             }
             return (T) instance;
         } catch (IllegalAccessException | InvocationTargetException | InstantiationException e) {
@@ -616,10 +719,65 @@ public class Struct {
         }
     }
 
+    /**
+     * Parse raw data from ByteBuffer into this object, overwriting all its fields.
+     *
+     * This allows reusing an instance to decode many messages of the same type: primitive fields
+     * are decoded without allocating, and so are ByteArray fields which already hold an array of
+     * the declared size. Fields of other types (BigInteger, MacAddress and InetAddress) are
+     * immutable objects, which are allocated for each parse.
+     *
+     * Only supported for classes whose annotated fields are all non-final.
+     */
+    public final void readFromByteBuffer(final ByteBuffer buf) {
+        final ParseInfo parseInfo = getParseInfo(this.getClass());
+        try {
+            for (FieldInfo fi : parseInfo.fields) {
+                if (Modifier.isFinal(fi.field.getModifiers())) {
+                    throw new IllegalArgumentException("Cannot parse into final field "
+                            + fi.field.getName());
+                }
+                readFieldValue(buf, fi, this, true /* reuseArrays */);
+            }
+        } catch (IllegalAccessException e) {
+            throw new IllegalArgumentException("Cannot access field", e);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Fail to read raw data from ByteBuffer", e);
+        }
+    }
+
+    private static ParseInfo getParseInfo(final Class clazz) {
+        final ParseInfo cachedParseInfo = sParseInfoCache.get(clazz);
+        if (cachedParseInfo != null) return cachedParseInfo;
+
+        final FieldInfo[] foundFields = getClassFieldInfo(clazz);
+        if (hasBothMutableAndImmutableFields(foundFields)) {
+            throw new IllegalArgumentException("Class has both final and non-final fields");
+        }
+        for (FieldInfo fi : foundFields) {
+            checkAnnotationType(fi.annotation, fi.field.getType());
+        }
+
+        Constructor<?> constructor = null;
+        Constructor<?> defaultConstructor = null;
+        final Constructor<?>[] constructors = clazz.getDeclaredConstructors();
+        for (Constructor cons : constructors) {
+            if (matchConstructor(cons, foundFields)) constructor = cons;
+            if (cons.getParameterTypes().length == 0) defaultConstructor = cons;
+        }
+
+        if (constructor == null && defaultConstructor == null) {
+            throw new IllegalArgumentException("Fail to find available constructor");
+        }
+        final ParseInfo parseInfo = new ParseInfo(foundFields, constructor, defaultConstructor);
+        sParseInfoCache.putIfAbsent(clazz, parseInfo);
+        return parseInfo;
+    }
+
     private static int getSizeInternal(final FieldInfo[] fieldInfos) {
         int size = 0;
         for (FieldInfo fi : fieldInfos) {
-            size += getFieldLength(fi.annotation);
+            size += fi.length;
         }
         return size;
     }
@@ -630,7 +788,7 @@ public class Struct {
     private static void checkByteArraySize(@Nullable final byte[] array,
             @NonNull final FieldInfo fieldInfo) {
         Objects.requireNonNull(array, "null byte array for field " + fieldInfo.field.getName());
-        int annotationArraySize = fieldInfo.annotation.arraysize();
+        int annotationArraySize = fieldInfo.arraysize;
         if (array.length == annotationArraySize) return;
         throw new IllegalStateException("byte array actual length: "
                 + array.length + " doesn't match the declared array size: " + annotationArraySize);
@@ -638,9 +796,10 @@ public class Struct {
 
     private void writeToByteBufferInternal(final ByteBuffer output, final FieldInfo[] fieldInfos) {
         for (FieldInfo fi : fieldInfos) {
-            final Object value = getFieldValue(fi.field);
             try {
-                putFieldValue(output, fi, value);
+                putFieldValue(output, fi);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException("Cannot access field: " + fi.field, e);
             } catch (BufferUnderflowException e) {
                 throw new IllegalArgumentException("Fail to fill raw data to ByteBuffer", e);
             }
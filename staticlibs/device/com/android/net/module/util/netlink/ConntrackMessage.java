@@ -186,6 +186,20 @@ public class ConntrackMessage extends NetlinkMessage {
      */
     public static byte[] newIPv4TimeoutUpdateRequest(
             int proto, Inet4Address src, int sport, Inet4Address dst, int dport, int timeoutSec) {
+        return newIPv4TimeoutUpdateRequest(proto, src, sport, dst, dport, timeoutSec,
+                1 /* seqNo */, true /* requestAck */);
+    }
+
+    /**
+     * Create a netlink message to refresh IPv4 conntrack entry timeout, with the given sequence
+     * number.
+     *
+     * If requestAck is false, the kernel only replies to the message if the update fails. This
+     * allows sending many messages in a batch and only requesting an acknowledgement for the
+     * last one.
+     */
+    public static byte[] newIPv4TimeoutUpdateRequest(int proto, Inet4Address src, int sport,
+            Inet4Address dst, int dport, int timeoutSec, int seqNo, boolean requestAck) {
         // *** STYLE WARNING ***
         //
         // Code below this point uses extra block indentation to highlight the
@@ -210,8 +224,9 @@ public class ConntrackMessage extends NetlinkMessage {
         ctmsg.mHeader.nlmsg_len = bytes.length;
         ctmsg.mHeader.nlmsg_type = (NetlinkConstants.NFNL_SUBSYS_CTNETLINK << 8)
                 | NetlinkConstants.IPCTNL_MSG_CT_NEW;
-        ctmsg.mHeader.nlmsg_flags = NLM_F_REQUEST | NLM_F_ACK | NLM_F_REPLACE;
-        ctmsg.mHeader.nlmsg_seq = 1;
+        ctmsg.mHeader.nlmsg_flags = (short) (NLM_F_REQUEST | NLM_F_REPLACE
+                | (requestAck ? NLM_F_ACK : 0));
+        ctmsg.mHeader.nlmsg_seq = seqNo;
         ctmsg.pack(byteBuffer);
 
         ctaTupleOrig.pack(byteBuffer);
@@ -114,6 +114,76 @@ inline int getFirstMapKey(const BPF_FD_TYPE map_fd, void* firstKey) {
     return getNextMapKey(map_fd, NULL, firstKey);
 }
 
+// The batch operations below require a 5.6+ kernel, and are not supported by all map types.
+// 'count' is the number of elements in 'keys' and 'values' on input, and is set to the number
+// of elements processed on output, including on failure.
+
+// 'in_batch' is NULL to start from the beginning of the map, or the 'out_batch' of the previous
+// call to continue from there. Returns -1 with errno set to ENOENT once the end is reached.
+inline int lookupMapBatch(const BPF_FD_TYPE map_fd, const void* in_batch, void* out_batch,
+                          void* keys, void* values, uint32_t* count) {
+    bpf_attr arg = {
+            .batch = {
+                    .in_batch = ptr_to_u64(in_batch),
+                    .out_batch = ptr_to_u64(out_batch),
+                    .keys = ptr_to_u64(keys),
+                    .values = ptr_to_u64(values),
+                    .count = *count,
+                    .map_fd = BPF_FD_TO_U32(map_fd),
+            }
+    };
+    int v = bpf(BPF_MAP_LOOKUP_BATCH, &arg);
+    *count = arg.batch.count;
+    return v;
+}
+
+inline int lookupAndDeleteMapBatch(const BPF_FD_TYPE map_fd, const void* in_batch,
+                                   void* out_batch, void* keys, void* values, uint32_t* count) {
+    bpf_attr arg = {
+            .batch = {
+                    .in_batch = ptr_to_u64(in_batch),
+                    .out_batch = ptr_to_u64(out_batch),
+                    .keys = ptr_to_u64(keys),
+                    .values = ptr_to_u64(values),
+                    .count = *count,
+                    .map_fd = BPF_FD_TO_U32(map_fd),
+            }
+    };
+    int v = bpf(BPF_MAP_LOOKUP_AND_DELETE_BATCH, &arg);
+    *count = arg.batch.count;
+    return v;
+}
+
+inline int writeToMapBatch(const BPF_FD_TYPE map_fd, const void* keys, const void* values,
+                           uint32_t* count, uint64_t elem_flags) {
+    bpf_attr arg = {
+            .batch = {
+                    .keys = ptr_to_u64(keys),
+                    .values = ptr_to_u64(values),
+                    .count = *count,
+                    .map_fd = BPF_FD_TO_U32(map_fd),
+                    .elem_flags = elem_flags,
+            }
+    };
+    int v = bpf(BPF_MAP_UPDATE_BATCH, &arg);
+    *count = arg.batch.count;
+    return v;
+}
+
+// Stops at the first key that is not found, with errno set to ENOENT.
+inline int deleteMapBatch(const BPF_FD_TYPE map_fd, const void* keys, uint32_t* count) {
+    bpf_attr arg = {
+            .batch = {
+                    .keys = ptr_to_u64(keys),
+                    .count = *count,
+                    .map_fd = BPF_FD_TO_U32(map_fd),
+            }
+    };
+    int v = bpf(BPF_MAP_DELETE_BATCH, &arg);
+    *count = arg.batch.count;
+    return v;
+}
+
 inline int bpfFdPin(const BPF_FD_TYPE map_fd, const char* pathname) {
     return bpf(BPF_OBJ_PIN, {
                                     .pathname = ptr_to_u64(pathname),
@@ -119,6 +119,65 @@ static jboolean com_android_net_module_util_BpfMap_nativeFindMapEntry(JNIEnv *en
     return throwIfNotEnoent(env, "nativeFindMapEntry", ret, errno);
 }
 
+static jboolean com_android_net_module_util_BpfMap_nativeLookupBatch(JNIEnv *env, jobject self,
+        jint fd, jbyteArray inBatch, jbyteArray outBatch, jbyteArray keys, jbyteArray values,
+        jintArray count, jboolean andDelete) {
+    ScopedByteArrayRW outBatchRW(env, outBatch);
+    ScopedByteArrayRW keysRW(env, keys);
+    ScopedByteArrayRW valuesRW(env, values);
+    ScopedIntArrayRW countRW(env, count);
+    uint32_t n = static_cast<uint32_t>(countRW[0]);
+
+    // in_batch is null to start from the first element of the map.
+    int ret;
+    if (inBatch == nullptr) {
+        ret = andDelete
+                ? bpf::lookupAndDeleteMapBatch(static_cast<int>(fd), nullptr, outBatchRW.get(),
+                        keysRW.get(), valuesRW.get(), &n)
+                : bpf::lookupMapBatch(static_cast<int>(fd), nullptr, outBatchRW.get(),
+                        keysRW.get(), valuesRW.get(), &n);
+    } else {
+        ScopedByteArrayRO inBatchRO(env, inBatch);
+        ret = andDelete
+                ? bpf::lookupAndDeleteMapBatch(static_cast<int>(fd), inBatchRO.get(),
+                        outBatchRW.get(), keysRW.get(), valuesRW.get(), &n)
+                : bpf::lookupMapBatch(static_cast<int>(fd), inBatchRO.get(), outBatchRW.get(),
+                        keysRW.get(), valuesRW.get(), &n);
+    }
+    const int err = errno;
+    countRW[0] = static_cast<jint>(n);
+
+    // ENOENT means that the end of the map was reached, possibly after returning some elements.
+    return throwIfNotEnoent(env, "nativeLookupBatch", ret, err);
+}
+
+static void com_android_net_module_util_BpfMap_nativeWriteToMapBatch(JNIEnv *env, jobject self,
+        jint fd, jbyteArray keys, jbyteArray values, jint count, jint flags) {
+    ScopedByteArrayRO keysRO(env, keys);
+    ScopedByteArrayRO valuesRO(env, values);
+    uint32_t n = static_cast<uint32_t>(count);
+
+    int ret = bpf::writeToMapBatch(static_cast<int>(fd), keysRO.get(), valuesRO.get(), &n,
+            static_cast<uint64_t>(flags));
+
+    if (ret) jniThrowErrnoException(env, "nativeWriteToMapBatch", errno);
+}
+
+static jboolean com_android_net_module_util_BpfMap_nativeDeleteMapBatch(JNIEnv *env, jobject self,
+        jint fd, jbyteArray keys, jint offset, jintArray count) {
+    ScopedByteArrayRO keysRO(env, keys);
+    ScopedIntArrayRW countRW(env, count);
+    uint32_t n = static_cast<uint32_t>(countRW[0]);
+
+    // The kernel stops at the first key that is not found, and sets errno to ENOENT. The number
+    // of keys deleted before it is returned in count.
+    int ret = bpf::deleteMapBatch(static_cast<int>(fd), keysRO.get() + offset, &n);
+    const int err = errno;
+    countRW[0] = static_cast<jint>(n);
+
+    return throwIfNotEnoent(env, "nativeDeleteMapBatch", ret, err);
+}
+
 static void com_android_net_module_util_BpfMap_nativeSynchronizeKernelRCU(JNIEnv *env,
                                                                           jclass clazz) {
     const int pfSocket = socket(AF_KEY, SOCK_RAW | SOCK_CLOEXEC, PF_KEY_V2);
@@ -150,6 +209,12 @@ static const JNINativeMethod gMethods[] = {
         (void*) com_android_net_module_util_BpfMap_nativeGetNextMapKey },
     { "nativeFindMapEntry", "(I[B[B)Z",
         (void*) com_android_net_module_util_BpfMap_nativeFindMapEntry },
+    { "nativeLookupBatch", "(I[B[B[B[B[IZ)Z",
+        (void*) com_android_net_module_util_BpfMap_nativeLookupBatch },
+    { "nativeWriteToMapBatch", "(I[B[BII)V",
+        (void*) com_android_net_module_util_BpfMap_nativeWriteToMapBatch },
+    { "nativeDeleteMapBatch", "(I[BI[I)Z",
+        (void*) com_android_net_module_util_BpfMap_nativeDeleteMapBatch },
     { "nativeSynchronizeKernelRCU", "()V",
         (void*) com_android_net_module_util_BpfMap_nativeSynchronizeKernelRCU },
 
@@ -51,7 +51,10 @@ import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
@@ -76,6 +79,22 @@ public class PacketReaderTest {
     protected HandlerThread mHandlerThread;
     protected PacketReader mReceiver;
 
+    FileDescriptor createLoopbackSocket() {
+        FileDescriptor s = null;
+        try {
+            s = Os.socket(AF_INET6, SOCK_DGRAM | SOCK_NONBLOCK, IPPROTO_UDP);
+            Os.bind(s, LOOPBACK6, 0);
+            mLocalSockName = (InetSocketAddress) Os.getsockname(s);
+            Os.setsockoptTimeval(s, SOL_SOCKET, SO_SNDTIMEO, TIMEO);
+        } catch (ErrnoException | SocketException e) {
+            FdEventsReader.closeFd(s);
+            throw new RuntimeException("Failed to create FD", e);
+        }
+
+        mLocalSocket = s;
+        return s;
+    }
+
     class UdpLoopbackReader extends PacketReader {
         UdpLoopbackReader(Handler h) {
             super(h);
@@ -83,19 +102,7 @@ public class PacketReaderTest {
 
         @Override
         protected FileDescriptor createFd() {
-            FileDescriptor s = null;
-            try {
-                s = Os.socket(AF_INET6, SOCK_DGRAM | SOCK_NONBLOCK, IPPROTO_UDP);
-                Os.bind(s, LOOPBACK6, 0);
-                mLocalSockName = (InetSocketAddress) Os.getsockname(s);
-                Os.setsockoptTimeval(s, SOL_SOCKET, SO_SNDTIMEO, TIMEO);
-            } catch (ErrnoException | SocketException e) {
-                closeFd(s);
-                throw new RuntimeException("Failed to create FD", e);
-            }
-
-            mLocalSocket = s;
-            return s;
+            return createLoopbackSocket();
         }
 
         @Override
@@ -194,6 +201,93 @@ public class PacketReaderTest {
         mReceiver = null;
     }
 
+    class BatchedUdpLoopbackReader extends FdEventsReader<byte[]> {
+        // Packets read but not handled yet, at each call to readPacket
+        final List<Integer> mUnhandledPacketCounts = new ArrayList<>();
+        final List<String> mPackets = new ArrayList<>();
+        private int mUnhandledPacketCount;
+
+        BatchedUdpLoopbackReader(Handler h, int batchSize) {
+            super(h, makeBuffers(batchSize));
+        }
+
+        @Override
+        protected int recvBufSize(byte[] buffer) {
+            return buffer.length;
+        }
+
+        @Override
+        protected FileDescriptor createFd() {
+            return createLoopbackSocket();
+        }
+
+        @Override
+        protected int readPacket(FileDescriptor fd, byte[] packetBuffer) throws Exception {
+            final int length = Os.read(fd, packetBuffer, 0, packetBuffer.length);
+            mUnhandledPacketCounts.add(mUnhandledPacketCount++);
+            return length;
+        }
+
+        @Override
+        protected void handlePacket(byte[] recvbuf, int length) {
+            mUnhandledPacketCount--;
+            mPackets.add(new String(recvbuf, 0, length, StandardCharsets.UTF_8));
+            mLatch.countDown();
+        }
+    }
+
+    private static List<byte[]> makeBuffers(int batchSize) {
+        final List<byte[]> buffers = new ArrayList<>();
+        for (int i = 0; i < batchSize; i++) {
+            buffers.add(new byte[DEFAULT_RECV_BUF_SIZE]);
+        }
+        return buffers;
+    }
+
+    @Test
+    public void testBatchedRead() throws Exception {
+        final Handler h = mHandlerThread.getThreadHandler();
+        final BatchedUdpLoopbackReader reader = new BatchedUdpLoopbackReader(h, 2 /* batchSize */);
+        final CountDownLatch startedLatch = new CountDownLatch(1);
+        h.post(() -> {
+            assertTrue(reader.start());
+            startedLatch.countDown();
+        });
+        assertTrue(startedLatch.await(1000, TimeUnit.MILLISECONDS));
+
+        // Block the handler while packets are sent, so they are all read in the same read event
+        final CountDownLatch blockLatch = new CountDownLatch(1);
+        h.post(() -> {
+            try {
+                blockLatch.await(1000, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+        });
+        mLatch = new CountDownLatch(5);
+        final CountDownLatch receivedLatch = mLatch;
+        for (int i = 0; i < 5; i++) {
+            sendPacket(("packet " + i).getBytes(StandardCharsets.UTF_8));
+        }
+        blockLatch.countDown();
+        assertTrue(receivedLatch.await(1000, TimeUnit.MILLISECONDS));
+
+        final CountDownLatch stoppedLatch = new CountDownLatch(1);
+        h.post(() -> {
+            reader.stop();
+            stoppedLatch.countDown();
+        });
+        assertTrue(stoppedLatch.await(1000, TimeUnit.MILLISECONDS));
+
+        assertEquals(List.of("packet 0", "packet 1", "packet 2", "packet 3", "packet 4"),
+                reader.mPackets);
+        assertEquals(5, reader.numPacketsReceived());
+        // No more packets than buffers are read before being handled
+        for (int unhandledCount : reader.mUnhandledPacketCounts) {
+            assertTrue(unhandledCount < 2);
+        }
+    }
+
     class NullPacketReader extends PacketReader {
         NullPacketReader(Handler h, int recvbufsize) {
             super(h, recvbufsize);
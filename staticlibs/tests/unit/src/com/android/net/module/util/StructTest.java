@@ -22,6 +22,7 @@ import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import android.annotation.SuppressLint;
@@ -1080,4 +1081,55 @@ public class StructTest {
                 ByteOrder.BIG_ENDIAN);
         assertArrayEquals(TEST_PREFIX64, msg.bytes);
     }
+
+    @Test
+    public void testReadFromByteBuffer() {
+        final HeaderMsgWithoutConstructor msg = new HeaderMsgWithoutConstructor();
+        final ByteBuffer buf = toByteBuffer(HDR_EMPTY);
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        msg.readFromByteBuffer(buf);
+        assertEquals(10, msg.mFamily);
+        assertEquals(0, msg.mLen);
+        assertEquals(15715755, msg.mIfindex);
+        assertEquals(134, msg.mIcmpType);
+        assertEquals(0, msg.mIcmpCode);
+        assertEquals(msg, doParsingMessageTest(HDR_EMPTY, HeaderMsgWithoutConstructor.class,
+                ByteOrder.LITTLE_ENDIAN));
+
+        // Reading again overwrites all the fields.
+        final ByteBuffer buf2 = toByteBuffer("0200" + "1000" + "01000000" + "8700000000000000");
+        buf2.order(ByteOrder.LITTLE_ENDIAN);
+        msg.readFromByteBuffer(buf2);
+        assertEquals(2, msg.mFamily);
+        assertEquals(16, msg.mLen);
+        assertEquals(1, msg.mIfindex);
+        assertEquals(135, msg.mIcmpType);
+    }
+
+    @Test
+    public void testReadFromByteBuffer_ReusesByteArray() {
+        final InvalidByteArray msg = new InvalidByteArray();
+        final byte[] bytes = new byte[12];
+        msg.bytes = bytes;
+        final ByteBuffer buf = toByteBuffer("20010db80003000400050006");
+        buf.order(ByteOrder.BIG_ENDIAN);
+        msg.readFromByteBuffer(buf);
+        assertSame(bytes, msg.bytes);
+        assertArrayEquals(TEST_PREFIX64, msg.bytes);
+
+        // Arrays of the wrong size are replaced.
+        msg.bytes = new byte[4];
+        buf.rewind();
+        msg.readFromByteBuffer(buf);
+        assertArrayEquals(TEST_PREFIX64, msg.bytes);
+    }
+
+    @Test
+    public void testReadFromByteBuffer_FinalFields() {
+        final HeaderMsgWithConstructor msg = doParsingMessageTest(HDR_EMPTY,
+                HeaderMsgWithConstructor.class, ByteOrder.LITTLE_ENDIAN);
+        assertThrows(IllegalArgumentException.class,
+                () -> msg.readFromByteBuffer(toByteBuffer(HDR_EMPTY)));
+        verifyHeaderParsing(msg);
+    }
 }
@@ -182,6 +182,27 @@ public class ConntrackMessageTest {
         assertEquals(432000, conntrackMessage.timeoutSec);
     }
 
+    @Test
+    public void testConntrackMakeIPv4TimeoutUpdate_SeqNoWithoutAck() throws Exception {
+        assumeTrue(USING_LE);
+
+        final byte[] tcp = ConntrackMessage.newIPv4TimeoutUpdateRequest(
+                OsConstants.IPPROTO_TCP,
+                (Inet4Address) InetAddress.getByName("192.168.43.209"), 44333,
+                (Inet4Address) InetAddress.getByName("23.211.13.26"), 443,
+                432000, 1234 /* seqNo */, false /* requestAck */);
+        final ByteBuffer byteBuffer = ByteBuffer.wrap(tcp);
+        byteBuffer.order(ByteOrder.nativeOrder());
+        final NetlinkMessage msg = NetlinkMessage.parse(byteBuffer, OsConstants.NETLINK_NETFILTER);
+        assertTrue(msg instanceof ConntrackMessage);
+
+        final StructNlMsgHdr hdr = msg.getHeader();
+        assertEquals((short) (StructNlMsgHdr.NLM_F_REPLACE | StructNlMsgHdr.NLM_F_REQUEST),
+                hdr.nlmsg_flags);
+        assertEquals(1234, hdr.nlmsg_seq);
+        assertEquals(432000, ((ConntrackMessage) msg).timeoutSec);
+    }
+
     @Test
     public void testConntrackMakeIPv4UdpTimeoutUpdate() throws Exception {
         assumeTrue(USING_LE);
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.net.benchmarktests
+
+import android.net.NetworkStats
+import android.net.NetworkStats.DEFAULT_NETWORK_NO
+import android.net.NetworkStats.METERED_NO
+import android.net.NetworkStats.ROAMING_NO
+import android.net.NetworkStats.SET_DEFAULT
+import android.net.NetworkStats.SET_FOREGROUND
+import android.net.NetworkStats.TAG_NONE
+import kotlin.random.Random
+import kotlin.test.assertEquals
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.junit.runners.JUnit4
+
+/**
+ * Benchmarks for the operations on large [NetworkStats] snapshots done in each poll of
+ * NetworkStatsService. The time of each test case is reported by the test runner.
+ */
+@RunWith(JUnit4::class)
+class NetworkStatsOperationsTest {
+    companion object {
+        private val IFACES = arrayOf("wlan0", "rmnet_data0", "rmnet_data1", "v4-rmnet_data0")
+        private const val REPEAT_COUNT = 10
+    }
+
+    // Build a snapshot of the given number of rows, like a uid snapshot of a device with many
+    // apps, with rows in random order.
+    private fun makeSnapshot(rows: Int, seed: Int, bytesOffset: Long = 0L): NetworkStats {
+        val stats = NetworkStats(0L /* elapsedRealtime */, rows)
+        val random = Random(seed)
+        val order = (0 until rows).shuffled(random)
+        for (i in order) {
+            stats.insertEntry(IFACES[i % IFACES.size], 10000 + i / IFACES.size,
+                    if (i % 2 == 0) SET_DEFAULT else SET_FOREGROUND, TAG_NONE, METERED_NO,
+                    ROAMING_NO, DEFAULT_NETWORK_NO, i + bytesOffset, i.toLong(),
+                    i + bytesOffset, i.toLong(), 0L)
+        }
+        return stats
+    }
+
+    private fun doTestSubtract(rows: Int) {
+        val before = makeSnapshot(rows, seed = 1)
+        val after = makeSnapshot(rows, seed = 2, bytesOffset = 100L)
+        repeat(REPEAT_COUNT) {
+            val delta = after.subtract(before)
+            assertEquals(rows, delta.size())
+            assertEquals(200L * rows, delta.totalBytes)
+        }
+    }
+
+    private fun doTestCombineAllValues(rows: Int) {
+        val first = makeSnapshot(rows, seed = 1)
+        val second = makeSnapshot(rows, seed = 2)
+        repeat(REPEAT_COUNT) {
+            val sum = first.clone()
+            sum.combineAllValues(second)
+            assertEquals(rows, sum.size())
+        }
+    }
+
+    @Test
+    fun testSubtract_10kRows() = doTestSubtract(10_000)
+
+    @Test
+    fun testSubtract_100kRows() = doTestSubtract(100_000)
+
+    @Test
+    fun testCombineAllValues_10kRows() = doTestCombineAllValues(10_000)
+
+    @Test
+    fun testCombineAllValues_100kRows() = doTestCombineAllValues(100_000)
+}
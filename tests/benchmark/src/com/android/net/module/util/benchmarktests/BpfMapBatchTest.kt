@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.net.module.util.benchmarktests
+
+import com.android.net.module.util.IBpfMap
+import com.android.net.module.util.IBpfMap.ThrowingBiConsumer
+import com.android.net.module.util.Struct
+import com.android.server.net.StatsMapKey
+import com.android.server.net.StatsMapValue
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import kotlin.test.assertEquals
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.junit.runners.JUnit4
+
+/**
+ * Benchmarks iterating over a stats map with [IBpfMap.forEach], which costs two syscalls per
+ * entry, against [IBpfMap.forEachBatch], which reads entries in batches like BpfMap does with
+ * BPF_MAP_LOOKUP_BATCH. The time of each test case is reported by the test runner.
+ */
+@RunWith(JUnit4::class)
+class BpfMapBatchTest {
+    companion object {
+        private const val REPEAT_COUNT = 10
+        // Entries per batch syscall, as in BpfMap.
+        private const val BATCH_SIZE = 256
+        // Approximate cost of a bpf() syscall on a device.
+        private const val SYSCALL_COST_NANOS = 1_000L
+        private val KEY_SIZE = Struct.getSize(StatsMapKey::class.java)
+        private val VALUE_SIZE = Struct.getSize(StatsMapValue::class.java)
+    }
+
+    /**
+     * Fake hash map that models the cost of the kernel boundary: each syscall spins for
+     * [SYSCALL_COST_NANOS] and keys and values are marshalled to and from bytes as with BpfMap.
+     */
+    private class FakeStatsMap : IBpfMap<StatsMapKey, StatsMapValue> {
+        private val keys = ArrayList<ByteBuffer>()
+        private val indexes = HashMap<ByteBuffer, Int>()
+        private val values = HashMap<ByteBuffer, ByteArray>()
+        var syscalls = 0
+            private set
+
+        private fun syscall() {
+            syscalls++
+            val end = System.nanoTime() + SYSCALL_COST_NANOS
+            while (System.nanoTime() < end) {}
+        }
+
+        private fun parseKey(bytes: ByteArray) = Struct.parse(StatsMapKey::class.java,
+                ByteBuffer.wrap(bytes).order(ByteOrder.nativeOrder()))
+
+        override fun updateEntry(key: StatsMapKey, value: StatsMapValue) {
+            syscall()
+            val rawKey = ByteBuffer.wrap(key.writeToBytes())
+            if (!indexes.containsKey(rawKey)) {
+                indexes[rawKey] = keys.size
+                keys.add(rawKey)
+            }
+            values[rawKey] = value.writeToBytes()
+        }
+
+        override fun insertEntry(key: StatsMapKey, value: StatsMapValue) =
+                updateEntry(key, value)
+
+        override fun replaceEntry(key: StatsMapKey, value: StatsMapValue) =
+                updateEntry(key, value)
+
+        override fun insertOrReplaceEntry(key: StatsMapKey, value: StatsMapValue): Boolean {
+            val inserted = !containsKey(key)
+            updateEntry(key, value)
+            return inserted
+        }
+
+        override fun deleteEntry(key: StatsMapKey): Boolean =
+                throw UnsupportedOperationException()
+
+        override fun getNextKey(key: StatsMapKey): StatsMapKey? {
+            syscall()
+            val index = indexes[ByteBuffer.wrap(key.writeToBytes())] ?: -1
+            return if (index + 1 < keys.size) parseKey(keys[index + 1].array()) else null
+        }
+
+        override fun getFirstKey(): StatsMapKey? {
+            syscall()
+            return if (keys.isEmpty()) null else parseKey(keys[0].array())
+        }
+
+        override fun containsKey(key: StatsMapKey): Boolean {
+            syscall()
+            return values.containsKey(ByteBuffer.wrap(key.writeToBytes()))
+        }
+
+        override fun getValue(key: StatsMapKey): StatsMapValue? {
+            syscall()
+            val value = values[ByteBuffer.wrap(key.writeToBytes())] ?: return null
+            return Struct.parse(StatsMapValue::class.java,
+                    ByteBuffer.wrap(value).order(ByteOrder.nativeOrder()))
+        }
+
+        override fun forEachBatch(action: ThrowingBiConsumer<StatsMapKey, StatsMapValue>) {
+            val rawKeys = ByteArray(BATCH_SIZE * KEY_SIZE)
+            val rawValues = ByteArray(BATCH_SIZE * VALUE_SIZE)
+            var start = 0
+            do {
+                // Copy one batch across the boundary, then parse it like BpfMap does.
+                syscall()
+                val count = minOf(BATCH_SIZE, keys.size - start)
+                for (i in 0 until count) {
+                    val key = keys[start + i].array()
+                    System.arraycopy(key, 0, rawKeys, i * KEY_SIZE, KEY_SIZE)
+                    System.arraycopy(values[keys[start + i]]!!, 0, rawValues, i * VALUE_SIZE,
+                            VALUE_SIZE)
+                }
+                val keyBuffer = ByteBuffer.wrap(rawKeys).order(ByteOrder.nativeOrder())
+                val valueBuffer = ByteBuffer.wrap(rawValues).order(ByteOrder.nativeOrder())
+                for (i in 0 until count) {
+                    keyBuffer.position(i * KEY_SIZE)
+                    valueBuffer.position(i * VALUE_SIZE)
+                    action.accept(Struct.parse(StatsMapKey::class.java, keyBuffer),
+                            Struct.parse(StatsMapValue::class.java, valueBuffer))
+                }
+                start += count
+            } while (start < keys.size)
+        }
+
+        fun resetSyscalls() {
+            syscalls = 0
+        }
+    }
+
+    // Build a stats map like StatsMapA on a device with many apps and tags.
+    private fun makeStatsMap(entries: Int) = FakeStatsMap().apply {
+        for (i in 0 until entries) {
+            updateEntry(StatsMapKey(10000 + i / 8, (i % 8).toLong(), 0L, 10L),
+                    StatsMapValue(i.toLong(), i * 1000L, i.toLong(), i * 1000L))
+        }
+        resetSyscalls()
+    }
+
+    private fun doTestIterate(entries: Int, batch: Boolean) {
+        val map = makeStatsMap(entries)
+        repeat(REPEAT_COUNT) {
+            var rxBytes = 0L
+            val action = ThrowingBiConsumer<StatsMapKey, StatsMapValue> { _, value ->
+                rxBytes += value.rxBytes
+            }
+            if (batch) map.forEachBatch(action) else map.forEach(action)
+            assertEquals(1000L * entries * (entries - 1) / 2, rxBytes)
+        }
+        val expectedSyscalls = if (batch) {
+            maxOf(1, (entries + BATCH_SIZE - 1) / BATCH_SIZE)
+        } else {
+            // getFirstKey, then getValue and getNextKey for each entry.
+            1 + 2 * entries
+        }
+        assertEquals(REPEAT_COUNT * expectedSyscalls, map.syscalls)
+    }
+
+    @Test
+    fun testForEach_1kEntries() = doTestIterate(1_000, batch = false)
+
+    @Test
+    fun testForEachBatch_1kEntries() = doTestIterate(1_000, batch = true)
+
+    @Test
+    fun testForEach_10kEntries() = doTestIterate(10_000, batch = false)
+
+    @Test
+    fun testForEachBatch_10kEntries() = doTestIterate(10_000, batch = true)
+}
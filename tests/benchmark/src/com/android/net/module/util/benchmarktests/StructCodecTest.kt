@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.net.module.util.benchmarktests
+
+import android.net.MacAddress
+import com.android.net.module.util.Struct
+import com.android.net.module.util.Struct.Field
+import com.android.net.module.util.Struct.Type
+import com.android.net.module.util.netlink.StructNlMsgHdr
+import com.android.server.net.StatsMapKey
+import com.android.server.net.StatsMapValue
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import kotlin.test.assertEquals
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.junit.runners.JUnit4
+
+/**
+ * Benchmarks for decoding and encoding [Struct]s, as done for each entry read from BPF maps and
+ * each netlink message. The time of each test case is reported by the test runner.
+ */
+@RunWith(JUnit4::class)
+class StructCodecTest {
+    companion object {
+        private const val ITERATIONS = 100_000
+    }
+
+    // Same layout as com.android.networkstack.tethering.Tether6Value, which is not available to
+    // this test.
+    class Tether6Value(
+        @field:Field(order = 0, type = Type.S32) @JvmField val oif: Int,
+        @field:Field(order = 1, type = Type.EUI48) @JvmField val ethDstMac: MacAddress,
+        @field:Field(order = 2, type = Type.EUI48) @JvmField val ethSrcMac: MacAddress,
+        @field:Field(order = 3, type = Type.UBE16) @JvmField val ethProto: Int,
+        @field:Field(order = 4, type = Type.U16) @JvmField val pmtu: Int
+    ) : Struct()
+
+    // Same layout as StructNlMsgHdr, which is decoded by hand, with mutable fields so that it can
+    // be decoded into a reused instance.
+    class NlMsgHdr : Struct() {
+        @field:Field(order = 0, type = Type.S32) @JvmField var nlmsgLen: Int = 0
+        @field:Field(order = 1, type = Type.S16) @JvmField var nlmsgType: Short = 0
+        @field:Field(order = 2, type = Type.S16) @JvmField var nlmsgFlags: Short = 0
+        @field:Field(order = 3, type = Type.S32) @JvmField var nlmsgSeq: Int = 0
+        @field:Field(order = 4, type = Type.S32) @JvmField var nlmsgPid: Int = 0
+    }
+
+    private fun toBuffer(struct: Struct) =
+            ByteBuffer.wrap(struct.writeToBytes()).order(ByteOrder.nativeOrder())
+
+    private fun <T : Struct> doTestParse(clazz: Class<T>, struct: T) {
+        val buffer = toBuffer(struct)
+        repeat(ITERATIONS) {
+            buffer.rewind()
+            Struct.parse(clazz, buffer)
+        }
+        buffer.rewind()
+        assertEquals(struct, Struct.parse(clazz, buffer))
+    }
+
+    private fun doTestWrite(struct: Struct) {
+        val buffer = ByteBuffer.allocate(Struct.getSize(struct.javaClass))
+                .order(ByteOrder.nativeOrder())
+        repeat(ITERATIONS) {
+            buffer.clear()
+            struct.writeToByteBuffer(buffer)
+        }
+    }
+
+    private val statsMapKey = StatsMapKey(10123, 0xf00dL, 1L, 42)
+    private val statsMapValue = StatsMapValue(12L, 34_000L, 56L, 78_000L)
+    private val tether6Value = Tether6Value(42, MacAddress.fromString("00:00:00:00:00:0a"),
+            MacAddress.fromString("11:11:11:00:00:0b"), 0x86dd, 1500)
+    private val nlMsgHdr = NlMsgHdr().apply {
+        nlmsgLen = 64
+        nlmsgType = 20
+        nlmsgFlags = 2
+        nlmsgSeq = 1234
+        nlmsgPid = 5678
+    }
+
+    @Test
+    fun testParse_StatsMapKey() = doTestParse(StatsMapKey::class.java, statsMapKey)
+
+    @Test
+    fun testWrite_StatsMapKey() = doTestWrite(statsMapKey)
+
+    @Test
+    fun testParse_StatsMapValue() = doTestParse(StatsMapValue::class.java, statsMapValue)
+
+    @Test
+    fun testWrite_StatsMapValue() = doTestWrite(statsMapValue)
+
+    @Test
+    fun testParse_Tether6Value() = doTestParse(Tether6Value::class.java, tether6Value)
+
+    @Test
+    fun testWrite_Tether6Value() = doTestWrite(tether6Value)
+
+    @Test
+    fun testParse_NlMsgHdr() = doTestParse(NlMsgHdr::class.java, nlMsgHdr)
+
+    @Test
+    fun testReadFromByteBuffer_NlMsgHdr() {
+        val buffer = toBuffer(nlMsgHdr)
+        val hdr = NlMsgHdr()
+        repeat(ITERATIONS) {
+            buffer.rewind()
+            hdr.readFromByteBuffer(buffer)
+        }
+        assertEquals(nlMsgHdr, hdr)
+    }
+
+    // Baseline for the two tests above: the hand-written decoder of StructNlMsgHdr.
+    @Test
+    fun testParse_StructNlMsgHdr() {
+        val buffer = toBuffer(nlMsgHdr)
+        repeat(ITERATIONS) {
+            buffer.rewind()
+            StructNlMsgHdr.parse(buffer)
+        }
+        buffer.rewind()
+        assertEquals(1234, StructNlMsgHdr.parse(buffer)!!.nlmsg_seq)
+    }
+}
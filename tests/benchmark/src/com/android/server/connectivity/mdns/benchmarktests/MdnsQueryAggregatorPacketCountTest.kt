@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity.mdns.benchmarktests
+
+import android.net.Network
+import android.os.Handler
+import android.os.HandlerThread
+import android.util.Log
+import com.android.net.module.util.SharedLog
+import com.android.server.connectivity.mdns.MdnsPointerRecord
+import com.android.server.connectivity.mdns.MdnsQueryAggregator
+import com.android.server.connectivity.mdns.MdnsRecord
+import com.android.server.connectivity.mdns.MdnsServiceBrowserListener
+import com.android.server.connectivity.mdns.MdnsSocketClientBase
+import com.android.server.connectivity.mdns.SocketKey
+import java.net.DatagramPacket
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.junit.runners.JUnit4
+import org.mockito.Mockito.mock
+
+/**
+ * Counts the query packets sent for an increasing number of browsed service types on a socket,
+ * when each type sends its queries separately and when the queries are aggregated by
+ * [MdnsQueryAggregator]. Packet counts are logged with the [TAG] tag.
+ */
+@RunWith(JUnit4::class)
+class MdnsQueryAggregatorPacketCountTest {
+    companion object {
+        private const val TAG = "MdnsQueryAggregatorPacketCountTest"
+        private const val TIMEOUT_MS = 2000L
+        private const val KNOWN_ANSWERS_PER_TYPE = 5
+        private const val TTL_MS = 4_500_000L
+        // Longer than the aggregation delay of MdnsQueryAggregator
+        private const val SEND_DELAY_MS = 100L
+    }
+
+    /** A socket client that only counts the packets sent over IPv4. */
+    private class FakeSocketClient : MdnsSocketClientBase {
+        @Volatile
+        var packetCount = 0
+
+        override fun setCallback(callback: MdnsSocketClientBase.Callback?) {}
+
+        override fun sendPacketRequestingMulticastResponse(
+            packet: DatagramPacket,
+            onlyUseIpv6OnIpv6OnlyNetworks: Boolean
+        ) {
+            // Each packet is sent once over IPv4 and once over IPv6
+            if (packet.address.address.size == 4) packetCount++
+        }
+
+        override fun sendPacketRequestingUnicastResponse(
+            packet: DatagramPacket,
+            onlyUseIpv6OnIpv6OnlyNetworks: Boolean
+        ) = sendPacketRequestingMulticastResponse(packet, onlyUseIpv6OnIpv6OnlyNetworks)
+
+        override fun notifyNetworkRequested(
+            listener: MdnsServiceBrowserListener,
+            network: Network?,
+            socketCreationCallback: MdnsSocketClientBase.SocketCreationCallback
+        ) {}
+
+        override fun supportsRequestingSpecificNetworks() = false
+    }
+
+    private val thread = HandlerThread(MdnsQueryAggregatorPacketCountTest::class.simpleName)
+    // SocketKey constructors are package-private; only the identity of the key matters here
+    private val socketKey = mock(SocketKey::class.java)
+    private val sharedLog = SharedLog(TAG)
+
+    @Before
+    fun setUp() {
+        thread.start()
+    }
+
+    @After
+    fun tearDown() {
+        thread.quitSafely()
+        thread.join()
+    }
+
+    private fun serviceType(index: Int) = arrayOf("_type$index", "_tcp", "local")
+
+    private fun makeKnownAnswers(serviceType: Array<String>): List<MdnsRecord> =
+            List(KNOWN_ANSWERS_PER_TYPE) {
+                MdnsPointerRecord(serviceType, 0L /* receiptTimeMillis */,
+                        false /* cacheFlush */, TTL_MS,
+                        arrayOf("Service instance $it") + serviceType)
+            }
+
+    private fun enqueueQuery(aggregator: MdnsQueryAggregator, index: Int) {
+        val serviceType = serviceType(index)
+        aggregator.enqueueQuery(socketKey, false /* expectUnicastResponse */,
+                false /* onlyUseIpv6OnIpv6OnlyNetworks */, index /* transactionId */,
+                listOf(MdnsPointerRecord(serviceType, false /* isUnicast */)),
+                makeKnownAnswers(serviceType))
+    }
+
+    // Wait for the pending queries to be sent after the aggregation delay
+    private fun waitForQueriesSent() {
+        Thread.sleep(SEND_DELAY_MS)
+        val latch = CountDownLatch(1)
+        Handler(thread.looper).post { latch.countDown() }
+        assertTrue(latch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS))
+    }
+
+    private fun doTestPacketCount(serviceTypes: Int) {
+        val separateClient = FakeSocketClient()
+        val separateAggregator = MdnsQueryAggregator(thread.looper, separateClient, sharedLog)
+        for (i in 0 until serviceTypes) {
+            enqueueQuery(separateAggregator, i)
+            waitForQueriesSent()
+        }
+
+        val aggregatedClient = FakeSocketClient()
+        val aggregator = MdnsQueryAggregator(thread.looper, aggregatedClient, sharedLog)
+        for (i in 0 until serviceTypes) {
+            enqueueQuery(aggregator, i)
+        }
+        waitForQueriesSent()
+
+        Log.i(TAG, "$serviceTypes service types: ${separateClient.packetCount} packets sent " +
+                "separately, ${aggregatedClient.packetCount} packets aggregated")
+        assertEquals(serviceTypes, separateClient.packetCount)
+        assertTrue(aggregatedClient.packetCount < separateClient.packetCount ||
+                serviceTypes == 1)
+    }
+
+    @Test
+    fun testPacketCount_1ServiceType() = doTestPacketCount(1)
+
+    @Test
+    fun testPacketCount_10ServiceTypes() = doTestPacketCount(10)
+
+    @Test
+    fun testPacketCount_50ServiceTypes() = doTestPacketCount(50)
+}
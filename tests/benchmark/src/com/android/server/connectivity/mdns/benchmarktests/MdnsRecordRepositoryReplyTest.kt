@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity.mdns.benchmarktests
+
+import android.net.InetAddresses.parseNumericAddress
+import android.net.LinkAddress
+import android.net.nsd.NsdServiceInfo
+import android.os.HandlerThread
+import com.android.server.connectivity.mdns.MdnsFeatureFlags
+import com.android.server.connectivity.mdns.MdnsPacket
+import com.android.server.connectivity.mdns.MdnsPacketReader
+import com.android.server.connectivity.mdns.MdnsRecord
+import com.android.server.connectivity.mdns.MdnsRecordRepository
+import java.io.ByteArrayOutputStream
+import java.net.InetSocketAddress
+import kotlin.test.assertEquals
+import kotlin.test.assertNotNull
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.junit.runners.JUnit4
+
+/**
+ * Benchmarks [MdnsRecordRepository.getReply] for a query about a single service, with an
+ * increasing number of advertised services. The reply time should not depend on the number of
+ * services. The time of each test case is reported by the test runner.
+ */
+@RunWith(JUnit4::class)
+class MdnsRecordRepositoryReplyTest {
+    companion object {
+        private const val QUERY_COUNT = 10_000
+        private const val SERVICE_TYPE = "_testservice._tcp"
+        private val HOSTNAME = arrayOf("Android_000102030405060708090A0B0C0D0E0F", "local")
+        private val SRC = InetSocketAddress(parseNumericAddress("192.0.2.123"), 5353)
+    }
+
+    private val thread = HandlerThread(MdnsRecordRepositoryReplyTest::class.simpleName)
+    private val flags = MdnsFeatureFlags.newBuilder().setIsUnicastReplyEnabled(true).build()
+
+    @Before
+    fun setUp() {
+        thread.start()
+    }
+
+    @After
+    fun tearDown() {
+        thread.quitSafely()
+        thread.join()
+    }
+
+    private fun makeRepository(services: Int) = MdnsRecordRepository(thread.looper, HOSTNAME,
+            flags).apply {
+        updateAddresses(listOf(LinkAddress(parseNumericAddress("192.0.2.111"), 24)))
+        for (i in 0 until services) {
+            val info = NsdServiceInfo().apply {
+                serviceType = SERVICE_TYPE
+                serviceName = "TestService$i"
+                port = 12345
+            }
+            addService(i, info, null /* ttl */)
+            onProbingSucceeded(setServiceProbing(i))
+        }
+    }
+
+    /**
+     * Build a query for the SRV record of a service, requesting a unicast reply so that replies
+     * are not rate-limited.
+     */
+    private fun makeSrvQuery(serviceName: String): MdnsPacket {
+        val out = ByteArrayOutputStream()
+        // Header: transaction ID, flags, 1 question, no answer, authority or additional records
+        out.write(byteArrayOf(0, 0, 0, 0, 0, 1, 0, 0, 0, 0, 0, 0))
+        for (label in listOf(serviceName, "_testservice", "_tcp", "local")) {
+            val bytes = label.toByteArray()
+            out.write(bytes.size)
+            out.write(bytes)
+        }
+        out.write(0)
+        // Type SRV, class IN with the unicast-response bit
+        out.write(byteArrayOf(0, MdnsRecord.TYPE_SRV.toByte(), 0x80.toByte(), 1))
+        val bytes = out.toByteArray()
+        return MdnsPacket.parse(MdnsPacketReader(bytes, bytes.size, flags))
+    }
+
+    private fun doTestGetReply(services: Int) {
+        val repository = makeRepository(services)
+        val queries = List(16) { makeSrvQuery("TestService${it * services / 16}") }
+        repeat(QUERY_COUNT) {
+            val reply = repository.getReply(queries[it % queries.size], SRC)
+            assertNotNull(reply)
+            assertEquals(1, reply.answers.size)
+        }
+    }
+
+    @Test
+    fun testGetReply_16Services() = doTestGetReply(16)
+
+    @Test
+    fun testGetReply_256Services() = doTestGetReply(256)
+
+    @Test
+    fun testGetReply_1kServices() = doTestGetReply(1_000)
+}
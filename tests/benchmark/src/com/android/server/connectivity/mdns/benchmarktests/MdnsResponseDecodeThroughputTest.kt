@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity.mdns.benchmarktests
+
+import android.net.InetAddresses.parseNumericAddress
+import android.os.Handler
+import android.os.HandlerThread
+import android.os.SystemClock
+import android.util.Log
+import com.android.server.connectivity.mdns.MdnsFeatureFlags
+import com.android.server.connectivity.mdns.MdnsInetAddressRecord
+import com.android.server.connectivity.mdns.MdnsMetrics
+import com.android.server.connectivity.mdns.MdnsPacket
+import com.android.server.connectivity.mdns.MdnsPacketWriter
+import com.android.server.connectivity.mdns.MdnsPointerRecord
+import com.android.server.connectivity.mdns.MdnsResponseDecodeStage
+import com.android.server.connectivity.mdns.MdnsServiceInfo.TextEntry
+import com.android.server.connectivity.mdns.MdnsServiceRecord
+import com.android.server.connectivity.mdns.MdnsTextRecord
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.junit.runners.JUnit4
+
+/**
+ * Compares the throughput of decoding a corpus of mDNS responses received on several sockets on
+ * the looper thread, and with [MdnsResponseDecodeStage] worker threads. The corpus replays the
+ * announcements of many services, interleaved across sockets like a capture of a busy network.
+ * Throughputs are logged with the [TAG] tag.
+ */
+@RunWith(JUnit4::class)
+class MdnsResponseDecodeThroughputTest {
+    companion object {
+        private const val TAG = "MdnsResponseDecodeThroughputTest"
+        private const val TIMEOUT_MS = 60_000L
+        private const val PACKETS_PER_SOCKET = 5_000
+        private const val SERVICES_PER_PACKET = 4
+        private const val TTL_MS = 120_000L
+        private const val MAX_PACKET_SIZE = 1500
+    }
+
+    private val thread = HandlerThread(MdnsResponseDecodeThroughputTest::class.simpleName)
+    private val flags = MdnsFeatureFlags.newBuilder()
+            .setIsDecodeOnWorkerThreadsEnabled(true).build()
+
+    @Before
+    fun setUp() {
+        thread.start()
+    }
+
+    @After
+    fun tearDown() {
+        thread.quitSafely()
+        thread.join()
+    }
+
+    /**
+     * Build a response announcing services, with the packet index as transaction ID.
+     */
+    private fun makeResponse(socket: Int, index: Int): ByteArray {
+        val hostname = arrayOf("Android_$socket-${index % 50}", "local")
+        val records = (0 until SERVICES_PER_PACKET).flatMap {
+            val serviceType = arrayOf("_type${(index + it) % 20}", "_tcp", "local")
+            val serviceName = arrayOf("Service $index-$it") + serviceType
+            listOf(
+                    MdnsPointerRecord(serviceType, 0L /* receiptTimeMillis */,
+                            false /* cacheFlush */, TTL_MS, serviceName),
+                    MdnsServiceRecord(serviceName, 0L /* receiptTimeMillis */,
+                            true /* cacheFlush */, TTL_MS, 0 /* servicePriority */,
+                            0 /* serviceWeight */, 1000 + index % 1000, hostname),
+                    MdnsTextRecord(serviceName, 0L /* receiptTimeMillis */,
+                            true /* cacheFlush */, TTL_MS,
+                            listOf(TextEntry("key", "value$index"), TextEntry("id", "$it"))))
+        } + MdnsInetAddressRecord(hostname, 0L /* receiptTimeMillis */, true /* cacheFlush */,
+                TTL_MS, parseNumericAddress("192.0.2.${index % 250 + 1}"))
+
+        val buffer = ByteArray(MAX_PACKET_SIZE)
+        val writer = MdnsPacketWriter(buffer)
+        writer.writeUInt16(index) // Transaction ID
+        writer.writeUInt16(0x8400) // Response, authoritative
+        writer.writeUInt16(0) // Questions count
+        writer.writeUInt16(records.size) // Answers count
+        writer.writeUInt16(0) // Authority entries count
+        writer.writeUInt16(0) // Additional records count
+        records.forEach { it.write(writer, 0L /* now */) }
+        return buffer.copyOf(writer.writePosition)
+    }
+
+    private fun makeCorpus(sockets: Int) = List(sockets) { socket ->
+        List(PACKETS_PER_SOCKET) { makeResponse(socket, it) }
+    }
+
+    private fun logThroughput(name: String, packets: Int, elapsedMs: Long) {
+        Log.i(TAG, "$name: $packets packets in ${elapsedMs}ms, " +
+                "${packets * 1000L / elapsedMs.coerceAtLeast(1L)} packets/s")
+    }
+
+    private fun doTestThroughput(sockets: Int, workers: Int) {
+        val corpus = makeCorpus(sockets)
+        val totalPackets = sockets * PACKETS_PER_SOCKET
+        val metrics = MdnsMetrics()
+        val recvbuf = ByteArray(MAX_PACKET_SIZE)
+
+        // Decode everything on the looper thread, as done without the decode stage
+        val sequentialDone = CountDownLatch(1)
+        var sequentialMs = 0L
+        Handler(thread.looper).post {
+            val ifaceMetrics = (0 until sockets).map { metrics.getInterfaceMetrics("seq$it") }
+            val start = SystemClock.elapsedRealtime()
+            for (i in 0 until PACKETS_PER_SOCKET) {
+                for (socket in 0 until sockets) {
+                    val packet = corpus[socket][i]
+                    packet.copyInto(recvbuf)
+                    MdnsResponseDecodeStage.decodeResponse(recvbuf, packet.size, flags,
+                            null /* filter */, ifaceMetrics[socket])
+                }
+            }
+            sequentialMs = SystemClock.elapsedRealtime() - start
+            sequentialDone.countDown()
+        }
+        assertTrue(sequentialDone.await(TIMEOUT_MS, TimeUnit.MILLISECONDS))
+        logThroughput("$sockets sockets, looper thread", totalPackets, sequentialMs)
+
+        // Decode with the stage, checking that each socket receives its packets in order
+        val stage = MdnsResponseDecodeStage(thread.looper, workers, flags)
+        val stageDone = CountDownLatch(totalPackets)
+        val nextExpected = IntArray(sockets)
+        var outOfOrder = 0
+        val decoders = (0 until sockets).map { socket ->
+            stage.newSocketDecoder(metrics.getInterfaceMetrics("stage$socket"),
+                    object : MdnsResponseDecodeStage.Callback {
+                        override fun onResponseDecoded(packetNumber: Int, response: MdnsPacket) {
+                            if (response.transactionId != nextExpected[socket]) outOfOrder++
+                            nextExpected[socket]++
+                            stageDone.countDown()
+                        }
+
+                        override fun onResponseParseFailed(
+                            packetNumber: Int,
+                            e: MdnsPacket.ParseException
+                        ) {
+                            outOfOrder++
+                            stageDone.countDown()
+                        }
+                    })
+        }
+        val start = SystemClock.elapsedRealtime()
+        Handler(thread.looper).post {
+            for (i in 0 until PACKETS_PER_SOCKET) {
+                for (socket in 0 until sockets) {
+                    val packet = corpus[socket][i]
+                    packet.copyInto(recvbuf)
+                    decoders[socket].decode(i, recvbuf, packet.size, null /* filter */)
+                }
+            }
+        }
+        assertTrue(stageDone.await(TIMEOUT_MS, TimeUnit.MILLISECONDS))
+        val stageMs = SystemClock.elapsedRealtime() - start
+        stage.shutdown()
+        logThroughput("$sockets sockets, $workers decode workers", totalPackets, stageMs)
+
+        // Counters are only updated on the looper thread, which is idle after all callbacks ran
+        val idle = CountDownLatch(1)
+        Handler(thread.looper).post { idle.countDown() }
+        assertTrue(idle.await(TIMEOUT_MS, TimeUnit.MILLISECONDS))
+        assertEquals(0, outOfOrder)
+        nextExpected.forEach { assertEquals(PACKETS_PER_SOCKET, it) }
+    }
+
+    @Test
+    fun testThroughput_1Socket() = doTestThroughput(sockets = 1, workers = 2)
+
+    @Test
+    fun testThroughput_4Sockets() = doTestThroughput(sockets = 4, workers = 2)
+
+    @Test
+    fun testThroughput_4Sockets4Workers() = doTestThroughput(sockets = 4, workers = 4)
+}
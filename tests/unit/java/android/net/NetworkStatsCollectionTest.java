@@ -26,6 +26,7 @@ import static android.net.NetworkStats.SET_ALL;
 import static android.net.NetworkStats.SET_DEFAULT;
 import static android.net.NetworkStats.TAG_NONE;
 import static android.net.NetworkStats.UID_ALL;
+import static android.net.TrafficStats.UID_REMOVED;
 import static android.net.NetworkStatsHistory.FIELD_ALL;
 import static android.net.NetworkTemplate.buildTemplateMobileAll;
 import static android.os.Process.myUid;
@@ -650,6 +651,54 @@ public class NetworkStatsCollectionTest {
         assertEquals(0, collection.getEntries().size());
     }
 
+    @Test
+    public void testQueriesAfterRemoveUids() throws Exception {
+        final NetworkStatsCollection collection = new NetworkStatsCollection(HOUR_IN_MILLIS);
+        final NetworkStats.Entry entry = new NetworkStats.Entry();
+        final NetworkIdentitySet identSet = new NetworkIdentitySet();
+        identSet.add(new NetworkIdentity(TYPE_MOBILE, TelephonyManager.NETWORK_TYPE_UNKNOWN,
+                TEST_IMSI, null, false, true, true, OEM_NONE, TEST_SUBID));
+        final NetworkIdentitySet otherIdentSet = new NetworkIdentitySet();
+        otherIdentSet.add(new NetworkIdentity(TYPE_MOBILE, TelephonyManager.NETWORK_TYPE_UNKNOWN,
+                TEST_IMSI + "1", null, false, true, true, OEM_NONE, TEST_SUBID + 1));
+        final int uid1 = myUid();
+        final int uid2 = myUid() + 1;
+
+        entry.rxBytes = 32;
+        collection.recordData(identSet, uid1, SET_DEFAULT, TAG_NONE, 0, HOUR_IN_MILLIS, entry);
+        collection.recordData(identSet, uid1, SET_DEFAULT, 0xf00d, 0, HOUR_IN_MILLIS, entry);
+        entry.rxBytes = 64;
+        collection.recordData(identSet, uid2, SET_DEFAULT, TAG_NONE, 0, HOUR_IN_MILLIS, entry);
+        entry.rxBytes = 128;
+        collection.recordData(otherIdentSet, uid1, SET_DEFAULT, TAG_NONE, 0, HOUR_IN_MILLIS,
+                entry);
+
+        assertArrayEquals(new int[] { uid1, uid2 },
+                collection.getRelevantUids(NetworkStatsAccess.Level.DEVICE));
+        assertSummaryTotal(collection, buildTemplateMobileAll(TEST_IMSI), 32 + 64, 0, 0, 0,
+                NetworkStatsAccess.Level.DEVICE);
+        assertSummaryTotal(collection, buildTemplateMobileAll(TEST_IMSI + "1"), 128, 0, 0, 0,
+                NetworkStatsAccess.Level.DEVICE);
+
+        collection.removeUids(new int[] { uid1 });
+
+        // Untagged stats of the removed UID are moved to UID_REMOVED for each identity set.
+        assertArrayEquals(new int[] { UID_REMOVED, uid2 },
+                collection.getRelevantUids(NetworkStatsAccess.Level.DEVICE));
+        assertEntry(0, 0, 0, 0, collection.getHistory(buildTemplateMobileAll(TEST_IMSI), null,
+                uid1, SET_ALL, TAG_NONE, FIELD_ALL, Long.MIN_VALUE, Long.MAX_VALUE,
+                NetworkStatsAccess.Level.DEVICE, myUid())
+                .getValues(Long.MIN_VALUE, Long.MAX_VALUE, null));
+        assertEntry(32, 0, 0, 0, collection.getHistory(buildTemplateMobileAll(TEST_IMSI), null,
+                UID_REMOVED, SET_ALL, TAG_NONE, FIELD_ALL, Long.MIN_VALUE, Long.MAX_VALUE,
+                NetworkStatsAccess.Level.DEVICE, myUid())
+                .getValues(Long.MIN_VALUE, Long.MAX_VALUE, null));
+        assertSummaryTotal(collection, buildTemplateMobileAll(TEST_IMSI), 32 + 64, 0, 0, 0,
+                NetworkStatsAccess.Level.DEVICE);
+        assertSummaryTotal(collection, buildTemplateMobileAll(TEST_IMSI + "1"), 128, 0, 0, 0,
+                NetworkStatsAccess.Level.DEVICE);
+    }
+
     /**
      * Copy a {@link Resources#openRawResource(int)} into {@link File} for
      * testing purposes.
@@ -344,6 +344,75 @@ public class NetworkStatsHistoryTest {
 
     }
 
+    @Test
+    public void testGetValuesAcrossManyBuckets() throws Exception {
+        final long bucketDuration = HOUR_IN_MILLIS;
+        stats = new NetworkStatsHistory(bucketDuration);
+        final Random r = new Random(42);
+        final long end = TEST_START + 30 * DAY_IN_MILLIS;
+        stats.generateRandom(TEST_START, end, 10 * GB_IN_BYTES, 10_000_000L, 5 * GB_IN_BYTES,
+                5_000_000L, 1_000_000L, r);
+
+        for (int i = 0; i < 100; i++) {
+            final long start = NetworkStatsHistory.randomLong(r, TEST_START - DAY_IN_MILLIS, end);
+            final long rangeEnd = NetworkStatsHistory.randomLong(r, start, end + DAY_IN_MILLIS);
+            final long now = NetworkStatsHistory.randomLong(r, start, end + DAY_IN_MILLIS);
+            assertEntryEquals(sumBucketByBucket(stats, start, rangeEnd, now),
+                    stats.getValues(start, rangeEnd, now, null));
+        }
+
+        // Values are updated when data is recorded after a query. The range is queried twice,
+        // the second query using the prefix sums computed for repeated queries.
+        final NetworkStatsHistory.Entry before =
+                stats.getValues(TEST_START, end, Long.MAX_VALUE, null);
+        assertEntryEquals(before, stats.getValues(TEST_START, end, Long.MAX_VALUE, null));
+        stats.recordData(TEST_START + DAY_IN_MILLIS, TEST_START + DAY_IN_MILLIS + 1,
+                new NetworkStats.Entry(IFACE_ALL, UID_ALL, SET_DEFAULT, TAG_NONE, METERED_NO,
+                ROAMING_NO, DEFAULT_NETWORK_NO, 1024L, 10L, 2048L, 20L, 2L));
+        final NetworkStatsHistory.Entry after =
+                stats.getValues(TEST_START, end, Long.MAX_VALUE, null);
+        assertEquals(before.rxBytes + 1024L, after.rxBytes);
+        assertEquals(before.txBytes + 2048L, after.txBytes);
+        assertEquals(before.operations + 2L, after.operations);
+        assertEntryEquals(after, stats.getValues(TEST_START, end, Long.MAX_VALUE, null));
+    }
+
+    /**
+     * Sum the values of the given range by querying each bucket separately, so that no
+     * query covers more than one bucket.
+     */
+    private static NetworkStatsHistory.Entry sumBucketByBucket(NetworkStatsHistory history,
+            long start, long end, long now) {
+        final NetworkStatsHistory.Entry total = new NetworkStatsHistory.Entry(
+                start, 0L, 0L, 0L, 0L, 0L, 0L);
+        final long bucketDuration = history.getBucketDuration();
+        NetworkStatsHistory.Entry entry = null;
+        for (long pieceStart = start; pieceStart < end; ) {
+            final long bucketEnd = pieceStart - Math.floorMod(pieceStart, bucketDuration)
+                    + bucketDuration;
+            final long pieceEnd = Math.min(bucketEnd, end);
+            entry = history.getValues(pieceStart, pieceEnd, now, entry);
+            total.activeTime += entry.activeTime;
+            total.rxBytes += entry.rxBytes;
+            total.rxPackets += entry.rxPackets;
+            total.txBytes += entry.txBytes;
+            total.txPackets += entry.txPackets;
+            total.operations += entry.operations;
+            pieceStart = pieceEnd;
+        }
+        return total;
+    }
+
+    private static void assertEntryEquals(NetworkStatsHistory.Entry expected,
+            NetworkStatsHistory.Entry actual) {
+        assertEquals("unexpected activeTime", expected.activeTime, actual.activeTime);
+        assertEquals("unexpected rxBytes", expected.rxBytes, actual.rxBytes);
+        assertEquals("unexpected rxPackets", expected.rxPackets, actual.rxPackets);
+        assertEquals("unexpected txBytes", expected.txBytes, actual.txBytes);
+        assertEquals("unexpected txPackets", expected.txPackets, actual.txPackets);
+        assertEquals("unexpected operations", expected.operations, actual.operations);
+    }
+
     @SkipPresubmit(reason = "Flaky: b/302325928; add to presubmit after fixing")
     @Test
     public void testFuzzing() throws Exception {
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.net
+
+import android.net.NetworkStats.DEFAULT_NETWORK_NO
+import android.net.NetworkStats.METERED_NO
+import android.net.NetworkStats.ROAMING_NO
+import android.net.NetworkStats.SET_DEFAULT
+import android.net.NetworkStats.TAG_NONE
+import android.os.Build
+import com.android.testutils.DevSdkIgnoreRule
+import com.android.testutils.DevSdkIgnoreRunner
+import org.junit.Test
+import org.junit.runner.RunWith
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertNotSame
+import kotlin.test.assertNull
+import kotlin.test.assertSame
+
+@DevSdkIgnoreRule.IgnoreUpTo(Build.VERSION_CODES.S_V2)
+@RunWith(DevSdkIgnoreRunner::class)
+class NetworkStatsKeyDictionaryTest {
+    private val dictionary = NetworkStatsKeyDictionary()
+
+    // Build a new string instance each time, as literals are already interned by the VM.
+    private fun iface(name: String) = String(name.toCharArray())
+
+    @Test
+    fun testInternIface() {
+        val wlan = iface("wlan0")
+        assertSame(wlan, dictionary.internIface(wlan))
+        val otherWlan = iface("wlan0")
+        assertNotSame(wlan, otherWlan)
+        assertSame(wlan, dictionary.internIface(otherWlan))
+        assertNull(dictionary.internIface(null))
+    }
+
+    @Test
+    fun testDictionaryFull() {
+        for (i in 0 until NetworkStatsKeyDictionary.MAX_IFACES) {
+            dictionary.internIface("iface$i")
+        }
+        val extra = iface("extra0")
+        assertSame(extra, dictionary.internIface(extra))
+        assertNotSame(extra, dictionary.internIface(iface("extra0")))
+        // Keys interned before the dictionary was full are still shared.
+        val first = dictionary.internIface(iface("iface0"))
+        assertSame(first, dictionary.internIface(iface("iface0")))
+    }
+
+    @Test
+    fun testInternIdentitySet() {
+        val ident = NetworkIdentity.Builder().setType(ConnectivityManager.TYPE_WIFI)
+                .setWifiNetworkKey("key").build()
+        val set1 = NetworkIdentitySet().apply { add(ident) }
+        val set2 = NetworkIdentitySet().apply { add(ident) }
+        val interned = dictionary.internIdentitySet(set1)
+        assertNotSame(set1, interned)
+        assertEquals(set1, interned)
+        assertSame(interned, dictionary.internIdentitySet(set2))
+        assertSame(interned, dictionary.internIdentitySet(NetworkIdentitySet(set2)))
+
+        // The interned copy is not affected by changes to the original set, and is unmodifiable.
+        set1.clear()
+        assertEquals(set2, interned)
+        assertSame(interned, dictionary.internIdentitySet(set2))
+        assertFailsWith<UnsupportedOperationException> { interned.add(ident) }
+        assertFailsWith<UnsupportedOperationException> { interned.remove(ident) }
+        assertFailsWith<UnsupportedOperationException> { interned.clear() }
+        assertFailsWith<UnsupportedOperationException> { interned.removeAll(set2) }
+        assertFailsWith<UnsupportedOperationException> {
+            interned.iterator().apply { next() }.remove()
+        }
+        assertEquals(1, interned.size)
+    }
+
+    @Test
+    fun testInternIfacesInStats() {
+        val wlan = dictionary.internIface(iface("wlan0"))
+        val stats = NetworkStats(0L, 2)
+                .addEntry(NetworkStats.Entry(iface("wlan0"), 1000, SET_DEFAULT, TAG_NONE,
+                        METERED_NO, ROAMING_NO, DEFAULT_NETWORK_NO, 1L, 1L, 1L, 1L, 0L))
+                .addEntry(NetworkStats.Entry(iface("wlan0"), 1001, SET_DEFAULT, TAG_NONE,
+                        METERED_NO, ROAMING_NO, DEFAULT_NETWORK_NO, 2L, 2L, 2L, 2L, 0L))
+        dictionary.internIfaces(stats)
+        assertEquals(2, stats.size())
+        for (entry in stats) {
+            assertSame(wlan, entry.iface)
+        }
+    }
+}
@@ -22,6 +22,7 @@ import static android.net.NetworkStats.TAG_NONE;
 import static android.net.netstats.NetworkStatsDataMigrationUtils.PREFIX_UID;
 import static android.net.netstats.NetworkStatsDataMigrationUtils.PREFIX_UID_TAG;
 import static android.net.netstats.NetworkStatsDataMigrationUtils.PREFIX_XT;
+import static android.text.format.DateUtils.DAY_IN_MILLIS;
 import static android.text.format.DateUtils.HOUR_IN_MILLIS;
 
 import static com.android.server.ConnectivityStatsLog.NETWORK_STATS_RECORDER_FILE_OPERATED__RECORDER_PREFIX__PREFIX_UID;
@@ -29,6 +30,10 @@ import static com.android.server.ConnectivityStatsLog.NETWORK_STATS_RECORDER_FIL
 import static com.android.server.ConnectivityStatsLog.NETWORK_STATS_RECORDER_FILE_OPERATED__RECORDER_PREFIX__PREFIX_XT;
 import static com.android.testutils.DevSdkIgnoreRuleKt.SC_V2;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.anyLong;
 import static org.mockito.Mockito.doThrow;
@@ -206,6 +211,103 @@ public final class NetworkStatsRecorderTest {
         );
     }
 
+    @Test
+    public void testMigrateToStore() throws Exception {
+        final File statsDir = TestIoUtils.createTemporaryDirectory(getClass().getSimpleName());
+        final NetworkStatsCollection collection = new NetworkStatsCollection(HOUR_IN_MILLIS);
+        final NetworkStats.Entry entry = new NetworkStats.Entry();
+        final NetworkIdentitySet identSet = new NetworkIdentitySet();
+        identSet.add(new NetworkIdentity.Builder().build());
+        entry.rxBytes = 1;
+        collection.recordData(identSet, TEST_UID1, SET_DEFAULT, TAG_NONE, 0, HOUR_IN_MILLIS,
+                entry);
+        collection.recordData(identSet, TEST_UID2, SET_DEFAULT, TAG_NONE, HOUR_IN_MILLIS,
+                2 * HOUR_IN_MILLIS, entry);
+
+        // Write the collection in the legacy files.
+        final FileRotator rotator = new FileRotator(statsDir, TEST_PREFIX,
+                DAY_IN_MILLIS, 90 * DAY_IN_MILLIS);
+        buildRecorder(rotator, true /* wipeOnError */).importCollectionLocked(collection);
+        assertEquals(1, statsDir.list().length);
+
+        final NetworkStatsBucketStore store = new NetworkStatsBucketStore(
+                new File(statsDir, TEST_PREFIX + ".store"), HOUR_IN_MILLIS, 90 * DAY_IN_MILLIS);
+        final NetworkStatsRecorder recorder = new NetworkStatsRecorder(rotator, mObserver,
+                mDropBox, TEST_PREFIX, HOUR_IN_MILLIS, false /* includeTags */,
+                true /* wipeOnError */, false /* useFastDataInput */, statsDir, store);
+
+        // The legacy files are kept, and their data is read from the store.
+        assertEquals(2, statsDir.list().length);
+        assertFalse(store.isMigrationPending());
+        assertTrue(store.isLegacyMigrated());
+        assertNull(NetworkStatsCollection.compareStats(recorder.getOrLoadCompleteLocked(),
+                collection, false /* allowKeyChange */));
+    }
+
+    @Test
+    public void testRestoreFromStore() throws Exception {
+        final File statsDir = TestIoUtils.createTemporaryDirectory(getClass().getSimpleName());
+        final NetworkStatsCollection collection = new NetworkStatsCollection(HOUR_IN_MILLIS);
+        final NetworkStats.Entry entry = new NetworkStats.Entry();
+        final NetworkIdentitySet identSet = new NetworkIdentitySet();
+        identSet.add(new NetworkIdentity.Builder().build());
+        entry.rxBytes = 1;
+        collection.recordData(identSet, TEST_UID1, SET_DEFAULT, TAG_NONE, 0, HOUR_IN_MILLIS,
+                entry);
+
+        // Migrate the legacy files into the store.
+        final FileRotator rotator = new FileRotator(statsDir, TEST_PREFIX,
+                DAY_IN_MILLIS, 90 * DAY_IN_MILLIS);
+        buildRecorder(rotator, true /* wipeOnError */).importCollectionLocked(collection);
+        final File storeFile = new File(statsDir, TEST_PREFIX + ".store");
+        final NetworkStatsBucketStore store = new NetworkStatsBucketStore(
+                storeFile, HOUR_IN_MILLIS, 90 * DAY_IN_MILLIS);
+        new NetworkStatsRecorder(rotator, mObserver, mDropBox, TEST_PREFIX, HOUR_IN_MILLIS,
+                false /* includeTags */, true /* wipeOnError */, false /* useFastDataInput */,
+                statsDir, store);
+
+        // Record more data in the store after the migration.
+        final NetworkStatsCollection added = new NetworkStatsCollection(HOUR_IN_MILLIS);
+        added.recordData(identSet, TEST_UID2, SET_DEFAULT, TAG_NONE, HOUR_IN_MILLIS,
+                2 * HOUR_IN_MILLIS, entry);
+        store.recordCollection(added);
+        store.flush();
+        store.close();
+        collection.recordCollection(added);
+
+        // Disabling the store writes all its data back into the legacy files.
+        final NetworkStatsRecorder recorder = buildRecorder(rotator, true /* wipeOnError */);
+        assertTrue(recorder.restoreFromStoreLocked(new NetworkStatsBucketStore(
+                storeFile, HOUR_IN_MILLIS, 90 * DAY_IN_MILLIS)));
+        assertNull(NetworkStatsCollection.compareStats(recorder.getOrLoadCompleteLocked(),
+                collection, false /* allowKeyChange */));
+    }
+
+    @Test
+    public void testRestoreFromStore_neverMigrated() throws Exception {
+        final File statsDir = TestIoUtils.createTemporaryDirectory(getClass().getSimpleName());
+        final NetworkStatsCollection legacy = new NetworkStatsCollection(HOUR_IN_MILLIS);
+        final NetworkStats.Entry entry = new NetworkStats.Entry();
+        final NetworkIdentitySet identSet = new NetworkIdentitySet();
+        identSet.add(new NetworkIdentity.Builder().build());
+        entry.rxBytes = 1;
+        legacy.recordData(identSet, TEST_UID1, SET_DEFAULT, TAG_NONE, 0, HOUR_IN_MILLIS, entry);
+        final FileRotator rotator = new FileRotator(statsDir, TEST_PREFIX,
+                DAY_IN_MILLIS, 90 * DAY_IN_MILLIS);
+        final NetworkStatsRecorder recorder = buildRecorder(rotator, true /* wipeOnError */);
+        recorder.importCollectionLocked(legacy);
+
+        // A store holding data it did not get from the legacy files does not replace them.
+        final NetworkStatsBucketStore store = new NetworkStatsBucketStore(
+                new File(statsDir, TEST_PREFIX + ".store"), HOUR_IN_MILLIS, 90 * DAY_IN_MILLIS);
+        final NetworkStatsCollection other = new NetworkStatsCollection(HOUR_IN_MILLIS);
+        other.recordData(identSet, TEST_UID2, SET_DEFAULT, TAG_NONE, 0, HOUR_IN_MILLIS, entry);
+        store.recordCollection(other);
+        assertFalse(recorder.restoreFromStoreLocked(store));
+        assertNull(NetworkStatsCollection.compareStats(recorder.getOrLoadCompleteLocked(),
+                legacy, false /* allowKeyChange */));
+    }
+
     private void write(@NonNull File baseDir, @NonNull String name,
                        @NonNull String value) throws IOException {
         final DataOutputStream out = new DataOutputStream(
@@ -431,6 +431,50 @@ public class NetworkStatsTest {
                 DEFAULT_NETWORK_NO, 32L, 0L, 0L, 0L, 0L);
     }
 
+    @Test
+    public void testSubtractReorderedRows() throws Exception {
+        final int rows = 1000;
+        final NetworkStats before = new NetworkStats(TEST_START, rows);
+        final NetworkStats after = new NetworkStats(TEST_START, rows);
+        for (int i = 0; i < rows; i++) {
+            before.insertEntry(TEST_IFACE, i, SET_DEFAULT, TAG_NONE, i, 1L, i, 1L, 1L);
+        }
+        // Insert the rows in reverse order, with one more byte and packet each.
+        for (int i = rows - 1; i >= 0; i--) {
+            after.insertEntry(TEST_IFACE, i, SET_DEFAULT, TAG_NONE, i + 1, 2L, i + 1, 2L, 2L);
+        }
+
+        final NetworkStats result = after.subtract(before);
+
+        assertEquals(rows, result.size());
+        for (int i = 0; i < rows; i++) {
+            assertValues(result, i, TEST_IFACE, rows - 1 - i, SET_DEFAULT, TAG_NONE, METERED_NO,
+                    ROAMING_NO, DEFAULT_NETWORK_NO, 1L, 1L, 1L, 1L, 1L);
+        }
+    }
+
+    @Test
+    public void testAddAllValuesManyRows() {
+        final int rows = 1000;
+        final NetworkStats first = new NetworkStats(TEST_START, rows);
+        final NetworkStats second = new NetworkStats(TEST_START, rows);
+        for (int i = 0; i < rows; i++) {
+            first.insertEntry(TEST_IFACE, i, SET_DEFAULT, TAG_NONE, 1L, 1L, 1L, 1L, 1L);
+            // Half of the rows of second are also in first, and the other half are new.
+            second.insertEntry(TEST_IFACE, i + rows / 2, SET_DEFAULT, TAG_NONE,
+                    2L, 2L, 2L, 2L, 2L);
+        }
+
+        first.combineAllValues(second);
+
+        assertEquals(rows + rows / 2, first.size());
+        for (int i = 0; i < rows + rows / 2; i++) {
+            final long expected = i < rows / 2 ? 1L : (i < rows ? 3L : 2L);
+            assertValues(first, i, TEST_IFACE, i, SET_DEFAULT, TAG_NONE, METERED_NO, ROAMING_NO,
+                    DEFAULT_NETWORK_NO, expected, expected, expected, expected, expected);
+        }
+    }
+
     @Test
     public void testGetTotal() {
         final NetworkStats stats = new NetworkStats(TEST_START, 7)
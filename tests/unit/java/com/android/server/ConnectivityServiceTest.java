@@ -2160,8 +2160,11 @@ public class ConnectivityServiceTest {
         public boolean isFeatureEnabled(Context context, String name) {
             switch (name) {
                 case ConnectivityFlags.NO_REMATCH_ALL_REQUESTS_ON_REGISTER:
+                case ConnectivityFlags.INCREMENTAL_REMATCH_ON_NETWORK_CHANGE:
                 case ConnectivityFlags.CARRIER_SERVICE_CHANGED_USE_CALLBACK:
                     return true;
+                case ConnectivityFlags.BATCH_NETWORK_CALLBACKS:
+                    return false;
                 case ConnectivityFlags.REQUEST_RESTRICTED_WIFI:
                     return true;
                 case KEY_DESTROY_FROZEN_SOCKETS_VERSION:
@@ -17,6 +17,7 @@
 package com.android.server;
 
 import static android.Manifest.permission.DEVICE_POWER;
+import static android.Manifest.permission.DUMP;
 import static android.Manifest.permission.NETWORK_SETTINGS;
 import static android.Manifest.permission.NETWORK_STACK;
 import static android.app.ActivityManager.RunningAppProcessInfo.IMPORTANCE_CACHED;
@@ -138,6 +139,9 @@ import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.time.Duration;
@@ -239,7 +243,8 @@ public class NsdServiceTest {
         doReturn(mDiscoveryManager).when(mDeps)
                 .makeMdnsDiscoveryManager(any(), any(), any(), any());
         doReturn(mMulticastLock).when(mWifiManager).createMulticastLock(any());
-        doReturn(mSocketProvider).when(mDeps).makeMdnsSocketProvider(any(), any(), any(), any());
+        doReturn(mSocketProvider).when(mDeps).makeMdnsSocketProvider(any(), any(), any(), any(),
+                any());
         doReturn(DEFAULT_RUNNING_APP_ACTIVE_IMPORTANCE_CUTOFF).when(mDeps).getDeviceConfigInt(
                 eq(NsdService.MDNS_CONFIG_RUNNING_APP_ACTIVE_IMPORTANCE_CUTOFF), anyInt());
         doReturn(mAdvertiser).when(mDeps).makeMdnsAdvertiser(any(), any(), any(), any(), any(),
@@ -250,7 +255,8 @@ public class NsdServiceTest {
         mService = makeService();
         final ArgumentCaptor<SocketRequestMonitor> cbMonitorCaptor =
                 ArgumentCaptor.forClass(SocketRequestMonitor.class);
-        verify(mDeps).makeMdnsSocketProvider(any(), any(), any(), cbMonitorCaptor.capture());
+        verify(mDeps).makeMdnsSocketProvider(any(), any(), any(), cbMonitorCaptor.capture(),
+                any());
         mSocketRequestMonitor = cbMonitorCaptor.getValue();
 
         final ArgumentCaptor<OnUidImportanceListener> uidListenerCaptor =
@@ -1183,6 +1189,62 @@ public class NsdServiceTest {
                 1 /* servicesCount */, 3 /* sentQueryCount */);
     }
 
+    @Test
+    public void testDiscoveryManagerEventsDeliveredInBatch() throws Exception {
+        setMdnsDiscoveryManagerEnabled();
+
+        final NsdManager client = connectClient(mService);
+        final DiscoveryListener discListener = mock(DiscoveryListener.class);
+        final Network network = new Network(999);
+        final String serviceTypeWithLocalDomain = SERVICE_TYPE + ".local";
+        final ArgumentCaptor<MdnsListener> listenerCaptor =
+                ArgumentCaptor.forClass(MdnsListener.class);
+        client.discoverServices(SERVICE_TYPE, PROTOCOL, network, r -> r.run(), discListener);
+        waitForIdle();
+        verify(mDiscoveryManager).registerListener(eq(serviceTypeWithLocalDomain),
+                listenerCaptor.capture(), any());
+        verify(discListener, timeout(TIMEOUT_MS)).onDiscoveryStarted(SERVICE_TYPE);
+        final MdnsListener listener = listenerCaptor.getValue();
+
+        final List<MdnsServiceInfo> foundInfos = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            foundInfos.add(new MdnsServiceInfo(
+                    SERVICE_NAME + i, /* serviceInstanceName */
+                    serviceTypeWithLocalDomain.split("\\."), /* serviceType */
+                    List.of(), /* subtypes */
+                    new String[] {"android", "local"}, /* hostName */
+                    12345, /* port */
+                    List.of(IPV4_ADDRESS),
+                    List.of(IPV6_ADDRESS),
+                    List.of(), /* textStrings */
+                    List.of(), /* textEntries */
+                    1234, /* interfaceIndex */
+                    network,
+                    Instant.MAX /* expirationTime */));
+        }
+        // Events sent while the handler is busy are delivered in a single batch
+        mHandler.post(() -> {
+            for (MdnsServiceInfo info : foundInfos) {
+                listener.onServiceNameDiscovered(info, false /* isServiceFromCache */);
+            }
+        });
+        waitForIdle();
+
+        final InOrder inOrder = inOrder(discListener);
+        for (int i = 0; i < 3; i++) {
+            final String serviceName = SERVICE_NAME + i;
+            inOrder.verify(discListener, timeout(TIMEOUT_MS)).onServiceFound(
+                    argThat(info -> info.getServiceName().equals(serviceName)));
+        }
+
+        doReturn(PERMISSION_GRANTED).when(mContext).checkCallingOrSelfPermission(DUMP);
+        final StringWriter stringWriter = new StringWriter();
+        mService.dump(new FileDescriptor(), new PrintWriter(stringWriter), new String[0]);
+        assertTrue(stringWriter.toString().contains(
+                "DiscoveryManager events: 3 events, average latency"));
+        assertTrue(stringWriter.toString().contains("in 1 batches"));
+    }
+
     @Test
     public void testDiscoveryWithMdnsDiscoveryManager_FailedWithInvalidServiceType() {
         setMdnsDiscoveryManagerEnabled();
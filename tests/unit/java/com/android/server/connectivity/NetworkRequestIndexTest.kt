@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity
+
+import android.net.NetworkCapabilities
+import android.net.NetworkCapabilities.NET_CAPABILITY_INTERNET
+import android.net.NetworkCapabilities.NET_CAPABILITY_NOT_METERED
+import android.net.NetworkCapabilities.NET_CAPABILITY_VALIDATED
+import android.net.NetworkCapabilities.TRANSPORT_CELLULAR
+import android.net.NetworkCapabilities.TRANSPORT_ETHERNET
+import android.net.NetworkCapabilities.TRANSPORT_WIFI
+import android.net.NetworkRequest
+import android.os.Build
+import androidx.test.filters.SmallTest
+import com.android.testutils.DevSdkIgnoreRule
+import com.android.testutils.DevSdkIgnoreRunner
+import kotlin.random.Random
+import kotlin.test.assertEquals
+import kotlin.test.assertNull
+import kotlin.test.assertTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+
+@RunWith(DevSdkIgnoreRunner::class)
+@SmallTest
+@DevSdkIgnoreRule.IgnoreUpTo(Build.VERSION_CODES.R)
+class NetworkRequestIndexTest {
+    private var nextRequestId = 1
+
+    private fun request(
+        transports: IntArray = intArrayOf(),
+        caps: IntArray = intArrayOf(),
+        forbiddenCaps: IntArray = intArrayOf()
+    ): NetworkRequest {
+        val nc = NetworkCapabilities.Builder.withoutDefaultCapabilities().apply {
+            transports.forEach { addTransportType(it) }
+            caps.forEach { addCapability(it) }
+        }.build()
+        forbiddenCaps.forEach { nc.addForbiddenCapability(it) }
+        return NetworkRequest(nc, -1 /* legacyType */, nextRequestId++,
+                NetworkRequest.Type.REQUEST)
+    }
+
+    private fun caps(transports: IntArray, caps: IntArray) =
+            NetworkCapabilities.Builder.withoutDefaultCapabilities().apply {
+                transports.forEach { addTransportType(it) }
+                caps.forEach { addCapability(it) }
+            }.build()
+
+    @Test
+    fun testCandidates() {
+        val index = NetworkRequestIndex<String>()
+        val any = request()
+        val wifi = request(transports = intArrayOf(TRANSPORT_WIFI))
+        val wifiOrCell = request(transports = intArrayOf(TRANSPORT_WIFI, TRANSPORT_CELLULAR))
+        val internet = request(caps = intArrayOf(NET_CAPABILITY_INTERNET))
+        val notMetered = request(caps = intArrayOf(NET_CAPABILITY_NOT_METERED))
+        val notValidated = request(forbiddenCaps = intArrayOf(NET_CAPABILITY_VALIDATED))
+        index.put(any, "any")
+        index.put(wifi, "wifi")
+        index.put(wifiOrCell, "wifiOrCell")
+        index.put(internet, "internet")
+        index.put(notMetered, "notMetered")
+        index.put(notValidated, "notValidated")
+        assertEquals(6, index.size())
+
+        val cellInternet = caps(intArrayOf(TRANSPORT_CELLULAR),
+                intArrayOf(NET_CAPABILITY_INTERNET, NET_CAPABILITY_VALIDATED))
+        assertEquals(setOf(any, wifiOrCell, internet),
+                index.getCandidateRequests(cellInternet).toSet())
+
+        val wifiUnmetered = caps(intArrayOf(TRANSPORT_WIFI), intArrayOf(NET_CAPABILITY_NOT_METERED))
+        val values = ArrayList<String>()
+        index.addCandidates(wifiUnmetered, values)
+        assertEquals(setOf("any", "wifi", "wifiOrCell", "notMetered", "notValidated"),
+                values.toSet())
+
+        assertEquals("wifi", index.remove(wifi))
+        assertNull(index.remove(wifi))
+        assertEquals(setOf(any, wifiOrCell, notMetered, notValidated),
+                index.getCandidateRequests(wifiUnmetered).toSet())
+    }
+
+    @Test
+    fun testRequestsWithSameMasksShareGroup() {
+        val index = NetworkRequestIndex<Int>()
+        repeat(1000) {
+            index.put(request(transports = intArrayOf(TRANSPORT_WIFI),
+                    caps = intArrayOf(NET_CAPABILITY_INTERNET)), it)
+        }
+        assertEquals(1000, index.size())
+        assertEquals(1, index.groupCount())
+    }
+
+    @Test
+    fun testCandidatesAreSupersetOfSatisfiedRequests() {
+        val transports = intArrayOf(TRANSPORT_WIFI, TRANSPORT_CELLULAR, TRANSPORT_ETHERNET)
+        val capabilities = intArrayOf(NET_CAPABILITY_INTERNET, NET_CAPABILITY_NOT_METERED,
+                NET_CAPABILITY_VALIDATED)
+        val random = Random(42)
+        fun pick(from: IntArray) = from.filter { random.nextBoolean() }.toIntArray()
+
+        val index = NetworkRequestIndex<NetworkRequest>()
+        val requests = List(500) {
+            request(pick(transports), pick(capabilities)).also { index.put(it, it) }
+        }
+        repeat(50) {
+            val nc = caps(pick(transports), pick(capabilities))
+            val candidates = index.getCandidateRequests(nc).toSet()
+            requests.filter { it.canBeSatisfiedBy(nc) }.forEach {
+                assertTrue(it in candidates, "$it is satisfied by $nc but not a candidate")
+            }
+        }
+    }
+}
@@ -56,6 +56,7 @@ import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.ArgumentMatchers.intThat;
 import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.clearInvocations;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doCallRealMethod;
 import static org.mockito.Mockito.doReturn;
@@ -1645,6 +1646,26 @@ public class PermissionMonitorTest {
                 PERMISSION_UNINSTALLED, PERMISSION_INTERNET);
     }
 
+    @Test
+    public void testAppIdsTrafficPermission_UserAdded_OnlySendsChanges() throws Exception {
+        prepareMultiUserPackages();
+        addUserAndVerifyAppIdsPermissions(MOCK_USER1, PERMISSION_NONE, PERMISSION_INTERNET,
+                PERMISSION_UPDATE_DEVICE_STATS);
+        clearInvocations(mBpfNetMaps);
+
+        // Adding MOCK_USER3 only upgrades MOCK_APPID2, so the other appIds are not sent again.
+        addUserAndVerifyAppIdsPermissions(MOCK_USER3, PERMISSION_NONE, PERMISSION_TRAFFIC_ALL,
+                PERMISSION_UPDATE_DEVICE_STATS);
+        verify(mBpfNetMaps).setNetPermForUids(anyInt(), any(int[].class));
+        verify(mBpfNetMaps).setNetPermForUids(eq(PERMISSION_TRAFFIC_ALL),
+                argThat(appIds -> appIds[0] == MOCK_APPID2));
+        clearInvocations(mBpfNetMaps);
+
+        // Adding a user again does not change any permission.
+        onUserAdded(MOCK_USER3);
+        verify(mBpfNetMaps, never()).setNetPermForUids(anyInt(), any(int[].class));
+    }
+
     @Test
     public void testAppIdsTrafficPermission_Multiuser_PackageAdded() throws Exception {
         // Add two users with empty package list.
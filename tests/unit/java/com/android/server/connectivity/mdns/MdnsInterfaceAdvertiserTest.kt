@@ -90,6 +90,7 @@ class MdnsInterfaceAdvertiserTest {
     private val announcer = mock(MdnsAnnouncer::class.java)
     private val prober = mock(MdnsProber::class.java)
     private val sharedlog = SharedLog("MdnsInterfaceAdvertiserTest")
+    private val interfaceMetrics = MdnsMetrics().getInterfaceMetrics("test0")
     private val flags = MdnsFeatureFlags.newBuilder()
             .setIsKnownAnswerSuppressionEnabled(true).build()
     @Suppress("UNCHECKED_CAST")
@@ -121,6 +122,7 @@ class MdnsInterfaceAdvertiserTest {
 
     @Before
     fun setUp() {
+        doReturn(interfaceMetrics).`when`(socket).metrics
         doReturn(repository).`when`(deps).makeRecordRepository(any(), eq(TEST_HOSTNAME), any())
         doReturn(replySender).`when`(deps).makeReplySender(
                 anyString(), any(), any(), any(), any(), any())
@@ -166,6 +168,11 @@ class MdnsInterfaceAdvertiserTest {
 
         thread.waitForIdle(TIMEOUT_MS)
         verify(cb).onServiceProbingSucceeded(advertiser, TEST_SERVICE_ID_1)
+        assertEquals(1, interfaceMetrics.probingCount)
+
+        // Announcements finish
+        announceCb.onFinished(testAnnouncementInfo)
+        assertEquals(1, interfaceMetrics.announcingCount)
 
         // Remove the service: expect exit announcements
         val testExitInfo = mock(ExitAnnouncementInfo::class.java)
@@ -180,6 +187,8 @@ class MdnsInterfaceAdvertiserTest {
         announceCb.onFinished(testExitInfo)
         thread.waitForIdle(TIMEOUT_MS)
         verify(cb).onDestroyed(socket)
+        // Exit announcements are not counted in announcing metrics
+        assertEquals(1, interfaceMetrics.announcingCount)
     }
 
     @Test
@@ -238,6 +247,8 @@ class MdnsInterfaceAdvertiserTest {
         }
 
         verify(replySender).queueReply(testReply)
+        assertEquals(1, interfaceMetrics.decodedPackets)
+        assertEquals(0, interfaceMetrics.parseFailures)
     }
 
     @Test
@@ -434,6 +445,7 @@ class MdnsInterfaceAdvertiserTest {
 
         // Simulate probing success: continues to announcing
         val testAnnouncementInfo = mock(AnnouncementInfo::class.java)
+        doReturn(serviceId).`when`(testAnnouncementInfo).serviceId
         doReturn(testAnnouncementInfo).`when`(repository).onProbingSucceeded(testProbingInfo)
         probeCb.onFinished(testProbingInfo)
         return testAnnouncementInfo
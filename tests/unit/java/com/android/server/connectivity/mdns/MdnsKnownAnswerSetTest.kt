@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity.mdns
+
+import android.os.Build
+import com.android.testutils.DevSdkIgnoreRule.IgnoreUpTo
+import com.android.testutils.DevSdkIgnoreRunner
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+
+private const val TTL_MS = 4_500_000L
+
+@RunWith(DevSdkIgnoreRunner::class)
+@IgnoreUpTo(Build.VERSION_CODES.S_V2)
+class MdnsKnownAnswerSetTest {
+    private val serviceType = arrayOf("_testservice", "_tcp", "local")
+
+    private fun makePtrRecord(instanceName: String, ttl: Long = TTL_MS) =
+            MdnsPointerRecord(serviceType, 0L /* receiptTimeMillis */, false /* cacheFlush */,
+                    ttl, arrayOf(instanceName) + serviceType)
+
+    @Test
+    fun testIsKnownAnswer() {
+        val knownAnswers = MdnsKnownAnswerSet(listOf(makePtrRecord("Service1")))
+
+        assertTrue(knownAnswers.isKnownAnswer(makePtrRecord("Service1")))
+        // DNS names are compared case-insensitively
+        assertTrue(knownAnswers.isKnownAnswer(makePtrRecord("SERVICE1")))
+        assertFalse(knownAnswers.isKnownAnswer(makePtrRecord("Service2")))
+        // The known answer TTL is not more than half of the true TTL
+        assertFalse(knownAnswers.isKnownAnswer(makePtrRecord("Service1", ttl = TTL_MS * 2)))
+    }
+
+    @Test
+    fun testAdd_KeepsLargestTtl() {
+        val knownAnswers = MdnsKnownAnswerSet()
+        knownAnswers.add(makePtrRecord("Service1", ttl = TTL_MS / 4))
+        assertFalse(knownAnswers.isKnownAnswer(makePtrRecord("Service1")))
+
+        knownAnswers.add(makePtrRecord("Service1"))
+        knownAnswers.add(makePtrRecord("Service1", ttl = TTL_MS / 8))
+        assertTrue(knownAnswers.isKnownAnswer(makePtrRecord("Service1")))
+        assertEquals(1, knownAnswers.size())
+        assertEquals(TTL_MS, knownAnswers.toList().single().ttl)
+    }
+
+    @Test
+    fun testAddAll_ManyKnownAnswers() {
+        val knownAnswers = MdnsKnownAnswerSet()
+        knownAnswers.addAll(List(100) { makePtrRecord("Service$it") })
+        knownAnswers.addAll(List(100) { makePtrRecord("Service${it + 50}") })
+
+        assertEquals(150, knownAnswers.size())
+        for (i in 0 until 150) {
+            assertTrue(knownAnswers.isKnownAnswer(makePtrRecord("Service$i")))
+        }
+        assertFalse(knownAnswers.isKnownAnswer(makePtrRecord("Service150")))
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity.mdns
+
+import android.os.Build
+import com.android.server.connectivity.mdns.util.MdnsUtils
+import com.android.testutils.DevSdkIgnoreRule.IgnoreUpTo
+import com.android.testutils.DevSdkIgnoreRunner
+import java.io.PrintWriter
+import java.io.StringWriter
+import kotlin.test.assertEquals
+import kotlin.test.assertSame
+import kotlin.test.assertTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.Mockito.doReturn
+import org.mockito.Mockito.mock
+
+private const val TEST_TIME_MS = 100_000L
+
+@RunWith(DevSdkIgnoreRunner::class)
+@IgnoreUpTo(Build.VERSION_CODES.S_V2)
+class MdnsMetricsTest {
+    private val clock = mock(MdnsUtils.Clock::class.java)
+    private val metrics = MdnsMetrics(clock)
+
+    @Test
+    fun testHistogram() {
+        val histogram = MdnsMetrics.Histogram(longArrayOf(10L, 100L))
+        listOf(0L, 10L, 11L, 100L, 101L, 5000L).forEach { histogram.add(it) }
+
+        assertEquals(6, histogram.count)
+        assertEquals(2, histogram.getBucketCount(0))
+        assertEquals(2, histogram.getBucketCount(1))
+        assertEquals(2, histogram.getBucketCount(2))
+        val proto = histogram.toProto()
+        assertEquals(listOf(10L, 100L), proto.bucketUpperBoundsList)
+        assertEquals(listOf(2L, 2L, 2L), proto.bucketCountsList)
+        assertEquals(5222L, proto.sum)
+        assertEquals(5000L, proto.max)
+    }
+
+    @Test
+    fun testInterfaceMetrics() {
+        val ifaceMetrics = metrics.getInterfaceMetrics("wlan0")
+        assertSame(ifaceMetrics, metrics.getInterfaceMetrics("wlan0"))
+
+        // 3 packets within one second, then 2 packets in the next second
+        doReturn(TEST_TIME_MS).`when`(clock).elapsedRealtime()
+        repeat(3) { ifaceMetrics.onPacketReceived(100) }
+        doReturn(TEST_TIME_MS + 1000L).`when`(clock).elapsedRealtime()
+        repeat(2) { ifaceMetrics.onPacketReceived(100) }
+        ifaceMetrics.onPacketSent(50)
+        ifaceMetrics.onPacketDecoded(20L)
+        ifaceMetrics.onPacketParseFailed()
+        ifaceMetrics.onPacketDropped()
+        ifaceMetrics.onProbingFinished(1500L)
+        ifaceMetrics.onAnnouncingFinished(2000L)
+
+        assertEquals(5, ifaceMetrics.receivedPackets)
+        assertEquals(3, ifaceMetrics.maxReceivedPacketsPerSecond)
+        assertEquals(1, ifaceMetrics.sentPackets)
+
+        val proto = metrics.toProto()
+        assertEquals(1, proto.interfaceMetricsCount)
+        proto.getInterfaceMetrics(0).let {
+            assertEquals("wlan0", it.interfaceName)
+            assertEquals(5, it.receivedPackets)
+            assertEquals(500, it.receivedBytes)
+            assertEquals(1, it.sentPackets)
+            assertEquals(50, it.sentBytes)
+            assertEquals(1, it.parseFailures)
+            assertEquals(1, it.droppedPackets)
+            assertEquals(3, it.maxReceivedPacketsPerSecond)
+            assertEquals(1, it.decodeTimeMicros.count)
+            assertEquals(1500, it.probingDurationMillis.sum)
+            assertEquals(2000, it.announcingDurationMillis.sum)
+        }
+    }
+
+    @Test
+    fun testServiceTypeMetrics() {
+        metrics.onFirstServiceFound(arrayOf("_test", "_TCP"), 300L)
+        metrics.onFirstServiceFound(arrayOf("_Test", "_tcp"), 500L)
+        metrics.onServiceResolved(arrayOf("_test", "_tcp"), 200L)
+
+        val proto = metrics.toProto()
+        assertEquals(1, proto.serviceTypeMetricsCount)
+        proto.getServiceTypeMetrics(0).let {
+            assertEquals("_test._tcp", it.serviceType)
+            assertEquals(2, it.firstServiceFoundMillis.count)
+            assertEquals(800, it.firstServiceFoundMillis.sum)
+            assertEquals(1, it.resolveMillis.count)
+        }
+
+        val writer = StringWriter()
+        metrics.dump(PrintWriter(writer))
+        assertTrue(writer.toString().contains("_test._tcp"))
+    }
+
+    @Test
+    fun testInterfaceMetrics_TooManyInterfaces() {
+        for (i in 0 until MdnsMetrics.MAX_INTERFACES + 10) {
+            metrics.getInterfaceMetrics("tun$i").onPacketSent(100)
+        }
+        assertSame(metrics.getInterfaceMetrics("tun0"), metrics.getInterfaceMetrics("tun0"))
+        assertSame(metrics.getInterfaceMetrics("tun1000"), metrics.getInterfaceMetrics("tun1001"))
+
+        val interfaces = metrics.toProto().interfaceMetricsList
+        assertEquals(MdnsMetrics.MAX_INTERFACES + 1, interfaces.size)
+        assertEquals(10, interfaces.first {
+            it.interfaceName == MdnsMetrics.OTHER_INTERFACES
+        }.sentPackets)
+    }
+
+    @Test
+    fun testServiceTypeMetrics_TooManyTypes() {
+        for (i in 0 until MdnsMetrics.MAX_SERVICE_TYPES + 10) {
+            metrics.onServiceResolved(arrayOf("_test$i", "_tcp"), 100L)
+        }
+
+        val serviceTypes = metrics.toProto().serviceTypeMetricsList
+        assertEquals(MdnsMetrics.MAX_SERVICE_TYPES + 1, serviceTypes.size)
+        assertEquals(10, serviceTypes.first {
+            it.serviceType == MdnsMetrics.OTHER_SERVICE_TYPES
+        }.resolveMillis.count)
+    }
+}
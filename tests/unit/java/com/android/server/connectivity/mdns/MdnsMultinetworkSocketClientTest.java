@@ -21,6 +21,7 @@ import static com.android.server.connectivity.mdns.MulticastPacketReader.PacketH
 
 import static org.junit.Assert.assertEquals;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.mock;
@@ -34,6 +35,7 @@ import android.net.Network;
 import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Looper;
 
 import com.android.net.module.util.HexDump;
 import com.android.net.module.util.SharedLog;
@@ -55,6 +57,8 @@ import java.lang.reflect.Constructor;
 import java.net.DatagramPacket;
 import java.net.NetworkInterface;
 import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 @RunWith(DevSdkIgnoreRunner.class)
@@ -73,6 +77,7 @@ public class MdnsMultinetworkSocketClientTest {
     private HandlerThread mHandlerThread;
     private Handler mHandler;
     private SocketKey mSocketKey;
+    private MdnsMetrics.InterfaceMetrics mInterfaceMetrics;
 
     @Before
     public void setUp() throws SocketException {
@@ -82,6 +87,8 @@ public class MdnsMultinetworkSocketClientTest {
         mHandlerThread.start();
         mHandler = new Handler(mHandlerThread.getLooper());
         mSocketKey = new SocketKey(1000 /* interfaceIndex */);
+        mInterfaceMetrics = new MdnsMetrics().getInterfaceMetrics("test0");
+        doReturn(mInterfaceMetrics).when(mSocket).getMetrics();
         mSocketClient = new MdnsMultinetworkSocketClient(mHandlerThread.getLooper(), mProvider,
                 mSharedLog, MdnsFeatureFlags.newBuilder().build());
         mHandler.post(() -> mSocketClient.setCallback(mCallback));
@@ -219,6 +226,8 @@ public class MdnsMultinetworkSocketClientTest {
         final ArgumentCaptor<MdnsPacket> responseCaptor =
                 ArgumentCaptor.forClass(MdnsPacket.class);
         verify(mCallback).onResponseReceived(responseCaptor.capture(), any());
+        assertEquals(1, mInterfaceMetrics.getDecodedPackets());
+        assertEquals(0, mInterfaceMetrics.getParseFailures());
         final MdnsPacket response = responseCaptor.getValue();
         assertEquals(0, response.questions.size());
         assertEquals(0, response.additionalRecords.size());
@@ -236,6 +245,71 @@ public class MdnsMultinetworkSocketClientTest {
         ), response.answers);
     }
 
+    @Test
+    public void testReceivePacket_DecodeOnWorkerThreads() throws Exception {
+        final MdnsMultinetworkSocketClient socketClient = new MdnsMultinetworkSocketClient(
+                mHandlerThread.getLooper(), mProvider, mSharedLog,
+                MdnsFeatureFlags.newBuilder().setIsDecodeOnWorkerThreadsEnabled(true).build());
+        mHandler.post(() -> socketClient.setCallback(mCallback));
+        final ArgumentCaptor<SocketCallback> callbackCaptor =
+                ArgumentCaptor.forClass(SocketCallback.class);
+        mHandler.post(() -> socketClient.notifyNetworkRequested(
+                mListener, mNetwork, mSocketCreationCallback));
+        verify(mProvider, timeout(DEFAULT_TIMEOUT)).requestSocket(eq(mNetwork),
+                callbackCaptor.capture());
+
+        // Same response as testReceivePacket
+        final byte[] data = HexDump.hexStringToByteArray(
+                "000084000000000200000000095F7465737474797065045F746370056C6F63616C00000C0001000011"
+                        + "94000E0B7465737473657276696365C00CC02C00218001000000780010000000007A0207"
+                        + "416E64726F6964C01B");
+        final byte[] recvbuf = new byte[1500];
+        doReturn(createEmptyNetworkInterface()).when(mSocket).getInterface();
+        callbackCaptor.getValue().onSocketCreated(mSocketKey, mSocket, List.of());
+        final ArgumentCaptor<PacketHandler> handlerCaptor =
+                ArgumentCaptor.forClass(PacketHandler.class);
+        verify(mSocket).addPacketHandler(handlerCaptor.capture());
+
+        final ArrayList<Long> receivedTtls = new ArrayList<>();
+        doAnswer(inv -> {
+            // Decoded packets are delivered on the handler thread
+            assertEquals(mHandlerThread.getLooper(), Looper.myLooper());
+            receivedTtls.add(inv.<MdnsPacket>getArgument(0).answers.get(0).getTtl());
+            return null;
+        }).when(mCallback).onResponseReceived(any(), eq(mSocketKey));
+
+        // Reuse the same receive buffer for all packets like the socket reader does, changing the
+        // TTL of the PTR record for each packet.
+        final int packetCount = 20;
+        mHandler.post(() -> {
+            for (int i = 0; i < packetCount; i++) {
+                System.arraycopy(data, 0, recvbuf, 0, data.length);
+                recvbuf[41] = (byte) i;
+                handlerCaptor.getValue().handlePacket(recvbuf, data.length, null /* src */);
+            }
+            Arrays.fill(recvbuf, (byte) 0);
+        });
+
+        verify(mCallback, timeout(DEFAULT_TIMEOUT).times(packetCount))
+                .onResponseReceived(any(), eq(mSocketKey));
+        HandlerUtils.waitForIdle(mHandler, DEFAULT_TIMEOUT);
+        final ArrayList<Long> expectedTtls = new ArrayList<>();
+        for (int i = 0; i < packetCount; i++) {
+            expectedTtls.add((0x1100L + i) * 1000L);
+        }
+        assertEquals(expectedTtls, receivedTtls);
+        assertEquals(packetCount, mInterfaceMetrics.getDecodedPackets());
+
+        // Workers are stopped when discovery stops, and started again for new packets.
+        mHandler.post(() -> {
+            socketClient.stopDiscovery();
+            handlerCaptor.getValue().handlePacket(data, data.length, null /* src */);
+        });
+        verify(mCallback, timeout(DEFAULT_TIMEOUT).times(packetCount + 1))
+                .onResponseReceived(any(), eq(mSocketKey));
+        assertEquals(0, mInterfaceMetrics.getDroppedPackets());
+    }
+
     @Test
     public void testSocketRemovedAfterNetworkUnrequested() throws IOException {
         // Request sockets on all networks
@@ -18,8 +18,12 @@ package com.android.server.connectivity.mdns;
 
 import static com.android.testutils.DevSdkIgnoreRuleKt.SC_V2;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import com.android.net.module.util.HexDump;
@@ -31,6 +35,7 @@ import org.junit.runner.RunWith;
 
 import java.io.IOException;
 import java.net.DatagramPacket;
+import java.nio.charset.StandardCharsets;
 import java.util.Locale;
 
 @RunWith(DevSdkIgnoreRunner.class)
@@ -98,4 +103,62 @@ public class MdnsPacketReaderTests {
                 MdnsFeatureFlags.newBuilder().setIsLabelCountLimitEnabled(true).build());
         assertThrows(IOException.class, packetReader::readLabels);
     }
+
+    @Test
+    public void testForwardPtr() {
+        final byte[] forwardPtrData = HexDump.hexStringToByteArray(
+                "C002" // PTR to the next label
+                        + "0454455354" // label "TEST"
+                        + "00");
+        MdnsPacketReader packetReader = new MdnsPacketReader(
+                forwardPtrData, forwardPtrData.length, MdnsFeatureFlags.newBuilder().build());
+        assertThrows(IOException.class, packetReader::readLabels);
+    }
+
+    @Test
+    public void testReadLabels_WithPtr() throws IOException {
+        final byte[] data = HexDump.hexStringToByteArray(
+                "0B5F676F6F676C6563617374" // label "_googlecast"
+                        + "045F746370" // label "_tcp"
+                        + "056C6F63616C" // label "local"
+                        + "00"
+                        + "0454455354" // label "TEST"
+                        + "C000" // PTR to the first label
+                        + "0131" // label "1"
+                        + "C018"); // PTR to label "TEST"
+        MdnsPacketReader packetReader = new MdnsPacketReader(
+                data, data.length, MdnsFeatureFlags.newBuilder().build());
+        assertArrayEquals(new String[] { "_googlecast", "_tcp", "local" },
+                packetReader.readLabels());
+        assertArrayEquals(new String[] { "TEST", "_googlecast", "_tcp", "local" },
+                packetReader.readLabels());
+        final String[] labels = packetReader.readLabels();
+        assertArrayEquals(new String[] { "1", "TEST", "_googlecast", "_tcp", "local" }, labels);
+        assertEquals(0, packetReader.getRemaining());
+
+        // Common labels are shared instances
+        assertSame("1", labels[0]);
+        assertSame("_tcp", labels[3]);
+        assertSame("local", labels[4]);
+    }
+
+    @Test
+    public void testScanLabels() throws IOException {
+        final byte[] data = HexDump.hexStringToByteArray(
+                "0454657354" // label "TesT"
+                        + "056C6F63616C" // label "local"
+                        + "00"
+                        + "C000"); // PTR to the first label
+        MdnsPacketReader packetReader = new MdnsPacketReader(
+                data, data.length, MdnsFeatureFlags.newBuilder().build());
+        packetReader.skip(12);
+        assertEquals(2, packetReader.scanLabels());
+        assertTrue(packetReader.scannedLabelEqualsIgnoreDnsCase(0,
+                "test".getBytes(StandardCharsets.UTF_8)));
+        assertFalse(packetReader.scannedLabelEqualsIgnoreDnsCase(0,
+                "tes".getBytes(StandardCharsets.UTF_8)));
+        assertTrue(packetReader.scannedLabelEqualsIgnoreDnsCase(1,
+                "local".getBytes(StandardCharsets.UTF_8)));
+        assertArrayEquals(new String[] { "TesT", "local" }, packetReader.getScannedLabels(2));
+    }
 }
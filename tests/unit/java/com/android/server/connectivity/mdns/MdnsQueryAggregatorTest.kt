@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity.mdns
+
+import android.os.Build
+import android.os.Handler
+import android.os.HandlerThread
+import android.os.Message
+import com.android.net.module.util.SharedLog
+import com.android.server.connectivity.mdns.MdnsConstants.IPV4_SOCKET_ADDR
+import com.android.server.connectivity.mdns.util.MdnsUtils
+import com.android.testutils.DevSdkIgnoreRule.IgnoreUpTo
+import com.android.testutils.DevSdkIgnoreRunner
+import com.android.testutils.waitForIdle
+import java.net.DatagramPacket
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertTrue
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.ArgumentCaptor
+import org.mockito.Mockito.anyBoolean
+import org.mockito.Mockito.atLeastOnce
+import org.mockito.Mockito.doReturn
+import org.mockito.Mockito.eq
+import org.mockito.Mockito.mock
+import org.mockito.Mockito.verify
+
+private const val DEFAULT_TIMEOUT_MS = 2000L
+private const val TEST_TTL = 4_500_000L
+private const val TEST_TIME_MS = 100_000L
+
+@RunWith(DevSdkIgnoreRunner::class)
+@IgnoreUpTo(Build.VERSION_CODES.S_V2)
+class MdnsQueryAggregatorTest {
+    private val socketKey = SocketKey(null /* network */, 999 /* interfaceIndex */)
+    private val serviceType1 = arrayOf("_test1", "_tcp", "local")
+    private val serviceType2 = arrayOf("_test2", "_tcp", "local")
+    private val thread = HandlerThread(MdnsQueryAggregatorTest::class.simpleName)
+    private val socketClient = mock(MdnsMultinetworkSocketClient::class.java)
+    private val clock = mock(MdnsUtils.Clock::class.java)
+    private val deps = mock(MdnsQueryAggregator.Dependencies::class.java)
+    private val sharedLog = SharedLog(MdnsQueryAggregatorTest::class.simpleName)
+
+    @Before
+    fun setUp() {
+        thread.start()
+        doReturn(TEST_TIME_MS).`when`(clock).elapsedRealtime()
+    }
+
+    @After
+    fun tearDown() {
+        thread.quitSafely()
+        thread.join()
+    }
+
+    private fun makeKnownAnswers(serviceType: Array<String>, count: Int) = List(count) {
+        MdnsPointerRecord(serviceType, TEST_TIME_MS /* receiptTimeMillis */,
+                false /* cacheFlush */, TEST_TTL, arrayOf("instance$it") + serviceType)
+    }
+
+    private fun enqueueAndSend(aggregator: MdnsQueryAggregator, vararg queries: MdnsPacket) {
+        for (query in queries) {
+            aggregator.enqueueQuery(socketKey, false /* expectUnicastResponse */,
+                    false /* onlyUseIpv6OnIpv6OnlyNetworks */, query.transactionId,
+                    query.questions, query.answers)
+        }
+        thread.waitForIdle(DEFAULT_TIMEOUT_MS)
+
+        // Only one send is scheduled for all queries
+        val handlerCaptor = ArgumentCaptor.forClass(Handler::class.java)
+        val messageCaptor = ArgumentCaptor.forClass(Message::class.java)
+        verify(deps).sendMessageDelayed(handlerCaptor.capture(), messageCaptor.capture(),
+                eq(MdnsQueryAggregator.AGGREGATION_DELAY_MS))
+        handlerCaptor.value.sendMessage(messageCaptor.value)
+        thread.waitForIdle(DEFAULT_TIMEOUT_MS)
+    }
+
+    private fun getSentIpv4Packets(): List<MdnsPacket> {
+        val packetCaptor = ArgumentCaptor.forClass(DatagramPacket::class.java)
+        verify(socketClient, atLeastOnce()).sendPacketRequestingMulticastResponse(
+                packetCaptor.capture(), eq(socketKey), anyBoolean())
+        // Each packet is sent once over IPv4 and once over IPv6
+        val ipv4Packets = packetCaptor.allValues.filter { it.socketAddress == IPV4_SOCKET_ADDR }
+        assertEquals(packetCaptor.allValues.size, 2 * ipv4Packets.size)
+        return ipv4Packets.map {
+            MdnsPacket.parse(MdnsPacketReader(it.data, it.length,
+                    MdnsFeatureFlags.newBuilder().build()))
+        }
+    }
+
+    private fun makeQuery(serviceType: Array<String>, knownAnswers: List<MdnsRecord>) =
+            MdnsPacket(MdnsConstants.FLAGS_QUERY,
+                    listOf(MdnsPointerRecord(serviceType, false /* isUnicast */)),
+                    knownAnswers,
+                    emptyList() /* authorityRecords */,
+                    emptyList() /* additionalRecords */)
+
+    @Test
+    fun testAggregateQueries() {
+        val aggregator = MdnsQueryAggregator(thread.looper, socketClient, clock, sharedLog, deps,
+                1500 /* maxPacketSize */)
+        val knownAnswers1 = makeKnownAnswers(serviceType1, 2)
+        val knownAnswers2 = makeKnownAnswers(serviceType2, 1)
+        enqueueAndSend(aggregator, makeQuery(serviceType1, knownAnswers1),
+                makeQuery(serviceType2, knownAnswers2))
+
+        val packets = getSentIpv4Packets()
+        assertEquals(1, packets.size)
+        val packet = packets[0]
+        assertEquals(0, packet.flags and MdnsConstants.FLAG_TRUNCATED)
+        assertEquals(listOf(serviceType1, serviceType2).map { it.toList() },
+                packet.questions.map { it.name.toList() })
+        assertEquals((knownAnswers1 + knownAnswers2).toSet(), packet.answers.toSet())
+    }
+
+    @Test
+    fun testSplitKnownAnswers() {
+        val aggregator = MdnsQueryAggregator(thread.looper, socketClient, clock, sharedLog, deps,
+                200 /* maxPacketSize */)
+        val knownAnswers = makeKnownAnswers(serviceType1, 20)
+        enqueueAndSend(aggregator, makeQuery(serviceType1, knownAnswers),
+                makeQuery(serviceType2, emptyList()))
+
+        val packets = getSentIpv4Packets()
+        assertTrue(packets.size > 1)
+        // The questions are in the first packet, and all packets but the last are truncated
+        assertEquals(2, packets[0].questions.size)
+        for (i in packets.indices) {
+            if (i > 0) assertEquals(0, packets[i].questions.size)
+            assertEquals(i < packets.size - 1,
+                    (packets[i].flags and MdnsConstants.FLAG_TRUNCATED) != 0)
+        }
+        val sentAnswers = packets.flatMap { it.answers }
+        assertEquals(knownAnswers.size, sentAnswers.size)
+        assertEquals(knownAnswers.toSet(), sentAnswers.toSet())
+        assertFalse(packets.any { it.answers.isEmpty() && it.questions.isEmpty() })
+    }
+
+    @Test
+    fun testDropOversizedRecord() {
+        val aggregator = MdnsQueryAggregator(thread.looper, socketClient, clock, sharedLog, deps,
+                200 /* maxPacketSize */)
+        val knownAnswers = makeKnownAnswers(serviceType1, 2)
+        val oversizedAnswer = MdnsPointerRecord(serviceType1, TEST_TIME_MS /* receiptTimeMillis */,
+                false /* cacheFlush */, TEST_TTL,
+                arrayOf("a".repeat(63), "b".repeat(63), "c".repeat(63)) + serviceType1)
+        enqueueAndSend(aggregator,
+                makeQuery(serviceType1, listOf(knownAnswers[0], oversizedAnswer, knownAnswers[1])))
+
+        // Only the oversized record is dropped
+        val packets = getSentIpv4Packets()
+        assertEquals(1, packets.size)
+        assertEquals(0, packets[0].flags and MdnsConstants.FLAG_TRUNCATED)
+        assertEquals(1, packets[0].questions.size)
+        assertEquals(knownAnswers.toSet(), packets[0].answers.toSet())
+    }
+}
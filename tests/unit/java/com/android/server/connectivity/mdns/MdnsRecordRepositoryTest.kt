@@ -904,6 +904,45 @@ class MdnsRecordRepositoryTest {
         assertNull(reply)
     }
 
+    @Test
+    fun testGetReply_serviceUpdatedRenamedRemoved_onlyRepliesForCurrentRecords() {
+        val repository = MdnsRecordRepository(thread.looper, deps, TEST_HOSTNAME, makeFlags())
+        repository.initWithService(TEST_SERVICE_ID_1, TEST_SERVICE_1, setOf(TEST_SUBTYPE))
+        repository.addServiceAndFinishProbing(TEST_SERVICE_ID_2, TEST_SERVICE_2)
+        val src = InetSocketAddress(parseNumericAddress("192.0.2.123"), 5353)
+        val subtypeQuery = makeQuery(
+                TYPE_PTR to arrayOf(TEST_SUBTYPE, "_sub", "_testservice", "_tcp", "local"))
+        val subtype2Query = makeQuery(
+                TYPE_PTR to arrayOf(TEST_SUBTYPE2, "_sub", "_testservice", "_tcp", "local"))
+        val srvQuery = makeQuery(
+                TYPE_SRV to arrayOf("MyTestService", "_testservice", "_tcp", "local"))
+
+        repository.updateService(TEST_SERVICE_ID_1, setOf(TEST_SUBTYPE2))
+        assertNull(repository.getReply(subtypeQuery, src))
+        assertEquals(1, repository.getReply(subtype2Query, src)?.answers?.size)
+
+        val newInfo = NsdServiceInfo(TEST_SERVICE_1).apply { serviceName = "MyTestService (2)" }
+        val probingInfo = repository.renameServiceForConflict(TEST_SERVICE_ID_1, newInfo)
+        assertNotNull(probingInfo)
+        repository.onProbingSucceeded(probingInfo)
+        assertNull(repository.getReply(srvQuery, src))
+        val renamedReply = repository.getReply(makeQuery(
+                TYPE_SRV to arrayOf("MyTestService (2)", "_testservice", "_tcp", "local")), src)
+        assertNotNull(renamedReply)
+        assertEquals(1, renamedReply.answers.size)
+
+        // The service type PTR is still answered by the other service after removing one.
+        repository.removeService(TEST_SERVICE_ID_1)
+        assertNull(repository.getReply(subtype2Query, src))
+        val ptrReply = repository.getReply(
+                makeQuery(TYPE_PTR to arrayOf("_testservice", "_tcp", "local")), src)
+        assertNotNull(ptrReply)
+        assertEquals(listOf(
+                MdnsPointerRecord(arrayOf("_testservice", "_tcp", "local"), 0L, false, LONG_TTL,
+                        arrayOf("MyOtherTestService", "_testservice", "_tcp", "local"))),
+                ptrReply.answers)
+    }
+
     @Test
     fun testGetReply_ptrAndSrvQuestions_doesNotReturnSrvRecordInAdditionalAnswerSection() {
         val repository = MdnsRecordRepository(thread.looper, deps, TEST_HOSTNAME, makeFlags())
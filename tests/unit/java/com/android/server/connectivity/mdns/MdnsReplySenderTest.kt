@@ -32,6 +32,7 @@ import java.net.DatagramPacket
 import java.net.InetSocketAddress
 import java.util.concurrent.CompletableFuture
 import java.util.concurrent.TimeUnit
+import kotlin.test.assertContentEquals
 import kotlin.test.assertEquals
 import org.junit.After
 import org.junit.Before
@@ -162,6 +163,46 @@ class MdnsReplySenderTest {
         verify(socket).send(argThat{ it.socketAddress.equals(IPV4_SOCKET_ADDR) })
     }
 
+    @Test
+    fun testSendNow_PacketCacheEnabled() {
+        val replySender = MdnsReplySender(thread.looper, socket, buffer, sharedLog,
+                false /* enableDebugLog */, deps,
+                MdnsFeatureFlags.newBuilder().setIsReplyPacketCacheEnabled(true).build())
+        fun makeNsecRecord(ttl: Long) = MdnsNsecRecord(serviceName, 0L /* receiptTimeMillis */,
+                true /* cacheFlush */, ttl, serviceName /* nextDomain */,
+                intArrayOf(MdnsRecord.TYPE_TXT, MdnsRecord.TYPE_SRV))
+        fun makePacket(additionalRecords: List<MdnsRecord>) = MdnsPacket(0x8400,
+                emptyList() /* questions */,
+                answers,
+                emptyList() /* authorityRecords */,
+                additionalRecords)
+
+        // NSEC records are created for each reply, so new records with the same value still use
+        // the cached packet.
+        sendNow(replySender, makePacket(listOf(makeNsecRecord(LONG_TTL))), IPV4_SOCKET_ADDR)
+        sendNow(replySender, makePacket(listOf(makeNsecRecord(LONG_TTL))), IPV6_SOCKET_ADDR)
+        // Other records are compared by instance: an equal record with a different TTL must not
+        // use the cached packet.
+        val otherTtlAnswers = listOf(MdnsPointerRecord(serviceType, 0L /* receiptTimeMillis */,
+                false /* cacheFlush */, SHORT_TTL, serviceName))
+        sendNow(replySender, MdnsPacket(0x8400, emptyList() /* questions */, otherTtlAnswers,
+                emptyList() /* authorityRecords */, listOf(makeNsecRecord(LONG_TTL))),
+                IPV4_SOCKET_ADDR)
+        runningOnHandlerAndReturn { replySender.clearPacketCache() }
+        sendNow(replySender, makePacket(listOf(makeNsecRecord(LONG_TTL))), IPV4_SOCKET_ADDR)
+
+        val captor = ArgumentCaptor.forClass(DatagramPacket::class.java)
+        verify(socket, times(4)).send(captor.capture())
+        val sentPackets = captor.allValues.map { it.data.copyOfRange(it.offset, it.length) }
+        assertContentEquals(sentPackets[0], sentPackets[1])
+        assertContentEquals(sentPackets[0], sentPackets[3])
+        assertEquals(IPV6_SOCKET_ADDR, captor.allValues[1].socketAddress)
+
+        val parsedPacket = MdnsPacket.parse(MdnsPacketReader(sentPackets[2], sentPackets[2].size,
+                buildFlags(enableKAS = false)))
+        assertEquals(SHORT_TTL, parsedPacket.answers[0].ttl)
+    }
+
     private fun verifyMessageQueued(
             sender: MdnsReplySender,
             replies: List<MdnsReplyInfo>
@@ -265,6 +306,28 @@ class MdnsReplySenderTest {
         verify(deps, times(2)).sendMessageDelayed(any(), any(), anyLong())
     }
 
+    @Test
+    fun testQueueReply_MultiplePacket_KnownAnswerTtlUpdated() {
+        val replySender = createSender(enableKAS = true)
+        val reply = MdnsReplyInfo(answers, additionalAnswers, 400L /* sendDelayMs */,
+                IPV4_SOCKET_ADDR, source, emptyList())
+        // The answer is known, but with a TTL less than half of the true TTL
+        val expiringAnswers = listOf(
+                MdnsPointerRecord(serviceType, 0L /* receiptTimeMillis */, false /* cacheFlush */,
+                        LONG_TTL / 4, serviceName))
+        val firstKnownAnswerReply = MdnsReplyInfo(emptyList(), emptyList(), 401L /* sendDelayMs */,
+                IPV4_SOCKET_ADDR, source, expiringAnswers)
+        verifyMessageQueued(replySender, listOf(reply, firstKnownAnswerReply))
+
+        // The same answer is known with its full TTL in the next packet
+        val secondKnownAnswerReply = MdnsReplyInfo(emptyList(), emptyList(), 0L /* sendDelayMs */,
+                IPV4_SOCKET_ADDR, source, answers)
+        queueReply(replySender, secondKnownAnswerReply)
+
+        // Verify that no reply is queued, as all answers are known.
+        verify(deps, times(2)).sendMessageDelayed(any(), any(), anyLong())
+    }
+
     @Test
     fun testQueueReply_MultiplePacket_LostSecondaryPacket() {
         val replySender = createSender(enableKAS = true)
@@ -301,6 +301,41 @@ public class MdnsResponseDecoderTests {
         verifyResponse(decode(decoder, data6));
     }
 
+    @Test
+    public void testParseResponse_WithRecordFilter() throws Exception {
+        final MdnsFeatureFlags flags = MdnsFeatureFlags.newBuilder().build();
+        final MdnsPacket unfiltered = MdnsResponseDecoder.parseResponse(data, data.length, flags);
+        assertEquals(4, unfiltered.answers.size());
+        assertEquals(3, unfiltered.additionalRecords.size());
+
+        // The service enumeration PTR record is skipped, but all records of the cast service
+        // are kept.
+        final MdnsPacket castPacket = MdnsResponseDecoder.parseResponse(data, data.length, flags,
+                new MdnsRecordFilter(List.of("_GoogleCast._tcp.local")));
+        assertEquals(3, castPacket.answers.size());
+        assertEquals(3, castPacket.additionalRecords.size());
+
+        final ArraySet<MdnsResponse> castResponses = new ArraySet<>(
+                new MdnsResponseDecoder(mClock, CAST_SERVICE_TYPE).augmentResponses(castPacket,
+                        Collections.emptyList(), MdnsSocket.INTERFACE_INDEX_UNSPECIFIED,
+                        mock(Network.class)).first);
+        assertEquals(1, castResponses.size());
+        final MdnsResponse response = castResponses.valueAt(0);
+        final MdnsResponse expected = responses.valueAt(0);
+        assertTrue(response.isComplete());
+        assertEquals(expected.getServiceRecord(), response.getServiceRecord());
+        assertEquals(expected.getTextRecord(), response.getTextRecord());
+        assertEquals(expected.getPointerRecords(), response.getPointerRecords());
+        assertEquals(expected.getInet4AddressRecord(), response.getInet4AddressRecord());
+
+        // Answers about other services are all skipped, but this does not make the response
+        // invalid.
+        final MdnsPacket matterPacket = MdnsResponseDecoder.parseResponse(data, data.length, flags,
+                new MdnsRecordFilter(List.of("_matter._tcp.local")));
+        assertEquals(0, matterPacket.answers.size());
+        assertEquals(3, matterPacket.additionalRecords.size());
+    }
+
     @Test
     public void testIsComplete() {
         MdnsResponse response = new MdnsResponse(responses.valueAt(0));
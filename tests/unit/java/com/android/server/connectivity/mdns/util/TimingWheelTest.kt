@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity.mdns.util
+
+import android.os.Build
+import com.android.testutils.DevSdkIgnoreRule
+import com.android.testutils.DevSdkIgnoreRunner
+import kotlin.random.Random
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+
+private const val START_TIME_MS = 1_000_000L
+
+@RunWith(DevSdkIgnoreRunner::class)
+@DevSdkIgnoreRule.IgnoreUpTo(Build.VERSION_CODES.S_V2)
+class TimingWheelTest {
+    private fun TimingWheel<String>.advanceValues(now: Long) =
+            advance(now).map { it.value }.toSet()
+
+    @Test
+    fun testScheduleAndAdvance() {
+        val wheel = TimingWheel<String>(START_TIME_MS)
+        val entry1 = TimingWheel.Entry("entry1")
+        val entry2 = TimingWheel.Entry("entry2")
+        val entry3 = TimingWheel.Entry("entry3")
+        wheel.schedule(entry1, START_TIME_MS + 10L)
+        wheel.schedule(entry2, START_TIME_MS + 120_000L)
+        wheel.schedule(entry3, START_TIME_MS + 4_500_000L)
+        assertEquals(3, wheel.size())
+        assertTrue(entry1.isScheduled)
+
+        assertEquals(emptySet<String>(), wheel.advanceValues(START_TIME_MS + 9L))
+        assertEquals(setOf("entry1"), wheel.advanceValues(START_TIME_MS + 10L))
+        assertFalse(entry1.isScheduled)
+        assertEquals(emptySet<String>(), wheel.advanceValues(START_TIME_MS + 119_999L))
+        assertEquals(setOf("entry2"), wheel.advanceValues(START_TIME_MS + 120_000L))
+        assertEquals(emptySet<String>(), wheel.advanceValues(START_TIME_MS + 4_499_999L))
+        assertEquals(setOf("entry3"), wheel.advanceValues(START_TIME_MS + 10_000_000L))
+        assertEquals(0, wheel.size())
+    }
+
+    @Test
+    fun testRescheduleAndCancel() {
+        val wheel = TimingWheel<String>(START_TIME_MS)
+        val entry1 = TimingWheel.Entry("entry1")
+        val entry2 = TimingWheel.Entry("entry2")
+        wheel.schedule(entry1, START_TIME_MS + 100L)
+        wheel.schedule(entry2, START_TIME_MS + 100L)
+        wheel.schedule(entry1, START_TIME_MS + 200L)
+        wheel.cancel(entry2)
+        assertEquals(1, wheel.size())
+
+        assertEquals(emptySet<String>(), wheel.advanceValues(START_TIME_MS + 199L))
+        assertEquals(setOf("entry1"), wheel.advanceValues(START_TIME_MS + 200L))
+
+        // Entries scheduled in the past are returned on the next advance.
+        wheel.schedule(entry2, START_TIME_MS)
+        assertEquals(setOf("entry2"), wheel.advanceValues(START_TIME_MS + 200L))
+    }
+
+    @Test
+    fun testRandomDeadlines() {
+        val random = Random(1234)
+        val wheel = TimingWheel<Long>(START_TIME_MS)
+        val deadlines = List(10_000) {
+            START_TIME_MS + random.nextLong(0L, 100_000_000_000L)
+        }
+        deadlines.forEach { wheel.schedule(TimingWheel.Entry(it), it) }
+
+        var now = START_TIME_MS
+        val remaining = deadlines.sorted().toMutableList()
+        while (remaining.isNotEmpty()) {
+            now += random.nextLong(1L, 1_000_000_000L)
+            val expired = wheel.advance(now).map { it.value }.sorted()
+            val expected = remaining.takeWhile { it <= now }
+            assertEquals(expected, expired)
+            remaining.subList(0, expected.size).clear()
+            assertEquals(remaining.size, wheel.size())
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server
+
+import android.net.NetworkCapabilities
+import android.net.NetworkCapabilities.NET_CAPABILITY_NOT_METERED
+import android.net.NetworkCapabilities.TRANSPORT_CELLULAR
+import android.net.NetworkCapabilities.TRANSPORT_WIFI
+import android.net.NetworkRequest
+import android.net.NetworkScore
+import android.os.Build
+import android.util.Log
+import androidx.test.filters.SmallTest
+import com.android.testutils.DevSdkIgnoreRule.IgnoreUpTo
+import com.android.testutils.DevSdkIgnoreRunner
+import com.android.testutils.RecorderCallback.CallbackEntry.Available
+import com.android.testutils.RecorderCallback.CallbackEntry.Lost
+import com.android.testutils.TestableNetworkCallback
+import java.util.concurrent.ConcurrentLinkedQueue
+import kotlin.test.assertEquals
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * Differential tests for the incremental rematch. CSTest enables the incremental rematch and
+ * makes ConnectivityService check every incremental rematch against a full rematch, reporting
+ * mismatches with Log.wtf.
+ */
+@DevSdkIgnoreRunner.MonitorThreadLeak
+@RunWith(DevSdkIgnoreRunner::class)
+@SmallTest
+@IgnoreUpTo(Build.VERSION_CODES.R)
+class CSIncrementalRematchTest : CSTest() {
+    private val wtfs = ConcurrentLinkedQueue<String>()
+    private lateinit var prevWtfHandler: Log.TerribleFailureHandler
+
+    @Before
+    fun setUpWtfHandler() {
+        prevWtfHandler = Log.setWtfHandler { tag, what, _ -> wtfs.add("$tag : ${what.message}") }
+    }
+
+    @After
+    fun tearDownWtfHandler() {
+        Log.setWtfHandler(prevWtfHandler)
+    }
+
+    private fun request(vararg transports: Int, caps: IntArray = intArrayOf()) =
+            NetworkRequest.Builder().clearCapabilities().apply {
+                transports.forEach { addTransportType(it) }
+                caps.forEach { addCapability(it) }
+            }.build()
+
+    @Test
+    fun testScoreAndCapabilitiesChangesMatchFullRematch() {
+        val anyCb = TestableNetworkCallback()
+        val wifiCb = TestableNetworkCallback()
+        val cellCb = TestableNetworkCallback()
+        val unmeteredCb = TestableNetworkCallback()
+        cm.requestNetwork(request(), anyCb)
+        cm.requestNetwork(request(TRANSPORT_WIFI), wifiCb)
+        cm.requestNetwork(request(TRANSPORT_CELLULAR), cellCb)
+        cm.requestNetwork(request(caps = intArrayOf(NET_CAPABILITY_NOT_METERED)), unmeteredCb)
+
+        val wifiAgent = Agent(TRANSPORT_WIFI)
+        val cellAgent = Agent(TRANSPORT_CELLULAR)
+        cellAgent.connect()
+        wifiAgent.connect()
+        wifiCb.eventuallyExpect<Available> { it.network == wifiAgent.network }
+        cellCb.eventuallyExpect<Available> { it.network == cellAgent.network }
+
+        val unmeteredWifiNc = NetworkCapabilities.Builder(wifiAgent.nc)
+                .addCapability(NET_CAPABILITY_NOT_METERED)
+                .build()
+        repeat(3) {
+            wifiAgent.sendNetworkScore(NetworkScore.Builder().setTransportPrimary(true).build())
+            cellAgent.sendNetworkScore(NetworkScore.Builder().setExiting(true).build())
+            wifiAgent.sendNetworkCapabilities(unmeteredWifiNc)
+            unmeteredCb.eventuallyExpect<Available> { it.network == wifiAgent.network }
+
+            wifiAgent.sendNetworkScore(NetworkScore.Builder().setExiting(true).build())
+            cellAgent.sendNetworkScore(NetworkScore.Builder().setTransportPrimary(true).build())
+            wifiAgent.sendNetworkCapabilities(wifiAgent.nc)
+            unmeteredCb.eventuallyExpect<Lost> { it.network == wifiAgent.network }
+        }
+        waitForIdle()
+
+        // Requests that can only be satisfied by one network never moved.
+        wifiCb.assertNoCallback { it is Lost }
+        cellCb.assertNoCallback { it is Lost }
+        assertEquals(emptyList(), wtfs.toList())
+    }
+}
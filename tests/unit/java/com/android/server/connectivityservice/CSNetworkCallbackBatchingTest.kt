@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server
+
+import android.net.NetworkCapabilities
+import android.net.NetworkCapabilities.TRANSPORT_WIFI
+import android.net.NetworkRequest
+import android.os.Build
+import androidx.test.filters.SmallTest
+import com.android.server.connectivity.ConnectivityFlags
+import com.android.testutils.DevSdkIgnoreRule.IgnoreUpTo
+import com.android.testutils.DevSdkIgnoreRunner
+import com.android.testutils.RecorderCallback.CallbackEntry.CapabilitiesChanged
+import com.android.testutils.RecorderCallback.CallbackEntry.Lost
+import com.android.testutils.TestableNetworkCallback
+import java.util.concurrent.CountDownLatch
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import org.junit.Test
+import org.junit.runner.RunWith
+
+@DevSdkIgnoreRunner.MonitorThreadLeak
+@RunWith(DevSdkIgnoreRunner::class)
+@SmallTest
+@IgnoreUpTo(Build.VERSION_CODES.R)
+class CSNetworkCallbackBatchingTest : CSTest() {
+    init {
+        enableFeature(ConnectivityFlags.BATCH_NETWORK_CALLBACKS)
+    }
+
+    private fun wifiRequest() = NetworkRequest.Builder()
+            .clearCapabilities()
+            .addTransportType(TRANSPORT_WIFI)
+            .build()
+
+    @Test
+    fun testCallbacksDelivered() {
+        val cb = TestableNetworkCallback()
+        cm.registerNetworkCallback(wifiRequest(), cb)
+        val agent = Agent(TRANSPORT_WIFI)
+        agent.connect()
+        cb.expectAvailableCallbacks(agent.network, validated = false)
+
+        agent.sendNetworkCapabilities(NetworkCapabilities.Builder(agent.nc)
+                .setLinkDownstreamBandwidthKbps(1000)
+                .build())
+        cb.eventuallyExpect<CapabilitiesChanged> {
+            it.network == agent.network && it.caps.linkDownstreamBandwidthKbps == 1000
+        }
+
+        agent.disconnect()
+        cb.eventuallyExpect<Lost> { it.network == agent.network }
+    }
+
+    @Test
+    fun testSupersededCapabilitiesChangesDropped() {
+        val cb = TestableNetworkCallback()
+        cm.registerNetworkCallback(wifiRequest(), cb)
+        val agent = Agent(TRANSPORT_WIFI)
+        agent.connect()
+        cb.expectAvailableCallbacks(agent.network, validated = false)
+        waitForIdle()
+
+        // Block the handler so that all capabilities updates are processed in a row, before the
+        // pending callbacks are flushed.
+        val latch = CountDownLatch(1)
+        csHandler.post { latch.await() }
+        listOf(1000, 2000, 3000).forEach {
+            agent.sendNetworkCapabilities(NetworkCapabilities.Builder(agent.nc)
+                    .setLinkDownstreamBandwidthKbps(it)
+                    .build())
+        }
+        latch.countDown()
+        waitForIdle()
+
+        val bandwidths = ArrayList<Int>()
+        while (true) {
+            val entry = cb.poll(SHORT_TIMEOUT_MS) ?: break
+            if (entry is CapabilitiesChanged) bandwidths.add(entry.caps.linkDownstreamBandwidthKbps)
+        }
+        assertFalse(bandwidths.contains(1000), "Superseded callback delivered: $bandwidths")
+        assertFalse(bandwidths.contains(2000), "Superseded callback delivered: $bandwidths")
+        assertEquals(3000, bandwidths.last())
+    }
+}
@@ -142,6 +142,8 @@ open class CSTest {
     // permissions using static contexts.
     val enabledFeatures = HashMap<String, Boolean>().also {
         it[ConnectivityFlags.NO_REMATCH_ALL_REQUESTS_ON_REGISTER] = true
+        it[ConnectivityFlags.INCREMENTAL_REMATCH_ON_NETWORK_CHANGE] = true
+        it[ConnectivityFlags.BATCH_NETWORK_CALLBACKS] = false
         it[ConnectivityFlags.REQUEST_RESTRICTED_WIFI] = true
         it[ConnectivityService.KEY_DESTROY_FROZEN_SOCKETS_VERSION] = true
         it[ConnectivityService.DELAY_DESTROY_FROZEN_SOCKETS_VERSION] = true
@@ -277,6 +279,10 @@ open class CSTest {
             }
         }
 
+        // Check all incremental rematches against a full rematch. Mismatches are reported
+        // with Log.wtf.
+        override fun shouldVerifyIncrementalRematch() = true
+
         override fun isChangeEnabled(changeId: Long, pkg: String, user: UserHandle) =
                 changeId in enabledChangeIds
         override fun isChangeEnabled(changeId: Long, uid: Int) =
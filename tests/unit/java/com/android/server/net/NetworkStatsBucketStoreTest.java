@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.net;
+
+import static android.net.ConnectivityManager.TYPE_WIFI;
+import static android.net.NetworkStats.SET_DEFAULT;
+import static android.net.NetworkStats.TAG_NONE;
+import static android.net.TrafficStats.UID_REMOVED;
+import static android.text.format.DateUtils.DAY_IN_MILLIS;
+import static android.text.format.DateUtils.HOUR_IN_MILLIS;
+
+import static com.android.testutils.DevSdkIgnoreRuleKt.SC_V2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.net.NetworkIdentity;
+import android.net.NetworkIdentitySet;
+import android.net.NetworkStats;
+import android.net.NetworkStatsCollection;
+import android.net.NetworkStatsHistory;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.testutils.DevSdkIgnoreRule;
+import com.android.testutils.DevSdkIgnoreRunner;
+
+import libcore.testing.io.TestIoUtils;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.ProtocolException;
+
+@RunWith(DevSdkIgnoreRunner.class)
+@SmallTest
+@DevSdkIgnoreRule.IgnoreUpTo(SC_V2)
+public final class NetworkStatsBucketStoreTest {
+    private static final long BUCKET_DURATION = HOUR_IN_MILLIS;
+    private static final long DELETE_AGE = 90 * DAY_IN_MILLIS;
+    private static final long TEST_START = 1_700_000_000_000L / HOUR_IN_MILLIS * HOUR_IN_MILLIS;
+    private static final int TEST_UID1 = 1234;
+    private static final int TEST_UID2 = 1235;
+
+    private File mFile;
+    private NetworkIdentitySet mIdent;
+
+    @Before
+    public void setUp() {
+        final File dir = TestIoUtils.createTemporaryDirectory(getClass().getSimpleName());
+        mFile = new File(dir, "uid.store");
+        mIdent = new NetworkIdentitySet();
+        mIdent.add(new NetworkIdentity.Builder().setType(TYPE_WIFI)
+                .setWifiNetworkKey("testKey").build());
+    }
+
+    private NetworkStatsBucketStore openStore() throws IOException {
+        return new NetworkStatsBucketStore(mFile, BUCKET_DURATION, DELETE_AGE);
+    }
+
+    private NetworkStatsCollection buildCollection(int uid, int tag, long start, int buckets,
+            long rxBytes) {
+        final NetworkStatsCollection collection = new NetworkStatsCollection(BUCKET_DURATION);
+        final NetworkStats.Entry entry = new NetworkStats.Entry();
+        entry.rxBytes = rxBytes;
+        entry.rxPackets = 1;
+        entry.operations = 1;
+        for (int i = 0; i < buckets; i++) {
+            final long bucketStart = start + i * BUCKET_DURATION;
+            collection.recordData(mIdent, uid, SET_DEFAULT, tag, bucketStart,
+                    bucketStart + BUCKET_DURATION, entry);
+        }
+        return collection;
+    }
+
+    private NetworkStatsCollection readAll(NetworkStatsBucketStore store) {
+        final NetworkStatsCollection collection = new NetworkStatsCollection(BUCKET_DURATION);
+        store.read(collection, Long.MIN_VALUE, Long.MAX_VALUE);
+        return collection;
+    }
+
+    private static void assertSameStats(NetworkStatsCollection expected,
+            NetworkStatsCollection actual) {
+        assertNull(NetworkStatsCollection.compareStats(actual, expected,
+                false /* allowKeyChange */));
+    }
+
+    @Test
+    public void testRecordAndRead() throws Exception {
+        final NetworkStatsCollection collection = buildCollection(TEST_UID1, TAG_NONE,
+                TEST_START, 24, 100L);
+        try (NetworkStatsBucketStore store = openStore()) {
+            assertTrue(store.isEmpty());
+            store.recordCollection(collection);
+            store.flush();
+            assertFalse(store.isEmpty());
+            assertSameStats(collection, readAll(store));
+        }
+
+        // Data persists across reopening the store.
+        try (NetworkStatsBucketStore store = openStore()) {
+            assertSameStats(collection, readAll(store));
+        }
+    }
+
+    @Test
+    public void testReadRange() throws Exception {
+        try (NetworkStatsBucketStore store = openStore()) {
+            store.recordCollection(buildCollection(TEST_UID1, TAG_NONE, TEST_START, 24, 100L));
+            final NetworkStatsCollection collection =
+                    new NetworkStatsCollection(BUCKET_DURATION);
+            store.read(collection, TEST_START + 10 * BUCKET_DURATION,
+                    TEST_START + 12 * BUCKET_DURATION);
+            assertEquals(TEST_START + 10 * BUCKET_DURATION, collection.getStartMillis());
+            assertEquals(TEST_START + 12 * BUCKET_DURATION, collection.getEndMillis());
+            assertEquals(200L, collection.getTotalBytes());
+        }
+    }
+
+    @Test
+    public void testUpdateInPlace() throws Exception {
+        try (NetworkStatsBucketStore store = openStore()) {
+            store.recordCollection(buildCollection(TEST_UID1, TAG_NONE, TEST_START, 24, 100L));
+            final int dataBytes = store.getDataBytes();
+
+            // Recording into existing buckets does not append anything.
+            store.recordCollection(buildCollection(TEST_UID1, TAG_NONE, TEST_START, 24, 50L));
+            assertEquals(dataBytes, store.getDataBytes());
+            store.flush();
+        }
+
+        final NetworkStatsCollection expected = new NetworkStatsCollection(BUCKET_DURATION);
+        expected.recordCollection(buildCollection(TEST_UID1, TAG_NONE, TEST_START, 24, 100L));
+        expected.recordCollection(buildCollection(TEST_UID1, TAG_NONE, TEST_START, 24, 50L));
+        try (NetworkStatsBucketStore store = openStore()) {
+            assertSameStats(expected, readAll(store));
+        }
+    }
+
+    @Test
+    public void testRemoveUids() throws Exception {
+        try (NetworkStatsBucketStore store = openStore()) {
+            store.recordCollection(buildCollection(TEST_UID1, TAG_NONE, TEST_START, 2, 100L));
+            store.recordCollection(buildCollection(TEST_UID1, 0xf00d, TEST_START, 2, 10L));
+            store.recordCollection(buildCollection(TEST_UID2, TAG_NONE, TEST_START, 2, 20L));
+            store.removeUids(new int[] { TEST_UID1 });
+            assertTrue(store.getDeadBytes() > 0);
+            store.flush();
+        }
+
+        // Untagged stats of the removed UID are moved to UID_REMOVED, and tagged stats are
+        // dropped, as in NetworkStatsCollection#removeUids.
+        final NetworkStatsCollection expected =
+                buildCollection(UID_REMOVED, TAG_NONE, TEST_START, 2, 100L);
+        expected.recordCollection(buildCollection(TEST_UID2, TAG_NONE, TEST_START, 2, 20L));
+        try (NetworkStatsBucketStore store = openStore()) {
+            final NetworkStatsCollection actual = readAll(store);
+            assertSameStats(expected, actual);
+            final NetworkStatsHistory removed = actual.getEntries().get(
+                    new NetworkStatsCollection.Key(mIdent, UID_REMOVED, SET_DEFAULT, TAG_NONE));
+            assertEquals(200L, removed.getTotalBytes());
+        }
+    }
+
+    @Test
+    public void testRemoveDataBefore() throws Exception {
+        try (NetworkStatsBucketStore store = openStore()) {
+            store.recordCollection(buildCollection(TEST_UID1, TAG_NONE, TEST_START, 24, 100L));
+            store.recordCollection(buildCollection(TEST_UID2, TAG_NONE, TEST_START, 2, 100L));
+            store.removeDataBefore(TEST_START + 12 * BUCKET_DURATION);
+            store.flush();
+        }
+
+        try (NetworkStatsBucketStore store = openStore()) {
+            assertSameStats(buildCollection(TEST_UID1, TAG_NONE,
+                    TEST_START + 12 * BUCKET_DURATION, 12, 100L), readAll(store));
+        }
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        final int buckets = 24 * 30;
+        try (NetworkStatsBucketStore store = openStore()) {
+            for (int uid = 0; uid < 10; uid++) {
+                store.recordCollection(buildCollection(TEST_UID1 + uid, TAG_NONE, TEST_START,
+                        buckets, 100L));
+            }
+            final int dataBytes = store.getDataBytes();
+            // Remove most of the data, so that the store gets compacted.
+            store.removeDataBefore(TEST_START + (buckets - 1) * BUCKET_DURATION);
+            assertEquals(0, store.getDeadBytes());
+            assertTrue(store.getDataBytes() < dataBytes / 10);
+            store.flush();
+        }
+
+        final NetworkStatsCollection expected = new NetworkStatsCollection(BUCKET_DURATION);
+        for (int uid = 0; uid < 10; uid++) {
+            expected.recordCollection(buildCollection(TEST_UID1 + uid, TAG_NONE,
+                    TEST_START + (buckets - 1) * BUCKET_DURATION, 1, 100L));
+        }
+        try (NetworkStatsBucketStore store = openStore()) {
+            assertSameStats(expected, readAll(store));
+        }
+    }
+
+    @Test
+    public void testIgnoresDataAfterEnd() throws Exception {
+        final NetworkStatsCollection collection = buildCollection(TEST_UID1, TAG_NONE,
+                TEST_START, 2, 100L);
+        final int dataBytes;
+        try (NetworkStatsBucketStore store = openStore()) {
+            store.recordCollection(collection);
+            store.flush();
+            dataBytes = store.getDataBytes();
+        }
+
+        // Simulate a partially written record after the end of the data.
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+            file.seek(dataBytes);
+            file.write(new byte[] { 2, 0, 0, 0, 0x7f });
+        }
+        try (NetworkStatsBucketStore store = openStore()) {
+            assertSameStats(collection, readAll(store));
+        }
+    }
+
+    @Test
+    public void testMigrationPending() throws Exception {
+        try (NetworkStatsBucketStore store = openStore()) {
+            assertFalse(store.isMigrationPending());
+            store.setMigrationPending(true);
+        }
+        try (NetworkStatsBucketStore store = openStore()) {
+            assertTrue(store.isMigrationPending());
+            assertFalse(store.isLegacyMigrated());
+            store.setMigrationCompleted();
+        }
+        try (NetworkStatsBucketStore store = openStore()) {
+            assertFalse(store.isMigrationPending());
+            assertTrue(store.isLegacyMigrated());
+            store.deleteAll();
+            assertFalse(store.isLegacyMigrated());
+        }
+    }
+
+    @Test
+    public void testUnexpectedBucketDuration() throws Exception {
+        openStore().close();
+        try {
+            new NetworkStatsBucketStore(mFile, 2 * BUCKET_DURATION, DELETE_AGE);
+            fail("Opening a store with another bucket duration should fail");
+        } catch (ProtocolException expected) {
+        }
+    }
+}
@@ -591,6 +591,11 @@ public class NetworkStatsServiceTest extends NetworkStatsBaseTest {
         public boolean supportEventLogger(@NonNull Context cts) {
             return true;
         }
+
+        @Override
+        public boolean useBucketStore(@NonNull Context ctx) {
+            return false;
+        }
     }
 
     @After